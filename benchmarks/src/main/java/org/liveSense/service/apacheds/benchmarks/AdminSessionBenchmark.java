@@ -0,0 +1,143 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.CoreSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures the throughput of the add, search and modify operations through the
+ * admin session of the DirectoryService, without the network layer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AdminSessionBenchmark
+{
+	@Param({ "10000" })
+	public int nbEntries;
+
+	private EmbeddedServer server;
+
+	private CoreSession session;
+
+	private SchemaManager schemaManager;
+
+	private final AtomicLong addCounter = new AtomicLong();
+
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception
+	{
+		server = new EmbeddedServer();
+		server.start();
+		server.createUsers( nbEntries );
+		session = server.getDirectoryService().getAdminSession();
+		schemaManager = server.getDirectoryService().getSchemaManager();
+	}
+
+
+	private String randomUid()
+	{
+		return "user" + ThreadLocalRandom.current().nextInt( nbEntries );
+	}
+
+
+	@Benchmark
+	public void add() throws Exception
+	{
+		session.add( server.createUser( "added" + addCounter.incrementAndGet() ) );
+	}
+
+
+	@Benchmark
+	public void searchByUid( Blackhole blackhole ) throws Exception
+	{
+		Cursor<Entry> cursor = session.search( server.getBenchBase(), SearchScope.SUBTREE,
+				FilterParser.parse( schemaManager, "(uid=" + randomUid() + ")" ), AliasDerefMode.NEVER_DEREF_ALIASES,
+				"cn", "uid" );
+
+		try
+		{
+			while ( cursor.next() )
+			{
+				blackhole.consume( cursor.get() );
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+
+	@Benchmark
+	public Entry lookup() throws Exception
+	{
+		return session.lookup( new Dn( schemaManager, EmbeddedServer.userDn( randomUid() ) ) );
+	}
+
+
+	@Benchmark
+	public void modify() throws Exception
+	{
+		session.modify( new Dn( schemaManager, EmbeddedServer.userDn( randomUid() ) ),
+				new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "description",
+						Long.toString( System.nanoTime() ) ) );
+	}
+
+
+	@TearDown(Level.Trial)
+	public void stopServer() throws Exception
+	{
+		server.destroy();
+	}
+}
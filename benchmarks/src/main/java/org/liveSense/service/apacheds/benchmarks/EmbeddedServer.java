@@ -0,0 +1,223 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InstanceLayout;
+import org.liveSense.service.apacheds.ApacheDsService;
+
+
+/**
+ * An {@link ApacheDsService} started in a temporary instance directory, shared
+ * by the benchmarks.
+ */
+public class EmbeddedServer
+{
+	/** The base of the entries created by the benchmarks */
+	public static final String BENCH_BASE = "ou=bench,ou=system";
+
+	/** The password of the benchmark users */
+	public static final String USER_PASSWORD = "secret";
+
+	/** The admin Dn */
+	public static final String ADMIN_DN = "uid=admin,ou=system";
+
+	/** The instance directory */
+	private final File instanceDirectory;
+
+	/** The service, to be configured before it is started */
+	private final ApacheDsService service;
+
+	/** Tells if the service is started */
+	private boolean started;
+
+	/** The cache service of the started service */
+	private CacheService cacheService;
+
+
+	/**
+	 * Creates a server in a new temporary instance directory
+	 */
+	public EmbeddedServer() throws IOException
+	{
+		this( createTempDirectory() );
+	}
+
+
+	/**
+	 * Creates a server in the given instance directory, which may already hold an instance
+	 */
+	public EmbeddedServer( File instanceDirectory )
+	{
+		this.instanceDirectory = instanceDirectory;
+		this.service = new ApacheDsService();
+	}
+
+
+	public static File createTempDirectory() throws IOException
+	{
+		File directory = File.createTempFile( "apacheds-bench", "" );
+
+		if ( !directory.delete() || !directory.mkdirs() )
+		{
+			throw new IOException( "Cannot create the instance directory " + directory );
+		}
+
+		return directory;
+	}
+
+
+	public File getInstanceDirectory()
+	{
+		return instanceDirectory;
+	}
+
+
+	public ApacheDsService start() throws Exception
+	{
+		cacheService = new CacheService();
+		service.start( new InstanceLayout( instanceDirectory ), cacheService );
+		started = true;
+
+		return service;
+	}
+
+
+	public ApacheDsService getService()
+	{
+		return service;
+	}
+
+
+	public DirectoryService getDirectoryService()
+	{
+		return service.getDirectoryService();
+	}
+
+
+	public int getLdapPort()
+	{
+		return service.getLdapServer().getPort();
+	}
+
+
+	/**
+	 * Creates the benchmark base and the given number of users below it, named
+	 * <code>uid=user&lt;i&gt;,ou=bench,ou=system</code>.
+	 */
+	public void createUsers( int nbUsers ) throws LdapException
+	{
+		DirectoryService directoryService = getDirectoryService();
+		CoreSession session = directoryService.getAdminSession();
+
+		session.add( new DefaultEntry( directoryService.getSchemaManager(), BENCH_BASE,
+				"objectClass: top",
+				"objectClass: organizationalUnit",
+				"ou: bench" ) );
+
+		for ( int i = 0; i < nbUsers; i++ )
+		{
+			session.add( createUser( "user" + i ) );
+		}
+	}
+
+
+	/**
+	 * @return a new user entry below the benchmark base
+	 */
+	public DefaultEntry createUser( String uid ) throws LdapException
+	{
+		return new DefaultEntry( getDirectoryService().getSchemaManager(), userDn( uid ),
+				"objectClass: top",
+				"objectClass: person",
+				"objectClass: organizationalPerson",
+				"objectClass: inetOrgPerson",
+				"uid", uid,
+				"cn", uid,
+				"sn", uid,
+				"userPassword", USER_PASSWORD );
+	}
+
+
+	public static String userDn( String uid )
+	{
+		return "uid=" + uid + "," + BENCH_BASE;
+	}
+
+
+	public Dn getBenchBase() throws LdapException
+	{
+		return new Dn( getDirectoryService().getSchemaManager(), BENCH_BASE );
+	}
+
+
+	/**
+	 * Stops the service, keeping the instance directory
+	 */
+	public void stop() throws Exception
+	{
+		if ( started )
+		{
+			service.stop();
+			started = false;
+		}
+
+		if ( cacheService != null )
+		{
+			cacheService.destroy();
+			cacheService = null;
+		}
+	}
+
+
+	/**
+	 * Stops the service and deletes the instance directory
+	 */
+	public void destroy() throws Exception
+	{
+		stop();
+		delete( instanceDirectory );
+	}
+
+
+	private static void delete( File file )
+	{
+		File[] children = file.listFiles();
+
+		if ( children != null )
+		{
+			for ( File child : children )
+			{
+				delete( child );
+			}
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.liveSense.service.apacheds.DirectorySession;
+import org.liveSense.service.apacheds.EntryIdIndex;
+import org.liveSense.service.apacheds.SearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the lookups by entryUUID and entryCSN through the off-heap
+ * {@link EntryIdIndex}, against the search on the entryUUID and entryCSN indices
+ * of the partitions when it is disabled. The heap used once the entries are
+ * loaded, and the memory of the off-heap index, are printed by the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EntryIdIndexBenchmark
+{
+	@Param({ "true", "false" })
+	public boolean entryIdIndex;
+
+	@Param({ "10000" })
+	public int nbEntries;
+
+	private EmbeddedServer server;
+
+	private DirectorySession session;
+
+	private String[] uuids;
+
+	private String[] csns;
+
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception
+	{
+		server = new EmbeddedServer();
+		server.getService().setEntryIdIndexEnabled( entryIdIndex );
+		server.start();
+		server.createUsers( nbEntries );
+		session = server.getService().openSession( EmbeddedServer.ADMIN_DN, "secret" );
+
+		List<String> uuidList = new ArrayList<String>();
+		List<String> csnList = new ArrayList<String>();
+		SearchResult result = session.search( EmbeddedServer.BENCH_BASE, SearchScope.ONELEVEL, "(objectClass=person)",
+				SchemaConstants.ENTRY_UUID_AT, SchemaConstants.ENTRY_CSN_AT );
+
+		for ( Entry entry : result )
+		{
+			uuidList.add( entry.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+			csnList.add( entry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+		}
+
+		uuids = uuidList.toArray( new String[uuidList.size()] );
+		csns = csnList.toArray( new String[csnList.size()] );
+
+		printFootprint();
+	}
+
+
+	private void printFootprint()
+	{
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		memory.gc();
+
+		EntryIdIndex index = server.getService().getEntryIdIndex();
+
+		System.out.println( "Heap used with " + nbEntries + " entries: " + memory.getHeapMemoryUsage().getUsed()
+				+ " bytes, off-heap index: " + ( index == null ? 0 : index.getMemorySize() ) + " bytes" );
+	}
+
+
+	@Benchmark
+	public Entry lookupByUuid() throws Exception
+	{
+		return session.lookupByUuid( uuids[ThreadLocalRandom.current().nextInt( uuids.length )], "cn" );
+	}
+
+
+	@Benchmark
+	public Entry lookupByCsn() throws Exception
+	{
+		return session.lookupByCsn( csns[ThreadLocalRandom.current().nextInt( csns.length )], "cn" );
+	}
+
+
+	@TearDown(Level.Trial)
+	public void stopServer() throws Exception
+	{
+		session.close();
+		server.destroy();
+	}
+}
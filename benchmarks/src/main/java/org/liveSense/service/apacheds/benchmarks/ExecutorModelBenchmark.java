@@ -0,0 +1,154 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.liveSense.service.apacheds.LdapTransportSettings;
+import org.liveSense.service.apacheds.VirtualThreads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Compares the request handling models of the LDAP server under many concurrent
+ * connections running slow searches : a pool of platform threads of the given
+ * size, or a virtual thread per request. The virtual model is skipped when the
+ * JVM does not support virtual threads.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Threads(256)
+@Fork(1)
+public class ExecutorModelBenchmark
+{
+	/**
+	 * The server, shared by all the threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		@Param({ "pool", "virtual" })
+		public String executor;
+
+		@Param({ "16" })
+		public int workers;
+
+		@Param({ "10000" })
+		public int nbEntries;
+
+		private EmbeddedServer server;
+
+
+		@Setup(Level.Trial)
+		public void startServer() throws Exception
+		{
+			if ( "virtual".equals( executor ) && !VirtualThreads.isAvailable() )
+			{
+				throw new IllegalStateException( "Virtual threads are not supported by this JVM" );
+			}
+
+			LdapTransportSettings settings = new LdapTransportSettings();
+			settings.setWorkers( workers );
+			settings.setVirtualThreads( "virtual".equals( executor ) );
+
+			server = new EmbeddedServer();
+			server.getService().setLdapTransportSettings( settings, null );
+			server.start();
+			server.createUsers( nbEntries );
+		}
+
+
+		@TearDown(Level.Trial)
+		public void stopServer() throws Exception
+		{
+			server.destroy();
+		}
+	}
+
+	/**
+	 * The connection of a benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Connection
+	{
+		private LdapNetworkConnection connection;
+
+
+		@Setup(Level.Trial)
+		public void connect( Server server ) throws Exception
+		{
+			connection = new LdapNetworkConnection( "localhost", server.server.getLdapPort() );
+			connection.setTimeOut( 0 );
+			connection.bind( EmbeddedServer.ADMIN_DN, "secret" );
+		}
+
+
+		@TearDown(Level.Trial)
+		public void disconnect() throws Exception
+		{
+			connection.unBind();
+			connection.close();
+		}
+	}
+
+
+	/**
+	 * A substring search on an attribute without index, reading a whole subtree
+	 */
+	@Benchmark
+	public void unindexedSearch( Connection connection, Blackhole blackhole ) throws Exception
+	{
+		EntryCursor cursor = connection.connection.search( EmbeddedServer.BENCH_BASE, "(sn=*"
+				+ ThreadLocalRandom.current().nextInt( 1000 ) + ")", SearchScope.SUBTREE, "cn" );
+
+		try
+		{
+			while ( cursor.next() )
+			{
+				blackhole.consume( cursor.get() );
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+}
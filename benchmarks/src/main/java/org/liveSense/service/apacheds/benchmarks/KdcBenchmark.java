@@ -0,0 +1,225 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.kerberos.client.KdcConfig;
+import org.apache.directory.kerberos.client.KdcConnection;
+import org.apache.directory.kerberos.client.ServiceTicket;
+import org.apache.directory.kerberos.client.ServiceTicketRequest;
+import org.apache.directory.kerberos.client.TgTicket;
+import org.apache.directory.server.kerberos.KerberosConfig;
+import org.apache.directory.server.kerberos.kdc.KdcServer;
+import org.apache.directory.server.kerberos.shared.crypto.encryption.KerberosKeyFactory;
+import org.apache.directory.server.protocol.shared.transport.TcpTransport;
+import org.apache.directory.shared.kerberos.components.EncryptionKey;
+import org.liveSense.service.apacheds.KdcPrincipalCacheInterceptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the ticket issuance of the Kerberos server, with and without the
+ * {@link KdcPrincipalCacheInterceptor}, each benchmark thread sending AS and TGS
+ * requests over TCP from a local client. The throughput gives the issuance rate,
+ * the sample time gives the p99 latency.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class KdcBenchmark
+{
+	/** The realm of the benchmark principals */
+	private static final String REALM = "EXAMPLE.COM";
+
+	/** The service the TGS requests ask a ticket for */
+	private static final String SERVICE_PRINCIPAL = "ldap/localhost@" + REALM;
+
+	/**
+	 * The server and its KDC, shared by all the threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		@Param({ "0", "100000" })
+		public int principalCacheSize;
+
+		@Param({ "10000" })
+		public int nbPrincipals;
+
+		private EmbeddedServer server;
+
+		private KdcServer kdcServer;
+
+		private int kdcPort;
+
+
+		@Setup(Level.Trial)
+		public void startServer() throws Exception
+		{
+			server = new EmbeddedServer();
+			server.getService().setKdcPrincipalCacheSize( principalCacheSize );
+			server.start();
+			server.createUsers( 0 );
+
+			SchemaManager schemaManager = server.getDirectoryService().getSchemaManager();
+
+			if ( !schemaManager.isEnabled( "krb5kdc" ) )
+			{
+				schemaManager.enable( "krb5kdc" );
+			}
+
+			addPrincipal( "krbtgt", "krbtgt/" + REALM + "@" + REALM, "secret" );
+			addPrincipal( "ldap", SERVICE_PRINCIPAL, "secret" );
+
+			for ( int i = 0; i < nbPrincipals; i++ )
+			{
+				addPrincipal( "user" + i, principalName( i ), EmbeddedServer.USER_PASSWORD );
+			}
+
+			ServerSocket socket = new ServerSocket( 0 );
+			kdcPort = socket.getLocalPort();
+			socket.close();
+
+			KerberosConfig config = new KerberosConfig();
+			config.setPrimaryRealm( REALM );
+			config.setServicePrincipal( "krbtgt/" + REALM + "@" + REALM );
+			config.setPaEncTimestampRequired( false );
+
+			kdcServer = new KdcServer( config );
+			kdcServer.setSearchBaseDn( EmbeddedServer.BENCH_BASE );
+			kdcServer.addTransports( new TcpTransport( "localhost", kdcPort, 8, 50 ) );
+			kdcServer.setDirectoryService( server.getDirectoryService() );
+			kdcServer.start();
+		}
+
+
+		/**
+		 * Adds a principal below the benchmark base, with the keys derived from its password
+		 */
+		private void addPrincipal( String uid, String principalName, String password ) throws Exception
+		{
+			Entry entry = new DefaultEntry( server.getDirectoryService().getSchemaManager(),
+					EmbeddedServer.userDn( uid ),
+					"objectClass: top",
+					"objectClass: person",
+					"objectClass: organizationalPerson",
+					"objectClass: inetOrgPerson",
+					"objectClass: krb5principal",
+					"objectClass: krb5kdcentry",
+					"uid", uid,
+					"cn", uid,
+					"sn", uid,
+					"userPassword", password,
+					"krb5PrincipalName", principalName,
+					"krb5KeyVersionNumber: 0" );
+
+			for ( EncryptionKey key : KerberosKeyFactory.getKerberosKeys( principalName, password ).values() )
+			{
+				ByteBuffer buffer = ByteBuffer.allocate( key.computeLength() );
+				key.encode( buffer );
+				entry.add( "krb5Key", buffer.array() );
+			}
+
+			server.getDirectoryService().getAdminSession().add( entry );
+		}
+
+
+		@TearDown(Level.Trial)
+		public void stopServer() throws Exception
+		{
+			kdcServer.stop();
+			server.destroy();
+		}
+
+
+		String randomPrincipal()
+		{
+			return principalName( ThreadLocalRandom.current().nextInt( nbPrincipals ) );
+		}
+	}
+
+	/**
+	 * The Kerberos client of a benchmark thread, with the TGT its TGS requests are sent with
+	 */
+	@State(Scope.Thread)
+	public static class Client
+	{
+		private KdcConnection connection;
+
+		private TgTicket tgt;
+
+
+		@Setup(Level.Trial)
+		public void connect( Server server ) throws Exception
+		{
+			KdcConfig config = KdcConfig.getDefaultConfig();
+			config.setHostName( "localhost" );
+			config.setKdcPort( server.kdcPort );
+			config.setUseUdp( false );
+
+			connection = new KdcConnection( config );
+			tgt = connection.getTgt( server.randomPrincipal(), EmbeddedServer.USER_PASSWORD );
+		}
+	}
+
+
+	private static String principalName( int i )
+	{
+		return "user" + i + "@" + REALM;
+	}
+
+
+	@Benchmark
+	public TgTicket asRequest( Server server, Client client ) throws Exception
+	{
+		return client.connection.getTgt( server.randomPrincipal(), EmbeddedServer.USER_PASSWORD );
+	}
+
+
+	@Benchmark
+	public ServiceTicket tgsRequest( Client client ) throws Exception
+	{
+		return client.connection.getServiceTicket( new ServiceTicketRequest( client.tgt, SERVICE_PRINCIPAL ) );
+	}
+}
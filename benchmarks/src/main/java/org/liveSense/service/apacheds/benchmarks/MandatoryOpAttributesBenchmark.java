@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures {@link org.liveSense.service.apacheds.ApacheDsService#updateMandatoryOpAttributes}
+ * over the system partition holding N benchmark users. The users either all have
+ * valid operational attributes, or all miss their createTimestamp, which is
+ * removed again before each invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MandatoryOpAttributesBenchmark
+{
+	@Param({ "1000", "10000" })
+	public int nbEntries;
+
+	@Param({ "valid", "missingTimestamp" })
+	public String entries;
+
+	private EmbeddedServer server;
+
+	private Partition partition;
+
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception
+	{
+		server = new EmbeddedServer();
+		server.start();
+		server.createUsers( nbEntries );
+		partition = server.getDirectoryService().getSystemPartition();
+	}
+
+
+	@Setup(Level.Invocation)
+	public void removeTimestamps() throws Exception
+	{
+		if ( !"missingTimestamp".equals( entries ) )
+		{
+			return;
+		}
+
+		DirectoryService directoryService = server.getDirectoryService();
+
+		for ( int i = 0; i < nbEntries; i++ )
+		{
+			List<Modification> mods = new ArrayList<Modification>();
+			mods.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE,
+					SchemaConstants.CREATE_TIMESTAMP_AT ) );
+
+			ModifyOperationContext modifyContext = new ModifyOperationContext( directoryService.getAdminSession() );
+			modifyContext.setDn( new Dn( directoryService.getSchemaManager(), EmbeddedServer.userDn( "user" + i ) ) );
+			modifyContext.setModItems( mods );
+			partition.modify( modifyContext );
+		}
+	}
+
+
+	@Benchmark
+	public void updateMandatoryOpAttributes() throws Exception
+	{
+		server.getService().updateMandatoryOpAttributes( partition, server.getDirectoryService() );
+	}
+
+
+	@TearDown(Level.Trial)
+	public void stopServer() throws Exception
+	{
+		server.destroy();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures the bind and search throughput of the LDAP server, each benchmark
+ * thread using its own connection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class NetworkBenchmark
+{
+	/**
+	 * The server, shared by all the threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Server
+	{
+		@Param({ "10000" })
+		public int nbEntries;
+
+		private EmbeddedServer server;
+
+
+		@Setup(Level.Trial)
+		public void startServer() throws Exception
+		{
+			server = new EmbeddedServer();
+			server.start();
+			server.createUsers( nbEntries );
+		}
+
+
+		@TearDown(Level.Trial)
+		public void stopServer() throws Exception
+		{
+			server.destroy();
+		}
+
+
+		String randomUid()
+		{
+			return "user" + ThreadLocalRandom.current().nextInt( nbEntries );
+		}
+	}
+
+	/**
+	 * The connection of a benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Connection
+	{
+		private LdapNetworkConnection connection;
+
+
+		@Setup(Level.Trial)
+		public void connect( Server server ) throws Exception
+		{
+			connection = new LdapNetworkConnection( "localhost", server.server.getLdapPort() );
+			connection.bind( EmbeddedServer.ADMIN_DN, "secret" );
+		}
+
+
+		@TearDown(Level.Trial)
+		public void disconnect() throws Exception
+		{
+			connection.unBind();
+			connection.close();
+		}
+	}
+
+
+	@Benchmark
+	public void bind( Server server, Connection connection ) throws Exception
+	{
+		connection.connection.bind( EmbeddedServer.userDn( server.randomUid() ), EmbeddedServer.USER_PASSWORD );
+	}
+
+
+	@Benchmark
+	public void searchByUid( Server server, Connection connection, Blackhole blackhole ) throws Exception
+	{
+		EntryCursor cursor = connection.connection.search( EmbeddedServer.BENCH_BASE, "(uid=" + server.randomUid()
+				+ ")", SearchScope.SUBTREE, "cn", "uid" );
+
+		try
+		{
+			while ( cursor.next() )
+			{
+				blackhole.consume( cursor.get() );
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,536 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.message.AddRequestImpl;
+import org.apache.directory.api.ldap.model.message.BindRequestImpl;
+import org.apache.directory.api.ldap.model.message.CompareRequestImpl;
+import org.apache.directory.api.ldap.model.message.DeleteRequestImpl;
+import org.apache.directory.api.ldap.model.message.ModifyDnRequestImpl;
+import org.apache.directory.api.ldap.model.message.ModifyRequestImpl;
+import org.apache.directory.api.ldap.model.message.ResultResponse;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+import org.liveSense.service.apacheds.LatencyHistogram;
+import org.liveSense.service.apacheds.OperationLogReader;
+import org.liveSense.service.apacheds.OperationRecord;
+import org.liveSense.service.apacheds.OperationRecord.RecordedAttribute;
+import org.liveSense.service.apacheds.OperationRecorder;
+
+
+/**
+ * Replays an operation log written by the {@link OperationRecorder} of an
+ * ApacheDsService against a target LDAP server, and reports the latency
+ * percentiles of each operation type, next to the recorded ones.
+ *
+ * The recorded connections are spread over a pool of client connections, the
+ * operations of a recorded connection being replayed in order on the same client
+ * connection. The operations are sent at the recorded pace, scaled by the speed,
+ * or as fast as possible. The target is expected to hold a copy of the recorded
+ * data : the writes are replayed as they were recorded, and a result differing
+ * from the recorded one is counted. The binds are replayed on a dedicated
+ * connection with the given user password, as the credentials are not recorded,
+ * and skipped without it. The unbind, abandon and extended operations are skipped.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.liveSense.service.apacheds.benchmarks.OperationReplay
+ *     [--host localhost] [--port 10389] [--connections 16] [--speed 1|&lt;factor&gt;|max]
+ *     [--bind-dn uid=admin,ou=system] [--password secret] [--user-password &lt;password&gt;] operations.oplog
+ * </pre>
+ */
+public class OperationReplay
+{
+	/** Tells a worker to stop */
+	private static final OperationRecord END = new OperationRecord( OperationRecord.Type.UNBIND, 0, 0, 0, 0, null,
+			null, 0, null );
+
+	private String host = "localhost";
+
+	private int port = 10389;
+
+	private int nbConnections = 16;
+
+	/** The replay speed, 0 for as fast as possible */
+	private double speed = 1;
+
+	private String bindDn = EmbeddedServer.ADMIN_DN;
+
+	private String password = "secret";
+
+	/** The password of the replayed binds, null to skip them */
+	private String userPassword;
+
+	private File log;
+
+	/** The replayed latencies, by operation type */
+	private final Map<OperationRecord.Type, LatencyHistogram> replayed = new EnumMap<OperationRecord.Type, LatencyHistogram>(
+			OperationRecord.Type.class );
+
+	/** The recorded latencies, by operation type */
+	private final Map<OperationRecord.Type, LatencyHistogram> recorded = new EnumMap<OperationRecord.Type, LatencyHistogram>(
+			OperationRecord.Type.class );
+
+	/** The number of results differing from the recorded ones */
+	private final AtomicLong mismatches = new AtomicLong();
+
+	/** The number of operations which could not be sent */
+	private final AtomicLong failures = new AtomicLong();
+
+	/** The number of skipped operations */
+	private final AtomicLong skipped = new AtomicLong();
+
+	/** When the replay started, in nanoseconds */
+	private long replayStart;
+
+	/** The offset of the first replayed record */
+	private long firstOffset = -1;
+
+
+	public static void main( String[] args ) throws Exception
+	{
+		OperationReplay replay = new OperationReplay();
+
+		for ( int i = 0; i < args.length; i++ )
+		{
+			if ( "--host".equals( args[i] ) )
+			{
+				replay.host = args[++i];
+			}
+			else if ( "--port".equals( args[i] ) )
+			{
+				replay.port = Integer.parseInt( args[++i] );
+			}
+			else if ( "--connections".equals( args[i] ) )
+			{
+				replay.nbConnections = Integer.parseInt( args[++i] );
+			}
+			else if ( "--speed".equals( args[i] ) )
+			{
+				String speed = args[++i];
+				replay.speed = "max".equalsIgnoreCase( speed ) ? 0 : Double.parseDouble( speed );
+			}
+			else if ( "--bind-dn".equals( args[i] ) )
+			{
+				replay.bindDn = args[++i];
+			}
+			else if ( "--password".equals( args[i] ) )
+			{
+				replay.password = args[++i];
+			}
+			else if ( "--user-password".equals( args[i] ) )
+			{
+				replay.userPassword = args[++i];
+			}
+			else
+			{
+				replay.log = new File( args[i] );
+			}
+		}
+
+		if ( replay.log == null )
+		{
+			System.err.println( "Usage: OperationReplay [--host host] [--port port] [--connections n] "
+					+ "[--speed 1|<factor>|max] [--bind-dn dn] [--password password] [--user-password password] log" );
+			System.exit( 1 );
+		}
+
+		replay.run();
+	}
+
+
+	private void run() throws Exception
+	{
+		for ( OperationRecord.Type type : OperationRecord.Type.values() )
+		{
+			replayed.put( type, new LatencyHistogram() );
+			recorded.put( type, new LatencyHistogram() );
+		}
+
+		List<Worker> workers = new ArrayList<Worker>();
+
+		for ( int i = 0; i < nbConnections; i++ )
+		{
+			Worker worker = new Worker( "replay-" + i );
+			worker.connect();
+			workers.add( worker );
+		}
+
+		OperationLogReader reader = new OperationLogReader( log );
+		replayStart = System.nanoTime();
+
+		for ( Worker worker : workers )
+		{
+			worker.start();
+		}
+
+		try
+		{
+			for ( OperationRecord record = reader.next(); record != null; record = reader.next() )
+			{
+				if ( firstOffset == -1 )
+				{
+					firstOffset = record.getOffset();
+				}
+
+				int index = ( int ) ( Math.abs( record.getConnectionId() ) % nbConnections );
+				workers.get( index ).queue.put( record );
+			}
+		}
+		finally
+		{
+			reader.close();
+
+			for ( Worker worker : workers )
+			{
+				worker.queue.put( END );
+			}
+
+			for ( Worker worker : workers )
+			{
+				worker.join();
+			}
+		}
+
+		report( System.nanoTime() - replayStart );
+	}
+
+
+	/**
+	 * Waits until a record is due
+	 */
+	private void awaitDue( OperationRecord record )
+	{
+		if ( speed <= 0 )
+		{
+			return;
+		}
+
+		long due = replayStart + ( long ) ( ( record.getOffset() - firstOffset ) / speed );
+
+		for ( long delay = due - System.nanoTime(); delay > 0; delay = due - System.nanoTime() )
+		{
+			LockSupport.parkNanos( delay );
+		}
+	}
+
+
+	private void report( long duration )
+	{
+		System.out.printf( "%-10s %10s %10s %10s %10s %10s %10s %12s%n", "operation", "count", "p50 us", "p90 us",
+				"p99 us", "p99.9 us", "max us", "recorded p99" );
+
+		long total = 0;
+
+		for ( OperationRecord.Type type : OperationRecord.Type.values() )
+		{
+			LatencyHistogram histogram = replayed.get( type );
+
+			if ( histogram.getCount() == 0 )
+			{
+				continue;
+			}
+
+			total += histogram.getCount();
+			System.out.printf( "%-10s %10d %10d %10d %10d %10d %10d %12d%n", type, histogram.getCount(),
+					micros( histogram.getPercentile( 50 ) ), micros( histogram.getPercentile( 90 ) ),
+					micros( histogram.getPercentile( 99 ) ), micros( histogram.getPercentile( 99.9 ) ),
+					micros( histogram.getMax() ), micros( recorded.get( type ).getPercentile( 99 ) ) );
+		}
+
+		System.out.printf( "%d operations replayed in %d ms (%.0f/s), %d results differing from the recording, "
+				+ "%d failed, %d skipped%n", total, TimeUnit.NANOSECONDS.toMillis( duration ), total * 1e9 / duration,
+				mismatches.get(), failures.get(), skipped.get() );
+	}
+
+
+	private static long micros( long nanos )
+	{
+		return TimeUnit.NANOSECONDS.toMicros( nanos );
+	}
+
+
+	/**
+	 * Replays the records of some of the recorded connections, in order, on its own
+	 * client connection
+	 */
+	private class Worker extends Thread
+	{
+		private final BlockingQueue<OperationRecord> queue = new ArrayBlockingQueue<OperationRecord>( 1024 );
+
+		private LdapNetworkConnection connection;
+
+		/** The connection the binds are replayed on, so the identity of the other operations is kept */
+		private LdapNetworkConnection bindConnection;
+
+
+		private Worker( String name )
+		{
+			super( name );
+		}
+
+
+		private void connect() throws Exception
+		{
+			connection = new LdapNetworkConnection( host, port );
+			connection.bind( bindDn, password );
+
+			if ( userPassword != null )
+			{
+				bindConnection = new LdapNetworkConnection( host, port );
+				bindConnection.connect();
+			}
+		}
+
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				for ( OperationRecord record = queue.take(); record != END; record = queue.take() )
+				{
+					awaitDue( record );
+					replay( record );
+				}
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				close( connection );
+				close( bindConnection );
+			}
+		}
+
+
+		private void replay( OperationRecord record )
+		{
+			long start = System.nanoTime();
+			int resultCode;
+
+			try
+			{
+				switch ( record.getType() )
+				{
+					case SEARCH:
+						resultCode = search( record );
+						break;
+
+					case BIND:
+						if ( bindConnection == null )
+						{
+							skipped.incrementAndGet();
+							return;
+						}
+
+						BindRequestImpl bind = new BindRequestImpl();
+						bind.setName( record.getDn() );
+						bind.setCredentials( record.getDn().length() == 0 ? "" : userPassword );
+						resultCode = resultCode( bindConnection.bind( bind ) );
+						break;
+
+					case ADD:
+						Entry entry = new DefaultEntry( record.getDn() );
+
+						for ( RecordedAttribute attribute : record.getAttributes() )
+						{
+							byte[][] values = getValues( attribute );
+
+							if ( values.length > 0 )
+							{
+								entry.add( attribute.getId(), values );
+							}
+						}
+
+						AddRequestImpl add = new AddRequestImpl();
+						add.setEntry( entry );
+						resultCode = resultCode( connection.add( add ) );
+						break;
+
+					case MODIFY:
+						ModifyRequestImpl modify = new ModifyRequestImpl();
+						modify.setName( new Dn( record.getDn() ) );
+
+						for ( RecordedAttribute attribute : record.getAttributes() )
+						{
+							modify.addModification( new DefaultAttribute( attribute.getId(), getValues( attribute ) ),
+									ModificationOperation.getOperation( attribute.getOperation() ) );
+						}
+
+						resultCode = resultCode( connection.modify( modify ) );
+						break;
+
+					case DELETE:
+						DeleteRequestImpl delete = new DeleteRequestImpl();
+						delete.setName( new Dn( record.getDn() ) );
+						resultCode = resultCode( connection.delete( delete ) );
+						break;
+
+					case MODIFY_DN:
+						ModifyDnRequestImpl modifyDn = new ModifyDnRequestImpl();
+						modifyDn.setName( new Dn( record.getDn() ) );
+						modifyDn.setNewRdn( new Rdn( record.getArgument() ) );
+						modifyDn.setDeleteOldRdn( record.getOption() == 1 );
+
+						for ( RecordedAttribute attribute : record.getAttributes() )
+						{
+							if ( OperationRecord.NEW_SUPERIOR.equals( attribute.getId() ) )
+							{
+								modifyDn.setNewSuperior( new Dn( Strings.utf8ToString( attribute.getValues().get( 0 ) ) ) );
+							}
+						}
+
+						resultCode = resultCode( connection.modifyDn( modifyDn ) );
+						break;
+
+					case COMPARE:
+						RecordedAttribute assertion = record.getAttributes().get( 0 );
+
+						if ( assertion.getValues().isEmpty() )
+						{
+							// A password compare, whose value is not recorded
+							skipped.incrementAndGet();
+							return;
+						}
+
+						CompareRequestImpl compare = new CompareRequestImpl();
+						compare.setName( new Dn( record.getDn() ) );
+						compare.setAttributeId( assertion.getId() );
+						compare.setAssertionValue( assertion.getValues().get( 0 ) );
+						resultCode = resultCode( connection.compare( compare ) );
+						break;
+
+					default:
+						skipped.incrementAndGet();
+						return;
+				}
+			}
+			catch ( Exception e )
+			{
+				failures.incrementAndGet();
+				return;
+			}
+
+			replayed.get( record.getType() ).record( System.nanoTime() - start );
+			recorded.get( record.getType() ).record( record.getDuration() );
+
+			if ( resultCode != record.getResultCode() )
+			{
+				mismatches.incrementAndGet();
+			}
+		}
+
+
+		private int search( OperationRecord record ) throws Exception
+		{
+			SearchRequestImpl search = new SearchRequestImpl();
+			search.setBase( new Dn( record.getDn() ) );
+			search.setFilter( record.getArgument() );
+			search.setScope( SearchScope.getSearchScope( record.getOption() ) );
+
+			for ( RecordedAttribute attribute : record.getAttributes() )
+			{
+				search.addAttributes( attribute.getId() );
+			}
+
+			SearchCursor cursor = connection.search( search );
+
+			try
+			{
+				while ( cursor.next() )
+				{
+					cursor.get();
+				}
+
+				return cursor.getSearchResultDone().getLdapResult().getResultCode().getResultCode();
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+	}
+
+
+	private static int resultCode( ResultResponse response )
+	{
+		return response.getLdapResult().getResultCode().getResultCode();
+	}
+
+
+	/**
+	 * @return the values of a recorded attribute, the user password for the added
+	 * or replaced password values, which are not recorded
+	 */
+	private byte[][] getValues( RecordedAttribute attribute )
+	{
+		List<byte[]> values = attribute.getValues();
+
+		if ( values.isEmpty() && ( userPassword != null )
+				&& ( attribute.getOperation() != OperationRecord.REMOVE_VALUES ) )
+		{
+			return new byte[][]
+				{ Strings.getBytesUtf8( userPassword ) };
+		}
+
+		return values.toArray( new byte[values.size()][] );
+	}
+
+
+	private static void close( LdapNetworkConnection connection )
+	{
+		if ( connection == null )
+		{
+			return;
+		}
+
+		try
+		{
+			connection.close();
+		}
+		catch ( Exception e )
+		{
+			// The replay is over
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds.benchmarks;
+
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.liveSense.service.apacheds.ApacheDsService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the startup of the service. A cold start extracts the schema and the
+ * configuration into an empty instance directory, a warm start reuses an instance
+ * directory which has already been started once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark
+{
+	@Param({ "cold", "warm" })
+	public String start;
+
+	@Param({ "true", "false" })
+	public boolean parallel;
+
+	/** The instance directory reused by the warm starts */
+	private File warmDirectory;
+
+	/** The server started by the current invocation */
+	private EmbeddedServer server;
+
+
+	@Setup(Level.Trial)
+	public void prepareWarmInstance() throws Exception
+	{
+		if ( "warm".equals( start ) )
+		{
+			EmbeddedServer firstStart = new EmbeddedServer();
+			firstStart.start();
+			firstStart.stop();
+			warmDirectory = firstStart.getInstanceDirectory();
+		}
+	}
+
+
+	@Setup(Level.Invocation)
+	public void prepare() throws Exception
+	{
+		server = ( warmDirectory == null ) ? new EmbeddedServer() : new EmbeddedServer( warmDirectory );
+		server.getService().setParallelStartup( parallel );
+	}
+
+
+	@Benchmark
+	public ApacheDsService startup() throws Exception
+	{
+		return server.start();
+	}
+
+
+	@TearDown(Level.Invocation)
+	public void stop() throws Exception
+	{
+		if ( warmDirectory == null )
+		{
+			server.destroy();
+		}
+		else
+		{
+			server.stop();
+		}
+	}
+
+
+	@TearDown(Level.Trial)
+	public void deleteWarmInstance() throws Exception
+	{
+		if ( warmDirectory != null )
+		{
+			new EmbeddedServer( warmDirectory ).destroy();
+		}
+	}
+}
@@ -20,11 +20,46 @@
 package org.liveSense.service.apacheds;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Statistics;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.ConfigurationFactory;
+import net.sf.ehcache.config.DiskStoreConfiguration;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -33,6 +68,7 @@ import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
@@ -49,19 +85,24 @@ import org.apache.directory.api.ldap.schemaextractor.impl.DefaultSchemaLdifExtra
 import org.apache.directory.api.ldap.schemaloader.LdifSchemaLoader;
 import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
 import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.api.util.Strings;
 import org.apache.directory.api.util.exception.Exceptions;
 import org.apache.directory.server.config.ConfigPartitionReader;
 import org.apache.directory.server.config.LdifConfigExtractor;
 import org.apache.directory.server.config.beans.ConfigBean;
 import org.apache.directory.server.config.beans.DirectoryServiceBean;
+import org.apache.directory.server.config.beans.JdbmPartitionBean;
 import org.apache.directory.server.config.beans.KdcServerBean;
 import org.apache.directory.server.config.beans.LdapServerBean;
 import org.apache.directory.server.config.beans.NtpServerBean;
+import org.apache.directory.server.config.beans.PartitionBean;
+import org.apache.directory.server.config.beans.TransportBean;
 import org.apache.directory.server.config.builder.ServiceBuilder;
 import org.apache.directory.server.core.api.CacheService;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InstanceLayout;
+import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
@@ -72,7 +113,19 @@ import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.integration.http.HttpServer;
 import org.apache.directory.server.kerberos.kdc.KdcServer;
 import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumer;
+import org.apache.directory.server.ldap.replication.consumer.ReplicationConsumerImpl;
+import org.apache.directory.server.ldap.replication.provider.SyncReplRequestHandler;
 import org.apache.directory.server.ntp.NtpServer;
+import org.apache.directory.server.protocol.shared.transport.Transport;
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -82,7 +135,7 @@ import org.slf4j.LoggerFactory;
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
-public class ApacheDsService
+public class ApacheDsService implements DirectoryQueryService
 {
 	/** A logger for this class */
 	private static final Logger LOG = LoggerFactory.getLogger( ApacheDsService.class );
@@ -102,6 +155,38 @@ public class ApacheDsService
     /** The Kerberos server instance */
 	private KdcServer kdcServer;
 
+	/** Tells if the LDAP server is started */
+	private boolean ldapEnabled = true;
+
+	/** How the NTP server is run */
+	private ProtocolServerMode ntpMode = ProtocolServerMode.EAGER;
+
+	/** How the Kerberos server is run */
+	private ProtocolServerMode kerberosMode = ProtocolServerMode.EAGER;
+
+	/** The ports of the NTP server, when it is started on the first request */
+	private LazyProtocolServer lazyNtpServer;
+
+	/** The ports of the Kerberos server, when it is started on the first request */
+	private LazyProtocolServer lazyKdcServer;
+
+	/** The configuration of the protocol servers, kept to start them at runtime */
+	private volatile DirectoryServiceBean serverConfiguration;
+
+	/** The configuration of the partitions created from the config partition, by id */
+	private final Map<String, PartitionBean> partitionConfigurations = new ConcurrentHashMap<String, PartitionBean>();
+
+	/** Serializes the start, the stop and the reloads of the configuration */
+	private final Object lifecycleLock = new Object();
+
+	/** How long the running LDAP requests are waited for before the LDAP server is restarted, in milliseconds */
+	private static final long LDAP_DRAIN_TIMEOUT = 10000;
+
+	/** Guard the start and the stop of each protocol server */
+	private final Object ldapLock = new Object();
+	private final Object ntpLock = new Object();
+	private final Object kerberosLock = new Object();
+
 	/** The started HttpServer */
 	private HttpServer httpServer;
 
@@ -117,6 +202,169 @@ public class ApacheDsService
 	/** The configuration reader instance */
 	private ConfigPartitionReader cpReader;
 
+	/** Tells if the schema is loaded from a binary snapshot when possible */
+	private boolean useSchemaSnapshot = true;
+
+	/** The binary snapshot of the schema partition */
+	private SchemaSnapshot schemaSnapshot;
+
+	/** The loader used when the schema is loaded from the LDIF files, kept until the snapshot is written */
+	private RecordingLdifSchemaLoader recordingSchemaLoader;
+
+	/** The manifest of the schema directory when the recording loader read it */
+	private String recordingSchemaManifest;
+
+	/** Tells if the writes to the configuration partition are buffered */
+	private boolean coalesceConfigWrites = true;
+
+	/** The maximum delay before the pending configuration changes are written */
+	private long configFlushDelay = CoalescingLdifPartition.DEFAULT_FLUSH_DELAY;
+
+	/** The number of pending configuration changes forcing a write */
+	private int configMaxPendingChanges = CoalescingLdifPartition.DEFAULT_MAX_PENDING_CHANGES;
+
+	/** The cache names shared by all the partitions */
+	private static final String[] SHARED_CACHES = new String[] { "dnCache", "entryDn", "alias", "piar" };
+
+	/** The name of the cache configuration file, in the conf directory of the instance or in the CacheService bundle */
+	private static final String CACHE_CONFIGURATION_FILE = "directory-cacheservice.xml";
+
+	/** The cache service used by the DirectoryService */
+	private CacheService cacheService;
+
+	/** The cache manager of the cache service, null if the cache service was not created by this service */
+	private CacheManager cacheManager;
+
+	/** The sizing of the caches, by cache name */
+	private final Map<String, CacheSettings> cacheSettings = new ConcurrentHashMap<String, CacheSettings>();
+
+	/** The tuning of the JDBM data partitions, by partition id */
+	private final Map<String, PartitionBackendSettings> partitionBackends = new LinkedHashMap<String, PartitionBackendSettings>();
+
+	/** The partitions which are not replicated by default, their content is specific to each node */
+	private static final Set<String> SYSTEM_PARTITION_IDS = new TreeSet<String>( Arrays.asList( "system", "config",
+			"schema" ) );
+
+	/** The search result caches, by partition */
+	private volatile List<SearchCacheSettings> searchCacheSettings = Collections.emptyList();
+
+	/** The interceptor caching the search results */
+	private volatile SearchResultCacheInterceptor searchResultCacheInterceptor;
+
+	/** How long a successful bind is cached, in milliseconds, 0 to disable the cache */
+	private volatile long bindCacheTtl = 0;
+
+	/** The number of binds hashing their credentials at the same time, 0 for no bound */
+	private volatile int bindHashConcurrency = 0;
+
+	/** The interceptor caching the successful binds */
+	private volatile BindCacheInterceptor bindCacheInterceptor;
+
+	/** The number of principals cached for the Kerberos server, 0 to disable the cache */
+	private volatile int kdcPrincipalCacheSize = 0;
+
+	/** The interceptor caching the principals read by the Kerberos server */
+	private volatile KdcPrincipalCacheInterceptor kdcPrincipalCacheInterceptor;
+
+	/** The maximum delay before a write is synced, 0 to disable */
+	private long syncInterval = SyncScheduler.DEFAULT_SYNC_INTERVAL;
+
+	/** The number of writes triggering a sync, 0 to disable */
+	private int syncWrites = SyncScheduler.DEFAULT_SYNC_WRITES;
+
+	/** The scheduler making the writes durable */
+	private volatile SyncScheduler syncScheduler;
+
+	/** Tells if the operations are measured */
+	private boolean metricsEnabled = true;
+
+	/** Tells if the entries are indexed by entryUUID and entryCSN outside of the heap */
+	private boolean entryIdIndexEnabled = false;
+
+	/** The index of the entries by entryUUID and entryCSN, null if disabled */
+	private volatile EntryIdIndex entryIdIndex;
+
+	/** Tells if the writes are appended to the change feed */
+	private boolean changeFeedEnabled = false;
+
+	/** The size of the segments of the change feed, in bytes */
+	private int changeFeedSegmentSize = ChangeFeed.DEFAULT_SEGMENT_SIZE;
+
+	/** The number of segments of the change feed kept */
+	private int changeFeedSegments = ChangeFeed.DEFAULT_MAX_SEGMENTS;
+
+	/** The change feed, null if disabled */
+	private volatile ChangeFeed changeFeed;
+
+	/** The number of workers of the parallel subtree searches, 0 to disable them */
+	private int searchParallelism = 0;
+
+	/** The number of entries of a subtree below which a search is not split */
+	private int searchCutoff = ParallelSearch.DEFAULT_CUTOFF;
+
+	/** The workers of the parallel subtree searches */
+	private ExecutorService searchWorkers;
+
+	/** Runs the large subtree searches on the workers, null if disabled */
+	private volatile ParallelSearch parallelSearch;
+
+	/** The number of entries the entryUUID and entryCSN index is first sized for */
+	private static final int ENTRY_ID_INDEX_CAPACITY = 10000;
+
+	/** The number of times the entryUUID and entryCSN index is rebuilt while entries are moved */
+	private static final int ENTRY_ID_INDEX_ATTEMPTS = 3;
+
+	/** The counters and latencies of the operations */
+	private OperationMetrics operationMetrics;
+
+	/** The replication role of this node */
+	private ReplicationSettings replicationSettings = new ReplicationSettings();
+
+	/** The replication lag, null if this node is not replicated */
+	private ReplicationMetrics replicationMetrics;
+
+	/** The MBeans registered by this service */
+	private final List<ObjectName> registeredMBeans = new ArrayList<ObjectName>();
+
+	/** The network settings of the LDAP transport, null to keep the configuration */
+	private LdapTransportSettings ldapTransportSettings;
+
+	/** The network settings of the LDAPS transport, null to keep the configuration */
+	private LdapTransportSettings ldapsTransportSettings;
+
+	/** The executors created for the LDAP transports, shut down when the server stops */
+	private final List<ExecutorService> transportExecutors = new ArrayList<ExecutorService>();
+
+	/** Tells if the LDAP operations are recorded, guarded by ldapLock */
+	private boolean recordingEnabled = false;
+
+	/** The size of the ring buffer of the operation recorder, in bytes, guarded by ldapLock */
+	private int recordingBufferSize = OperationRecorder.DEFAULT_BUFFER_SIZE;
+
+	/** The maximum size of an operation log, in bytes, guarded by ldapLock */
+	private long recordingMaxFileSize = OperationRecorder.DEFAULT_MAX_FILE_SIZE;
+
+	/** The filter recording the LDAP operations, null if they are not recorded */
+	private volatile OperationRecorderFilter recorderFilter;
+
+	/** How long the idle LDAP worker threads are kept, in seconds */
+	private static final long WORKER_KEEP_ALIVE = 60;
+
+	/** The started DirectoryService */
+	private DirectoryService directoryService;
+
+	/** The number of threads used to run the independent startup steps */
+	private static final int STARTUP_THREADS = 4;
+
+	/** Tells if the independent startup steps are run concurrently */
+	private boolean parallelStartup = true;
+
+	/** The executor running the startup steps, only set during the startup */
+	private ExecutorService startupExecutor;
+
+	/** The timings of the last startup */
+	private StartupProfiler startupProfiler;
+
 	// variables used during the initial startup to update the mandatory operational
 	// attributes
 	/** The UUID syntax checker instance */
@@ -138,6 +386,10 @@ public class ApacheDsService
 	 * starts various services configured according to the 
 	 * configuration present in the given instance's layout
 	 *
+	 * The independent steps of the startup are run concurrently : the schema is
+	 * loaded while the default configuration is extracted, and the LDAP, NTP and
+	 * Kerberos servers are started together once the DirectoryService is up.
+	 *
 	 * @param instanceLayout the on disk location's layout of the intance to be started
 	 * @throws Exception
 	 */
@@ -156,26 +408,136 @@ public class ApacheDsService
 
 		LOG.info( "using partition dir {}", partitionsDir.getAbsolutePath() );
 
-		initSchemaManager( instanceLayout );
+		startupProfiler = new StartupProfiler();
+
+		if ( parallelStartup )
+		{
+			startupExecutor = Executors.newFixedThreadPool( STARTUP_THREADS, new NamedThreadFactory( "apacheds-startup" ) );
+		}
+
+		try
+		{
+			synchronized ( lifecycleLock )
+			{
+				try
+				{
+					startServices( instanceLayout, cacheService );
+				}
+				catch ( Exception e )
+				{
+					// Releases the threads, files and MBeans of what was started before the failure
+					try
+					{
+						stopServices();
+					}
+					catch ( Exception stopError )
+					{
+						LOG.warn( "Cannot stop the partially started directory service", stopError );
+					}
+
+					throw e;
+				}
+			}
+		}
+		finally
+		{
+			if ( startupExecutor != null )
+			{
+				startupExecutor.shutdownNow();
+				startupExecutor = null;
+			}
+
+			startupProfiler.finish();
+			startupProfiler.logSummary( LOG );
+		}
+	}
+
+
+	private void startServices( final InstanceLayout instanceLayout, final CacheService cacheService ) throws Exception
+	{
+		// The schema loading and the default config extraction don't depend on each other
+		Future<Void> schemaManagerStep = submitStartupStep( "schemaManager", new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				initSchemaManager( instanceLayout );
+				return null;
+			}
+		} );
+
+		Future<Void> configExtractionStep = submitStartupStep( "configExtraction", new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				extractConfig( instanceLayout );
+				return null;
+			}
+		} );
+
+		awaitResult( schemaManagerStep );
+		awaitResult( configExtractionStep );
+
+		long begin = startupProfiler.begin();
 		initSchemaLdifPartition( instanceLayout );
 		initConfigPartition( instanceLayout );
+		startupProfiler.end( "configPartition", begin );
 
 		// Read the configuration
+		begin = startupProfiler.begin();
 		cpReader = new ConfigPartitionReader( configPartition );
 
-		ConfigBean configBean = cpReader.readConfig();
-
-		DirectoryServiceBean directoryServiceBean = configBean.getDirectoryServiceBean();
+		final DirectoryServiceBean directoryServiceBean = readDirectoryServiceBean();
+		startupProfiler.end( "readConfig", begin );
 
 		// Initialize the DirectoryService now
-		DirectoryService directoryService = initDirectoryService( instanceLayout, directoryServiceBean, cacheService );
+		begin = startupProfiler.begin();
+		final DirectoryService directoryService = initDirectoryService( instanceLayout, directoryServiceBean, cacheService );
+		startupProfiler.end( "directoryService", begin );
+
+		applyCacheSettings();
 
+		begin = startupProfiler.begin();
+		rebuildEntryIdIndex();
+		startupProfiler.end( "entryIdIndex", begin );
+
+		// The protocol servers only share the DirectoryService, start them together
+		List<Future<Void>> serverSteps = new ArrayList<Future<Void>>();
+
+		// The recorded schema is not needed by the startup anymore, the snapshot can be written
+		if ( recordingSchemaLoader != null )
+		{
+			serverSteps.add( submitStartupStep( "schemaSnapshot", new Callable<Void>()
+			{
+				public Void call() throws Exception
+				{
+					writeSchemaSnapshot();
+					return null;
+				}
+			} ) );
+		}
+
+		// The servers can be started and stopped at runtime from now on
+		serverConfiguration = directoryServiceBean;
 
 		// start the LDAP server
-		startLdap( directoryServiceBean.getLdapServerBean(), directoryService );
+		serverSteps.add( submitStartupStep( "ldapServer", new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				applyLdapMode();
+				return null;
+			}
+		} ) );
 
 		// start the NTP server
-		startNtp( directoryServiceBean.getNtpServerBean(), directoryService );
+		serverSteps.add( submitStartupStep( "ntpServer", new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				applyNtpMode();
+				return null;
+			}
+		} ) );
 
 		// Initialize the DNS server (Not ready yet)
 		// initDns( configBean );
@@ -187,7 +549,19 @@ public class ApacheDsService
 		//startChangePwd( directoryServiceBean.getChangePasswordServerBean(), directoryService );
 
 		// start the Kerberos server
-		startKerberos( directoryServiceBean.getKdcServerBean(), directoryService );
+		serverSteps.add( submitStartupStep( "kerberosServer", new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				applyKerberosMode();
+				return null;
+			}
+		} ) );
+
+		for ( Future<Void> serverStep : serverSteps )
+		{
+			awaitResult( serverStep );
+		}
 
 		// start the jetty http server
 		//startHttpServer( directoryServiceBean.getHttpServerBean(), directoryService );
@@ -195,153 +569,1858 @@ public class ApacheDsService
 
 
 	/**
-	 * Initialize the schema Manager by loading the schema LDIF files
-	 * 
-	 * @param instanceLayout the instance layout
-	 * @throws Exception in case of any problems while extracting and writing the schema files
+	 * Reads the configuration of the DirectoryService from the config partition
 	 */
-	private void initSchemaManager( InstanceLayout instanceLayout ) throws Exception
+	private DirectoryServiceBean readDirectoryServiceBean() throws Exception
 	{
-		File schemaPartitionDirectory = new File( instanceLayout.getPartitionsDirectory(), "schema" );
+		ConfigBean configBean = cpReader.readConfig();
 
-		// Extract the schema on disk (a brand new one) and load the registries
-		if ( schemaPartitionDirectory.exists() )
+		DirectoryServiceBean directoryServiceBean = configBean.getDirectoryServiceBean();
+
+		if ( replicationSettings.getRole() != ReplicationSettings.Role.STANDALONE )
 		{
-			LOG.info( "schema partition already exists, skipping schema extraction" );
+			// The CSNs of the replicated nodes must be told apart
+			directoryServiceBean.setDsReplicaId( replicationSettings.getReplicaId() );
 		}
-		else
+
+		return directoryServiceBean;
+	}
+
+
+	/**
+	 * Reads the configuration again and applies what changed since the servers were
+	 * started. The DirectoryService settings, the LDAP limits and the partitions are
+	 * changed in place. A partition whose indexes or cache changed is replaced by a new
+	 * one on the same files. The LDAP server is only restarted when its transports or
+	 * its other settings changed : it stops accepting connections, waits for the
+	 * running requests, then is started with the new configuration. The NTP and the
+	 * Kerberos servers are restarted when their configuration changed.
+	 */
+	public void reloadConfiguration() throws Exception
+	{
+		synchronized ( lifecycleLock )
 		{
-			SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( instanceLayout.getPartitionsDirectory() );
-			extractor.extractOrCopy();
-			isSchemaPartitionFirstExtraction = true;
-		}
+			DirectoryServiceBean oldConfiguration = serverConfiguration;
 
-		SchemaLoader loader = new LdifSchemaLoader( schemaPartitionDirectory );
-		schemaManager = new DefaultSchemaManager( loader );
+			if ( oldConfiguration == null )
+			{
+				// Not started, or being stopped
+				return;
+			}
 
-		// We have to load the schema now, otherwise we won't be able
-		// to initialize the Partitions, as we won't be able to parse 
-		// and normalize their suffix Dn
-		schemaManager.loadAllEnabled();
+			DirectoryServiceBean newConfiguration = readDirectoryServiceBean();
+			configurePartitionBackends( newConfiguration );
+			List<String> changes = new ArrayList<String>();
 
-		List<Throwable> errors = schemaManager.getErrors();
+			applyDirectoryServiceChanges( newConfiguration, changes );
 
-		if ( errors.size() != 0 )
-		{
-			throw new Exception( I18n.err( I18n.ERR_317, Exceptions.printErrors( errors ) ) );
+			if ( !ConfigurationBeans.sameInterceptors( oldConfiguration.getInterceptors(),
+					newConfiguration.getInterceptors() ) )
+			{
+				LOG.warn( "The interceptors changed, they are applied when the service is restarted" );
+			}
+
+			applyPartitionChanges( newConfiguration, changes );
+
+			serverConfiguration = newConfiguration;
+
+			applyLdapChanges( oldConfiguration.getLdapServerBean(), newConfiguration.getLdapServerBean(), changes );
+
+			if ( !ConfigurationBeans.sameNtpServer( oldConfiguration.getNtpServerBean(),
+					newConfiguration.getNtpServerBean() ) )
+			{
+				applyNtpMode();
+				changes.add( "NTP server restarted" );
+			}
+
+			if ( !ConfigurationBeans.sameKdcServer( oldConfiguration.getKdcServerBean(),
+					newConfiguration.getKdcServerBean() ) )
+			{
+				applyKerberosMode();
+				changes.add( "Kerberos server restarted" );
+			}
+
+			if ( changes.isEmpty() )
+			{
+				LOG.info( "Configuration reloaded, nothing changed" );
+			}
+			else
+			{
+				LOG.info( "Configuration reloaded : {}", changes );
+			}
 		}
 	}
 
 
 	/**
-	 * Initialize the schema partition
-	 * 
-	 * @param instanceLayout the instance layout
-	 * @throws Exception in case of any problems while initializing the SchemaPartition
+	 * @return the partitions of the configuration, by id
 	 */
-	private void initSchemaLdifPartition( InstanceLayout instanceLayout ) throws Exception
+	private static Map<String, PartitionBean> getPartitionBeans( DirectoryServiceBean directoryServiceBean )
 	{
-		File schemaPartitionDirectory = new File( instanceLayout.getPartitionsDirectory(), "schema" );
+		Map<String, PartitionBean> partitions = new LinkedHashMap<String, PartitionBean>();
 
-		// Init the LdifPartition
-		schemaLdifPartition = new LdifPartition( schemaManager );
-		schemaLdifPartition.setPartitionPath( schemaPartitionDirectory.toURI() );
+		for ( PartitionBean partitionBean : directoryServiceBean.getPartitions() )
+		{
+			partitions.put( partitionBean.getPartitionId(), partitionBean );
+		}
+
+		return partitions;
 	}
 
 
 	/**
-	 * 
-	 * initializes a LDIF partition for configuration
-	 * 
-	 * @param instanceLayout the instance layout
-	 * @throws Exception in case of any issues while extracting the schema
+	 * Applies the settings read by the DirectoryService on each operation. The cached
+	 * results are dropped when a setting changing what a user may read changed.
 	 */
-	private void initConfigPartition( InstanceLayout instanceLayout ) throws Exception
+	private void applyDirectoryServiceChanges( DirectoryServiceBean configuration, List<String> changes )
 	{
-		File confFile = new File( instanceLayout.getConfDirectory(), LdifConfigExtractor.LDIF_CONFIG_FILE );
+		int nbChanges = changes.size();
 
-		if ( confFile.exists() )
+		if ( directoryService.isAllowAnonymousAccess() != configuration.isDsAllowAnonymousAccess() )
 		{
-			LOG.info( "config partition already exists, skipping default config extraction" );
+			directoryService.setAllowAnonymousAccess( configuration.isDsAllowAnonymousAccess() );
+			changes.add( "allowAnonymousAccess" );
 		}
-		else
+
+		if ( directoryService.isAccessControlEnabled() != configuration.isDsAccessControlEnabled() )
 		{
-			LdifConfigExtractor.extractSingleFileConfig( instanceLayout.getConfDirectory(),
-					LdifConfigExtractor.LDIF_CONFIG_FILE, true );
-			isConfigPartitionFirstExtraction = true;
+			directoryService.setAccessControlEnabled( configuration.isDsAccessControlEnabled() );
+			changes.add( "accessControlEnabled" );
 		}
 
-		configPartition = new SingleFileLdifPartition( schemaManager );
-		configPartition.setId( "config" );
-		configPartition.setPartitionPath( confFile.toURI() );
-		configPartition.setSuffixDn( new Dn( schemaManager, "ou=config" ) );
-		configPartition.setSchemaManager( schemaManager );
-
-		configPartition.initialize();
-	}
+		if ( directoryService.isDenormalizeOpAttrsEnabled() != configuration.isDsDenormalizeOpAttrsEnabled() )
+		{
+			directoryService.setDenormalizeOpAttrsEnabled( configuration.isDsDenormalizeOpAttrsEnabled() );
+			changes.add( "denormalizeOpAttrsEnabled" );
+		}
 
+		if ( directoryService.isPasswordHidden() != configuration.isDsPasswordHidden() )
+		{
+			directoryService.setPasswordHidden( configuration.isDsPasswordHidden() );
+			changes.add( "passwordHidden" );
+		}
 
-	private DirectoryService initDirectoryService( InstanceLayout instanceLayout,
-			DirectoryServiceBean directoryServiceBean, CacheService cacheService ) throws Exception
-			{
-		LOG.info( "Initializing the DirectoryService..." );
+		if ( changes.size() > nbChanges )
+		{
+			clearSearchCache();
+		}
 
-		long startTime = System.currentTimeMillis();
+		if ( directoryService.getMaxPDUSize() != configuration.getDsMaxPDUSize() )
+		{
+			directoryService.setMaxPDUSize( configuration.getDsMaxPDUSize() );
+			changes.add( "maxPDUSize" );
+		}
 
-		DirectoryService directoryService = ServiceBuilder.createDirectoryService( directoryServiceBean,
-				instanceLayout, schemaManager );
+		if ( directoryService.getSyncPeriodMillis() != configuration.getDsSyncPeriodMillis() )
+		{
+			directoryService.setSyncPeriodMillis( configuration.getDsSyncPeriodMillis() );
+			changes.add( "syncPeriodMillis" );
+		}
+	}
 
-		// The schema partition
-		SchemaPartition schemaPartition = new SchemaPartition( schemaManager );
-		schemaPartition.setWrappedPartition( schemaLdifPartition );
-		directoryService.setSchemaPartition( schemaPartition );
 
-		directoryService.addPartition( configPartition );
+	/**
+	 * Adds the new partitions, removes the dropped ones and replaces the ones whose
+	 * configuration changed. The system partition is left alone until the service is
+	 * restarted.
+	 */
+	private void applyPartitionChanges( DirectoryServiceBean configuration, List<String> changes ) throws Exception
+	{
+		Map<String, PartitionBean> newPartitions = getPartitionBeans( configuration );
+		boolean changed = false;
 
-		// Store the default directories
-		directoryService.setInstanceLayout( instanceLayout );
-		directoryService.setCacheService(cacheService);
-		directoryService.startup();
+		for ( String partitionId : new ArrayList<String>( partitionConfigurations.keySet() ) )
+		{
+			if ( !newPartitions.containsKey( partitionId ) )
+			{
+				if ( "system".equals( partitionId ) )
+				{
+					LOG.warn( "The system partition cannot be removed" );
+					continue;
+				}
+
+				removePartition( partitionId );
+				partitionConfigurations.remove( partitionId );
+				changes.add( "partition " + partitionId + " removed" );
+				changed = true;
+			}
+		}
 
-		if ( isConfigPartitionFirstExtraction )
+		for ( Map.Entry<String, PartitionBean> newPartition : newPartitions.entrySet() )
 		{
-			LOG.info( "begining to update config partition LDIF files after modifying manadatory attributes" );
+			String partitionId = newPartition.getKey();
+			PartitionBean oldPartition = partitionConfigurations.get( partitionId );
 
-			// disable writes to the disk upon every modification to improve performance
-			configPartition.setEnableRewriting( false );
+			if ( ConfigurationBeans.samePartition( oldPartition, newPartition.getValue() ) )
+			{
+				continue;
+			}
 
-			// perform updates
-			updateMandatoryOpAttributes( configPartition, directoryService );
+			if ( oldPartition != null )
+			{
+				if ( "system".equals( partitionId ) )
+				{
+					LOG.warn( "The system partition changed, it is applied when the service is restarted" );
+					continue;
+				}
+
+				// The partition releases its files before they are opened again
+				removePartition( partitionId );
+			}
 
-			// enable writes to disk, this will save the partition data first if found dirty
-			configPartition.setEnableRewriting( true );
+			directoryService.addPartition( ServiceBuilder.createPartition( directoryService, newPartition.getValue() ) );
 
-			LOG.info( "config partition data was successfully updated" );
+			partitionConfigurations.put( partitionId, newPartition.getValue() );
+			changes.add( "partition " + partitionId + ( oldPartition == null ? " added" : " reconfigured" ) );
+			changed = true;
 		}
 
-		if ( isSchemaPartitionFirstExtraction )
+		if ( changed )
 		{
-			LOG.info( "begining to update schema partition LDIF files after modifying manadatory attributes" );
-
-			updateMandatoryOpAttributes( schemaLdifPartition, directoryService );
-
-			LOG.info( "schema partition data was successfully updated" );
+			// The cached results may come from the partitions which are gone
+			clearSearchCache();
 		}
-
-		LOG.info( "DirectoryService initialized in {} milliseconds", ( System.currentTimeMillis() - startTime ) );
-
-		return directoryService;
-			}
+	}
 
 
 	/**
-	 * start the LDAP server
+	 * Removes a partition from the DirectoryService and closes it
 	 */
-	private void startLdap( LdapServerBean ldapServerBean, DirectoryService directoryService ) throws Exception
+	private void removePartition( String partitionId ) throws Exception
+	{
+		Partition partition = getPartition( partitionId );
+
+		directoryService.removePartition( partition );
+
+		if ( partition.isInitialized() )
+		{
+			partition.destroy();
+		}
+	}
+
+
+	/**
+	 * Applies the limits of the LDAP server in place, and restarts it when anything else
+	 * changed
+	 */
+	private void applyLdapChanges( LdapServerBean oldLdapServerBean, LdapServerBean newLdapServerBean,
+			List<String> changes ) throws Exception
+	{
+		synchronized ( ldapLock )
+		{
+			if ( ( oldLdapServerBean != null ) && ( newLdapServerBean != null ) )
+			{
+				// The overridden transports are compared, not the ones of the configuration
+				configureTransports( newLdapServerBean );
+
+				// The limits and the confidentiality requirement are not compared, they are changed in place
+				if ( ConfigurationBeans.sameLdapServer( oldLdapServerBean, newLdapServerBean ) )
+				{
+					if ( ldapServer != null )
+					{
+						ldapServer.setMaxSizeLimit( newLdapServerBean.getLdapServerMaxSizeLimit() );
+						ldapServer.setMaxTimeLimit( newLdapServerBean.getLdapServerMaxTimeLimit() );
+						ldapServer.setConfidentialityRequired( newLdapServerBean.isLdapServerConfidentialityRequired() );
+					}
+
+					return;
+				}
+			}
+			else if ( oldLdapServerBean == newLdapServerBean )
+			{
+				return;
+			}
+
+			drainLdap();
+			applyLdapMode();
+			changes.add( "LDAP server restarted" );
+		}
+	}
+
+
+	/**
+	 * Stops accepting LDAP connections, and waits for the requests being handled to be
+	 * answered : the executors of the transports are shut down, and the ones still
+	 * running at the deadline are interrupted. The open connections are closed once
+	 * the server is stopped.
+	 */
+	private void drainLdap() throws InterruptedException
+	{
+		if ( ldapServer == null )
+		{
+			return;
+		}
+
+		List<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+		for ( Transport transport : ldapServer.getTransports() )
+		{
+			IoAcceptor acceptor = transport.getAcceptor();
+
+			if ( acceptor == null )
+			{
+				continue;
+			}
+
+			for ( IoFilterChain.Entry entry : acceptor.getFilterChain().getAll() )
+			{
+				if ( ( entry.getFilter() instanceof ExecutorFilter )
+						&& ( ( ( ExecutorFilter ) entry.getFilter() ).getExecutor() instanceof ExecutorService ) )
+				{
+					executors.add( ( ExecutorService ) ( ( ExecutorFilter ) entry.getFilter() ).getExecutor() );
+				}
+			}
+
+			// The sessions are kept open while the port is released
+			acceptor.setCloseOnDeactivation( false );
+			acceptor.unbind();
+		}
+
+		for ( ExecutorService executor : executors )
+		{
+			executor.shutdown();
+		}
+
+		long deadline = System.currentTimeMillis() + LDAP_DRAIN_TIMEOUT;
+		boolean drained = true;
+
+		for ( ExecutorService executor : executors )
+		{
+			long remaining = Math.max( deadline - System.currentTimeMillis(), 0 );
+
+			if ( !executor.awaitTermination( remaining, TimeUnit.MILLISECONDS ) )
+			{
+				executor.shutdownNow();
+				drained = false;
+			}
+		}
+
+		if ( !drained )
+		{
+			LOG.warn( "The LDAP requests were still running after {} ms, the server is restarted anyway",
+					LDAP_DRAIN_TIMEOUT );
+		}
+	}
+
+
+	/**
+	 * Runs a startup step on the startup executor, or right away in the calling thread
+	 * when the parallel startup is disabled. The duration of the step is recorded.
+	 */
+	private <T> Future<T> submitStartupStep( final String step, final Callable<T> task )
+	{
+		FutureTask<T> future = new FutureTask<T>( new Callable<T>()
+		{
+			public T call() throws Exception
+			{
+				// The startup is cancelled by interrupting it
+				if ( Thread.currentThread().isInterrupted() )
+				{
+					throw new InterruptedException( "startup cancelled before the step " + step );
+				}
+
+				long begin = startupProfiler.begin();
+
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					startupProfiler.end( step, begin );
+				}
+			}
+		} );
+
+		if ( startupExecutor != null )
+		{
+			startupExecutor.execute( future );
+		}
+		else
+		{
+			future.run();
+		}
+
+		return future;
+	}
+
+
+	/**
+	 * Waits for a task, rethrowing the exception it failed with
+	 */
+	private <T> T awaitResult( Future<T> step ) throws Exception
+	{
+		try
+		{
+			return step.get();
+		}
+		catch ( ExecutionException e )
+		{
+			if ( e.getCause() instanceof Exception )
+			{
+				throw ( Exception ) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+
+	/**
+	 * @return the duration in milliseconds of each step of the last startup
+	 */
+	public Map<String, Long> getStartupTimings()
+	{
+		if ( startupProfiler == null )
+		{
+			return Collections.emptyMap();
+		}
+
+		return startupProfiler.getDurations();
+	}
+
+
+	/**
+	 * Sets the sizing of the caches. The settings are applied right away if the
+	 * DirectoryService is started, otherwise once it is. Caches which are not listed
+	 * anymore keep their current sizing.
+	 *
+	 * @param settings the sizing of each cache
+	 */
+	public void setCacheSettings( List<CacheSettings> settings )
+	{
+		cacheSettings.clear();
+
+		for ( CacheSettings cacheSetting : settings )
+		{
+			cacheSettings.put( cacheSetting.getName(), cacheSetting );
+		}
+
+		if ( directoryService != null )
+		{
+			applyCacheSettings();
+		}
+	}
+
+
+	/**
+	 * Sets the partitions whose search results are cached. The settings are applied
+	 * right away if the DirectoryService is started, otherwise once it is. The
+	 * caches of the partitions which are not listed anymore are dropped.
+	 *
+	 * @param settings the search cache of each partition
+	 */
+	public void setSearchCacheSettings( List<SearchCacheSettings> settings )
+	{
+		searchCacheSettings = new ArrayList<SearchCacheSettings>( settings );
+
+		if ( searchResultCacheInterceptor != null )
+		{
+			searchResultCacheInterceptor.configure( searchCacheSettings );
+		}
+	}
+
+
+	/**
+	 * Sets the policy of the bind cache, applied right away if the DirectoryService
+	 * is started. The cached binds are dropped.
+	 *
+	 * @param ttl how long a successful bind is cached, in milliseconds, 0 to disable the cache
+	 * @param hashConcurrency the number of binds hashing their credentials at the same time, 0 for no bound
+	 * @see BindCacheInterceptor
+	 */
+	public void setBindCacheSettings( long ttl, int hashConcurrency )
+	{
+		bindCacheTtl = ttl;
+		bindHashConcurrency = hashConcurrency;
+
+		if ( bindCacheInterceptor != null )
+		{
+			bindCacheInterceptor.configure( ttl, hashConcurrency );
+		}
+	}
+
+
+	/**
+	 * Sets the number of principal entries cached for the Kerberos server, applied
+	 * right away if the DirectoryService is started.
+	 *
+	 * @param size the number of cached principals, 0 to disable the cache
+	 * @see KdcPrincipalCacheInterceptor
+	 */
+	public void setKdcPrincipalCacheSize( int size )
+	{
+		kdcPrincipalCacheSize = size;
+
+		if ( kdcPrincipalCacheInterceptor != null )
+		{
+			kdcPrincipalCacheInterceptor.configure( size );
+		}
+	}
+
+
+	/**
+	 * Drops all the cached search results. To be called after the partitions were
+	 * written without going through the DirectoryService, as a {@link LdifImport} does.
+	 */
+	public void clearSearchCache()
+	{
+		if ( searchResultCacheInterceptor != null )
+		{
+			searchResultCacheInterceptor.clear();
+		}
+
+		if ( kdcPrincipalCacheInterceptor != null )
+		{
+			kdcPrincipalCacheInterceptor.clear();
+		}
+	}
+
+
+	/**
+	 * Applies the cache sizing and enables the statistics of the known caches. The
+	 * settings of a cache which does not exist are ignored, the cache is not created.
+	 */
+	private void applyCacheSettings()
+	{
+		for ( String name : getCacheNames() )
+		{
+			if ( !cacheExists( name ) )
+			{
+				if ( cacheSettings.containsKey( name ) )
+				{
+					LOG.warn( "There is no cache {}, its settings are ignored", name );
+				}
+
+				continue;
+			}
+
+			try
+			{
+				Cache cache = cacheService.getCache( name );
+				cache.setStatisticsEnabled( true );
+
+				CacheSettings settings = cacheSettings.get( name );
+
+				if ( settings != null )
+				{
+					settings.applyTo( cache );
+					LOG.info( "cache {} configured", settings );
+				}
+			}
+			catch ( Exception e )
+			{
+				LOG.warn( "Cannot configure the cache " + name, e );
+			}
+		}
+	}
+
+
+	/**
+	 * @return true if the CacheService holds the cache, or if this cannot be told
+	 */
+	private boolean cacheExists( String name )
+	{
+		return ( cacheManager == null ) || cacheManager.cacheExists( name );
+	}
+
+
+	/**
+	 * Creates the cache service to start the DirectoryService with. Its cache manager
+	 * is built here, from the same configuration file the CacheService reads, so the
+	 * existing caches can be told apart : CacheService.getCache() creates the caches
+	 * it does not know.
+	 *
+	 * @param instanceLayout the layout of the instance, holding the cache configuration and directory
+	 * @return the cache service, to be destroyed once the service is stopped
+	 */
+	public CacheService createCacheService( InstanceLayout instanceLayout )
+	{
+		File configurationFile = new File( instanceLayout.getConfDirectory(), CACHE_CONFIGURATION_FILE );
+		Configuration configuration;
+
+		if ( configurationFile.exists() )
+		{
+			configuration = ConfigurationFactory.parseConfiguration( configurationFile );
+		}
+		else
+		{
+			URL defaultConfiguration = CacheService.class.getClassLoader().getResource( CACHE_CONFIGURATION_FILE );
+
+			if ( defaultConfiguration == null )
+			{
+				LOG.warn( "Cannot find the default {}, the caches are created with the ehcache defaults",
+						CACHE_CONFIGURATION_FILE );
+				configuration = ConfigurationFactory.parseConfiguration();
+			}
+			else
+			{
+				configuration = ConfigurationFactory.parseConfiguration( defaultConfiguration );
+			}
+		}
+
+		String cachePath = instanceLayout.getCacheDirectory().getAbsolutePath();
+
+		if ( configuration.getDiskStoreConfiguration() == null )
+		{
+			DiskStoreConfiguration diskStore = new DiskStoreConfiguration();
+			diskStore.setPath( cachePath );
+			configuration.addDiskStore( diskStore );
+		}
+		else
+		{
+			configuration.getDiskStoreConfiguration().setPath( cachePath );
+		}
+
+		configuration.setUpdateCheck( false );
+
+		cacheManager = new CacheManager( configuration );
+
+		return new CacheService( cacheManager );
+	}
+
+
+	/**
+	 * @return the names of the shared caches, of the partition caches and of the configured caches
+	 */
+	private Set<String> getCacheNames()
+	{
+		Set<String> names = new TreeSet<String>( Arrays.asList( SHARED_CACHES ) );
+
+		for ( Partition partition : directoryService.getPartitions() )
+		{
+			names.add( partition.getId() );
+		}
+
+		names.addAll( cacheSettings.keySet() );
+
+		return names;
+	}
+
+
+	/**
+	 * @return the hit and miss counts of the caches used by the DirectoryService, by cache name
+	 */
+	public Map<String, CacheStatistics> getCacheStatistics()
+	{
+		Map<String, CacheStatistics> statistics = new TreeMap<String, CacheStatistics>();
+
+		if ( directoryService == null )
+		{
+			return statistics;
+		}
+
+		for ( String name : getCacheNames() )
+		{
+			// CacheService.getCache() would create the caches which do not exist
+			if ( !cacheExists( name ) )
+			{
+				continue;
+			}
+
+			Cache cache = cacheService.getCache( name );
+			Statistics cacheStatistics = cache.getStatistics();
+
+			statistics.put( name, new CacheStatistics( name, cacheStatistics.getCacheHits(),
+					cacheStatistics.getCacheMisses(), cacheStatistics.getObjectCount() ) );
+		}
+
+		if ( searchResultCacheInterceptor != null )
+		{
+			statistics.putAll( searchResultCacheInterceptor.getStatistics() );
+		}
+
+		if ( bindCacheInterceptor != null )
+		{
+			CacheStatistics bindStatistics = bindCacheInterceptor.getStatistics();
+			statistics.put( bindStatistics.getName(), bindStatistics );
+		}
+
+		if ( kdcPrincipalCacheInterceptor != null )
+		{
+			CacheStatistics kdcStatistics = kdcPrincipalCacheInterceptor.getStatistics();
+			statistics.put( kdcStatistics.getName(), kdcStatistics );
+		}
+
+		return statistics;
+	}
+
+
+	/**
+	 * Enables or disables the concurrent startup of the independent steps. The
+	 * sequential startup is kept to measure the gain of the parallel one.
+	 */
+	public void setParallelStartup( boolean parallelStartup )
+	{
+		this.parallelStartup = parallelStartup;
+	}
+
+
+	/**
+	 * Initialize the schema Manager by loading the schema LDIF files
+	 * 
+	 * @param instanceLayout the instance layout
+	 * @throws Exception in case of any problems while extracting and writing the schema files
+	 */
+	private void initSchemaManager( InstanceLayout instanceLayout ) throws Exception
+	{
+		File schemaPartitionDirectory = new File( instanceLayout.getPartitionsDirectory(), "schema" );
+
+		// Extract the schema on disk (a brand new one) and load the registries
+		if ( schemaPartitionDirectory.exists() )
+		{
+			LOG.info( "schema partition already exists, skipping schema extraction" );
+		}
+		else
+		{
+			SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( instanceLayout.getPartitionsDirectory() );
+			extractor.extractOrCopy();
+			isSchemaPartitionFirstExtraction = true;
+		}
+
+		SchemaLoader loader = null;
+
+		if ( useSchemaSnapshot )
+		{
+			schemaSnapshot = new SchemaSnapshot( new File( instanceLayout.getInstanceDirectory(),
+					SchemaSnapshot.SNAPSHOT_FILE ), schemaPartitionDirectory );
+
+			if ( !isSchemaPartitionFirstExtraction )
+			{
+				loader = schemaSnapshot.load();
+			}
+
+			if ( loader == null )
+			{
+				// Keep what is read from the LDIF files to rebuild the snapshot, with the
+				// manifest of the files as they are read
+				recordingSchemaManifest = schemaSnapshot.computeManifest();
+				recordingSchemaLoader = new RecordingLdifSchemaLoader( schemaPartitionDirectory );
+				loader = recordingSchemaLoader;
+			}
+		}
+		else
+		{
+			loader = new LdifSchemaLoader( schemaPartitionDirectory );
+		}
+
+		schemaManager = new DefaultSchemaManager( loader );
+
+		// We have to load the schema now, otherwise we won't be able
+		// to initialize the Partitions, as we won't be able to parse 
+		// and normalize their suffix Dn
+		schemaManager.loadAllEnabled();
+
+		List<Throwable> errors = schemaManager.getErrors();
+
+		if ( errors.size() != 0 )
+		{
+			throw new Exception( I18n.err( I18n.ERR_317, Exceptions.printErrors( errors ) ) );
+		}
+	}
+
+
+	/**
+	 * Writes the schema snapshot from the schema objects read during the startup.
+	 * A failure only costs a LDIF schema loading on the next startup.
+	 */
+	private void writeSchemaSnapshot()
+	{
+		try
+		{
+			schemaSnapshot.write( recordingSchemaLoader, recordingSchemaManifest );
+		}
+		catch ( Exception e )
+		{
+			LOG.warn( "Cannot write the schema snapshot, the schema will be loaded from the LDIF files on the next startup", e );
+		}
+		finally
+		{
+			recordingSchemaLoader = null;
+			recordingSchemaManifest = null;
+		}
+	}
+
+
+	/**
+	 * Enables or disables the binary schema snapshot used to skip the parsing of the
+	 * schema LDIF files when they have not changed since the last startup.
+	 */
+	public void setUseSchemaSnapshot( boolean useSchemaSnapshot )
+	{
+		this.useSchemaSnapshot = useSchemaSnapshot;
+	}
+
+
+	/**
+	 * Initialize the schema partition
+	 * 
+	 * @param instanceLayout the instance layout
+	 * @throws Exception in case of any problems while initializing the SchemaPartition
+	 */
+	private void initSchemaLdifPartition( InstanceLayout instanceLayout ) throws Exception
+	{
+		File schemaPartitionDirectory = new File( instanceLayout.getPartitionsDirectory(), "schema" );
+
+		// Init the LdifPartition
+		schemaLdifPartition = new LdifPartition( schemaManager );
+		schemaLdifPartition.setPartitionPath( schemaPartitionDirectory.toURI() );
+	}
+
+
+	/**
+	 * Sets the tuning of the JDBM data partitions, applied when the partitions are
+	 * created.
+	 *
+	 * @param settings the tuning of each partition
+	 */
+	public void setPartitionBackends( List<PartitionBackendSettings> settings )
+	{
+		partitionBackends.clear();
+
+		for ( PartitionBackendSettings partitionSettings : settings )
+		{
+			partitionBackends.put( partitionSettings.getPartitionId(), partitionSettings );
+		}
+	}
+
+
+	/**
+	 * Overrides the entry cache, sync on write and optimizer settings of the JDBM
+	 * partitions of the configuration. The settings of a partition which is not a
+	 * JDBM one are ignored, its indices and its storage are left as configured.
+	 */
+	private void configurePartitionBackends( DirectoryServiceBean directoryServiceBean )
+	{
+		Set<String> configured = new TreeSet<String>();
+
+		for ( PartitionBean partitionBean : directoryServiceBean.getPartitions() )
+		{
+			PartitionBackendSettings settings = partitionBackends.get( partitionBean.getPartitionId() );
+
+			if ( settings == null )
+			{
+				continue;
+			}
+
+			configured.add( partitionBean.getPartitionId() );
+
+			if ( !( partitionBean instanceof JdbmPartitionBean ) )
+			{
+				LOG.warn( "The partition {} is not a JDBM partition, its settings {} are ignored",
+						partitionBean.getPartitionId(), settings );
+				continue;
+			}
+
+			LOG.info( "Partition settings {}", settings );
+			JdbmPartitionBean jdbmPartitionBean = ( JdbmPartitionBean ) partitionBean;
+
+			if ( settings.getCacheSize() >= 0 )
+			{
+				jdbmPartitionBean.setPartitionCacheSize( settings.getCacheSize() );
+			}
+
+			if ( settings.getSyncOnWrite() != null )
+			{
+				jdbmPartitionBean.setPartitionSyncOnWrite( settings.getSyncOnWrite() );
+			}
+
+			if ( settings.getOptimizer() != null )
+			{
+				jdbmPartitionBean.setJdbmPartitionOptimizerEnabled( settings.getOptimizer() );
+			}
+		}
+
+		for ( String partitionId : partitionBackends.keySet() )
+		{
+			if ( !configured.contains( partitionId ) )
+			{
+				LOG.warn( "There is no partition {}, its settings are ignored", partitionId );
+			}
+		}
+	}
+
+
+	/**
+	 * Configures the buffering of the writes to the configuration partition. When
+	 * enabled, the config LDIF file is written once the flush delay has elapsed or
+	 * once the number of pending changes is reached, instead of on every change.
+	 *
+	 * @param coalesce true to buffer the writes
+	 * @param flushDelay the maximum delay before the pending changes are written, in milliseconds
+	 * @param maxPendingChanges the number of pending changes forcing a write
+	 */
+	public void setConfigWriteCoalescing( boolean coalesce, long flushDelay, int maxPendingChanges )
+	{
+		this.coalesceConfigWrites = coalesce;
+		this.configFlushDelay = flushDelay;
+		this.configMaxPendingChanges = maxPendingChanges;
+	}
+
+
+	/**
+	 * Extracts the default configuration LDIF file if it does not exist yet
+	 * 
+	 * @param instanceLayout the instance layout
+	 * @throws Exception in case of any issues while extracting the configuration
+	 */
+	private void extractConfig( InstanceLayout instanceLayout ) throws Exception
+	{
+		File confFile = new File( instanceLayout.getConfDirectory(), LdifConfigExtractor.LDIF_CONFIG_FILE );
+
+		if ( confFile.exists() )
+		{
+			LOG.info( "config partition already exists, skipping default config extraction" );
+		}
+		else
+		{
+			LdifConfigExtractor.extractSingleFileConfig( instanceLayout.getConfDirectory(),
+					LdifConfigExtractor.LDIF_CONFIG_FILE, true );
+			isConfigPartitionFirstExtraction = true;
+		}
+	}
+
+
+	/**
+	 * 
+	 * initializes a LDIF partition for configuration
+	 * 
+	 * @param instanceLayout the instance layout
+	 * @throws Exception in case of any issues while initializing the partition
+	 */
+	private void initConfigPartition( InstanceLayout instanceLayout ) throws Exception
+	{
+		File confFile = new File( instanceLayout.getConfDirectory(), LdifConfigExtractor.LDIF_CONFIG_FILE );
+
+		if ( coalesceConfigWrites )
+		{
+			CoalescingLdifPartition coalescingPartition = new CoalescingLdifPartition( schemaManager );
+			coalescingPartition.setFlushDelay( configFlushDelay );
+			coalescingPartition.setMaxPendingChanges( configMaxPendingChanges );
+			configPartition = coalescingPartition;
+		}
+		else
+		{
+			configPartition = new SingleFileLdifPartition( schemaManager );
+		}
+
+		configPartition.setId( "config" );
+		configPartition.setPartitionPath( confFile.toURI() );
+		configPartition.setSuffixDn( new Dn( schemaManager, "ou=config" ) );
+		configPartition.setSchemaManager( schemaManager );
+
+		configPartition.initialize();
+	}
+
+
+	private DirectoryService initDirectoryService( InstanceLayout instanceLayout,
+			DirectoryServiceBean directoryServiceBean, CacheService cacheService ) throws Exception
+	{
+		LOG.info( "Initializing the DirectoryService..." );
+
+		long startTime = System.currentTimeMillis();
+
+		configurePartitionBackends( directoryServiceBean );
+		partitionConfigurations.clear();
+		partitionConfigurations.putAll( getPartitionBeans( directoryServiceBean ) );
+
+		final DirectoryService directoryService = ServiceBuilder.createDirectoryService( directoryServiceBean,
+				instanceLayout, schemaManager );
+
+		// The schema partition
+		SchemaPartition schemaPartition = new SchemaPartition( schemaManager );
+		schemaPartition.setWrappedPartition( schemaLdifPartition );
+		directoryService.setSchemaPartition( schemaPartition );
+
+		directoryService.addPartition( configPartition );
+
+		// Store the default directories
+		directoryService.setInstanceLayout( instanceLayout );
+		directoryService.setCacheService(cacheService);
+		this.cacheService = cacheService;
+		directoryService.startup();
+
+		// Shut down by stopServices if the rest of the startup fails
+		this.directoryService = directoryService;
+
+		initInterceptors( directoryService );
+
+		// The fix-ups run one after the other, like the writes of each of them, as the
+		// partitions are not safe for concurrent modifications
+		if ( isConfigPartitionFirstExtraction )
+		{
+			LOG.info( "begining to update config partition LDIF files after modifying manadatory attributes" );
+
+			// disable writes to the disk upon every modification to improve performance
+			configPartition.setEnableRewriting( false );
+
+			// perform updates
+			updateMandatoryOpAttributes( configPartition, directoryService );
+
+			// enable writes to disk, this will save the partition data first if found dirty
+			configPartition.setEnableRewriting( true );
+
+			LOG.info( "config partition data was successfully updated" );
+		}
+
+		if ( isSchemaPartitionFirstExtraction )
+		{
+			LOG.info( "begining to update schema partition LDIF files after modifying manadatory attributes" );
+
+			updateMandatoryOpAttributes( schemaLdifPartition, directoryService );
+
+			LOG.info( "schema partition data was successfully updated" );
+		}
+
+		LOG.info( "DirectoryService initialized in {} milliseconds", ( System.currentTimeMillis() - startTime ) );
+
+		return directoryService;
+	}
+
+
+	/**
+	 * Adds the liveSense interceptors to the started DirectoryService
+	 */
+	private void initInterceptors( DirectoryService directoryService ) throws Exception
+	{
+		SyncScheduler scheduler = new SyncScheduler( directoryService );
+		scheduler.setPolicy( syncInterval, syncWrites );
+		scheduler.start();
+		directoryService.addFirst( new DurabilityInterceptor( scheduler ) );
+		registerMBean( scheduler, SyncSchedulerMXBean.OBJECT_NAME );
+		syncScheduler = scheduler;
+
+		// After the authorization, so a cached result is still checked and filtered by the access controls
+		SearchResultCacheInterceptor searchCache = new SearchResultCacheInterceptor();
+		directoryService.addAfter( getLastAuthorizationInterceptor( directoryService ), searchCache );
+		searchCache.configure( searchCacheSettings );
+		searchResultCacheInterceptor = searchCache;
+
+		// After the normalization, so the binds are keyed by normalized Dn, and before the authentication
+		BindCacheInterceptor bindCache = new BindCacheInterceptor();
+		directoryService.addAfter( InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName(), bindCache );
+		bindCache.configure( bindCacheTtl, bindHashConcurrency );
+		bindCacheInterceptor = bindCache;
+
+		// After the authorization too, so a cached principal is still checked by the access controls
+		KdcPrincipalCacheInterceptor kdcPrincipalCache = new KdcPrincipalCacheInterceptor();
+		directoryService.addAfter( getLastAuthorizationInterceptor( directoryService ), kdcPrincipalCache );
+		kdcPrincipalCache.configure( kdcPrincipalCacheSize );
+		kdcPrincipalCacheInterceptor = kdcPrincipalCache;
+
+		if ( searchParallelism > 0 )
+		{
+			searchWorkers = Executors.newFixedThreadPool( searchParallelism, new NamedThreadFactory( "apacheds-search" ) );
+			parallelSearch = new ParallelSearch( directoryService, searchWorkers, searchParallelism, searchCutoff );
+		}
+
+		if ( changeFeedEnabled )
+		{
+			ChangeFeed feed = new ChangeFeed( new File( directoryService.getInstanceLayout().getPartitionsDirectory(),
+					"changefeed" ), changeFeedSegmentSize, changeFeedSegments );
+			feed.open();
+			directoryService.addAfter( InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName(),
+					new ChangeFeedInterceptor( feed ) );
+			scheduler.addFlushable( feed );
+			changeFeed = feed;
+		}
+
+		if ( entryIdIndexEnabled )
+		{
+			EntryIdIndex index = new EntryIdIndex( ENTRY_ID_INDEX_CAPACITY );
+			directoryService.addAfter( InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName(),
+					new EntryIdIndexInterceptor( index ) );
+			entryIdIndex = index;
+		}
+
+		if ( replicationSettings.getRole() != ReplicationSettings.Role.STANDALONE )
+		{
+			replicationMetrics = new ReplicationMetrics( replicationSettings.getRole() );
+			registerMBean( replicationMetrics, ReplicationMetricsMXBean.OBJECT_NAME );
+		}
+
+		// Added last after the normalization, so the writes to a replica are refused first
+		if ( replicationSettings.getRole() == ReplicationSettings.Role.CONSUMER )
+		{
+			directoryService.addAfter( InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName(), new ReplicaInterceptor(
+					replicationMetrics ) );
+		}
+
+		if ( metricsEnabled )
+		{
+			operationMetrics = new OperationMetrics();
+			directoryService.addFirst( new OperationMetricsInterceptor( operationMetrics ) );
+			registerMBean( operationMetrics, OperationMetricsMXBean.OBJECT_NAME );
+		}
+	}
+
+
+	/**
+	 * @return the name of the last interceptor checking the access rights of an operation, or
+	 * the normalization interceptor when the authorization interceptors are not configured
+	 */
+	static String getLastAuthorizationInterceptor( DirectoryService directoryService )
+	{
+		String[] names = new String[]
+			{ InterceptorEnum.DEFAULT_AUTHORIZATION_INTERCEPTOR.getName(),
+				InterceptorEnum.ACI_AUTHORIZATION_INTERCEPTOR.getName(),
+				InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() };
+
+		for ( String name : names )
+		{
+			if ( directoryService.getInterceptor( name ) != null )
+			{
+				return name;
+			}
+		}
+
+		return InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName();
+	}
+
+
+	/**
+	 * Registers a MBean in the platform MBean server, replacing the one left over by a
+	 * previous instance of the service.
+	 */
+	private void registerMBean( Object mbean, String name )
+	{
+		try
+		{
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName( name );
+
+			if ( mbeanServer.isRegistered( objectName ) )
+			{
+				mbeanServer.unregisterMBean( objectName );
+			}
+
+			mbeanServer.registerMBean( mbean, objectName );
+			registeredMBeans.add( objectName );
+		}
+		catch ( Exception e )
+		{
+			LOG.warn( "Cannot register the MBean " + name, e );
+		}
+	}
+
+
+	private void unregisterMBeans()
+	{
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+		for ( ObjectName objectName : registeredMBeans )
+		{
+			try
+			{
+				mbeanServer.unregisterMBean( objectName );
+			}
+			catch ( Exception e )
+			{
+				LOG.debug( "Cannot unregister the MBean " + objectName, e );
+			}
+		}
+
+		registeredMBeans.clear();
+	}
+
+
+	/**
+	 * Enables or disables the measurement of the operations handled by the DirectoryService
+	 */
+	public void setMetricsEnabled( boolean metricsEnabled )
+	{
+		this.metricsEnabled = metricsEnabled;
+	}
+
+
+	/**
+	 * Enables the off-heap index of the entries by entryUUID and entryCSN, used by the
+	 * {@link DirectorySession} lookups. Applied when the DirectoryService is started.
+	 */
+	public void setEntryIdIndexEnabled( boolean entryIdIndexEnabled )
+	{
+		this.entryIdIndexEnabled = entryIdIndexEnabled;
+	}
+
+
+	/**
+	 * Sets the replication role of this node, applied when the DirectoryService is
+	 * started. A consumer needs the LDAP server to reach its provider.
+	 *
+	 * @see ReplicationSettings
+	 */
+	public void setReplicationSettings( ReplicationSettings replicationSettings )
+	{
+		this.replicationSettings = replicationSettings;
+	}
+
+
+	/**
+	 * @return the replication lag of this node, null if it is not replicated
+	 */
+	public ReplicationMetrics getReplicationMetrics()
+	{
+		return replicationMetrics;
+	}
+
+
+	/**
+	 * Enables the parallel subtree searches of the {@link DirectorySession} and of the
+	 * startup fixups, applied when the DirectoryService is started.
+	 *
+	 * @param parallelism the number of workers, 0 to disable the parallel searches
+	 * @param cutoff the number of entries of a subtree below which a search is not split
+	 * @see ParallelSearch
+	 */
+	public void setParallelSearch( int parallelism, int cutoff )
+	{
+		this.searchParallelism = parallelism;
+		this.searchCutoff = cutoff;
+	}
+
+
+	/**
+	 * Searches a subtree, on the parallel search workers if they are enabled
+	 */
+	private SearchResult searchSubtree( CoreSession session, Dn base, ExprNode filter, AliasDerefMode derefMode,
+			String... attributes ) throws LdapException
+	{
+		ParallelSearch search = parallelSearch;
+
+		if ( search != null )
+		{
+			return search.search( session, base, filter, derefMode, 0, 0, attributes );
+		}
+
+		return new SearchResult( session.search( base, SearchScope.SUBTREE, filter, derefMode, attributes ) );
+	}
+
+
+	/**
+	 * Enables the change feed, applied when the DirectoryService is started.
+	 *
+	 * @param enabled tells if the writes are appended to the change feed
+	 * @param segmentSize the size of a segment of the feed, in bytes
+	 * @param segments the number of segments kept
+	 */
+	public void setChangeFeed( boolean enabled, int segmentSize, int segments )
+	{
+		this.changeFeedEnabled = enabled;
+		this.changeFeedSegmentSize = segmentSize;
+		this.changeFeedSegments = segments;
+	}
+
+
+	/**
+	 * @return the change feed, null if it is disabled
+	 */
+	public ChangeFeed getChangeFeed()
+	{
+		return changeFeed;
+	}
+
+
+	public ChangeFeedCursor openChangeCursor( String csn ) throws IOException
+	{
+		ChangeFeed feed = changeFeed;
+
+		if ( feed == null )
+		{
+			throw new IOException( "The change feed is disabled" );
+		}
+
+		return csn == null ? feed.openCursor() : feed.openCursor( csn );
+	}
+
+
+	/**
+	 * @return the index of the entries by entryUUID and entryCSN, null if it is disabled
+	 */
+	public EntryIdIndex getEntryIdIndex()
+	{
+		return entryIdIndex;
+	}
+
+
+	/**
+	 * Indexes all the entries of the DirectoryService by entryUUID and entryCSN again.
+	 * Needed after the entries have been written without going through the
+	 * interceptors, like the imports do. The entries are read into a new index,
+	 * replacing the content of the current one once complete, so the lookups keep
+	 * working and the concurrent writes are kept. The scan is done again if entries
+	 * are moved meanwhile.
+	 */
+	public void rebuildEntryIdIndex() throws Exception
+	{
+		EntryIdIndex index = entryIdIndex;
+
+		if ( index == null )
+		{
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+
+		for ( int attempt = 1;; attempt++ )
+		{
+			EntryIdIndex rebuilt = new EntryIdIndex( Math.max( ENTRY_ID_INDEX_CAPACITY, index.size() ) );
+			index.startTracking();
+
+			try
+			{
+				loadEntryIdIndex( rebuilt );
+			}
+			catch ( Exception e )
+			{
+				index.stopTracking();
+				throw e;
+			}
+
+			boolean last = attempt >= ENTRY_ID_INDEX_ATTEMPTS;
+
+			if ( index.replaceWith( rebuilt, last ) )
+			{
+				if ( last )
+				{
+					LOG.warn( "Entries were moved while the entryUUID and entryCSN index was rebuilt, "
+							+ "their descendants may not be found by entryUUID until they are written" );
+				}
+
+				break;
+			}
+
+			LOG.info( "Entries were moved while the entryUUID and entryCSN index was rebuilt, rebuilding it again" );
+		}
+
+		LOG.info( "Indexed {} entries by entryUUID and entryCSN in {} milliseconds, {} bytes off-heap", new Object[]
+			{ index.size(), System.currentTimeMillis() - startTime, index.getMemorySize() } );
+	}
+
+
+	/**
+	 * Reads all the entries of the DirectoryService into a new index
+	 */
+	private void loadEntryIdIndex( EntryIdIndex rebuilt ) throws Exception
+	{
+		EntryIdIndex.Loader loader = rebuilt.newLoader( ENTRY_ID_INDEX_CAPACITY );
+		CoreSession session = directoryService.getAdminSession();
+		ExprNode filter = new PresenceNode( SchemaConstants.OBJECT_CLASS_AT );
+
+		for ( Partition partition : directoryService.getPartitions() )
+		{
+			EntryFilteringCursor cursor = session.search( partition.getSuffixDn(), SearchScope.SUBTREE, filter,
+					AliasDerefMode.NEVER_DEREF_ALIASES, SchemaConstants.ENTRY_UUID_AT, SchemaConstants.ENTRY_CSN_AT );
+
+			try
+			{
+				while ( cursor.next() )
+				{
+					Entry entry = cursor.get();
+					Attribute uuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
+					Attribute csn = entry.get( SchemaConstants.ENTRY_CSN_AT );
+					Dn dn = entry.getDn();
+
+					if ( uuid != null )
+					{
+						boolean root = dn.equals( partition.getSuffixDn() );
+						loader.add( uuid.getString(), csn == null ? null : csn.getString(), dn.getNormName(),
+								root ? null : dn.getParent().getNormName(), dn.getRdn().getNormName() );
+					}
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+
+		int dropped = loader.finish();
+
+		if ( dropped > 0 )
+		{
+			LOG.warn( "{} entries without a parent entry were not indexed by entryUUID and entryCSN", dropped );
+		}
+	}
+
+
+	/**
+	 * @return the counters and latencies of the operations, null if the metrics are disabled
+	 */
+	public OperationMetrics getOperationMetrics()
+	{
+		return operationMetrics;
+	}
+
+
+	/**
+	 * Sets the network settings of the LDAP and LDAPS transports. Once the LDAP
+	 * server has been started, it is drained and started again when they change, so
+	 * the new ports, executors and limits apply to all the connections.
+	 *
+	 * @param ldap the settings of the LDAP transport, null to keep the configuration
+	 * @param ldaps the settings of the LDAPS transport, null to keep the configuration
+	 * @throws Exception if the LDAP server cannot be started again
+	 */
+	public void setLdapTransportSettings( LdapTransportSettings ldap, LdapTransportSettings ldaps ) throws Exception
+	{
+		synchronized ( ldapLock )
+		{
+			boolean changed = !ConfigurationBeans.equal( ldapTransportSettings, ldap )
+					|| !ConfigurationBeans.equal( ldapsTransportSettings, ldaps );
+			this.ldapTransportSettings = ldap;
+			this.ldapsTransportSettings = ldaps;
+
+			if ( changed && ( serverConfiguration != null ) )
+			{
+				drainLdap();
+				applyLdapMode();
+			}
+		}
+	}
+
+
+	/**
+	 * Overrides the port, the number of I/O processors and the backlog of the
+	 * configured transports.
+	 */
+	private void configureTransports( LdapServerBean ldapServerBean )
+	{
+		for ( TransportBean transportBean : ldapServerBean.getTransports() )
+		{
+			LdapTransportSettings settings = transportBean.isTransportEnableSSL() ? ldapsTransportSettings
+					: ldapTransportSettings;
+
+			if ( settings == null )
+			{
+				continue;
+			}
+
+			if ( settings.getPort() > 0 )
+			{
+				transportBean.setSystemPort( settings.getPort() );
+			}
+
+			if ( settings.getIoThreads() > 0 )
+			{
+				transportBean.setTransportNbThreads( settings.getIoThreads() );
+			}
+
+			if ( settings.getBacklog() > 0 )
+			{
+				transportBean.setTransportBackLog( settings.getBacklog() );
+			}
+
+			LOG.info( "Transport {} : {}", transportBean.getTransportId(), settings );
+		}
+	}
+
+
+	/**
+	 * Replaces the executor of the started transports by one of the configured size,
+	 * and adds the connection and request limits. The filter chains are copied in
+	 * each new session, so this applies to all the connections accepted from now on.
+	 *
+	 * The LdapServer builds the filter chain and binds the acceptor in the same call,
+	 * the sessions accepted meanwhile are moved to the new executor here. The
+	 * executor created by the LdapServer is not shut down by its filter, it is shut
+	 * down once replaced, after the requests it holds are handled.
+	 */
+	private void tuneTransports()
+	{
+		for ( Transport transport : ldapServer.getTransports() )
+		{
+			LdapTransportSettings settings = transport.isSSLEnabled() ? ldapsTransportSettings : ldapTransportSettings;
+
+			if ( ( settings == null ) || ( transport.getAcceptor() == null ) )
+			{
+				continue;
+			}
+
+			DefaultIoFilterChainBuilder chain = transport.getAcceptor().getFilterChain();
+
+			ExecutorService executor = createWorkerExecutor( settings );
+
+			if ( executor != null )
+			{
+				ExecutorFilter executorFilter = new ExecutorFilter( executor, IoEventType.MESSAGE_RECEIVED );
+				String executorName = null;
+				ExecutorFilter replacedFilter = null;
+
+				for ( IoFilterChain.Entry entry : chain.getAll() )
+				{
+					if ( entry.getFilter() instanceof ExecutorFilter )
+					{
+						executorName = entry.getName();
+						replacedFilter = ( ExecutorFilter ) entry.getFilter();
+						break;
+					}
+				}
+
+				transportExecutors.add( executor );
+
+				if ( executorName == null )
+				{
+					chain.addLast( "executor", executorFilter );
+				}
+				else
+				{
+					chain.replace( executorName, executorFilter );
+
+					for ( IoSession session : transport.getAcceptor().getManagedSessions().values() )
+					{
+						IoFilterChain sessionChain = session.getFilterChain();
+
+						if ( sessionChain.get( executorName ) == replacedFilter )
+						{
+							sessionChain.replace( executorName, executorFilter );
+						}
+					}
+
+					if ( replacedFilter.getExecutor() instanceof ExecutorService )
+					{
+						( ( ExecutorService ) replacedFilter.getExecutor() ).shutdown();
+					}
+				}
+			}
+
+			if ( settings.hasLimits() )
+			{
+				BackPressureFilter backPressureFilter = new BackPressureFilter( settings.getMaxConnections(),
+						settings.getMaxPendingRequests() );
+
+				// The requests are counted once decoded, and the reads are suspended
+				// before they are handed to the workers
+				if ( chain.contains( "codec" ) )
+				{
+					chain.addAfter( "codec", BackPressureFilter.NAME, backPressureFilter );
+				}
+				else
+				{
+					chain.addFirst( BackPressureFilter.NAME, backPressureFilter );
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Enables or disables the recording of the LDAP operations, applied right away if
+	 * the LDAP server is started. Each recording goes to a new operation log in the
+	 * log directory of the instance, and only the connections opened once it is
+	 * started are recorded.
+	 *
+	 * @param enabled tells if the operations are recorded
+	 * @param bufferSize the size of the ring buffer of the recorder, in bytes
+	 * @param maxFileSize the maximum size of an operation log, in bytes
+	 * @see OperationRecorder
+	 */
+	public void setOperationRecording( boolean enabled, int bufferSize, long maxFileSize ) throws IOException
+	{
+		synchronized ( ldapLock )
+		{
+			boolean changed = ( recordingEnabled != enabled ) || ( recordingBufferSize != bufferSize )
+					|| ( recordingMaxFileSize != maxFileSize );
+			recordingEnabled = enabled;
+			recordingBufferSize = bufferSize;
+			recordingMaxFileSize = maxFileSize;
+
+			if ( changed && ( ldapServer != null ) )
+			{
+				stopRecording();
+
+				if ( enabled )
+				{
+					startRecording();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @return the recorder of the LDAP operations, null if they are not recorded
+	 */
+	public OperationRecorder getOperationRecorder()
+	{
+		OperationRecorderFilter filter = recorderFilter;
+
+		return filter == null ? null : filter.getRecorder();
+	}
+
+
+	/**
+	 * Starts recording the operations of the LDAP server to a new operation log
+	 */
+	private void startRecording() throws IOException
+	{
+		String name = "operations-" + new SimpleDateFormat( "yyyyMMdd-HHmmss" ).format( new Date() ) + ".oplog";
+		OperationRecorder recorder = new OperationRecorder( new File( directoryService.getInstanceLayout()
+				.getLogDirectory(), name ), recordingBufferSize, recordingMaxFileSize );
+		OperationRecorderFilter filter = new OperationRecorderFilter( recorder );
+
+		for ( Transport transport : ldapServer.getTransports() )
+		{
+			if ( transport.getAcceptor() == null )
+			{
+				continue;
+			}
+
+			DefaultIoFilterChainBuilder chain = transport.getAcceptor().getFilterChain();
+
+			if ( chain.contains( "codec" ) )
+			{
+				chain.addAfter( "codec", OperationRecorderFilter.NAME, filter );
+			}
+			else
+			{
+				chain.addFirst( OperationRecorderFilter.NAME, filter );
+			}
+		}
+
+		recorderFilter = filter;
+		LOG.info( "Recording the LDAP operations to {}", recorder.getFile() );
+	}
+
+
+	/**
+	 * Stops recording the operations of the LDAP server, if they are recorded
+	 */
+	private void stopRecording() throws IOException
+	{
+		OperationRecorderFilter filter = recorderFilter;
+
+		if ( filter == null )
+		{
+			return;
+		}
+
+		recorderFilter = null;
+
+		if ( ldapServer != null )
+		{
+			for ( Transport transport : ldapServer.getTransports() )
+			{
+				if ( ( transport.getAcceptor() != null )
+						&& transport.getAcceptor().getFilterChain().contains( OperationRecorderFilter.NAME ) )
+				{
+					transport.getAcceptor().getFilterChain().remove( OperationRecorderFilter.NAME );
+				}
+			}
+		}
+
+		filter.getRecorder().close();
+	}
+
+
+	/**
+	 * Creates the executor handling the decoded requests of a transport : a virtual
+	 * thread per request when asked and supported by the JVM, a pool of the
+	 * configured size otherwise.
+	 *
+	 * @return the executor, null to keep the one created by the LDAP server
+	 */
+	private ExecutorService createWorkerExecutor( LdapTransportSettings settings )
+	{
+		if ( settings.isVirtualThreads() )
+		{
+			ExecutorService executor = VirtualThreads.newExecutor( "apacheds-ldap-virtual" );
+
+			if ( executor != null )
+			{
+				return executor;
+			}
+
+			LOG.warn( "Virtual threads are not supported by this JVM, the LDAP requests are handled by a thread pool" );
+		}
+
+		if ( settings.getWorkers() > 0 )
+		{
+			return new UnorderedThreadPoolExecutor( 0, settings.getWorkers(), WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+					new NamedThreadFactory( "apacheds-ldap-worker" ) );
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Sets how the protocol servers are run. Once the servers have been started, the
+	 * ones whose mode changed are stopped, then started again in their new mode.
+	 *
+	 * @param ldapEnabled tells if the LDAP server is started
+	 * @param ntpMode how the NTP server is run
+	 * @param kerberosMode how the Kerberos server is run
+	 */
+	public void setProtocolServerModes( boolean ldapEnabled, ProtocolServerMode ntpMode,
+			ProtocolServerMode kerberosMode ) throws Exception
+	{
+		synchronized ( ldapLock )
+		{
+			boolean changed = this.ldapEnabled != ldapEnabled;
+			this.ldapEnabled = ldapEnabled;
+
+			if ( changed && ( serverConfiguration != null ) )
+			{
+				applyLdapMode();
+			}
+		}
+
+		synchronized ( ntpLock )
+		{
+			boolean changed = this.ntpMode != ntpMode;
+			this.ntpMode = ntpMode;
+
+			if ( changed && ( serverConfiguration != null ) )
+			{
+				applyNtpMode();
+			}
+		}
+
+		synchronized ( kerberosLock )
+		{
+			boolean changed = this.kerberosMode != kerberosMode;
+			this.kerberosMode = kerberosMode;
+
+			if ( changed && ( serverConfiguration != null ) )
+			{
+				applyKerberosMode();
+			}
+		}
+	}
+
+
+	/**
+	 * Stops the LDAP server, and starts it again if it is enabled
+	 */
+	private void applyLdapMode() throws Exception
+	{
+		synchronized ( ldapLock )
+		{
+			stopLdap();
+
+			DirectoryServiceBean configuration = serverConfiguration;
+
+			if ( ldapEnabled && ( configuration != null ) )
+			{
+				startLdap( configuration.getLdapServerBean(), directoryService );
+			}
+		}
+	}
+
+
+	/**
+	 * Stops the NTP server, and starts it again in the current mode
+	 */
+	private void applyNtpMode() throws Exception
+	{
+		synchronized ( ntpLock )
+		{
+			stopNtp();
+
+			DirectoryServiceBean configuration = serverConfiguration;
+
+			if ( configuration == null )
+			{
+				return;
+			}
+
+			final NtpServerBean ntpServerBean = configuration.getNtpServerBean();
+
+			if ( ntpMode == ProtocolServerMode.EAGER )
+			{
+				startNtp( ntpServerBean, directoryService );
+			}
+			else if ( ( ntpMode == ProtocolServerMode.LAZY ) && ( ntpServerBean != null ) && !ntpServerBean.isDisabled() )
+			{
+				final LazyProtocolServer lazyServer = new LazyProtocolServer( "NTP", ntpServerBean.getTransports() );
+				lazyNtpServer = lazyServer;
+
+				lazyServer.bind( new Callable<Void>()
+				{
+					public Void call() throws Exception
+					{
+						synchronized ( ntpLock )
+						{
+							// The mode may have changed since the ports were bound
+							if ( lazyNtpServer == lazyServer )
+							{
+								lazyNtpServer = null;
+								startNtp( ntpServerBean, directoryService );
+							}
+						}
+
+						return null;
+					}
+				} );
+			}
+		}
+	}
+
+
+	/**
+	 * Stops the Kerberos server, and starts it again in the current mode
+	 */
+	private void applyKerberosMode() throws Exception
+	{
+		synchronized ( kerberosLock )
+		{
+			stopKerberos();
+
+			DirectoryServiceBean configuration = serverConfiguration;
+
+			if ( configuration == null )
+			{
+				return;
+			}
+
+			final KdcServerBean kdcServerBean = configuration.getKdcServerBean();
+
+			if ( kerberosMode == ProtocolServerMode.EAGER )
+			{
+				startKerberos( kdcServerBean, directoryService );
+			}
+			else if ( ( kerberosMode == ProtocolServerMode.LAZY ) && ( kdcServerBean != null )
+					&& !kdcServerBean.isDisabled() )
+			{
+				final LazyProtocolServer lazyServer = new LazyProtocolServer( "Kerberos", kdcServerBean.getTransports() );
+				lazyKdcServer = lazyServer;
+
+				lazyServer.bind( new Callable<Void>()
+				{
+					public Void call() throws Exception
+					{
+						synchronized ( kerberosLock )
+						{
+							// The mode may have changed since the ports were bound
+							if ( lazyKdcServer == lazyServer )
+							{
+								lazyKdcServer = null;
+								startKerberos( kdcServerBean, directoryService );
+							}
+						}
+
+						return null;
+					}
+				} );
+			}
+		}
+	}
+
+
+	/**
+	 * start the LDAP server. A failure is thrown, so the startup fails rather than
+	 * reporting a service without its LDAP server as ready.
+	 */
+	private void startLdap( LdapServerBean ldapServerBean, DirectoryService directoryService ) throws Exception
 	{
 		LOG.info( "Starting the LDAP server" );
 		long startTime = System.currentTimeMillis();
 
+		if ( ldapServerBean != null )
+		{
+			configureTransports( ldapServerBean );
+		}
+
 		ldapServer = ServiceBuilder.createLdapServer( ldapServerBean, directoryService );
 
 		if ( ldapServer == null )
@@ -353,18 +2432,116 @@ public class ApacheDsService
 		//printBanner( BANNER_LDAP );
 
 		ldapServer.setDirectoryService( directoryService );
+		configureReplication( ldapServer );
 
 		// And start the server now
 		try
 		{
-			ldapServer.start();
+			ldapServer.start();
+			tuneTransports();
+
+			if ( recordingEnabled )
+			{
+				startRecording();
+			}
+		}
+		catch ( Exception e )
+		{
+			LOG.error( "Cannot start the server : " + e.getMessage() );
+
+			// Release the ports and the executors bound before the failure
+			try
+			{
+				stopLdap();
+			}
+			catch ( Exception stopError )
+			{
+				LOG.warn( "Cannot stop the LDAP server which failed to start", stopError );
+			}
+
+			throw e;
+		}
+
+		LOG.info( "LDAP server: started in {} milliseconds", ( System.currentTimeMillis() - startTime ) + "" );
+	}
+
+
+	/**
+	 * Makes the LDAP server a replication provider, or adds the consumers of the
+	 * replicated bases, depending on the replication role of this node
+	 */
+	private void configureReplication( LdapServer server ) throws Exception
+	{
+		switch ( replicationSettings.getRole() )
+		{
+			case PROVIDER:
+				server.setReplicationReqHandler( new SyncReplRequestHandler() );
+				LOG.info( "Replication provider {}", replicationSettings );
+				break;
+
+			case CONSUMER:
+				List<ReplicationConsumer> consumers = new ArrayList<ReplicationConsumer>();
+
+				if ( server.getReplConsumers() != null )
+				{
+					consumers.addAll( server.getReplConsumers() );
+				}
+
+				for ( String base : getReplicatedBases() )
+				{
+					SyncReplConfiguration config = new SyncReplConfiguration();
+					config.setRemoteHost( replicationSettings.getProviderHost() );
+					config.setRemotePort( replicationSettings.getProviderPort() );
+					config.setReplUserDn( replicationSettings.getBindDn() );
+					config.setReplUserPassword( Strings.getBytesUtf8( replicationSettings.getBindPassword() ) );
+					config.setBaseDn( base );
+					config.setFilter( "(objectClass=*)" );
+					config.setAttributes( new String[]
+						{ SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES } );
+					config.setSearchScope( SearchScope.SUBTREE );
+					config.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+					config.setRefreshNPersist( true );
+					config.setRefreshInterval( replicationSettings.getRefreshInterval() );
+					config.setReplicaId( replicationSettings.getReplicaId() );
+					config.setUseTls( false );
+					config.setChaseReferrals( false );
+
+					ReplicationConsumerImpl consumer = new ReplicationConsumerImpl();
+					consumer.setConfig( config );
+					consumers.add( consumer );
+				}
+
+				server.setReplConsumers( consumers );
+				LOG.info( "Replication consumer {}", replicationSettings );
+				break;
+
+			default:
+				break;
+		}
+	}
+
+
+	/**
+	 * @return the configured replicated bases, or the suffixes of the data partitions
+	 */
+	private List<String> getReplicatedBases()
+	{
+		if ( !replicationSettings.getBases().isEmpty() )
+		{
+			return replicationSettings.getBases();
 		}
-		catch ( Exception e )
+
+		List<String> bases = new ArrayList<String>();
+
+		for ( Partition partition : directoryService.getPartitions() )
 		{
-			LOG.error( "Cannot start the server : " + e.getMessage() );
+			if ( !SYSTEM_PARTITION_IDS.contains( partition.getId() ) )
+			{
+				bases.add( partition.getSuffixDn().getName() );
+			}
 		}
 
-		LOG.info( "LDAP server: started in {} milliseconds", ( System.currentTimeMillis() - startTime ) + "" );
+		return bases;
 	}
 
 
@@ -446,8 +2623,7 @@ public class ApacheDsService
 			return;
 		}
 
-		getDirectoryService().startup();
-		kdcServer.setDirectoryService( getDirectoryService() );
+		kdcServer.setDirectoryService( directoryService );
 
 		printBanner( BANNER_KERBEROS );
 
@@ -522,46 +2698,417 @@ public class ApacheDsService
 
 	public DirectoryService getDirectoryService()
 	{
-		return ldapServer.getDirectoryService();
+		return directoryService;
+	}
+
+
+	/**
+	 * @return the started LDAP server, null if it is not configured
+	 */
+	public LdapServer getLdapServer()
+	{
+		return ldapServer;
+	}
+
+
+	/**
+	 * @return true if the LDAP server is started and accepting connections
+	 */
+	public boolean isStarted()
+	{
+		return ( ldapServer != null ) && ldapServer.isStarted();
+	}
+
+
+	/**
+	 * Creates an import of LDIF entries in the started DirectoryService, whose
+	 * progress can be followed while it runs. {@link #clearSearchCache()} and
+	 * {@link #rebuildEntryIdIndex()} have to be called once it is done.
+	 */
+	public LdifImport createLdifImport()
+	{
+		return new LdifImport( directoryService, Runtime.getRuntime().availableProcessors(),
+				LdifImport.DEFAULT_BATCH_SIZE );
+	}
+
+
+	/**
+	 * Imports all the entries of an LDIF file in the started DirectoryService.
+	 *
+	 * @param ldifFile the LDIF file
+	 * @return the finished import, holding its counters
+	 * @see LdifImport
+	 */
+	public LdifImport importLdif( File ldifFile ) throws Exception
+	{
+		LdifImport ldifImport = createLdifImport();
+		InputStream in = new BufferedInputStream( new FileInputStream( ldifFile ) );
+
+		try
+		{
+			ldifImport.run( in );
+		}
+		finally
+		{
+			in.close();
+			clearSearchCache();
+			rebuildEntryIdIndex();
+		}
+
+		return ldifImport;
+	}
+
+
+	public DirectorySession openSession( String bindDn, String password ) throws LdapException
+	{
+		return new DirectorySession( directoryService.getSession( new Dn( schemaManager, bindDn ),
+				Strings.getBytesUtf8( password ) ), entryIdIndex, parallelSearch );
+	}
+
+
+	public DirectorySession openAnonymousSession() throws LdapException
+	{
+		try
+		{
+			return new DirectorySession( directoryService.getSession(), entryIdIndex, parallelSearch );
+		}
+		catch ( Exception e )
+		{
+			if ( e instanceof LdapException )
+			{
+				throw ( LdapException ) e;
+			}
+
+			throw new LdapException( e.getMessage(), e );
+		}
+	}
+
+
+	/**
+	 * @return the partition with the given id
+	 * @throws IllegalArgumentException if there is no such partition
+	 */
+	private Partition getPartition( String partitionId )
+	{
+		for ( Partition partition : directoryService.getPartitions() )
+		{
+			if ( partition.getId().equals( partitionId ) )
+			{
+				return partition;
+			}
+		}
+
+		throw new IllegalArgumentException( "No partition " + partitionId );
+	}
+
+
+	/**
+	 * Exports a partition while the server keeps running.
+	 *
+	 * @param partitionId the id of the partition, config and schema included
+	 * @param out the stream the entries are written to, flushed but not closed
+	 * @param format the format of the export
+	 * @param maxEntriesPerSecond the maximum number of entries exported per second, 0 for no limit
+	 * @return the finished export, holding the snapshot CSN and its counters
+	 * @see PartitionExport
+	 */
+	public PartitionExport exportPartition( String partitionId, OutputStream out, PartitionExport.Format format,
+		int maxEntriesPerSecond ) throws Exception
+	{
+		PartitionExport export = new PartitionExport( directoryService, getPartition( partitionId ),
+				maxEntriesPerSecond );
+		export.run( out, format );
+
+		return export;
+	}
+
+
+	/**
+	 * Exports every partition in its own file of the given directory, named after
+	 * the partition id. Each file is written next to the former one and renamed
+	 * once complete, so an interrupted backup never overwrites a good one.
+	 *
+	 * @param directory the backup directory
+	 * @param format the format of the export
+	 * @param maxEntriesPerSecond the maximum number of entries exported per second, 0 for no limit
+	 * @return the written files
+	 */
+	public List<File> backup( File directory, PartitionExport.Format format, int maxEntriesPerSecond )
+		throws Exception
+	{
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+		{
+			throw new IOException( "Cannot create the backup directory " + directory );
+		}
+
+		List<File> files = new ArrayList<File>();
+
+		for ( Partition partition : directoryService.getPartitions() )
+		{
+			File file = new File( directory, partition.getId() + format.getExtension() );
+			exportToFile( partition, file, format, maxEntriesPerSecond );
+			files.add( file );
+		}
+
+		return files;
+	}
+
+
+	/**
+	 * Exports a partition to a file, written next to the former one and renamed
+	 * once complete. The partial file is deleted if the export fails.
+	 */
+	private void exportToFile( Partition partition, File file, PartitionExport.Format format, int maxEntriesPerSecond )
+		throws Exception
+	{
+		File tmpFile = new File( file.getParentFile(), file.getName() + ".tmp" );
+		boolean renamed = false;
+
+		try
+		{
+			OutputStream out = new BufferedOutputStream( new FileOutputStream( tmpFile ), 64 * 1024 );
+
+			try
+			{
+				new PartitionExport( directoryService, partition, maxEntriesPerSecond ).run( out, format );
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if ( file.exists() && !file.delete() )
+			{
+				throw new IOException( "Cannot replace the export " + file );
+			}
+
+			if ( !tmpFile.renameTo( file ) )
+			{
+				throw new IOException( "Cannot rename " + tmpFile + " to " + file );
+			}
+
+			renamed = true;
+		}
+		finally
+		{
+			if ( !renamed && tmpFile.exists() && !tmpFile.delete() )
+			{
+				LOG.warn( "Cannot delete the partial export {}", tmpFile );
+			}
+		}
+	}
+
+
+	/**
+	 * Imports the entries of a binary export in the started DirectoryService.
+	 *
+	 * @param exportFile a file written in the {@link PartitionExport.Format#BINARY} format
+	 * @return the finished import, holding its counters
+	 */
+	public LdifImport importExport( File exportFile ) throws Exception
+	{
+		LdifImport ldifImport = createLdifImport();
+		PartitionExport.BinaryReader reader = new PartitionExport.BinaryReader( new BufferedInputStream(
+				new FileInputStream( exportFile ), 64 * 1024 ), directoryService.getSchemaManager() );
+
+		try
+		{
+			ldifImport.run( reader );
+		}
+		finally
+		{
+			reader.close();
+			clearSearchCache();
+			rebuildEntryIdIndex();
+		}
+
+		return ldifImport;
+	}
+
+
+	/**
+	 * Sets when the writes are synced. A policy set to 0 is disabled. The policy is
+	 * applied right away if the DirectoryService is started, otherwise once it is.
+	 *
+	 * @param syncInterval the maximum delay before a write is synced, in milliseconds
+	 * @param syncWrites the number of writes triggering a sync
+	 */
+	public void setSyncPolicy( long syncInterval, int syncWrites )
+	{
+		this.syncInterval = syncInterval;
+		this.syncWrites = syncWrites;
+
+		if ( syncScheduler != null )
+		{
+			syncScheduler.setPolicy( syncInterval, syncWrites );
+		}
+	}
+
+
+	/**
+	 * @return the scheduler making the writes durable, null before the DirectoryService is started
+	 */
+	public SyncScheduler getSyncScheduler()
+	{
+		return syncScheduler;
+	}
+
+
+	/**
+	 * Waits for all the writes completed so far to be durable. The concurrent
+	 * callers share a single sync, and nothing is synced if the writes are durable
+	 * already.
+	 *
+	 * @return a future done once the writes are durable
+	 */
+	public Future<Void> awaitDurable()
+	{
+		return syncScheduler.awaitDurable();
 	}
 
 
+	/**
+	 * Makes all the writes completed so far durable, grouping the concurrent
+	 * callers in a single sync.
+	 */
 	public void synch() throws Exception
 	{
-		ldapServer.getDirectoryService().sync();
+		if ( syncScheduler == null )
+		{
+			directoryService.sync();
+
+			return;
+		}
+
+		awaitResult( syncScheduler.awaitDurable() );
+	}
+
+
+	/**
+	 * Stops the LDAP server, and its worker pools
+	 */
+	private void stopLdap() throws Exception
+	{
+		synchronized ( ldapLock )
+		{
+			stopRecording();
+
+			if ( ldapServer != null )
+			{
+				ldapServer.stop();
+				ldapServer = null;
+			}
+
+			for ( ExecutorService executor : transportExecutors )
+			{
+				executor.shutdown();
+			}
+
+			transportExecutors.clear();
+		}
 	}
 
 
-	public void stop() throws Exception
+	/**
+	 * Stops the NTP server, or releases its ports
+	 */
+	private void stopNtp()
 	{
-		// Stops the server
-		if ( ldapServer != null )
+		synchronized ( ntpLock )
+		{
+			if ( lazyNtpServer != null )
+			{
+				lazyNtpServer.release();
+				lazyNtpServer = null;
+			}
+
+			if ( ntpServer != null )
+			{
+				ntpServer.stop();
+				ntpServer = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Stops the Kerberos server, or releases its ports
+	 */
+	private void stopKerberos()
+	{
+		synchronized ( kerberosLock )
 		{
-			ldapServer.stop();
+			if ( lazyKdcServer != null )
+			{
+				lazyKdcServer.release();
+				lazyKdcServer = null;
+			}
+
+			if ( kdcServer != null )
+			{
+				kdcServer.stop();
+				kdcServer = null;
+			}
 		}
+	}
 
-		if ( kdcServer != null )
+
+	public void stop() throws Exception
+	{
+		synchronized ( lifecycleLock )
 		{
-			kdcServer.stop();
+			stopServices();
 		}
+	}
+
+
+	private void stopServices() throws Exception
+	{
+		// Stops the servers, and prevents them from being started again
+		serverConfiguration = null;
+
+		stopLdap();
+		stopKerberos();
 
 		/*if ( changePwdServer != null )
         {
             changePwdServer.stop();
         }*/
 
-		if ( ntpServer != null )
-		{
-			ntpServer.stop();
-		}
+		stopNtp();
 
 		if ( httpServer != null )
 		{
 			httpServer.stop();
 		}
 
+		if ( syncScheduler != null )
+		{
+			syncScheduler.stop();
+			syncScheduler = null;
+		}
+
+		if ( searchWorkers != null )
+		{
+			searchWorkers.shutdownNow();
+			searchWorkers = null;
+			parallelSearch = null;
+		}
+
+		// After the last sync, which flushes it
+		if ( changeFeed != null )
+		{
+			changeFeed.close();
+			changeFeed = null;
+		}
+
+		unregisterMBeans();
+
 		// We now have to stop the underlaying DirectoryService
-		ldapServer.getDirectoryService().shutdown();
+		if ( directoryService != null )
+		{
+			directoryService.shutdown();
+		}
 	}
 
 	private static final String BANNER_LDAP = "           _                     _          ____  ____   \n"
@@ -615,7 +3162,7 @@ public class ApacheDsService
 	 */
 	public static void printBanner( String bannerConstant )
 	{
-		System.out.println( bannerConstant );
+		LOG.debug( "\n{}", bannerConstant );
 	}
 
 
@@ -629,6 +3176,10 @@ public class ApacheDsService
 	 * Note: we do these modifications explicitly cause we have no idea if each entry's LDIF file has the
 	 *       correct values for all these mandatory attributes
 	 *       
+	 * Only the invalid attributes are replaced, and the entries which are already valid are
+	 * left untouched. A {@link LdifPartition} writes one file per modified entry, those writes
+	 * are done one at a time and the partition is synced once at the end.
+	 *       
 	 * @param partition instance of the partition Note: should only be those which are loaded before starting the DirectoryService
 	 * @param dirService the DirectoryService instance
 	 * @throws Exception
@@ -646,96 +3197,85 @@ public class ApacheDsService
 		AttributeType creatorAtT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATORS_NAME_AT );
 		AttributeType createdTimeAtT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.CREATE_TIMESTAMP_AT );
 
+		SearchResult result = searchSubtree( session, partition.getSuffixDn(), filter,
+				AliasDerefMode.NEVER_DEREF_ALIASES, SchemaConstants.OBJECT_CLASS_AT_OID, SchemaConstants.ENTRY_UUID_AT_OID, SchemaConstants.ENTRY_CSN_AT_OID, SchemaConstants.CREATORS_NAME_AT_OID, SchemaConstants.CREATE_TIMESTAMP_AT_OID);
 
-		//        HashSet<AttributeTypeOptions> options = new HashSet<AttributeTypeOptions>( MANDATORY_ENTRY_ATOP_MAP.values());
-		/*
-
-
-        AttributeType at;
-        at
-        //
-        String id = SchemaUtils.stripOptions( returnAttribute );
-        Set<String> options = SchemaUtils.getOptions( returnAttribute );
-
-        AttributeType attributeType = session.getDirectoryService()
-            .getSchemaManager().lookupAttributeTypeRegistry( id );
-        AttributeTypeOptions attrOptions = new AttributeTypeOptions( attributeType, options );
-//        
+		// The entries to fix, collected first so the partition is not modified under the cursor
+		List<ModifyOperationContext> modifyContexts = new ArrayList<ModifyOperationContext>();
+		int nbEntries = 0;
 
-        EntryFilteringCursor cursor = session.search( partition.getSuffixDn(), SearchScope.SUBTREE, filter,
-            AliasDerefMode.NEVER_DEREF_ALIASES, new HashSet<AttributeTypeOptions>( MANDATORY_ENTRY_ATOP_MAP.values() ) );
-        cursor.beforeFirst();
-		 */
-		EntryFilteringCursor cursor = session.search( partition.getSuffixDn(), SearchScope.SUBTREE, filter,
-				AliasDerefMode.NEVER_DEREF_ALIASES, SchemaConstants.OBJECT_CLASS_AT_OID, SchemaConstants.ENTRY_UUID_AT_OID, SchemaConstants.ENTRY_CSN_AT_OID, SchemaConstants.CREATORS_NAME_AT_OID, SchemaConstants.CREATORS_NAME_AT_OID);
-		cursor.beforeFirst();
-
-
-		List<Modification> mods = new ArrayList<Modification>();
-
-		while ( cursor.next() )
+		try
 		{
-			Entry entry = cursor.get();
-
-			Attribute uuidAt = entry.get( uuidAtT );
-			String uuid = ( uuidAt == null ? null : uuidAt.getString() );
-
-			if ( !uuidChecker.isValidSyntax( uuid ) )
-			{
-				uuidAt = new DefaultAttribute( uuidAtT, UUID.randomUUID().toString() );
-			}
-
-			Modification uuidMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, uuidAt );
-			mods.add( uuidMod );
-
-			Attribute csnAt = entry.get( atTypeT );
-			String csn = ( csnAt == null ? null : csnAt.getString() );
-
-			if ( !csnChecker.isValidSyntax( csn ) )
-			{
-				csnAt = new DefaultAttribute( atTypeT, dirService.getCSN().toString() );
-			}
-
-			Modification csnMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, csnAt );
-			mods.add( csnMod );
-
-			Attribute creatorAt = entry.get( creatorAtT );
-			String creator = ( creatorAt == null ? "" : creatorAt.getString().trim() );
-
-			if ( ( creator.length() == 0 ) || ( !Dn.isValid( creator ) ) )
-			{
-				creatorAt = new DefaultAttribute( creatorAtT, adminDn );
-			}
-
-			Modification creatorMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, creatorAt );
-			mods.add( creatorMod );
-
-			Attribute createdTimeAt = entry.get( createdTimeAtT );
-			String createdTime = ( createdTimeAt == null ? null : createdTimeAt.getString() );
-
-			if ( !timeChecker.isValidSyntax( createdTime ) )
+			for ( Entry entry : result )
 			{
-				createdTimeAt = new DefaultAttribute( createdTimeAtT, DateUtils.getGeneralizedTime() );
+				nbEntries++;
+
+				List<Modification> mods = new ArrayList<Modification>( 4 );
+
+				Attribute uuidAt = entry.get( uuidAtT );
+				String uuid = ( uuidAt == null ? null : uuidAt.getString() );
+
+				if ( !uuidChecker.isValidSyntax( uuid ) )
+				{
+					uuidAt = new DefaultAttribute( uuidAtT, UUID.randomUUID().toString() );
+					mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, uuidAt ) );
+				}
+
+				Attribute csnAt = entry.get( atTypeT );
+				String csn = ( csnAt == null ? null : csnAt.getString() );
+
+				if ( !csnChecker.isValidSyntax( csn ) )
+				{
+					csnAt = new DefaultAttribute( atTypeT, dirService.getCSN().toString() );
+					mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, csnAt ) );
+				}
+
+				Attribute creatorAt = entry.get( creatorAtT );
+				String creator = ( creatorAt == null ? "" : creatorAt.getString().trim() );
+
+				if ( ( creator.length() == 0 ) || ( !Dn.isValid( creator ) ) )
+				{
+					creatorAt = new DefaultAttribute( creatorAtT, adminDn );
+					mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, creatorAt ) );
+				}
+
+				Attribute createdTimeAt = entry.get( createdTimeAtT );
+				String createdTime = ( createdTimeAt == null ? null : createdTimeAt.getString() );
+
+				if ( !timeChecker.isValidSyntax( createdTime ) )
+				{
+					createdTimeAt = new DefaultAttribute( createdTimeAtT, DateUtils.getGeneralizedTime() );
+					mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, createdTimeAt ) );
+				}
+
+				if ( !mods.isEmpty() )
+				{
+					ModifyOperationContext modifyContext = new ModifyOperationContext( session );
+					modifyContext.setEntry( entry );
+					modifyContext.setDn( entry.getDn() );
+					modifyContext.setModItems( mods );
+					modifyContexts.add( modifyContext );
+				}
 			}
+		}
+		finally
+		{
+			result.close();
+		}
 
-			Modification createdMod = new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, createdTimeAt );
-			mods.add( createdMod );
-
-			if ( !mods.isEmpty() )
-			{
-				LOG.debug( "modifying the entry {} after adding missing manadatory operational attributes",
-						entry.getDn() );
-				ModifyOperationContext modifyContext = new ModifyOperationContext( session );
-				modifyContext.setEntry( entry );
-				modifyContext.setDn( entry.getDn() );
-				modifyContext.setModItems( mods );
-				partition.modify( modifyContext );
-			}
+		LOG.info( "{} entries out of {} miss mandatory operational attributes in the partition {}",
+				new Object[] { modifyContexts.size(), nbEntries, partition.getId() } );
 
-			mods.clear();
+		// The partitions are not safe for concurrent modifications, the entries are written one at a time
+		for ( ModifyOperationContext modifyContext : modifyContexts )
+		{
+			LOG.debug( "modifying the entry {} after adding missing manadatory operational attributes",
+					modifyContext.getDn() );
+			partition.modify( modifyContext );
 		}
 
-		cursor.close();
+		// One single flush once all the entries are written
+		partition.sync();
 	}
 
 }
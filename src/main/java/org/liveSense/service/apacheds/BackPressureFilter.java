@@ -0,0 +1,193 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequest;
+import org.apache.directory.api.ldap.model.message.Request;
+import org.apache.directory.api.ldap.model.message.ResultResponse;
+import org.apache.directory.api.ldap.model.message.ResultResponseRequest;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A MINA filter protecting the LDAP server from abusive clients :
+ * <ul>
+ * <li>connections opened above the maximum number of connections are closed at once</li>
+ * <li>a connection stops being read once it has too many requests waiting for their
+ * response, and is read again once the responses are sent</li>
+ * </ul>
+ * The pending requests are tracked by message id, so an abandoned request, which
+ * may never get a response, stops being counted.
+ * The filter has to be put after the LDAP codec, as it counts decoded requests and
+ * responses.
+ */
+public class BackPressureFilter extends IoFilterAdapter
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( BackPressureFilter.class );
+
+	/** The name of this filter in the chain */
+	public static final String NAME = "backPressure";
+
+	/** The requests of a session waiting for their response */
+	private static final AttributeKey PENDING_REQUESTS = new AttributeKey( BackPressureFilter.class, "pendingRequests" );
+
+	/** The maximum number of open connections, 0 for no limit */
+	private final int maxConnections;
+
+	/** The maximum number of pending requests per connection, 0 for no limit */
+	private final int maxPendingRequests;
+
+	/** The number of refused connections */
+	private final AtomicLong refusedConnections = new AtomicLong();
+
+	/** The number of times a connection was suspended */
+	private final AtomicLong suspensions = new AtomicLong();
+
+
+	/**
+	 * The message ids of the requests of a session waiting for their response
+	 */
+	private static class PendingRequests
+	{
+		private final Set<Integer> messageIds = new HashSet<Integer>();
+
+		private boolean suspended;
+	}
+
+
+	public BackPressureFilter( int maxConnections, int maxPendingRequests )
+	{
+		this.maxConnections = maxConnections;
+		this.maxPendingRequests = maxPendingRequests;
+	}
+
+
+	@Override
+	public void sessionCreated( NextFilter nextFilter, IoSession session ) throws Exception
+	{
+		if ( ( maxConnections > 0 ) && ( session.getService().getManagedSessionCount() > maxConnections ) )
+		{
+			refusedConnections.incrementAndGet();
+			LOG.warn( "Too many LDAP connections, closing the connection from {}", session.getRemoteAddress() );
+			session.close( true );
+			return;
+		}
+
+		session.setAttribute( PENDING_REQUESTS, new PendingRequests() );
+		nextFilter.sessionCreated( session );
+	}
+
+
+	@Override
+	public void messageReceived( NextFilter nextFilter, IoSession session, Object message ) throws Exception
+	{
+		PendingRequests pending = ( PendingRequests ) session.getAttribute( PENDING_REQUESTS );
+
+		if ( ( maxPendingRequests > 0 ) && ( pending != null ) )
+		{
+			if ( message instanceof ResultResponseRequest )
+			{
+				synchronized ( pending )
+				{
+					pending.messageIds.add( ( ( Request ) message ).getMessageId() );
+
+					if ( !pending.suspended && ( pending.messageIds.size() >= maxPendingRequests ) )
+					{
+						pending.suspended = true;
+						suspensions.incrementAndGet();
+						LOG.debug( "too many pending requests, suspending the reads from {}", session.getRemoteAddress() );
+						session.suspendRead();
+					}
+				}
+			}
+			else if ( message instanceof AbandonRequest )
+			{
+				// An abandoned operation may never send its response
+				release( session, pending, ( ( AbandonRequest ) message ).getAbandoned() );
+			}
+		}
+
+		nextFilter.messageReceived( session, message );
+	}
+
+
+	@Override
+	public void messageSent( NextFilter nextFilter, IoSession session, WriteRequest writeRequest ) throws Exception
+	{
+		if ( ( maxPendingRequests > 0 ) && ( writeRequest.getMessage() instanceof ResultResponse ) )
+		{
+			PendingRequests pending = ( PendingRequests ) session.getAttribute( PENDING_REQUESTS );
+
+			if ( pending != null )
+			{
+				release( session, pending, ( ( ResultResponse ) writeRequest.getMessage() ).getMessageId() );
+			}
+		}
+
+		nextFilter.messageSent( session, writeRequest );
+	}
+
+
+	/**
+	 * Stops counting a request, and resumes the reads once the connection is back
+	 * under the limit
+	 */
+	private void release( IoSession session, PendingRequests pending, int messageId )
+	{
+		synchronized ( pending )
+		{
+			if ( pending.messageIds.remove( messageId ) && pending.suspended
+					&& ( pending.messageIds.size() < maxPendingRequests ) )
+			{
+				pending.suspended = false;
+				session.resumeRead();
+			}
+		}
+	}
+
+
+	/**
+	 * @return the number of connections closed because of the connection limit
+	 */
+	public long getRefusedConnections()
+	{
+		return refusedConnections.get();
+	}
+
+
+	/**
+	 * @return the number of times a connection was suspended because of the request limit
+	 */
+	public long getSuspensions()
+	{
+		return suspensions.get();
+	}
+}
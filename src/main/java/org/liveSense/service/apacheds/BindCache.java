@@ -0,0 +1,248 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.LdapPrincipal;
+
+
+/**
+ * The successful simple binds cached by the {@link BindCacheInterceptor}, by
+ * normalized Dn. A cached bind holds an HMAC of the Dn and of the password, keyed
+ * by a random secret drawn when the cache is created, never the password, and
+ * expires once it is older than the TTL.
+ *
+ * Every invalidation increments a generation : a bind verified while an
+ * invalidation happened is not stored, so a bind racing with a password change
+ * never caches the former password.
+ */
+public class BindCache
+{
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	/**
+	 * A successful bind
+	 */
+	private static class CachedBind
+	{
+		/** The HMAC of the Dn and of the credentials */
+		private final byte[] digest;
+
+		/** The principal the session was opened with */
+		private final LdapPrincipal principal;
+
+		/** When the bind expires, in nanoseconds */
+		private final long expiry;
+
+
+		private CachedBind( byte[] digest, LdapPrincipal principal, long expiry )
+		{
+			this.digest = digest;
+			this.principal = principal;
+			this.expiry = expiry;
+		}
+	}
+
+	/** The HMAC key, drawn when the cache is created */
+	private final SecretKeySpec key;
+
+	/** The cached binds, by normalized Dn */
+	private final ConcurrentMap<String, CachedBind> binds = new ConcurrentHashMap<String, CachedBind>();
+
+	/** How long a bind stays cached, in nanoseconds, 0 to disable the cache */
+	private volatile long ttl;
+
+	/** Incremented by every invalidation */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+
+	public BindCache()
+	{
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes( secret );
+		key = new SecretKeySpec( secret, HMAC_ALGORITHM );
+	}
+
+
+	/**
+	 * Sets how long a bind stays cached. The cached binds are dropped.
+	 *
+	 * @param ttl the TTL, in milliseconds, 0 to disable the cache
+	 */
+	public void setTtl( long ttl )
+	{
+		this.ttl = TimeUnit.MILLISECONDS.toNanos( Math.max( ttl, 0 ) );
+		binds.clear();
+	}
+
+
+	/**
+	 * @return true if the binds are cached
+	 */
+	public boolean isEnabled()
+	{
+		return ttl > 0;
+	}
+
+
+	/**
+	 * @return the HMAC of a Dn and of the credentials presented for it
+	 */
+	public byte[] digest( String normDn, byte[] credentials ) throws LdapException
+	{
+		try
+		{
+			Mac mac = Mac.getInstance( HMAC_ALGORITHM );
+			mac.init( key );
+			mac.update( Strings.getBytesUtf8( normDn ) );
+			mac.update( ( byte ) 0 );
+
+			return mac.doFinal( credentials );
+		}
+		catch ( GeneralSecurityException e )
+		{
+			throw new LdapException( e.getMessage(), e );
+		}
+	}
+
+
+	/**
+	 * Looks up a bind
+	 *
+	 * @param normDn the normalized Dn of the bind
+	 * @param digest the {@link #digest(String, byte[])} of the presented credentials
+	 * @return the principal of the cached bind, null if no bind with these credentials
+	 *         is cached or if it expired
+	 */
+	public LdapPrincipal get( String normDn, byte[] digest )
+	{
+		CachedBind cached = binds.get( normDn );
+
+		if ( ( cached != null ) && ( cached.expiry - System.nanoTime() > 0 )
+				&& MessageDigest.isEqual( cached.digest, digest ) )
+		{
+			hits.incrementAndGet();
+
+			return cached.principal;
+		}
+
+		misses.incrementAndGet();
+
+		return null;
+	}
+
+
+	/**
+	 * @return the current generation, read before the bind is verified
+	 */
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+
+
+	/**
+	 * Caches a successful bind, unless an invalidation happened since the given
+	 * generation was read.
+	 *
+	 * @param normDn the normalized Dn of the bind
+	 * @param digest the {@link #digest(String, byte[])} of the verified credentials
+	 * @param principal the principal the session was opened with
+	 * @param startGeneration the generation read before the bind was verified
+	 */
+	public void put( String normDn, byte[] digest, LdapPrincipal principal, long startGeneration )
+	{
+		long cacheTtl = ttl;
+
+		if ( cacheTtl <= 0 )
+		{
+			return;
+		}
+
+		CachedBind cached = new CachedBind( digest, principal, System.nanoTime() + cacheTtl );
+		binds.put( normDn, cached );
+
+		// An invalidation which happened meanwhile may have been verified against the
+		// former state of the entry. The invalidations increment the generation before
+		// dropping the binds, so the bind is either dropped by the invalidation or here.
+		if ( generation.get() != startGeneration )
+		{
+			binds.remove( normDn, cached );
+		}
+	}
+
+
+	/**
+	 * Drops the cached bind of an entry
+	 */
+	public void invalidate( String normDn )
+	{
+		generation.incrementAndGet();
+		binds.remove( normDn );
+	}
+
+
+	/**
+	 * Drops the cached binds of an entry and of its descendants
+	 */
+	public void invalidateSubtree( String normDn )
+	{
+		generation.incrementAndGet();
+
+		String suffix = "," + normDn;
+
+		for ( Iterator<String> iterator = binds.keySet().iterator(); iterator.hasNext(); )
+		{
+			String cachedDn = iterator.next();
+
+			if ( cachedDn.equals( normDn ) || cachedDn.endsWith( suffix ) )
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * @return the statistics of the cache
+	 */
+	public CacheStatistics getStatistics()
+	{
+		return new CacheStatistics( "bind", hits.get(), misses.get(), binds.size() );
+	}
+}
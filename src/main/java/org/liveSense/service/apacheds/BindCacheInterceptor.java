@@ -0,0 +1,335 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.shared.DefaultCoreSession;
+
+
+/**
+ * An interceptor caching the successful simple binds in a {@link BindCache},
+ * placed before the authentication. A bind presenting the same credentials as a
+ * cached one is accepted without hashing the password again, as long as the cached
+ * bind is not older than the TTL.
+ *
+ * The cached binds of an entry are dropped as soon as its userPassword or its
+ * lock attributes are modified, when it is deleted or moved, and when a bind on it
+ * fails. The binds with request controls, like the password policy one, are never
+ * cached.
+ *
+ * A bind verified while a write dropped cached binds is not cached, so a bind
+ * racing with a password change never caches the former password. Nothing is
+ * cached while a password policy is enabled, as a cached bind would skip the
+ * password expiry, the grace logins and the update of the last successful bind
+ * time.
+ *
+ * The binds going to the authentication are bounded by a semaphore, so a bind
+ * storm keeps at most the given number of threads hashing passwords, and the
+ * other operations keep their cores. A bind waiting too long for its turn fails
+ * as busy.
+ */
+public class BindCacheInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "bindCacheInterceptor";
+
+	/** How long a bind waits for its turn to be hashed, in milliseconds */
+	private static final long HASH_WAIT = 5000;
+
+	/** The attributes whose modification drops the cached binds of an entry */
+	private static final String[] INVALIDATING_ATTRIBUTES =
+		{ SchemaConstants.USER_PASSWORD_AT, "pwdAccountLockedTime", "pwdReset", "pwdPolicySubentry" };
+
+	/** The cached binds */
+	private final BindCache cache = new BindCache();
+
+	/** Bounds the binds being hashed, null if not bounded */
+	private volatile Semaphore hashPermits;
+
+	/** The attributes dropping the cached binds, resolved once the schema is known */
+	private AttributeType[] invalidatingTypes;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+
+	public BindCacheInterceptor()
+	{
+		super( NAME );
+	}
+
+
+	@Override
+	public void init( DirectoryService directoryService ) throws LdapException
+	{
+		super.init( directoryService );
+
+		invalidatingTypes = new AttributeType[INVALIDATING_ATTRIBUTES.length];
+
+		for ( int i = 0; i < INVALIDATING_ATTRIBUTES.length; i++ )
+		{
+			// The password policy schema may not be loaded
+			invalidatingTypes[i] = directoryService.getSchemaManager().getAttributeType( INVALIDATING_ATTRIBUTES[i] );
+		}
+	}
+
+
+	/**
+	 * Sets the policy of the cache. The cached binds are dropped.
+	 *
+	 * @param ttl how long a bind stays cached, in milliseconds, 0 to disable the cache
+	 * @param maxConcurrentHashes the number of binds hashed at the same time, 0 for no bound
+	 */
+	public void configure( long ttl, int maxConcurrentHashes )
+	{
+		cache.setTtl( ttl );
+		this.hashPermits = maxConcurrentHashes > 0 ? new Semaphore( maxConcurrentHashes, true ) : null;
+	}
+
+
+	/**
+	 * @return the statistics of the cache
+	 */
+	public CacheStatistics getStatistics()
+	{
+		return cache.getStatistics();
+	}
+
+
+	/**
+	 * @return the number of binds which failed as busy waiting for their turn to be hashed
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+
+	@Override
+	public void bind( BindOperationContext bindContext ) throws LdapException
+	{
+		byte[] credentials = bindContext.getCredentials();
+		Dn dn = bindContext.getDn();
+		boolean cacheable = cache.isEnabled() && bindContext.isSimple() && ( credentials != null )
+				&& ( credentials.length > 0 ) && ( dn != null ) && !dn.isEmpty() && !bindContext.hasRequestControls()
+				&& !directoryService.isPwdPolicyEnabled();
+
+		byte[] digest = null;
+
+		if ( cacheable )
+		{
+			digest = cache.digest( dn.getNormName(), credentials );
+			LdapPrincipal principal = cache.get( dn.getNormName(), digest );
+
+			if ( principal != null )
+			{
+				bindContext.setSession( new DefaultCoreSession( principal, directoryService ) );
+
+				return;
+			}
+		}
+
+		long startGeneration = cache.getGeneration();
+
+		authenticate( bindContext );
+
+		if ( cacheable )
+		{
+			cache.put( dn.getNormName(), digest, bindContext.getSession().getAuthenticatedPrincipal(), startGeneration );
+		}
+	}
+
+
+	/**
+	 * Hands the bind to the authentication, once a hashing permit is available
+	 */
+	private void authenticate( BindOperationContext bindContext ) throws LdapException
+	{
+		Semaphore permits = hashPermits;
+
+		if ( permits != null )
+		{
+			try
+			{
+				if ( !permits.tryAcquire( HASH_WAIT, TimeUnit.MILLISECONDS ) )
+				{
+					rejected.incrementAndGet();
+					throw new LdapOperationException( ResultCodeEnum.BUSY, "Too many binds in progress" );
+				}
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new LdapOperationException( ResultCodeEnum.BUSY, "Interrupted while waiting to bind" );
+			}
+		}
+
+		try
+		{
+			next( bindContext );
+		}
+		catch ( LdapException e )
+		{
+			// A failed bind may lock the account without going through the interceptors
+			if ( bindContext.getDn() != null )
+			{
+				invalidate( bindContext.getDn() );
+			}
+
+			throw e;
+		}
+		finally
+		{
+			if ( permits != null )
+			{
+				permits.release();
+			}
+		}
+	}
+
+
+	/**
+	 * Drops the cached binds of an entry
+	 */
+	private void invalidate( Dn dn )
+	{
+		cache.invalidate( dn.getNormName() );
+	}
+
+
+	/**
+	 * Drops the cached binds of an entry and of its descendants
+	 */
+	private void invalidateSubtree( Dn dn )
+	{
+		cache.invalidateSubtree( dn.getNormName() );
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		boolean invalidating = false;
+
+		for ( Modification modification : modifyContext.getModItems() )
+		{
+			AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+			for ( AttributeType invalidatingType : invalidatingTypes )
+			{
+				if ( ( invalidatingType != null ) && invalidatingType.equals( attributeType ) )
+				{
+					invalidating = true;
+				}
+			}
+		}
+
+		if ( !invalidating )
+		{
+			next( modifyContext );
+
+			return;
+		}
+
+		try
+		{
+			next( modifyContext );
+		}
+		finally
+		{
+			invalidate( modifyContext.getDn() );
+		}
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		try
+		{
+			next( deleteContext );
+		}
+		finally
+		{
+			invalidate( deleteContext.getDn() );
+		}
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		try
+		{
+			next( moveContext );
+		}
+		finally
+		{
+			invalidateSubtree( moveContext.getDn() );
+		}
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		try
+		{
+			next( moveAndRenameContext );
+		}
+		finally
+		{
+			invalidateSubtree( moveAndRenameContext.getDn() );
+		}
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		try
+		{
+			next( renameContext );
+		}
+		finally
+		{
+			invalidateSubtree( renameContext.getDn() );
+		}
+	}
+}
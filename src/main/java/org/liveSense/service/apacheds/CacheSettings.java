@@ -0,0 +1,186 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.config.CacheConfiguration;
+
+
+/**
+ * The sizing of one of the caches of the {@link org.apache.directory.server.core.api.CacheService}.
+ * The caches are the per partition entry caches, named after the partition id,
+ * and the shared <code>dnCache</code>, <code>entryDn</code>, <code>alias</code>
+ * and <code>piar</code> caches.
+ *
+ * The settings are given as <code>name:heap=10000,disk=0,ttl=0,tti=0</code>, any
+ * value left out keeps the one of <code>directorycacheservice.xml</code>.
+ */
+public class CacheSettings
+{
+	/** The cache name */
+	private final String name;
+
+	/** The maximum number of entries kept on the heap, -1 if not set */
+	private long maxEntriesOnHeap = -1;
+
+	/** The maximum number of entries kept in the disk tier, -1 if not set */
+	private long maxEntriesOnDisk = -1;
+
+	/** The time to live of the entries in seconds, -1 if not set */
+	private long timeToLive = -1;
+
+	/** The time to idle of the entries in seconds, -1 if not set */
+	private long timeToIdle = -1;
+
+
+	public CacheSettings( String name )
+	{
+		this.name = name;
+	}
+
+
+	/**
+	 * Parses the settings of a cache.
+	 *
+	 * @param settings the settings, as <code>name:heap=10000,disk=0,ttl=0,tti=0</code>
+	 * @return the parsed settings
+	 * @throws IllegalArgumentException if the settings cannot be parsed
+	 */
+	public static CacheSettings parse( String settings )
+	{
+		int pos = settings.indexOf( ':' );
+
+		if ( pos <= 0 )
+		{
+			throw new IllegalArgumentException( "Missing cache name in the cache settings '" + settings + "'" );
+		}
+
+		CacheSettings cacheSettings = new CacheSettings( settings.substring( 0, pos ).trim() );
+
+		for ( String setting : settings.substring( pos + 1 ).split( "," ) )
+		{
+			String[] keyValue = setting.split( "=" );
+
+			if ( keyValue.length != 2 )
+			{
+				throw new IllegalArgumentException( "Invalid cache setting '" + setting + "' for the cache "
+						+ cacheSettings.name );
+			}
+
+			String key = keyValue[0].trim();
+			long value = Long.parseLong( keyValue[1].trim() );
+
+			if ( "heap".equals( key ) )
+			{
+				cacheSettings.maxEntriesOnHeap = value;
+			}
+			else if ( "disk".equals( key ) )
+			{
+				cacheSettings.maxEntriesOnDisk = value;
+			}
+			else if ( "ttl".equals( key ) )
+			{
+				cacheSettings.timeToLive = value;
+			}
+			else if ( "tti".equals( key ) )
+			{
+				cacheSettings.timeToIdle = value;
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Unknown cache setting '" + key + "' for the cache "
+						+ cacheSettings.name );
+			}
+		}
+
+		return cacheSettings;
+	}
+
+
+	/**
+	 * Applies the settings to a running cache. Only the settings ehcache can change
+	 * on a live cache are supported.
+	 *
+	 * @param cache the cache to configure
+	 */
+	public void applyTo( Cache cache )
+	{
+		CacheConfiguration configuration = cache.getCacheConfiguration();
+
+		if ( maxEntriesOnHeap >= 0 )
+		{
+			configuration.setMaxEntriesLocalHeap( maxEntriesOnHeap );
+		}
+
+		if ( maxEntriesOnDisk >= 0 )
+		{
+			configuration.setMaxEntriesLocalDisk( maxEntriesOnDisk );
+		}
+
+		if ( timeToLive >= 0 )
+		{
+			configuration.setTimeToLiveSeconds( timeToLive );
+		}
+
+		if ( timeToIdle >= 0 )
+		{
+			configuration.setTimeToIdleSeconds( timeToIdle );
+		}
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public long getMaxEntriesOnHeap()
+	{
+		return maxEntriesOnHeap;
+	}
+
+
+	public long getMaxEntriesOnDisk()
+	{
+		return maxEntriesOnDisk;
+	}
+
+
+	public long getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+
+	public long getTimeToIdle()
+	{
+		return timeToIdle;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return name + ":heap=" + maxEntriesOnHeap + ",disk=" + maxEntriesOnDisk + ",ttl=" + timeToLive + ",tti="
+				+ timeToIdle;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * A point in time view of the usage of a cache.
+ */
+public class CacheStatistics
+{
+	/** The cache name */
+	private final String name;
+
+	/** The number of lookups served by the cache */
+	private final long hits;
+
+	/** The number of lookups the cache could not serve */
+	private final long misses;
+
+	/** The number of elements in the cache */
+	private final long size;
+
+
+	public CacheStatistics( String name, long hits, long misses, long size )
+	{
+		this.name = name;
+		this.hits = hits;
+		this.misses = misses;
+		this.size = size;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+
+	public long getSize()
+	{
+		return size;
+	}
+
+
+	/**
+	 * @return the ratio of the lookups served by the cache, 0 if it was never used
+	 */
+	public double getHitRatio()
+	{
+		long lookups = hits + misses;
+
+		return lookups == 0 ? 0 : ( double ) hits / lookups;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return name + " : hits=" + hits + ", misses=" + misses + ", size=" + size;
+	}
+}
@@ -0,0 +1,702 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An append-only log of the changes made to the DirectoryService, stored in
+ * memory-mapped segment files. Each change records its CSN, the entryUUID and the
+ * Dn of the entry : consumers read the entries they need, so reading the feed
+ * costs what the changes cost, whatever the size of the tree.
+ *
+ * The changes are appended by the {@link ChangeFeedInterceptor} once the write is
+ * done. The overlapping writes may complete in another order than the one of their
+ * CSN, so each write is bracketed by {@link #begin()} and {@link #end(long)}, and
+ * a change is buffered until every write which may still get an older CSN is over.
+ * The feed is thus in CSN order, and a consumer resumes from the CSN of the last
+ * change it read : the cursor starts at the first change with a greater CSN.
+ * The oldest segments are deleted once there are more than the maximum
+ * number of segments, a consumer resuming from a deleted change gets a
+ * {@link ChangeFeedTruncatedException} and has to read the whole tree again.
+ *
+ * The segments are forced to disk by {@link #flush()}, called after each sync of
+ * the partitions. The LDIF and binary imports write to the partitions directly,
+ * their entries are not in the feed.
+ */
+public class ChangeFeed implements Flushable, Closeable
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( ChangeFeed.class );
+
+	/** The default size of a segment, in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** The default number of segments kept */
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+	private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	private static final String SEGMENT_PREFIX = "changes-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** The size of a record without its Dn : length, CSN, UUID, type and the two Dn lengths */
+	private static final int RECORD_HEADER_SIZE = 4 + 4 * 8 + 1 + 4 + 4;
+
+	private static final ChangeRecord.Type[] TYPES = ChangeRecord.Type.values();
+
+	/** Sorts the buffered changes by CSN */
+	private static final Comparator<PendingChange> CSN_ORDER = new Comparator<PendingChange>()
+	{
+		public int compare( PendingChange change1, PendingChange change2 )
+		{
+			return ChangeFeed.compare( change1.csnHigh, change1.csnLow, change2.csnHigh, change2.csnLow );
+		}
+	};
+
+
+	/**
+	 * A segment file, mapped in memory
+	 */
+	static class Segment
+	{
+		private final long number;
+
+		private final File file;
+
+		private final MappedByteBuffer buffer;
+
+		/** The end of the written records, published once a record is complete */
+		private volatile int end;
+
+		/** The CSN of the first record, valid if end is not 0 */
+		private long firstCsnHigh;
+
+		private long firstCsnLow;
+
+
+		private Segment( long number, File file, MappedByteBuffer buffer )
+		{
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+
+		int getEnd()
+		{
+			return end;
+		}
+
+
+		/**
+		 * @return the length of the record at the position
+		 */
+		int getRecordLength( int position )
+		{
+			return buffer.getInt( position );
+		}
+
+
+		long getCsnHigh( int position )
+		{
+			return buffer.getLong( position + 4 );
+		}
+
+
+		long getCsnLow( int position )
+		{
+			return buffer.getLong( position + 12 );
+		}
+
+
+		ChangeRecord read( int position )
+		{
+			ByteBuffer record = buffer.duplicate();
+			record.position( position + 4 );
+
+			long csnHigh = record.getLong();
+			long csnLow = record.getLong();
+			long uuidHigh = record.getLong();
+			long uuidLow = record.getLong();
+			ChangeRecord.Type type = TYPES[record.get()];
+			String dn = readString( record );
+			String newDn = readString( record );
+
+			return new ChangeRecord( EntryIdIndex.unpackCsn( csnHigh, csnLow ).toString(), type,
+					( uuidHigh == 0L ) && ( uuidLow == 0L ) ? null : new UUID( uuidHigh, uuidLow ).toString(), dn, newDn );
+		}
+
+
+		private static String readString( ByteBuffer record )
+		{
+			int length = record.getInt();
+
+			if ( length < 0 )
+			{
+				return null;
+			}
+
+			byte[] bytes = new byte[length];
+			record.get( bytes );
+
+			return new String( bytes, UTF_8 );
+		}
+	}
+
+	/**
+	 * A change waiting for the writes which may still get an older CSN
+	 */
+	private static class PendingChange
+	{
+		private final ChangeRecord.Type type;
+
+		private final long csnHigh;
+
+		private final long csnLow;
+
+		private final String entryUuid;
+
+		private final byte[] dn;
+
+		private final byte[] newDn;
+
+		/** The last write begun when the change was appended, the later ones get a greater CSN */
+		private final long lastBegun;
+
+
+		private PendingChange( ChangeRecord.Type type, Csn csn, String entryUuid, byte[] dn, byte[] newDn,
+				long lastBegun )
+		{
+			this.type = type;
+			this.csnHigh = csn.getTimestamp();
+			this.csnLow = EntryIdIndex.packCsn( csn );
+			this.entryUuid = entryUuid;
+			this.dn = dn;
+			this.newDn = newDn;
+			this.lastBegun = lastBegun;
+		}
+
+
+		private int getLength()
+		{
+			return RECORD_HEADER_SIZE + dn.length + ( newDn == null ? 0 : newDn.length );
+		}
+	}
+
+	/** The directory holding the segments */
+	private final File directory;
+
+	/** The size of a segment */
+	private final int segmentSize;
+
+	/** The number of segments kept */
+	private final int maxSegments;
+
+	/** The segments, the last one being appended to, guarded by this */
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/** Tells if the feed is closed, guarded by this */
+	private boolean closed;
+
+	/** The number of the last begun write, guarded by this */
+	private long writeNumber;
+
+	/** The numbers of the writes not ended yet, guarded by this */
+	private final TreeSet<Long> runningWrites = new TreeSet<Long>();
+
+	/** The changes not written to the segments yet, guarded by this */
+	private final List<PendingChange> pendingChanges = new ArrayList<PendingChange>();
+
+
+	/**
+	 * @param directory the directory holding the segments
+	 * @param segmentSize the size of a segment, in bytes
+	 * @param maxSegments the number of segments kept
+	 */
+	public ChangeFeed( File directory, int segmentSize, int maxSegments )
+	{
+		this.directory = directory;
+		this.segmentSize = Math.max( segmentSize, 1024 * 1024 );
+		this.maxSegments = Math.max( maxSegments, 2 );
+	}
+
+
+	/**
+	 * Maps the existing segments, and finds the end of the last one
+	 */
+	public synchronized void open() throws IOException
+	{
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+		{
+			throw new IOException( "Cannot create the change feed directory " + directory );
+		}
+
+		String[] names = directory.list( new FilenameFilter()
+		{
+			public boolean accept( File dir, String name )
+			{
+				return name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX );
+			}
+		} );
+
+		// The segment numbers are zero padded, their names sort in order
+		Arrays.sort( names );
+
+		for ( String name : names )
+		{
+			long number = Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length()
+					- SEGMENT_SUFFIX.length() ) );
+			Segment segment = map( number );
+			recover( segment );
+			segments.add( segment );
+		}
+
+		if ( segments.isEmpty() )
+		{
+			segments.add( map( 0 ) );
+		}
+
+		LOG.info( "Change feed opened in {} : {} segments", directory, segments.size() );
+	}
+
+
+	private Segment map( long number ) throws IOException
+	{
+		File file = new File( directory, String.format( "%s%019d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX ) );
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+		try
+		{
+			// The mapping stays valid once the file is closed
+			return new Segment( number, file, raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, segmentSize ) );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Finds the end of the complete records of a segment. A record is complete once
+	 * its length is written, the unwritten part of a segment is zeroed.
+	 */
+	private void recover( Segment segment )
+	{
+		int position = 0;
+
+		while ( position + RECORD_HEADER_SIZE <= segmentSize )
+		{
+			int length = segment.getRecordLength( position );
+
+			if ( ( length < RECORD_HEADER_SIZE ) || ( position + length > segmentSize ) )
+			{
+				break;
+			}
+
+			if ( position == 0 )
+			{
+				segment.firstCsnHigh = segment.getCsnHigh( 0 );
+				segment.firstCsnLow = segment.getCsnLow( 0 );
+			}
+
+			position += length;
+		}
+
+		segment.end = position;
+	}
+
+
+	/**
+	 * Tells that a write which may append a change starts. The CSN of the write
+	 * must not be generated yet.
+	 *
+	 * @return the number of the write, to be given to {@link #end(long)}
+	 */
+	public synchronized long begin()
+	{
+		writeNumber++;
+		runningWrites.add( writeNumber );
+
+		return writeNumber;
+	}
+
+
+	/**
+	 * Tells that a write is over, whether it succeeded or not. The buffered changes
+	 * no running write can precede anymore are written.
+	 *
+	 * @param write the number returned by {@link #begin()}
+	 */
+	public synchronized void end( long write )
+	{
+		runningWrites.remove( write );
+		writePendingChanges();
+	}
+
+
+	/**
+	 * Appends a change. It is buffered until every write begun before it is over,
+	 * as they may have an older CSN.
+	 *
+	 * @param type the kind of change
+	 * @param csn the CSN of the change
+	 * @param entryUuid the entryUUID of the entry, null if it has none
+	 * @param dn the normalized Dn of the entry
+	 * @param newDn the new normalized Dn of a moved entry, null otherwise
+	 */
+	public synchronized void append( ChangeRecord.Type type, Csn csn, String entryUuid, String dn, String newDn )
+		throws IOException
+	{
+		if ( closed )
+		{
+			throw new IOException( "The change feed is closed" );
+		}
+
+		PendingChange change = new PendingChange( type, csn, entryUuid, dn.getBytes( UTF_8 ), newDn == null ? null
+				: newDn.getBytes( UTF_8 ), writeNumber );
+
+		if ( change.getLength() > segmentSize )
+		{
+			throw new IOException( "The change of " + dn + " does not fit in a segment" );
+		}
+
+		pendingChanges.add( change );
+		writePendingChanges();
+	}
+
+
+	/**
+	 * Writes the buffered changes, in CSN order, up to the newest one whose
+	 * preceding writes are all over. The writes begun after a change was appended
+	 * get a greater CSN, so the older buffered changes cannot be preceded either.
+	 */
+	private void writePendingChanges()
+	{
+		long oldestRunning = runningWrites.isEmpty() ? Long.MAX_VALUE : runningWrites.first();
+		PendingChange limit = null;
+
+		for ( PendingChange change : pendingChanges )
+		{
+			if ( ( change.lastBegun < oldestRunning )
+					&& ( ( limit == null ) || ( CSN_ORDER.compare( change, limit ) > 0 ) ) )
+			{
+				limit = change;
+			}
+		}
+
+		if ( limit == null )
+		{
+			return;
+		}
+
+		List<PendingChange> ready = new ArrayList<PendingChange>();
+
+		for ( Iterator<PendingChange> iterator = pendingChanges.iterator(); iterator.hasNext(); )
+		{
+			PendingChange change = iterator.next();
+
+			if ( CSN_ORDER.compare( change, limit ) <= 0 )
+			{
+				ready.add( change );
+				iterator.remove();
+			}
+		}
+
+		Collections.sort( ready, CSN_ORDER );
+
+		for ( PendingChange change : ready )
+		{
+			try
+			{
+				write( change );
+			}
+			catch ( IOException e )
+			{
+				LOG.error( "Cannot append the " + change.type + " of " + new String( change.dn, UTF_8 )
+						+ " to the change feed", e );
+			}
+		}
+
+		notifyAll();
+	}
+
+
+	/**
+	 * Writes a change at the end of the last segment
+	 */
+	private void write( PendingChange change ) throws IOException
+	{
+		int length = change.getLength();
+		Segment segment = segments.get( segments.size() - 1 );
+
+		if ( segment.end + length > segmentSize )
+		{
+			segment = roll( segment );
+		}
+
+		UUID uuid = change.entryUuid == null ? null : UUID.fromString( change.entryUuid );
+		int position = segment.end;
+
+		ByteBuffer record = segment.buffer.duplicate();
+		record.position( position + 4 );
+		record.putLong( change.csnHigh );
+		record.putLong( change.csnLow );
+		record.putLong( uuid == null ? 0L : uuid.getMostSignificantBits() );
+		record.putLong( uuid == null ? 0L : uuid.getLeastSignificantBits() );
+		record.put( ( byte ) change.type.ordinal() );
+		record.putInt( change.dn.length );
+		record.put( change.dn );
+		record.putInt( change.newDn == null ? -1 : change.newDn.length );
+
+		if ( change.newDn != null )
+		{
+			record.put( change.newDn );
+		}
+
+		// The length is written last, the record is complete once it is there
+		segment.buffer.putInt( position, length );
+
+		if ( position == 0 )
+		{
+			segment.firstCsnHigh = change.csnHigh;
+			segment.firstCsnLow = change.csnLow;
+		}
+
+		segment.end = position + length;
+	}
+
+
+	/**
+	 * Starts a new segment, and deletes the oldest ones
+	 */
+	private Segment roll( Segment current ) throws IOException
+	{
+		current.buffer.force();
+
+		Segment segment = map( current.number + 1 );
+		segments.add( segment );
+
+		while ( segments.size() > maxSegments )
+		{
+			Segment oldest = segments.remove( 0 );
+
+			// The cursors still reading it keep their mapping
+			if ( !oldest.file.delete() )
+			{
+				LOG.warn( "Cannot delete the change feed segment {}", oldest.file );
+			}
+		}
+
+		return segment;
+	}
+
+
+	/**
+	 * @return the segment following the given one, null if it is the last one
+	 */
+	synchronized Segment nextSegment( Segment segment )
+	{
+		for ( Segment next : segments )
+		{
+			if ( next.number > segment.number )
+			{
+				return next;
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Waits until a record is appended after the given position
+	 *
+	 * @return false if the timeout elapsed or the feed is closed
+	 */
+	synchronized boolean awaitAppend( Segment segment, int position, long timeout, TimeUnit unit )
+		throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos( timeout );
+
+		while ( !closed && ( segment.end == position ) && ( nextSegment( segment ) == null ) )
+		{
+			long remaining = deadline - System.nanoTime();
+
+			if ( remaining <= 0 )
+			{
+				return false;
+			}
+
+			TimeUnit.NANOSECONDS.timedWait( this, remaining );
+		}
+
+		return !closed;
+	}
+
+
+	/**
+	 * Opens a cursor on all the changes still held by the feed
+	 */
+	public synchronized ChangeFeedCursor openCursor()
+	{
+		return new ChangeFeedCursor( this, segments.get( 0 ), 0 );
+	}
+
+
+	/**
+	 * Opens a cursor on the changes appended from now on
+	 */
+	public synchronized ChangeFeedCursor openCursorAtEnd()
+	{
+		Segment last = segments.get( segments.size() - 1 );
+
+		return new ChangeFeedCursor( this, last, last.end );
+	}
+
+
+	/**
+	 * Opens a cursor on the changes following the given CSN : the cursor starts at
+	 * the first change with a greater CSN, whether a change has this CSN or not.
+	 *
+	 * @param csn the CSN of the last change read by the consumer
+	 * @throws ChangeFeedTruncatedException if the changes following the CSN are no longer held
+	 */
+	public synchronized ChangeFeedCursor openCursor( String csn ) throws ChangeFeedTruncatedException
+	{
+		Csn from = new Csn( csn );
+		long fromHigh = from.getTimestamp();
+		long fromLow = EntryIdIndex.packCsn( from );
+
+		// The last segment starting at or before the CSN, the next ones only hold greater CSNs
+		int first = 0;
+
+		for ( int i = 0; i < segments.size(); i++ )
+		{
+			Segment segment = segments.get( i );
+
+			if ( ( segment.end > 0 ) && ( compare( segment.firstCsnHigh, segment.firstCsnLow, fromHigh, fromLow ) <= 0 ) )
+			{
+				first = i;
+			}
+		}
+
+		Segment firstSegment = segments.get( first );
+
+		if ( ( first == 0 ) && ( firstSegment.end > 0 )
+				&& ( compare( firstSegment.firstCsnHigh, firstSegment.firstCsnLow, fromHigh, fromLow ) > 0 )
+				&& ( firstSegment.number > 0 ) )
+		{
+			throw new ChangeFeedTruncatedException( "The changes following " + csn + " are no longer held" );
+		}
+
+		int end = firstSegment.end;
+
+		for ( int position = 0; position < end; position += firstSegment.getRecordLength( position ) )
+		{
+			if ( compare( firstSegment.getCsnHigh( position ), firstSegment.getCsnLow( position ), fromHigh, fromLow ) > 0 )
+			{
+				return new ChangeFeedCursor( this, firstSegment, position );
+			}
+		}
+
+		// The cursor moves to the next segment, if any, once this one is read
+		return new ChangeFeedCursor( this, firstSegment, end );
+	}
+
+
+	private static int compare( long high1, long low1, long high2, long low2 )
+	{
+		if ( high1 != high2 )
+		{
+			return high1 < high2 ? -1 : 1;
+		}
+
+		return low1 < low2 ? -1 : ( low1 == low2 ? 0 : 1 );
+	}
+
+
+	/**
+	 * @return the CSN of the oldest change held, null if the feed is empty
+	 */
+	public synchronized String getFirstCsn()
+	{
+		Segment segment = segments.get( 0 );
+
+		return segment.end == 0 ? null : EntryIdIndex.unpackCsn( segment.firstCsnHigh, segment.firstCsnLow ).toString();
+	}
+
+
+	/**
+	 * Forces the appended changes to disk
+	 */
+	public synchronized void flush()
+	{
+		if ( !closed )
+		{
+			segments.get( segments.size() - 1 ).buffer.force();
+		}
+	}
+
+
+	/**
+	 * Forces the changes to disk, and wakes up the waiting cursors
+	 */
+	public synchronized void close()
+	{
+		if ( closed )
+		{
+			return;
+		}
+
+		// The writes still running will not append their change anymore
+		runningWrites.clear();
+		writePendingChanges();
+		flush();
+		closed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Reads the changes of a {@link ChangeFeed} in the order they were appended. The
+ * cursor follows the feed as it grows : once the appended changes are read, the
+ * next ones can be waited for. A cursor is not meant to be shared between threads.
+ */
+public class ChangeFeedCursor implements Closeable
+{
+	/** The read feed */
+	private final ChangeFeed feed;
+
+	/** The segment being read */
+	private ChangeFeed.Segment segment;
+
+	/** The position of the next record in the segment */
+	private int position;
+
+	/** The CSN of the last read change */
+	private String lastCsn;
+
+	private boolean closed;
+
+
+	ChangeFeedCursor( ChangeFeed feed, ChangeFeed.Segment segment, int position )
+	{
+		this.feed = feed;
+		this.segment = segment;
+		this.position = position;
+	}
+
+
+	/**
+	 * Reads the next change, without waiting
+	 *
+	 * @return the change, null if all the appended changes have been read
+	 */
+	public ChangeRecord next()
+	{
+		if ( closed )
+		{
+			return null;
+		}
+
+		while ( position >= segment.getEnd() )
+		{
+			ChangeFeed.Segment next = feed.nextSegment( segment );
+
+			if ( next == null )
+			{
+				return null;
+			}
+
+			// The end of a segment is final once the next one exists, it may have grown meanwhile
+			if ( position < segment.getEnd() )
+			{
+				break;
+			}
+
+			segment = next;
+			position = 0;
+		}
+
+		ChangeRecord change = segment.read( position );
+		position += segment.getRecordLength( position );
+		lastCsn = change.getCsn();
+
+		return change;
+	}
+
+
+	/**
+	 * Reads the next change, waiting for it to be appended
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return the change, null if none was appended before the timeout
+	 */
+	public ChangeRecord next( long timeout, TimeUnit unit ) throws InterruptedException
+	{
+		ChangeRecord change = next();
+
+		if ( ( change == null ) && !closed && feed.awaitAppend( segment, position, timeout, unit ) )
+		{
+			change = next();
+		}
+
+		return change;
+	}
+
+
+	/**
+	 * @return the CSN of the last read change, the one to resume the feed from
+	 */
+	public String getLastCsn()
+	{
+		return lastCsn;
+	}
+
+
+	public void close()
+	{
+		closed = true;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An interceptor appending the successful writes to the {@link ChangeFeed}. It has
+ * to be placed after the normalization, so the recorded Dn are normalized, and
+ * before the operational attributes interceptor, so each write is begun in the
+ * feed before its CSN is generated. The adds and modifies are recorded with the
+ * entryCSN of the entry, the deletes and moves with a new CSN.
+ *
+ * A change which cannot be appended is logged, the write itself is not failed.
+ */
+public class ChangeFeedInterceptor extends BaseInterceptor
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( ChangeFeedInterceptor.class );
+
+	/** The name of this interceptor */
+	public static final String NAME = "changeFeedInterceptor";
+
+	/** The feed the changes are appended to */
+	private final ChangeFeed feed;
+
+	/** The nexus, reading the entries whose CSN is not in the operation context */
+	private PartitionNexus nexus;
+
+
+	public ChangeFeedInterceptor( ChangeFeed feed )
+	{
+		super( NAME );
+		this.feed = feed;
+	}
+
+
+	@Override
+	public void init( DirectoryService directoryService ) throws LdapException
+	{
+		super.init( directoryService );
+		nexus = directoryService.getPartitionNexus();
+	}
+
+
+	private static String getString( Entry entry, String attributeType )
+	{
+		Attribute attribute = entry == null ? null : entry.get( attributeType );
+
+		return attribute == null ? null : attribute.getString();
+	}
+
+
+	/**
+	 * Reads the entryUUID and entryCSN of an entry
+	 *
+	 * @return the entry, null if it does not exist
+	 */
+	private Entry fetch( OperationContext context, Dn dn ) throws LdapException
+	{
+		return nexus.lookup( new LookupOperationContext( context.getSession(), dn, SchemaConstants.ENTRY_UUID_AT,
+				SchemaConstants.ENTRY_CSN_AT ) );
+	}
+
+
+	private void append( ChangeRecord.Type type, Csn csn, String entryUuid, Dn dn, Dn newDn )
+	{
+		try
+		{
+			feed.append( type, csn, entryUuid, dn.getNormName(), newDn == null ? null : newDn.getNormName() );
+		}
+		catch ( IOException e )
+		{
+			LOG.error( "Cannot append the " + type + " of " + dn + " to the change feed", e );
+		}
+	}
+
+
+	/**
+	 * @return the entryCSN of the entry, a new CSN if it has none
+	 */
+	private Csn getCsn( Entry entry )
+	{
+		String csn = getString( entry, SchemaConstants.ENTRY_CSN_AT );
+
+		return csn == null ? directoryService.getCSN() : new Csn( csn );
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		long write = feed.begin();
+
+		try
+		{
+			next( addContext );
+
+			Entry entry = addContext.getEntry();
+			append( ChangeRecord.Type.ADD, getCsn( entry ), getString( entry, SchemaConstants.ENTRY_UUID_AT ),
+					addContext.getDn(), null );
+		}
+		finally
+		{
+			feed.end( write );
+		}
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		long write = feed.begin();
+
+		try
+		{
+			Entry entry = deleteContext.getEntry();
+
+			if ( entry == null )
+			{
+				entry = fetch( deleteContext, deleteContext.getDn() );
+			}
+
+			next( deleteContext );
+
+			append( ChangeRecord.Type.DELETE, directoryService.getCSN(),
+					getString( entry, SchemaConstants.ENTRY_UUID_AT ), deleteContext.getDn(), null );
+		}
+		finally
+		{
+			feed.end( write );
+		}
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		long write = feed.begin();
+
+		try
+		{
+			next( modifyContext );
+
+			Entry entry = modifyContext.getAlteredEntry();
+
+			if ( ( entry == null ) || !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+			{
+				entry = fetch( modifyContext, modifyContext.getDn() );
+			}
+
+			append( ChangeRecord.Type.MODIFY, getCsn( entry ), getString( entry, SchemaConstants.ENTRY_UUID_AT ),
+					modifyContext.getDn(), null );
+		}
+		finally
+		{
+			feed.end( write );
+		}
+	}
+
+
+	private void moved( OperationContext context, Dn oldDn, Dn newDn ) throws LdapException
+	{
+		Entry entry = fetch( context, newDn );
+
+		append( ChangeRecord.Type.MOVE, directoryService.getCSN(), getString( entry, SchemaConstants.ENTRY_UUID_AT ),
+				oldDn, newDn );
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		long write = feed.begin();
+
+		try
+		{
+			next( moveContext );
+			moved( moveContext, moveContext.getDn(), moveContext.getNewDn() );
+		}
+		finally
+		{
+			feed.end( write );
+		}
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		long write = feed.begin();
+
+		try
+		{
+			next( moveAndRenameContext );
+			moved( moveAndRenameContext, moveAndRenameContext.getDn(), moveAndRenameContext.getNewDn() );
+		}
+		finally
+		{
+			feed.end( write );
+		}
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		long write = feed.begin();
+
+		try
+		{
+			next( renameContext );
+			moved( renameContext, renameContext.getDn(), renameContext.getNewDn() );
+		}
+		finally
+		{
+			feed.end( write );
+		}
+	}
+}
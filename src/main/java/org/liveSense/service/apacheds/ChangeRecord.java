@@ -0,0 +1,103 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * A change of the {@link ChangeFeed}. The CSN of the change is the token a
+ * consumer resumes the feed from.
+ */
+public class ChangeRecord
+{
+	/** The kinds of change */
+	public enum Type
+	{
+		ADD, MODIFY, DELETE, MOVE
+	}
+
+	private final String csn;
+
+	private final Type type;
+
+	private final String entryUuid;
+
+	private final String dn;
+
+	private final String newDn;
+
+
+	public ChangeRecord( String csn, Type type, String entryUuid, String dn, String newDn )
+	{
+		this.csn = csn;
+		this.type = type;
+		this.entryUuid = entryUuid;
+		this.dn = dn;
+		this.newDn = newDn;
+	}
+
+
+	/**
+	 * @return the CSN of the change : the entryCSN of the written entry, or a new CSN for a delete
+	 */
+	public String getCsn()
+	{
+		return csn;
+	}
+
+
+	public Type getType()
+	{
+		return type;
+	}
+
+
+	/**
+	 * @return the entryUUID of the changed entry, null if it has none
+	 */
+	public String getEntryUuid()
+	{
+		return entryUuid;
+	}
+
+
+	/**
+	 * @return the normalized Dn of the entry before the change
+	 */
+	public String getDn()
+	{
+		return dn;
+	}
+
+
+	/**
+	 * @return the normalized Dn of a moved or renamed entry, null for the other changes
+	 */
+	public String getNewDn()
+	{
+		return newDn;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return csn + " " + type + " " + dn + ( newDn == null ? "" : " -> " + newDn );
+	}
+}
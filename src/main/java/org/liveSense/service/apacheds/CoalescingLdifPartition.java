@@ -0,0 +1,591 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.LdifUtils;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.partition.ldif.SingleFileLdifPartition;
+import org.apache.directory.server.xdbm.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A {@link SingleFileLdifPartition} which does not rewrite its LDIF file on every
+ * modification. The modifications are only marked, and the file is written once
+ * the flush delay has elapsed since the first pending modification, once the
+ * number of pending modifications reaches a threshold, on {@link #sync()} and
+ * when the partition is destroyed.
+ *
+ * The file is written into a temporary file which is then renamed over the
+ * partition file, so a crash never leaves a half-written configuration. The
+ * entries are collected while no modification runs, so the file always holds a
+ * consistent state of the partition.
+ */
+public class CoalescingLdifPartition extends SingleFileLdifPartition
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( CoalescingLdifPartition.class );
+
+	/** The default delay between the first pending modification and the flush, in milliseconds */
+	public static final long DEFAULT_FLUSH_DELAY = 1000;
+
+	/** The default number of pending modifications forcing a flush */
+	public static final int DEFAULT_MAX_PENDING_CHANGES = 100;
+
+	/** The delay between the first pending modification and the flush */
+	private long flushDelay = DEFAULT_FLUSH_DELAY;
+
+	/** The number of pending modifications forcing a flush */
+	private int maxPendingChanges = DEFAULT_MAX_PENDING_CHANGES;
+
+	/** The number of modifications not written yet */
+	private final AtomicInteger pendingChanges = new AtomicInteger();
+
+	/** The number of flushes done so far */
+	private final AtomicLong flushCount = new AtomicLong();
+
+	/** Tells if a flush is already scheduled */
+	private boolean flushScheduled;
+
+	/** The thread writing the file */
+	private ScheduledExecutorService flusher;
+
+	/** Serializes the flushes */
+	private final Object flushLock = new Object();
+
+	/** Shared by the modifications, taken exclusively while the entries to write are collected */
+	private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+	/** Orders the entries so that a parent is always written before its children */
+	private static final Comparator<Entry> PARENT_FIRST = new Comparator<Entry>()
+	{
+		public int compare( Entry e1, Entry e2 )
+		{
+			return e1.getDn().size() - e2.getDn().size();
+		}
+	};
+
+
+	/**
+	 * @param schemaManager the SchemaManager instance
+	 */
+	public CoalescingLdifPartition( SchemaManager schemaManager )
+	{
+		super( schemaManager );
+	}
+
+
+	/**
+	 * @param flushDelay the delay between the first pending modification and the flush, in milliseconds
+	 */
+	public void setFlushDelay( long flushDelay )
+	{
+		this.flushDelay = flushDelay;
+	}
+
+
+	/**
+	 * @param maxPendingChanges the number of pending modifications forcing a flush
+	 */
+	public void setMaxPendingChanges( int maxPendingChanges )
+	{
+		this.maxPendingChanges = maxPendingChanges;
+	}
+
+
+	/**
+	 * @return the number of times the LDIF file has been written
+	 */
+	public long getFlushCount()
+	{
+		return flushCount.get();
+	}
+
+
+	@Override
+	protected void doInit() throws Exception
+	{
+		restoreBackup();
+		super.doInit();
+
+		// The file is only written by the flusher from now on
+		super.setEnableRewriting( false );
+
+		flusher = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "apacheds-" + getId() + "-flusher" ) );
+	}
+
+
+	/**
+	 * The rewriting of the file is driven by the flush policy. Enabling it only
+	 * writes the pending modifications right away.
+	 */
+	@Override
+	public void setEnableRewriting( boolean enableRewriting ) throws LdapException
+	{
+		if ( enableRewriting && isInitialized() )
+		{
+			flush();
+		}
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		snapshotLock.readLock().lock();
+
+		try
+		{
+			super.add( addContext );
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+
+		changed();
+	}
+
+
+	@Override
+	public Entry delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		Entry deleted;
+		snapshotLock.readLock().lock();
+
+		try
+		{
+			deleted = super.delete( deleteContext );
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+
+		changed();
+
+		return deleted;
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		snapshotLock.readLock().lock();
+
+		try
+		{
+			super.modify( modifyContext );
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+
+		changed();
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		snapshotLock.readLock().lock();
+
+		try
+		{
+			super.move( moveContext );
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+
+		changed();
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		snapshotLock.readLock().lock();
+
+		try
+		{
+			super.moveAndRename( moveAndRenameContext );
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+
+		changed();
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		snapshotLock.readLock().lock();
+
+		try
+		{
+			super.rename( renameContext );
+		}
+		finally
+		{
+			snapshotLock.readLock().unlock();
+		}
+
+		changed();
+	}
+
+
+	@Override
+	public void sync() throws Exception
+	{
+		flush();
+	}
+
+
+	@Override
+	protected void doDestroy() throws Exception
+	{
+		try
+		{
+			if ( flusher != null )
+			{
+				flusher.shutdownNow();
+			}
+
+			flush();
+		}
+		finally
+		{
+			super.doDestroy();
+		}
+	}
+
+
+	/**
+	 * Records a modification and schedules the flush according to the policy
+	 */
+	private void changed()
+	{
+		if ( pendingChanges.incrementAndGet() >= maxPendingChanges )
+		{
+			scheduleFlush( 0 );
+		}
+		else
+		{
+			scheduleFlush( flushDelay );
+		}
+	}
+
+
+	private synchronized void scheduleFlush( long delay )
+	{
+		if ( ( flusher == null ) || flusher.isShutdown() )
+		{
+			return;
+		}
+
+		// An immediate flush is always scheduled, the pending delayed one will find nothing to write
+		if ( flushScheduled && ( delay > 0 ) )
+		{
+			return;
+		}
+
+		flushScheduled = true;
+
+		flusher.schedule( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch ( LdapException e )
+				{
+					LOG.error( "Cannot write the partition " + getId() + ", will retry on the next modification", e );
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS );
+	}
+
+
+	/**
+	 * Writes the partition data if there are pending modifications
+	 *
+	 * @throws LdapException if the file cannot be written
+	 */
+	public void flush() throws LdapException
+	{
+		synchronized ( flushLock )
+		{
+			synchronized ( this )
+			{
+				flushScheduled = false;
+			}
+
+			int pending = pendingChanges.getAndSet( 0 );
+
+			if ( pending == 0 )
+			{
+				return;
+			}
+
+			try
+			{
+				long startTime = System.currentTimeMillis();
+
+				writePartitionData();
+				flushCount.incrementAndGet();
+
+				LOG.debug( "partition {} written in {} milliseconds after {} modifications",
+						new Object[] { getId(), System.currentTimeMillis() - startTime, pending } );
+			}
+			catch ( Exception e )
+			{
+				// Keep the modifications pending so the next flush writes them
+				pendingChanges.addAndGet( pending );
+
+				throw new LdapException( "Cannot write the partition " + getId(), e );
+			}
+		}
+	}
+
+
+	/**
+	 * @return copies of all the entries, without their entryDN as SingleFileLdifPartition writes them
+	 */
+	private List<Entry> collectEntries() throws Exception
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		// The in-memory tables are not safe to walk while they are modified
+		snapshotLock.writeLock().lock();
+
+		try
+		{
+			Cursor<Tuple<String, Entry>> cursor = getMasterTable().cursor();
+
+			try
+			{
+				while ( cursor.next() )
+				{
+					Entry entry = fetch( cursor.get().getKey() ).clone();
+					entry.removeAttributes( SchemaConstants.ENTRY_DN_AT );
+					entries.add( entry );
+				}
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+		finally
+		{
+			snapshotLock.writeLock().unlock();
+		}
+
+		Collections.sort( entries, PARENT_FIRST );
+
+		return entries;
+	}
+
+
+	/**
+	 * @return the file the partition file is moved to while it is replaced, on the
+	 * systems which cannot rename over an existing file
+	 */
+	private File getBackupFile()
+	{
+		File partitionFile = new File( getPartitionPath() );
+
+		return new File( partitionFile.getParentFile(), partitionFile.getName() + ".bak" );
+	}
+
+
+	/**
+	 * Puts back the partition file when a crash happened while it was being replaced,
+	 * and removes the backup left over once it was replaced.
+	 */
+	private void restoreBackup() throws IOException
+	{
+		File partitionFile = new File( getPartitionPath() );
+		File backupFile = getBackupFile();
+
+		if ( !backupFile.exists() )
+		{
+			return;
+		}
+
+		if ( !partitionFile.exists() )
+		{
+			LOG.warn( "Restoring the partition file {} from {}", partitionFile, backupFile );
+
+			if ( !backupFile.renameTo( partitionFile ) )
+			{
+				throw new IOException( "Cannot rename " + backupFile + " to " + partitionFile );
+			}
+		}
+		else if ( !backupFile.delete() )
+		{
+			LOG.warn( "Cannot delete the backup {}", backupFile );
+		}
+	}
+
+
+	/**
+	 * Writes all the entries into a temporary file, and renames it over the partition file.
+	 */
+	private void writePartitionData() throws Exception
+	{
+		List<Entry> entries = collectEntries();
+
+		File partitionFile = new File( getPartitionPath() );
+		File tmpFile = new File( partitionFile.getParentFile(), partitionFile.getName() + ".tmp" );
+		FileOutputStream out = new FileOutputStream( tmpFile );
+
+		try
+		{
+			Writer writer = new BufferedWriter( new OutputStreamWriter( out, "UTF-8" ) );
+
+			for ( Entry entry : entries )
+			{
+				writer.write( LdifUtils.convertToLdif( entry ) );
+				writer.write( "\n" );
+			}
+
+			writer.flush();
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		// The rename replaces the partition file atomically on POSIX systems, other
+		// systems refuse to rename over an existing file : the former file is then
+		// kept as a backup until the new one is in place, and restored on the next
+		// start if a crash happens meanwhile
+		if ( !tmpFile.renameTo( partitionFile ) )
+		{
+			File backupFile = getBackupFile();
+
+			if ( ( backupFile.exists() && !backupFile.delete() ) || !partitionFile.renameTo( backupFile ) )
+			{
+				throw new IOException( "Cannot move " + partitionFile + " to " + backupFile );
+			}
+
+			if ( !tmpFile.renameTo( partitionFile ) )
+			{
+				backupFile.renameTo( partitionFile );
+
+				throw new IOException( "Cannot rename " + tmpFile + " to " + partitionFile );
+			}
+
+			if ( !backupFile.delete() )
+			{
+				LOG.warn( "Cannot delete the backup {}", backupFile );
+			}
+		}
+
+		syncDirectory( partitionFile.getParentFile() );
+	}
+
+
+	/**
+	 * Syncs a directory, so the rename of the partition file survives a crash. A
+	 * FileInputStream refuses to open a directory, only the channel returned by
+	 * FileChannel.open( path, READ ) can force it. That method is called through
+	 * reflection, like in {@link VirtualThreads}. The sync is skipped where a
+	 * directory cannot be opened, as on Windows.
+	 */
+	private static void syncDirectory( File directory )
+	{
+		try
+		{
+			Object path = File.class.getMethod( "toPath" ).invoke( directory );
+			Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+			Class<?> openOptionClass = Class.forName( "java.nio.file.OpenOption" );
+			Object options = Array.newInstance( openOptionClass, 1 );
+			Array.set( options, 0, Class.forName( "java.nio.file.StandardOpenOption" ).getField( "READ" ).get( null ) );
+			FileChannel channel = ( FileChannel ) FileChannel.class.getMethod( "open", pathClass, options.getClass() )
+					.invoke( null, path, options );
+
+			try
+			{
+				channel.force( true );
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch ( InvocationTargetException e )
+		{
+			LOG.debug( "Cannot open the directory {} to sync it", directory, e.getCause() );
+		}
+		catch ( IOException e )
+		{
+			LOG.debug( "Cannot sync the directory {}", directory, e );
+		}
+		catch ( Exception e )
+		{
+			// Before Java 7
+			LOG.debug( "Cannot sync the directory {}", directory, e );
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.server.config.beans.ExtendedOpHandlerBean;
+import org.apache.directory.server.config.beans.IndexBean;
+import org.apache.directory.server.config.beans.InterceptorBean;
+import org.apache.directory.server.config.beans.JdbmIndexBean;
+import org.apache.directory.server.config.beans.JdbmPartitionBean;
+import org.apache.directory.server.config.beans.KdcServerBean;
+import org.apache.directory.server.config.beans.LdapServerBean;
+import org.apache.directory.server.config.beans.NtpServerBean;
+import org.apache.directory.server.config.beans.PartitionBean;
+import org.apache.directory.server.config.beans.ReplConsumerBean;
+import org.apache.directory.server.config.beans.SaslMechHandlerBean;
+import org.apache.directory.server.config.beans.ServerBean;
+import org.apache.directory.server.config.beans.TransportBean;
+
+
+/**
+ * Compares the configuration beans read from the config partition, to find what
+ * has to be applied when the configuration is reloaded. Only the attributes used
+ * to build the running services are compared.
+ */
+final class ConfigurationBeans
+{
+	private ConfigurationBeans()
+	{
+	}
+
+
+	static boolean equal( Object oldValue, Object newValue )
+	{
+		return oldValue == null ? newValue == null : oldValue.equals( newValue );
+	}
+
+
+	/**
+	 * @return true if the partitions have the same suffix, context entry, indexes
+	 *         and cache settings
+	 */
+	static boolean samePartition( PartitionBean oldPartition, PartitionBean newPartition )
+	{
+		if ( ( oldPartition == null ) || ( newPartition == null ) )
+		{
+			return oldPartition == newPartition;
+		}
+
+		if ( ( oldPartition.getClass() != newPartition.getClass() )
+				|| ( oldPartition.isDisabled() != newPartition.isDisabled() )
+				|| !equal( oldPartition.getPartitionSuffix(), newPartition.getPartitionSuffix() )
+				|| !equal( oldPartition.getContextEntry(), newPartition.getContextEntry() )
+				|| ( oldPartition.isPartitionSyncOnWrite() != newPartition.isPartitionSyncOnWrite() ) )
+		{
+			return false;
+		}
+
+		if ( oldPartition instanceof JdbmPartitionBean )
+		{
+			JdbmPartitionBean oldJdbmPartition = ( JdbmPartitionBean ) oldPartition;
+			JdbmPartitionBean newJdbmPartition = ( JdbmPartitionBean ) newPartition;
+
+			if ( ( oldJdbmPartition.getPartitionCacheSize() != newJdbmPartition.getPartitionCacheSize() )
+					|| ( oldJdbmPartition.isJdbmPartitionOptimizerEnabled() != newJdbmPartition
+							.isJdbmPartitionOptimizerEnabled() ) )
+			{
+				return false;
+			}
+		}
+
+		return sameIndexes( oldPartition.getIndexes(), newPartition.getIndexes() );
+	}
+
+
+	private static boolean sameIndexes( List<IndexBean> oldIndexes, List<IndexBean> newIndexes )
+	{
+		Map<String, IndexBean> indexes = new HashMap<String, IndexBean>();
+
+		for ( IndexBean index : oldIndexes )
+		{
+			indexes.put( index.getIndexAttributeId(), index );
+		}
+
+		if ( indexes.size() != newIndexes.size() )
+		{
+			return false;
+		}
+
+		for ( IndexBean newIndex : newIndexes )
+		{
+			IndexBean oldIndex = indexes.get( newIndex.getIndexAttributeId() );
+
+			if ( ( oldIndex == null ) || ( oldIndex.getClass() != newIndex.getClass() )
+					|| ( oldIndex.isDisabled() != newIndex.isDisabled() ) )
+			{
+				return false;
+			}
+
+			if ( ( oldIndex instanceof JdbmIndexBean )
+					&& ( ( ( JdbmIndexBean ) oldIndex ).getIndexCacheSize() != ( ( JdbmIndexBean ) newIndex )
+							.getIndexCacheSize() ) )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * @return true if the same interceptors are enabled, in the same order
+	 */
+	static boolean sameInterceptors( List<InterceptorBean> oldInterceptors, List<InterceptorBean> newInterceptors )
+	{
+		Map<String, InterceptorBean> interceptors = new HashMap<String, InterceptorBean>();
+
+		for ( InterceptorBean interceptor : oldInterceptors )
+		{
+			interceptors.put( interceptor.getInterceptorId(), interceptor );
+		}
+
+		if ( interceptors.size() != newInterceptors.size() )
+		{
+			return false;
+		}
+
+		for ( InterceptorBean newInterceptor : newInterceptors )
+		{
+			InterceptorBean oldInterceptor = interceptors.get( newInterceptor.getInterceptorId() );
+
+			if ( ( oldInterceptor == null ) || ( oldInterceptor.isDisabled() != newInterceptor.isDisabled() )
+					|| ( oldInterceptor.getInterceptorOrder() != newInterceptor.getInterceptorOrder() )
+					|| !equal( oldInterceptor.getInterceptorClassName(), newInterceptor.getInterceptorClassName() ) )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Compares the LDAP server settings which need the server to be restarted. The
+	 * size and time limits and the confidentiality requirement are left out, they
+	 * are changed on the running server.
+	 *
+	 * @return true if the LDAP server does not have to be restarted
+	 */
+	static boolean sameLdapServer( LdapServerBean oldServer, LdapServerBean newServer )
+	{
+		if ( !sameServer( oldServer, newServer ) || ( oldServer == null ) )
+		{
+			return oldServer == newServer;
+		}
+
+		if ( !equal( oldServer.getSearchBaseDn(), newServer.getSearchBaseDn() )
+				|| !equal( oldServer.getLdapServerSaslHost(), newServer.getLdapServerSaslHost() )
+				|| !equal( oldServer.getLdapServerSaslPrincipal(), newServer.getLdapServerSaslPrincipal() )
+				|| !equal( oldServer.getLdapServerSaslRealms(), newServer.getLdapServerSaslRealms() )
+				|| !equal( oldServer.getLdapServerKeystoreFile(), newServer.getLdapServerKeystoreFile() )
+				|| !equal( oldServer.getLdapServerCertificatePassword(), newServer.getLdapServerCertificatePassword() )
+				|| !equal( oldServer.getReplReqHandler(), newServer.getReplReqHandler() ) )
+		{
+			return false;
+		}
+
+		return sameSaslMechHandlers( oldServer.getSaslMechHandlers(), newServer.getSaslMechHandlers() )
+				&& sameExtendedOps( oldServer.getExtendedOps(), newServer.getExtendedOps() )
+				&& sameReplConsumers( oldServer.getReplConsumers(), newServer.getReplConsumers() );
+	}
+
+
+	private static boolean sameSaslMechHandlers( List<SaslMechHandlerBean> oldHandlers,
+			List<SaslMechHandlerBean> newHandlers )
+	{
+		if ( ( oldHandlers == null ) || ( newHandlers == null ) || ( oldHandlers.size() != newHandlers.size() ) )
+		{
+			return oldHandlers == newHandlers;
+		}
+
+		for ( int i = 0; i < oldHandlers.size(); i++ )
+		{
+			SaslMechHandlerBean oldHandler = oldHandlers.get( i );
+			SaslMechHandlerBean newHandler = newHandlers.get( i );
+
+			if ( ( oldHandler.isDisabled() != newHandler.isDisabled() )
+					|| !equal( oldHandler.getSaslMechName(), newHandler.getSaslMechName() )
+					|| !equal( oldHandler.getSaslMechClassName(), newHandler.getSaslMechClassName() )
+					|| !equal( oldHandler.getNtlmMechProvider(), newHandler.getNtlmMechProvider() ) )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	private static boolean sameExtendedOps( List<ExtendedOpHandlerBean> oldHandlers,
+			List<ExtendedOpHandlerBean> newHandlers )
+	{
+		if ( ( oldHandlers == null ) || ( newHandlers == null ) || ( oldHandlers.size() != newHandlers.size() ) )
+		{
+			return oldHandlers == newHandlers;
+		}
+
+		for ( int i = 0; i < oldHandlers.size(); i++ )
+		{
+			ExtendedOpHandlerBean oldHandler = oldHandlers.get( i );
+			ExtendedOpHandlerBean newHandler = newHandlers.get( i );
+
+			if ( ( oldHandler.isDisabled() != newHandler.isDisabled() )
+					|| !equal( oldHandler.getExtendedOpId(), newHandler.getExtendedOpId() )
+					|| !equal( oldHandler.getExtendedOpHandlerClass(), newHandler.getExtendedOpHandlerClass() ) )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	private static boolean sameReplConsumers( List<ReplConsumerBean> oldConsumers, List<ReplConsumerBean> newConsumers )
+	{
+		if ( ( oldConsumers == null ) || ( newConsumers == null ) || ( oldConsumers.size() != newConsumers.size() ) )
+		{
+			return oldConsumers == newConsumers;
+		}
+
+		for ( int i = 0; i < oldConsumers.size(); i++ )
+		{
+			ReplConsumerBean oldConsumer = oldConsumers.get( i );
+			ReplConsumerBean newConsumer = newConsumers.get( i );
+
+			if ( ( oldConsumer.isDisabled() != newConsumer.isDisabled() )
+					|| !equal( oldConsumer.getReplConsumerId(), newConsumer.getReplConsumerId() )
+					|| !equal( oldConsumer.getSearchBaseDn(), newConsumer.getSearchBaseDn() )
+					|| !equal( oldConsumer.getReplProvHostName(), newConsumer.getReplProvHostName() )
+					|| ( oldConsumer.getReplProvPort() != newConsumer.getReplProvPort() )
+					|| !equal( oldConsumer.getReplUserDn(), newConsumer.getReplUserDn() ) )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * @return true if the NTP server does not have to be restarted
+	 */
+	static boolean sameNtpServer( NtpServerBean oldServer, NtpServerBean newServer )
+	{
+		return sameServer( oldServer, newServer );
+	}
+
+
+	/**
+	 * @return true if the Kerberos server does not have to be restarted
+	 */
+	static boolean sameKdcServer( KdcServerBean oldServer, KdcServerBean newServer )
+	{
+		if ( !sameServer( oldServer, newServer ) || ( oldServer == null ) )
+		{
+			return oldServer == newServer;
+		}
+
+		return equal( oldServer.getSearchBaseDn(), newServer.getSearchBaseDn() )
+				&& equal( oldServer.getKrbPrimaryRealm(), newServer.getKrbPrimaryRealm() )
+				&& equal( oldServer.getKrbKdcPrincipal(), newServer.getKrbKdcPrincipal() )
+				&& equal( oldServer.getKrbEncryptionTypes(), newServer.getKrbEncryptionTypes() )
+				&& ( oldServer.getKrbAllowableClockSkew() == newServer.getKrbAllowableClockSkew() )
+				&& ( oldServer.getKrbMaximumTicketLifetime() == newServer.getKrbMaximumTicketLifetime() )
+				&& ( oldServer.getKrbMaximumRenewableLifetime() == newServer.getKrbMaximumRenewableLifetime() )
+				&& ( oldServer.isKrbEmptyAddressesAllowed() == newServer.isKrbEmptyAddressesAllowed() )
+				&& ( oldServer.isKrbForwardableAllowed() == newServer.isKrbForwardableAllowed() )
+				&& ( oldServer.isKrbPaEncTimestampRequired() == newServer.isKrbPaEncTimestampRequired() )
+				&& ( oldServer.isKrbPostdatedAllowed() == newServer.isKrbPostdatedAllowed() )
+				&& ( oldServer.isKrbProxiableAllowed() == newServer.isKrbProxiableAllowed() )
+				&& ( oldServer.isKrbRenewableAllowed() == newServer.isKrbRenewableAllowed() )
+				&& ( oldServer.isKrbBodyChecksumVerified() == newServer.isKrbBodyChecksumVerified() );
+	}
+
+
+	/**
+	 * @return true if both servers are missing, or have the same id, state and transports
+	 */
+	private static boolean sameServer( ServerBean oldServer, ServerBean newServer )
+	{
+		if ( ( oldServer == null ) || ( newServer == null ) )
+		{
+			return oldServer == newServer;
+		}
+
+		return ( oldServer.isDisabled() == newServer.isDisabled() )
+				&& equal( oldServer.getServerId(), newServer.getServerId() )
+				&& sameTransports( oldServer.getTransports(), newServer.getTransports() );
+	}
+
+
+	private static boolean sameTransports( TransportBean[] oldTransports, TransportBean[] newTransports )
+	{
+		if ( ( oldTransports == null ) || ( newTransports == null ) || ( oldTransports.length != newTransports.length ) )
+		{
+			return oldTransports == newTransports;
+		}
+
+		for ( int i = 0; i < oldTransports.length; i++ )
+		{
+			TransportBean oldTransport = oldTransports[i];
+			TransportBean newTransport = newTransports[i];
+
+			if ( ( oldTransport.getClass() != newTransport.getClass() )
+					|| ( oldTransport.isDisabled() != newTransport.isDisabled() )
+					|| !equal( oldTransport.getTransportId(), newTransport.getTransportId() )
+					|| !equal( oldTransport.getTransportAddress(), newTransport.getTransportAddress() )
+					|| ( oldTransport.getSystemPort() != newTransport.getSystemPort() )
+					|| ( oldTransport.isTransportEnableSSL() != newTransport.isTransportEnableSSL() )
+					|| ( oldTransport.getTransportBackLog() != newTransport.getTransportBackLog() )
+					|| ( oldTransport.getTransportNbThreads() != newTransport.getTransportNbThreads() ) )
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+
+
+/**
+ * Gives the bundles running in the same JVM access to the embedded directory
+ * without going through the network : the requests are handed to the
+ * DirectoryService directly, and the returned entries are the ones read from the
+ * partitions, with no encoding.
+ *
+ * The sessions go through the same interceptor chain as the LDAP requests : the
+ * authentication, the access controls and the schema checks apply the same way.
+ */
+public interface DirectoryQueryService
+{
+	/**
+	 * Opens a session authenticated with a simple bind.
+	 *
+	 * @param bindDn the Dn of the user
+	 * @param password the password of the user
+	 * @return the session, to be closed once done
+	 * @throws LdapException if the credentials are invalid
+	 */
+	DirectorySession openSession( String bindDn, String password ) throws LdapException;
+
+
+	/**
+	 * Opens an anonymous session.
+	 *
+	 * @return the session, to be closed once done
+	 * @throws LdapException if the session cannot be opened
+	 */
+	DirectorySession openAnonymousSession() throws LdapException;
+
+
+	/**
+	 * Opens a cursor on the changes of the directory. The changes are not filtered by
+	 * the access controls, they hold the Dn of every written entry.
+	 *
+	 * @param csn the CSN of the last change read, null to read all the changes held
+	 * @return the cursor, following the changes as they are written
+	 * @throws ChangeFeedTruncatedException if the changes following the CSN are no longer held
+	 * @throws IOException if the change feed is disabled
+	 * @see ChangeFeed
+	 */
+	ChangeFeedCursor openChangeCursor( String csn ) throws IOException;
+}
@@ -0,0 +1,307 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.Closeable;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+
+
+/**
+ * A session of a co-located bundle on the embedded directory, opened by the
+ * {@link DirectoryQueryService}. Every operation is checked against the rights of
+ * the session principal. A session is not meant to be shared between threads.
+ */
+public class DirectorySession implements Closeable
+{
+	/** The session of the DirectoryService */
+	private final CoreSession session;
+
+	/** The SchemaManager the Dn and the filters are parsed with */
+	private final SchemaManager schemaManager;
+
+	/** The index of the entries by entryUUID and entryCSN, null if disabled */
+	private final EntryIdIndex entryIdIndex;
+
+	/** Runs the large subtree searches on several workers, null if disabled */
+	private final ParallelSearch parallelSearch;
+
+	/** The maximum number of entries returned by a search, 0 for no limit */
+	private long sizeLimit;
+
+	/** The maximum duration of a search in seconds, 0 for no limit */
+	private int timeLimit;
+
+
+	DirectorySession( CoreSession session, EntryIdIndex entryIdIndex, ParallelSearch parallelSearch )
+	{
+		this.session = session;
+		this.schemaManager = session.getDirectoryService().getSchemaManager();
+		this.entryIdIndex = entryIdIndex;
+		this.parallelSearch = parallelSearch;
+	}
+
+
+	/**
+	 * Limits the searches of this session. A search exceeding a limit returns the
+	 * entries found until then, then its iteration fails.
+	 *
+	 * @param sizeLimit the maximum number of entries returned by a search, 0 for no limit
+	 * @param timeLimit the maximum duration of a search in seconds, 0 for no limit
+	 */
+	public void setSearchLimits( long sizeLimit, int timeLimit )
+	{
+		this.sizeLimit = sizeLimit;
+		this.timeLimit = timeLimit;
+	}
+
+
+	/**
+	 * @return the Dn the session is authenticated as
+	 */
+	public Dn getPrincipalDn()
+	{
+		return session.getEffectivePrincipal().getDn();
+	}
+
+
+	/**
+	 * Reads an entry.
+	 *
+	 * @param dn the Dn of the entry
+	 * @param attributes the attributes to return, all the user attributes if none is given
+	 * @return the entry, null if it does not exist
+	 */
+	public Entry lookup( String dn, String... attributes ) throws LdapException
+	{
+		try
+		{
+			return session.lookup( new Dn( schemaManager, dn ), attributes );
+		}
+		catch ( LdapNoSuchObjectException e )
+		{
+			return null;
+		}
+	}
+
+
+	/**
+	 * Reads an entry by its entryUUID, through the {@link EntryIdIndex} when it is
+	 * enabled, or with a search of all the partitions otherwise.
+	 *
+	 * @param uuid the entryUUID of the entry
+	 * @param attributes the attributes to return, all the user attributes if none is given
+	 * @return the entry, null if it does not exist
+	 */
+	public Entry lookupByUuid( String uuid, String... attributes ) throws LdapException
+	{
+		if ( entryIdIndex == null )
+		{
+			return searchFirst( "(entryUUID=" + FilterEncoder.encodeFilterValue( uuid ) + ")", attributes );
+		}
+
+		String dn;
+
+		try
+		{
+			dn = entryIdIndex.getDn( uuid );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			// Not a UUID
+			return null;
+		}
+
+		return dn == null ? null : lookup( dn, attributes );
+	}
+
+
+	/**
+	 * Reads an entry by its entryCSN, through the {@link EntryIdIndex} when it is
+	 * enabled, or with a search of all the partitions otherwise.
+	 *
+	 * @param csn the entryCSN of the entry
+	 * @param attributes the attributes to return, all the user attributes if none is given
+	 * @return the entry, null if no entry has this CSN
+	 */
+	public Entry lookupByCsn( String csn, String... attributes ) throws LdapException
+	{
+		if ( !Csn.isValid( csn ) )
+		{
+			return null;
+		}
+
+		if ( entryIdIndex == null )
+		{
+			return searchFirst( "(entryCSN=" + FilterEncoder.encodeFilterValue( csn ) + ")", attributes );
+		}
+
+		String dn = entryIdIndex.getDnByCsn( csn );
+
+		return dn == null ? null : lookup( dn, attributes );
+	}
+
+
+	/**
+	 * @return the first entry matching the filter in all the partitions, null if none does
+	 */
+	private Entry searchFirst( String filter, String... attributes ) throws LdapException
+	{
+		SearchResult result = search( "", SearchScope.SUBTREE, filter, attributes );
+
+		try
+		{
+			for ( Entry entry : result )
+			{
+				return entry;
+			}
+
+			return null;
+		}
+		finally
+		{
+			result.close();
+		}
+	}
+
+
+	/**
+	 * Tells if an entry exists.
+	 *
+	 * @param dn the Dn of the entry
+	 */
+	public boolean exists( String dn ) throws LdapException
+	{
+		return session.exists( new Dn( schemaManager, dn ) );
+	}
+
+
+	/**
+	 * Searches the entries. The search is evaluated when this method is called, but
+	 * the entries are only read from the partition as the result is iterated. When the
+	 * parallel searches are enabled, the large subtree searches are split between
+	 * several workers, see {@link ParallelSearch}. The aliases are not dereferenced.
+	 *
+	 * @param base the Dn of the search base
+	 * @param scope the search scope
+	 * @param filter the LDAP filter
+	 * @param attributes the attributes to return, all the user attributes if none is given
+	 * @return the entries, to be closed if not iterated until the end
+	 */
+	public SearchResult search( String base, SearchScope scope, String filter, String... attributes )
+		throws LdapException
+	{
+		return search( base, scope, filter, AliasDerefMode.NEVER_DEREF_ALIASES, attributes );
+	}
+
+
+	/**
+	 * Searches the entries, dereferencing the aliases as requested. See
+	 * {@link #search(String, SearchScope, String, String...)}.
+	 *
+	 * @param base the Dn of the search base
+	 * @param scope the search scope
+	 * @param filter the LDAP filter
+	 * @param derefMode how the aliases are dereferenced
+	 * @param attributes the attributes to return, all the user attributes if none is given
+	 * @return the entries, to be closed if not iterated until the end
+	 */
+	public SearchResult search( String base, SearchScope scope, String filter, AliasDerefMode derefMode,
+			String... attributes ) throws LdapException
+	{
+		ExprNode filterNode;
+
+		try
+		{
+			filterNode = FilterParser.parse( schemaManager, filter );
+		}
+		catch ( Exception e )
+		{
+			throw new LdapException( "Invalid filter " + filter, e );
+		}
+
+		Dn baseDn = new Dn( schemaManager, base );
+
+		if ( ( parallelSearch != null ) && ( scope == SearchScope.SUBTREE ) )
+		{
+			return parallelSearch.search( session, baseDn, filterNode, derefMode, sizeLimit, timeLimit, attributes );
+		}
+
+		EntryFilteringCursor cursor = session.search( baseDn, scope, filterNode, derefMode, attributes );
+
+		return new SearchResult( cursor, sizeLimit, timeLimit );
+	}
+
+
+	/**
+	 * Compares a value with the one of an entry.
+	 *
+	 * @param dn the Dn of the entry
+	 * @param attribute the attribute to compare
+	 * @param value the expected value
+	 * @return true if the entry holds the value
+	 */
+	public boolean compare( String dn, String attribute, String value ) throws LdapException
+	{
+		return session.compare( new Dn( schemaManager, dn ), attribute, value );
+	}
+
+
+	/**
+	 * Modifies an entry.
+	 *
+	 * @param dn the Dn of the entry
+	 * @param modifications the modifications to apply
+	 */
+	public void modify( String dn, Modification... modifications ) throws LdapException
+	{
+		session.modify( new Dn( schemaManager, dn ), modifications );
+	}
+
+
+	/**
+	 * Closes the session
+	 */
+	public void close()
+	{
+		try
+		{
+			session.unbind();
+		}
+		catch ( LdapException e )
+		{
+			// Nothing to release
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+
+
+/**
+ * An interceptor telling the {@link SyncScheduler} about every successful write.
+ */
+public class DurabilityInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "durabilityInterceptor";
+
+	/** The scheduler syncing the writes */
+	private final SyncScheduler syncScheduler;
+
+
+	public DurabilityInterceptor( SyncScheduler syncScheduler )
+	{
+		super( NAME );
+		this.syncScheduler = syncScheduler;
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		next( addContext );
+		syncScheduler.writeCompleted();
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		next( deleteContext );
+		syncScheduler.writeCompleted();
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		next( modifyContext );
+		syncScheduler.writeCompleted();
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		next( moveContext );
+		syncScheduler.writeCompleted();
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		next( moveAndRenameContext );
+		syncScheduler.writeCompleted();
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		next( renameContext );
+		syncScheduler.writeCompleted();
+	}
+}
@@ -2,24 +2,248 @@ package org.liveSense.service.apacheds;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.directory.server.core.api.CacheService;
 import org.apache.directory.server.core.api.InstanceLayout;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyUnbounded;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Component(label="%ds.service.name", description="%ds.service.description", metatype=true)
 public class EmbeddedDirectoryServerActivator {
 
+	public static final boolean DEFAULT_PARALLEL_STARTUP = true;
+	@Property(boolValue=DEFAULT_PARALLEL_STARTUP)
+	public static final String PROP_PARALLEL_STARTUP = "ds.startup.parallel";
+
+	public static final boolean DEFAULT_SCHEMA_SNAPSHOT = true;
+	@Property(boolValue=DEFAULT_SCHEMA_SNAPSHOT)
+	public static final String PROP_SCHEMA_SNAPSHOT = "ds.schema.snapshot";
+
+	public static final boolean DEFAULT_CONFIG_COALESCING = true;
+	@Property(boolValue=DEFAULT_CONFIG_COALESCING)
+	public static final String PROP_CONFIG_COALESCING = "ds.config.coalescing";
+
+	public static final long DEFAULT_CONFIG_FLUSH_DELAY = CoalescingLdifPartition.DEFAULT_FLUSH_DELAY;
+	@Property(longValue=DEFAULT_CONFIG_FLUSH_DELAY)
+	public static final String PROP_CONFIG_FLUSH_DELAY = "ds.config.flush.delay";
+
+	public static final int DEFAULT_CONFIG_FLUSH_CHANGES = CoalescingLdifPartition.DEFAULT_MAX_PENDING_CHANGES;
+	@Property(intValue=DEFAULT_CONFIG_FLUSH_CHANGES)
+	public static final String PROP_CONFIG_FLUSH_CHANGES = "ds.config.flush.changes";
+
+	@Property(unbounded=PropertyUnbounded.ARRAY)
+	public static final String PROP_CACHE_SETTINGS = "ds.cache.settings";
+
+	@Property(unbounded=PropertyUnbounded.ARRAY)
+	public static final String PROP_SEARCH_CACHE = "ds.search.cache";
+
+	@Property(unbounded=PropertyUnbounded.ARRAY)
+	public static final String PROP_PARTITION_BACKENDS = "ds.partition.backends";
+
+	public static final int DEFAULT_SEARCH_PARALLELISM = 0;
+	@Property(intValue=DEFAULT_SEARCH_PARALLELISM)
+	public static final String PROP_SEARCH_PARALLELISM = "ds.search.parallelism";
+
+	public static final int DEFAULT_SEARCH_CUTOFF = ParallelSearch.DEFAULT_CUTOFF;
+	@Property(intValue=DEFAULT_SEARCH_CUTOFF)
+	public static final String PROP_SEARCH_CUTOFF = "ds.search.parallel.cutoff";
+
+	public static final boolean DEFAULT_CHANGE_FEED = false;
+	@Property(boolValue=DEFAULT_CHANGE_FEED)
+	public static final String PROP_CHANGE_FEED = "ds.changefeed.enabled";
+
+	public static final int DEFAULT_CHANGE_FEED_SEGMENT_SIZE = ChangeFeed.DEFAULT_SEGMENT_SIZE / (1024 * 1024);
+	@Property(intValue=DEFAULT_CHANGE_FEED_SEGMENT_SIZE)
+	public static final String PROP_CHANGE_FEED_SEGMENT_SIZE = "ds.changefeed.segment.size";
+
+	public static final int DEFAULT_CHANGE_FEED_SEGMENTS = ChangeFeed.DEFAULT_MAX_SEGMENTS;
+	@Property(intValue=DEFAULT_CHANGE_FEED_SEGMENTS)
+	public static final String PROP_CHANGE_FEED_SEGMENTS = "ds.changefeed.segments";
+
+	public static final long DEFAULT_BIND_CACHE_TTL = 0;
+	@Property(longValue=DEFAULT_BIND_CACHE_TTL)
+	public static final String PROP_BIND_CACHE_TTL = "ds.bind.cache.ttl";
+
+	public static final int DEFAULT_BIND_HASH_CONCURRENCY = 0;
+	@Property(intValue=DEFAULT_BIND_HASH_CONCURRENCY)
+	public static final String PROP_BIND_HASH_CONCURRENCY = "ds.bind.hash.concurrency";
+
+	public static final int DEFAULT_KDC_PRINCIPAL_CACHE = 0;
+	@Property(intValue=DEFAULT_KDC_PRINCIPAL_CACHE)
+	public static final String PROP_KDC_PRINCIPAL_CACHE = "kerberos.principal.cache.size";
+
+	public static final long DEFAULT_SYNC_INTERVAL = SyncScheduler.DEFAULT_SYNC_INTERVAL;
+	@Property(longValue=DEFAULT_SYNC_INTERVAL)
+	public static final String PROP_SYNC_INTERVAL = "ds.sync.interval";
+
+	public static final int DEFAULT_SYNC_WRITES = SyncScheduler.DEFAULT_SYNC_WRITES;
+	@Property(intValue=DEFAULT_SYNC_WRITES)
+	public static final String PROP_SYNC_WRITES = "ds.sync.writes";
+
+	public static final boolean DEFAULT_METRICS_ENABLED = true;
+	@Property(boolValue=DEFAULT_METRICS_ENABLED)
+	public static final String PROP_METRICS_ENABLED = "ds.metrics.enabled";
+
+	public static final boolean DEFAULT_ENTRY_ID_INDEX = false;
+	@Property(boolValue=DEFAULT_ENTRY_ID_INDEX)
+	public static final String PROP_ENTRY_ID_INDEX = "ds.entry.id.index";
+
+	/** The value of the transport settings keeping the directory configuration, or disabling a limit */
+	public static final int DEFAULT_TRANSPORT_SETTING = 0;
+	/** The requests are handled by platform threads unless virtual threads are asked for */
+	public static final boolean DEFAULT_VIRTUAL_THREADS = false;
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAP_PORT = "ldap.service.port";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAP_IO_THREADS = "ldap.service.io.threads";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAP_BACKLOG = "ldap.service.backlog";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAP_WORKERS = "ldap.service.workers";
+	@Property(boolValue=DEFAULT_VIRTUAL_THREADS)
+	public static final String PROP_LDAP_VIRTUAL_THREADS = "ldap.service.virtual.threads";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAP_MAX_CONNECTIONS = "ldap.service.max.connections";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAP_MAX_PENDING = "ldap.service.max.pending";
+
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAPS_PORT = "ldaps.service.port";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAPS_IO_THREADS = "ldaps.service.io.threads";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAPS_BACKLOG = "ldaps.service.backlog";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAPS_WORKERS = "ldaps.service.workers";
+	@Property(boolValue=DEFAULT_VIRTUAL_THREADS)
+	public static final String PROP_LDAPS_VIRTUAL_THREADS = "ldaps.service.virtual.threads";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAPS_MAX_CONNECTIONS = "ldaps.service.max.connections";
+	@Property(intValue=DEFAULT_TRANSPORT_SETTING)
+	public static final String PROP_LDAPS_MAX_PENDING = "ldaps.service.max.pending";
+
+	public static final boolean DEFAULT_LDAP_ENABLED = true;
+	@Property(boolValue=DEFAULT_LDAP_ENABLED)
+	public static final String PROP_LDAP_ENABLED = "ldap.service.enabled";
+
+	public static final boolean DEFAULT_RECORDING = false;
+	@Property(boolValue=DEFAULT_RECORDING)
+	public static final String PROP_RECORDING = "ldap.recorder.enabled";
+
+	public static final int DEFAULT_RECORDING_BUFFER_SIZE = OperationRecorder.DEFAULT_BUFFER_SIZE / (1024 * 1024);
+	@Property(intValue=DEFAULT_RECORDING_BUFFER_SIZE)
+	public static final String PROP_RECORDING_BUFFER_SIZE = "ldap.recorder.buffer.size";
+
+	public static final long DEFAULT_RECORDING_MAX_SIZE = OperationRecorder.DEFAULT_MAX_FILE_SIZE / (1024 * 1024);
+	@Property(longValue=DEFAULT_RECORDING_MAX_SIZE)
+	public static final String PROP_RECORDING_MAX_SIZE = "ldap.recorder.max.size";
+
+	public static final String DEFAULT_NTP_MODE = "eager";
+	@Property(value=DEFAULT_NTP_MODE)
+	public static final String PROP_NTP_MODE = "ntp.service.mode";
+
+	public static final String DEFAULT_KERBEROS_MODE = "eager";
+	@Property(value=DEFAULT_KERBEROS_MODE)
+	public static final String PROP_KERBEROS_MODE = "kerberos.service.mode";
+
+	public static final String DEFAULT_REPLICATION_ROLE = "standalone";
+	@Property(value=DEFAULT_REPLICATION_ROLE)
+	public static final String PROP_REPLICATION_ROLE = "ds.replication.role";
+
+	public static final int DEFAULT_REPLICA_ID = 1;
+	@Property(intValue=DEFAULT_REPLICA_ID)
+	public static final String PROP_REPLICA_ID = "ds.replication.replica.id";
+
+	public static final String DEFAULT_REPLICATION_PROVIDER = "ldap://localhost:10389";
+	@Property(value=DEFAULT_REPLICATION_PROVIDER)
+	public static final String PROP_REPLICATION_PROVIDER = "ds.replication.provider.url";
+
+	public static final String DEFAULT_REPLICATION_BIND_DN = "uid=admin,ou=system";
+	@Property(value=DEFAULT_REPLICATION_BIND_DN)
+	public static final String PROP_REPLICATION_BIND_DN = "ds.replication.bind.dn";
+
+	@Property(value="")
+	public static final String PROP_REPLICATION_BIND_PASSWORD = "ds.replication.bind.password";
+
+	@Property(unbounded=PropertyUnbounded.ARRAY)
+	public static final String PROP_REPLICATION_BASES = "ds.replication.bases";
+
+	public static final long DEFAULT_REPLICATION_REFRESH = ReplicationSettings.DEFAULT_REFRESH_INTERVAL;
+	@Property(longValue=DEFAULT_REPLICATION_REFRESH)
+	public static final String PROP_REPLICATION_REFRESH = "ds.replication.refresh.interval";
+
+	/** The event posted once the directory service is started and the LDAP server accepts connections */
+	public static final String TOPIC_STARTED = "org/liveSense/service/apacheds/STARTED";
+	/** The event posted when the directory service cannot be started */
+	public static final String TOPIC_FAILED = "org/liveSense/service/apacheds/FAILED";
+	/** The event property holding the duration of each startup step */
+	public static final String EVENT_STARTUP_TIMINGS = "startup.timings";
+	/** The service property set on the registered ApacheDsService once it is ready */
+	public static final String PROP_READY = "ds.ready";
+
+	/** The properties only read on activation, the component is activated again when one of them changes */
+	private static final String[] RESTART_PROPERTIES = {PROP_PARALLEL_STARTUP, PROP_SCHEMA_SNAPSHOT,
+			PROP_CONFIG_COALESCING, PROP_CONFIG_FLUSH_DELAY, PROP_CONFIG_FLUSH_CHANGES, PROP_PARTITION_BACKENDS,
+			PROP_SEARCH_PARALLELISM, PROP_SEARCH_CUTOFF, PROP_CHANGE_FEED, PROP_CHANGE_FEED_SEGMENT_SIZE,
+			PROP_CHANGE_FEED_SEGMENTS, PROP_METRICS_ENABLED, PROP_ENTRY_ID_INDEX, PROP_REPLICATION_ROLE,
+			PROP_REPLICA_ID, PROP_REPLICATION_PROVIDER, PROP_REPLICATION_BIND_DN, PROP_REPLICATION_BIND_PASSWORD,
+			PROP_REPLICATION_BASES, PROP_REPLICATION_REFRESH};
+
+	/** How long the deactivation waits for a cancelled startup, in seconds */
+	private static final long STARTUP_CANCEL_TIMEOUT = 60;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	private volatile EventAdmin eventAdmin;
+
 	/** The directory service */
 	public CacheService cacheService;
 	public ApacheDsService service;
 	ServiceRegistration serviceReg;
+	ServiceRegistration metricsReg;
+
+	/** The context of the component, to have it activated again */
+	private ComponentContext componentContext;
+	/** The properties the component was activated with */
+	private Map<String, ?> activationProperties;
+
+	/** The executor running the startup in the background */
+	private ExecutorService startupExecutor;
+	private Future<?> startupFuture;
+	private volatile boolean deactivated;
+
+	/** Tells if the startup is over, the configuration changes are only applied from then on */
+	private boolean started;
+	/** The latest configuration not applied yet */
+	private Map<String, ?> pendingProperties;
+	/** Applies the configuration changes one at a time */
+	private final Object configurationLock = new Object();
 
 	static Logger log = LoggerFactory.getLogger(EmbeddedDirectoryServerActivator.class);
 
@@ -39,63 +263,403 @@ public class EmbeddedDirectoryServerActivator {
 		return dsHome.getAbsolutePath();
 	}
 	/**
-	 * Creates a new instance of ApacheDsService. It initializes the directory
-	 * service.
-	 * 
-	 * @throws Exception
-	 *             If something went wrong
+	 * Creates a new instance of ApacheDsService. The directory service is started
+	 * in the background, the ApacheDsService is registered and the
+	 * {@link #TOPIC_STARTED} event is posted once the LDAP server is accepting
+	 * connections.
 	 */
 	@Activate
-	public void activate(BundleContext context) {
+	public void activate(final BundleContext context, ComponentContext componentContext, Map<String, ?> properties) {
+		this.componentContext = componentContext;
+		this.activationProperties = properties;
 
-		File workDir;
+		final File workDir;
 		try {
-			workDir = new File(getDsHome(context));
-			log.info("ApacheDsService startup: schema.resource.location ="+context.getBundle().getSymbolicName()+"("+context.getBundle().getBundleId()+") - working directory: "+workDir.getAbsolutePath());
-
-			cacheService = new CacheService();
-			service = new ApacheDsService();
-			service.start(new InstanceLayout(workDir), cacheService);
-			serviceReg = context.registerService(ApacheDsService.class.getName(), service, null);
-
+			String dsHome = getDsHome(context);
+			if (dsHome == null) {
+				throw new IOException("Cannot create ApacheDS home");
+			}
+			workDir = new File(dsHome);
 		} catch (IOException e) {
 			log.error("Error activating Apache Directory Service", e);
+			postEvent(TOPIC_FAILED, e);
+			return;
+		}
+		log.info("ApacheDsService startup: schema.resource.location ="+context.getBundle().getSymbolicName()+"("+context.getBundle().getBundleId()+") - working directory: "+workDir.getAbsolutePath());
+
+		service = new ApacheDsService();
+		service.setParallelStartup(PropertiesUtil.toBoolean(properties.get(PROP_PARALLEL_STARTUP), DEFAULT_PARALLEL_STARTUP));
+		service.setUseSchemaSnapshot(PropertiesUtil.toBoolean(properties.get(PROP_SCHEMA_SNAPSHOT), DEFAULT_SCHEMA_SNAPSHOT));
+		service.setMetricsEnabled(PropertiesUtil.toBoolean(properties.get(PROP_METRICS_ENABLED), DEFAULT_METRICS_ENABLED));
+		service.setEntryIdIndexEnabled(PropertiesUtil.toBoolean(properties.get(PROP_ENTRY_ID_INDEX), DEFAULT_ENTRY_ID_INDEX));
+		service.setParallelSearch(PropertiesUtil.toInteger(properties.get(PROP_SEARCH_PARALLELISM), DEFAULT_SEARCH_PARALLELISM),
+				PropertiesUtil.toInteger(properties.get(PROP_SEARCH_CUTOFF), DEFAULT_SEARCH_CUTOFF));
+		service.setChangeFeed(PropertiesUtil.toBoolean(properties.get(PROP_CHANGE_FEED), DEFAULT_CHANGE_FEED),
+				PropertiesUtil.toInteger(properties.get(PROP_CHANGE_FEED_SEGMENT_SIZE), DEFAULT_CHANGE_FEED_SEGMENT_SIZE) * 1024 * 1024,
+				PropertiesUtil.toInteger(properties.get(PROP_CHANGE_FEED_SEGMENTS), DEFAULT_CHANGE_FEED_SEGMENTS));
+		service.setConfigWriteCoalescing(PropertiesUtil.toBoolean(properties.get(PROP_CONFIG_COALESCING), DEFAULT_CONFIG_COALESCING),
+				PropertiesUtil.toLong(properties.get(PROP_CONFIG_FLUSH_DELAY), DEFAULT_CONFIG_FLUSH_DELAY),
+				PropertiesUtil.toInteger(properties.get(PROP_CONFIG_FLUSH_CHANGES), DEFAULT_CONFIG_FLUSH_CHANGES));
+
+		List<PartitionBackendSettings> partitionBackends = new ArrayList<PartitionBackendSettings>();
+		for (String settings : PropertiesUtil.toStringArray(properties.get(PROP_PARTITION_BACKENDS), new String[0])) {
+			if (settings.trim().length() == 0) {
+				continue;
+			}
+			try {
+				partitionBackends.add(PartitionBackendSettings.parse(settings));
+			} catch (IllegalArgumentException e) {
+				log.error("Ignoring invalid partition settings " + settings, e);
+			}
+		}
+		service.setPartitionBackends(partitionBackends);
+
+		try {
+			service.setReplicationSettings(toReplicationSettings(properties));
+		} catch (IllegalArgumentException e) {
+			log.error("Ignoring invalid replication settings, the service is not replicated", e);
+		}
+
+		applyRuntimeConfiguration(properties);
+
+		synchronized (this) {
+			deactivated = false;
+			started = false;
+			pendingProperties = null;
+		}
+		startupExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("apacheds-activation"));
+		startupFuture = startupExecutor.submit(new Runnable() {
+			public void run() {
+				startService(context, workDir);
+			}
+		});
+	}
+
+
+	/**
+	 * Reads the replication role of the node.
+	 */
+	private static ReplicationSettings toReplicationSettings(Map<String, ?> properties) {
+		ReplicationSettings settings = new ReplicationSettings();
+		settings.setRole(ReplicationSettings.Role.parse(PropertiesUtil.toString(properties.get(PROP_REPLICATION_ROLE), DEFAULT_REPLICATION_ROLE)));
+		settings.setReplicaId(PropertiesUtil.toInteger(properties.get(PROP_REPLICA_ID), DEFAULT_REPLICA_ID));
+		settings.setProviderUrl(PropertiesUtil.toString(properties.get(PROP_REPLICATION_PROVIDER), DEFAULT_REPLICATION_PROVIDER));
+		settings.setBindDn(PropertiesUtil.toString(properties.get(PROP_REPLICATION_BIND_DN), DEFAULT_REPLICATION_BIND_DN));
+		settings.setBindPassword(PropertiesUtil.toString(properties.get(PROP_REPLICATION_BIND_PASSWORD), ""));
+		settings.setRefreshInterval(PropertiesUtil.toLong(properties.get(PROP_REPLICATION_REFRESH), DEFAULT_REPLICATION_REFRESH));
+
+		List<String> bases = new ArrayList<String>();
+		for (String base : PropertiesUtil.toStringArray(properties.get(PROP_REPLICATION_BASES), new String[0])) {
+			if (base.trim().length() > 0) {
+				bases.add(base.trim());
+			}
+		}
+		settings.setBases(bases);
+		return settings;
+	}
+
+
+	/**
+	 * Reads the network settings of a transport.
+	 */
+	private static LdapTransportSettings toTransportSettings(Map<String, ?> properties, String port, String ioThreads,
+			String backlog, String workers, String virtualThreads, String maxConnections, String maxPending) {
+		LdapTransportSettings settings = new LdapTransportSettings();
+		settings.setPort(PropertiesUtil.toInteger(properties.get(port), DEFAULT_TRANSPORT_SETTING));
+		settings.setIoThreads(PropertiesUtil.toInteger(properties.get(ioThreads), DEFAULT_TRANSPORT_SETTING));
+		settings.setBacklog(PropertiesUtil.toInteger(properties.get(backlog), DEFAULT_TRANSPORT_SETTING));
+		settings.setWorkers(PropertiesUtil.toInteger(properties.get(workers), DEFAULT_TRANSPORT_SETTING));
+		settings.setVirtualThreads(PropertiesUtil.toBoolean(properties.get(virtualThreads), DEFAULT_VIRTUAL_THREADS));
+		settings.setMaxConnections(PropertiesUtil.toInteger(properties.get(maxConnections), DEFAULT_TRANSPORT_SETTING));
+		settings.setMaxPendingRequests(PropertiesUtil.toInteger(properties.get(maxPending), DEFAULT_TRANSPORT_SETTING));
+		return settings;
+	}
+
+
+	/**
+	 * Applies the configuration changes which do not need the directory service to be restarted,
+	 * and the changes made to the config partition since the service was started.
+	 * The changes made while the service is starting are applied once it is started.
+	 * A change of a property only read on activation has the component activated again.
+	 */
+	@Modified
+	public void modified(Map<String, ?> properties) {
+		if (restartPropertiesChanged(properties)) {
+			log.info("A setting read on startup changed, restarting Apache Directory Service");
+			reactivate();
+			return;
+		}
+
+		synchronized (this) {
+			pendingProperties = properties;
+			if (!started) {
+				// Applied by the startup once it is over
+				log.info("Apache Directory Service is still starting, the configuration change is applied once it is started");
+				return;
+			}
+		}
+		applyPendingConfiguration();
+	}
+
+
+	private boolean restartPropertiesChanged(Map<String, ?> properties) {
+		for (String property : RESTART_PROPERTIES) {
+			// The values are compared as strings, as their type depends on where the configuration comes from
+			if (!Arrays.deepToString(new Object[] {activationProperties.get(property)}).equals(
+					Arrays.deepToString(new Object[] {properties.get(property)}))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Has SCR deactivate the component and activate it with the current configuration.
+	 * Both requests are handled asynchronously, in order.
+	 */
+	private void reactivate() {
+		String name = (String) componentContext.getProperties().get(ComponentConstants.COMPONENT_NAME);
+		componentContext.disableComponent(name);
+		componentContext.enableComponent(name);
+	}
+
+
+	/**
+	 * Applies the latest configuration not applied yet, if any.
+	 */
+	private void applyPendingConfiguration() {
+		synchronized (configurationLock) {
+			Map<String, ?> properties;
+			synchronized (this) {
+				properties = pendingProperties;
+				pendingProperties = null;
+				if (properties == null || deactivated) {
+					return;
+				}
+			}
+			applyRuntimeConfiguration(properties);
+
+			try {
+				service.reloadConfiguration();
+			} catch (Exception e) {
+				log.error("Error reloading the directory configuration", e);
+			}
+		}
+	}
+
+
+	/**
+	 * Configures the directory service with the settings which can be changed while it is running.
+	 */
+	void applyRuntimeConfiguration(Map<String, ?> properties) {
+		List<CacheSettings> cacheSettings = new ArrayList<CacheSettings>();
+		for (String settings : PropertiesUtil.toStringArray(properties.get(PROP_CACHE_SETTINGS), new String[0])) {
+			if (settings.trim().length() == 0) {
+				continue;
+			}
+			try {
+				cacheSettings.add(CacheSettings.parse(settings));
+			} catch (IllegalArgumentException e) {
+				log.error("Ignoring invalid cache settings " + settings, e);
+			}
+		}
+		service.setCacheSettings(cacheSettings);
+
+		List<SearchCacheSettings> searchCacheSettings = new ArrayList<SearchCacheSettings>();
+		for (String settings : PropertiesUtil.toStringArray(properties.get(PROP_SEARCH_CACHE), new String[0])) {
+			if (settings.trim().length() == 0) {
+				continue;
+			}
+			try {
+				searchCacheSettings.add(SearchCacheSettings.parse(settings));
+			} catch (IllegalArgumentException e) {
+				log.error("Ignoring invalid search cache settings " + settings, e);
+			}
+		}
+		service.setSearchCacheSettings(searchCacheSettings);
+
+		service.setBindCacheSettings(PropertiesUtil.toLong(properties.get(PROP_BIND_CACHE_TTL), DEFAULT_BIND_CACHE_TTL) * 1000,
+				PropertiesUtil.toInteger(properties.get(PROP_BIND_HASH_CONCURRENCY), DEFAULT_BIND_HASH_CONCURRENCY));
+
+		service.setKdcPrincipalCacheSize(PropertiesUtil.toInteger(properties.get(PROP_KDC_PRINCIPAL_CACHE), DEFAULT_KDC_PRINCIPAL_CACHE));
+
+		service.setSyncPolicy(PropertiesUtil.toLong(properties.get(PROP_SYNC_INTERVAL), DEFAULT_SYNC_INTERVAL),
+				PropertiesUtil.toInteger(properties.get(PROP_SYNC_WRITES), DEFAULT_SYNC_WRITES));
+
+		try {
+			service.setLdapTransportSettings(
+					toTransportSettings(properties, PROP_LDAP_PORT, PROP_LDAP_IO_THREADS, PROP_LDAP_BACKLOG,
+							PROP_LDAP_WORKERS, PROP_LDAP_VIRTUAL_THREADS, PROP_LDAP_MAX_CONNECTIONS, PROP_LDAP_MAX_PENDING),
+					toTransportSettings(properties, PROP_LDAPS_PORT, PROP_LDAPS_IO_THREADS, PROP_LDAPS_BACKLOG,
+							PROP_LDAPS_WORKERS, PROP_LDAPS_VIRTUAL_THREADS, PROP_LDAPS_MAX_CONNECTIONS, PROP_LDAPS_MAX_PENDING));
 		} catch (Exception e) {
-			log.error("Error activating Apache Directory Service", e);
+			log.error("Cannot apply the LDAP transport settings", e);
+		}
+
+		try {
+			service.setProtocolServerModes(PropertiesUtil.toBoolean(properties.get(PROP_LDAP_ENABLED), DEFAULT_LDAP_ENABLED),
+					toProtocolServerMode(properties, PROP_NTP_MODE, DEFAULT_NTP_MODE),
+					toProtocolServerMode(properties, PROP_KERBEROS_MODE, DEFAULT_KERBEROS_MODE));
+		} catch (Exception e) {
+			log.error("Cannot apply the protocol server modes", e);
 		}
 
+		try {
+			service.setOperationRecording(PropertiesUtil.toBoolean(properties.get(PROP_RECORDING), DEFAULT_RECORDING),
+					PropertiesUtil.toInteger(properties.get(PROP_RECORDING_BUFFER_SIZE), DEFAULT_RECORDING_BUFFER_SIZE) * 1024 * 1024,
+					PropertiesUtil.toLong(properties.get(PROP_RECORDING_MAX_SIZE), DEFAULT_RECORDING_MAX_SIZE) * 1024 * 1024);
+		} catch (IOException e) {
+			log.error("Cannot apply the operation recording", e);
+		}
 	}
 
 
-	@Deactivate
-	public void deactivate(BundleContext context) {
+	private static ProtocolServerMode toProtocolServerMode(Map<String, ?> properties, String property, String defaultMode) {
+		String mode = PropertiesUtil.toString(properties.get(property), defaultMode);
 		try {
-			service.stop();
-			try {
-				service.stop();
-			} catch(Exception e) {
-				log.error("ApacheDsService shutdown" ,e);
+			return ProtocolServerMode.parse(mode);
+		} catch (IllegalArgumentException e) {
+			log.error("Ignoring invalid mode " + mode + " of " + property, e);
+			return ProtocolServerMode.parse(defaultMode);
+		}
+	}
+
+
+	/**
+	 * Starts the directory service and publishes it, unless the component has been
+	 * deactivated meanwhile. The service is only published as ready if all its
+	 * configured servers are started.
+	 */
+	void startService(BundleContext context, File workDir) {
+		try {
+			InstanceLayout instanceLayout = new InstanceLayout(workDir);
+			cacheService = service.createCacheService(instanceLayout);
+			service.start(instanceLayout, cacheService);
+		} catch (Exception e) {
+			if (deactivated) {
+				log.info("Apache Directory Service startup cancelled");
+			} else {
+				log.error("Error activating Apache Directory Service", e);
+				postEvent(TOPIC_FAILED, e);
 			}
+			return;
+		}
 
-			if (cacheService != null) {
-				try {
-					cacheService.destroy();
-				} catch(Exception e) {
-					log.error("Cache Service shutdown" ,e);
-				}
+		synchronized (this) {
+			if (deactivated) {
+				// The deactivation stops the service once this task is over
+				return;
+			}
+
+			Dictionary<String, Object> serviceProperties = new Hashtable<String, Object>();
+			serviceProperties.put(PROP_READY, Boolean.TRUE);
+			serviceReg = context.registerService(new String[] {ApacheDsService.class.getName(), DirectoryQueryService.class.getName()},
+					service, serviceProperties);
+			if (service.getOperationMetrics() != null) {
+				metricsReg = context.registerService(OperationMetricsMXBean.class.getName(), service.getOperationMetrics(), null);
 			}
-			if (serviceReg != null) {
-				try {
-					context.ungetService(serviceReg.getReference());
-				} catch (Throwable th) {
-					log.error("Error on unget service", serviceReg);
+			started = true;
+		}
+
+		if (!service.isStarted()) {
+			// A configured LDAP server failing to start fails the startup
+			log.warn("Apache Directory Service is started without LDAP server, it is disabled or not configured");
+		}
+		log.info("Apache Directory Service is ready");
+		postEvent(TOPIC_STARTED, null);
+
+		// The configuration changed while the service was starting
+		applyPendingConfiguration();
+	}
+
+
+	private void postEvent(String topic, Throwable error) {
+		EventAdmin admin = eventAdmin;
+		if (admin == null) {
+			return;
+		}
+
+		Dictionary<String, Object> eventProperties = new Hashtable<String, Object>();
+		if (service != null) {
+			eventProperties.put(EVENT_STARTUP_TIMINGS, service.getStartupTimings());
+		}
+		if (error != null) {
+			eventProperties.put(EventConstants.EXCEPTION, error);
+			eventProperties.put(EventConstants.EXCEPTION_MESSAGE, String.valueOf(error.getMessage()));
+		}
+		admin.postEvent(new Event(topic, eventProperties));
+	}
+
+
+	/**
+	 * Cancels the startup if it is still in progress, waits for it to be over and
+	 * stops the directory service.
+	 */
+	private void cancelStartup() {
+		synchronized (this) {
+			deactivated = true;
+		}
+
+		if (startupFuture != null && !startupFuture.isDone()) {
+			log.info("Apache Directory Service is still starting, cancelling the startup");
+			startupFuture.cancel(true);
+		}
+
+		if (startupExecutor != null) {
+			startupExecutor.shutdownNow();
+			try {
+				if (!startupExecutor.awaitTermination(STARTUP_CANCEL_TIMEOUT, TimeUnit.SECONDS)) {
+					log.warn("Apache Directory Service startup did not stop in {} seconds", STARTUP_CANCEL_TIMEOUT);
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
+			startupExecutor = null;
+			startupFuture = null;
+		}
+	}
+
+
+	@Deactivate
+	public void deactivate(BundleContext context) {
+		cancelStartup();
 
+		if (metricsReg != null) {
+			try {
+				metricsReg.unregister();
+			} catch (Throwable th) {
+				log.error("Error on unregistering service", th);
+			}
+			metricsReg = null;
+		}
+		if (serviceReg != null) {
+			try {
+				serviceReg.unregister();
+			} catch (Throwable th) {
+				log.error("Error on unregistering service", th);
+			}
+			serviceReg = null;
+		}
+
+		if (service == null) {
+			return;
+		}
+
+		try {
+			service.stop();
 		} catch (Exception e) {
 			log.error("Error deactivating Apache Directory Service", e);
 		}
 
+		if (cacheService != null) {
+			try {
+				cacheService.destroy();
+			} catch(Exception e) {
+				log.error("Cache Service shutdown" ,e);
+			}
+		}
+
 	}
 
 }
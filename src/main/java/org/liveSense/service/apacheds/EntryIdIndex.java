@@ -0,0 +1,774 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+
+
+/**
+ * Finds the entries of the DirectoryService by entryUUID and by entryCSN. The
+ * UUIDs are stored as two longs, the CSNs as a timestamp and a packed change
+ * count, replica id and operation number, in hash tables outside of the heap.
+ *
+ * The index is a tree: each entry holds the UUID of its parent and its
+ * normalized Rdn, stored as UTF-8 in an off-heap arena, and the Dn is built by
+ * walking up to a root entry holding its full normalized Dn. Moving or renaming
+ * an entry only changes its own record, whatever the size of its subtree.
+ *
+ * The index is maintained by the {@link EntryIdIndexInterceptor}, a lookup only
+ * takes a shared lock. It is rebuilt by filling a new instance with a
+ * {@link Loader} while the writes are tracked, then replacing the content of the
+ * index with {@link #replaceWith(EntryIdIndex, boolean)}.
+ */
+public class EntryIdIndex
+{
+	private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	/** The values of the UUID table */
+	private static final int CSN_HIGH = 0;
+	private static final int CSN_LOW = 1;
+	private static final int PARENT_HIGH = 2;
+	private static final int PARENT_LOW = 3;
+	private static final int NAME_REF = 4;
+
+	/** The values of the CSN table */
+	private static final int UUID_HIGH = 0;
+	private static final int UUID_LOW = 1;
+
+	/** The arena is compacted once it holds more garbage than this, and than live data */
+	private static final int MIN_COMPACTED_GARBAGE = 1024 * 1024;
+
+	/** Walking up more parents than this means the index holds a cycle */
+	private static final int MAX_DEPTH = 1024;
+
+	/** The CSN, the parent UUID and the reference of the name in the arena of each entry, by UUID */
+	private OffHeapLongHashTable uuids;
+
+	/** The UUID of each entry, by CSN */
+	private OffHeapLongHashTable csns;
+
+	/** The UTF-8 names of the entries, referenced by their position and length */
+	private ByteBuffer arena;
+
+	/** The number of bytes of the arena no longer referenced */
+	private int garbage;
+
+	/** The UUIDs written while the index is rebuilt, null when the writes are not tracked */
+	private Set<UUID> touched;
+
+	/** Whether an entry already indexed got a new parent or name while the index is rebuilt */
+	private boolean structureChanged;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+	/**
+	 * @param initialCapacity the number of entries the index is sized for
+	 */
+	public EntryIdIndex( int initialCapacity )
+	{
+		uuids = new OffHeapLongHashTable( 5, initialCapacity );
+		csns = new OffHeapLongHashTable( 2, initialCapacity );
+		arena = ByteBuffer.allocateDirect( Math.max( 64 * 1024, initialCapacity * 32 ) );
+	}
+
+
+	/**
+	 * Packs the change count, replica id and operation number of a CSN in a long,
+	 * keeping the order of the CSNs sharing the same timestamp.
+	 */
+	static long packCsn( Csn csn )
+	{
+		return ( ( long ) csn.getChangeCount() << 40 ) | ( ( long ) ( csn.getReplicaId() & 0xFFF ) << 28 )
+				| ( csn.getOperationNumber() & 0xFFFFFFFL );
+	}
+
+
+	static Csn unpackCsn( long high, long low )
+	{
+		return new Csn( high, ( int ) ( low >>> 40 ), ( int ) ( ( low >>> 28 ) & 0xFFF ), ( int ) ( low & 0xFFFFFFF ) );
+	}
+
+
+	/**
+	 * Adds or updates an entry
+	 *
+	 * @param uuid the entryUUID of the entry
+	 * @param csn the entryCSN of the entry, null if it has none
+	 * @param parentUuid the entryUUID of the parent entry, null for a root entry
+	 * @param name the normalized Rdn of the entry, its full normalized Dn for a root entry
+	 */
+	public void put( String uuid, String csn, String parentUuid, String name )
+	{
+		UUID id = UUID.fromString( uuid );
+		Csn entryCsn = csn == null ? null : new Csn( csn );
+		UUID parent = parentUuid == null ? null : UUID.fromString( parentUuid );
+
+		lock.writeLock().lock();
+
+		try
+		{
+			track( id );
+			putRecord( id.getMostSignificantBits(), id.getLeastSignificantBits(),
+					entryCsn == null ? 0L : entryCsn.getTimestamp(), entryCsn == null ? 0L : packCsn( entryCsn ),
+					parent == null ? 0L : parent.getMostSignificantBits(),
+					parent == null ? 0L : parent.getLeastSignificantBits(), name );
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Changes the CSN of an indexed entry
+	 *
+	 * @param uuid the entryUUID of the entry
+	 * @param csn the new entryCSN of the entry, null if it has none
+	 * @return false if the entry is not in the index
+	 */
+	public boolean setCsn( String uuid, String csn )
+	{
+		UUID id = UUID.fromString( uuid );
+		Csn entryCsn = csn == null ? null : new Csn( csn );
+
+		lock.writeLock().lock();
+
+		try
+		{
+			int slot = uuids.find( id.getMostSignificantBits(), id.getLeastSignificantBits() );
+
+			if ( slot < 0 )
+			{
+				return false;
+			}
+
+			track( id );
+			csns.remove( uuids.getValue( slot, CSN_HIGH ), uuids.getValue( slot, CSN_LOW ) );
+			setCsn( slot, id.getMostSignificantBits(), id.getLeastSignificantBits(),
+					entryCsn == null ? 0L : entryCsn.getTimestamp(), entryCsn == null ? 0L : packCsn( entryCsn ) );
+
+			return true;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Removes an entry
+	 *
+	 * @param uuid the entryUUID of the entry
+	 */
+	public void remove( String uuid )
+	{
+		UUID id = UUID.fromString( uuid );
+
+		lock.writeLock().lock();
+
+		try
+		{
+			track( id );
+			removeRecord( id.getMostSignificantBits(), id.getLeastSignificantBits() );
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param uuid the entryUUID of an entry
+	 * @return the normalized Dn of the entry, null if it is not in the index
+	 */
+	public String getDn( String uuid )
+	{
+		UUID id = UUID.fromString( uuid );
+
+		lock.readLock().lock();
+
+		try
+		{
+			return resolve( id.getMostSignificantBits(), id.getLeastSignificantBits() );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param uuid the entryUUID of an entry
+	 * @return the entryCSN of the entry, null if it is not in the index or has no CSN
+	 */
+	public String getCsn( String uuid )
+	{
+		UUID id = UUID.fromString( uuid );
+
+		lock.readLock().lock();
+
+		try
+		{
+			int slot = uuids.find( id.getMostSignificantBits(), id.getLeastSignificantBits() );
+
+			if ( ( slot < 0 ) || ( uuids.getValue( slot, CSN_HIGH ) == 0L ) )
+			{
+				return null;
+			}
+
+			return unpackCsn( uuids.getValue( slot, CSN_HIGH ), uuids.getValue( slot, CSN_LOW ) ).toString();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param csn the entryCSN of an entry
+	 * @return the entryUUID of the entry, null if no entry has this CSN
+	 */
+	public String getUuid( String csn )
+	{
+		Csn entryCsn = new Csn( csn );
+
+		lock.readLock().lock();
+
+		try
+		{
+			int slot = csns.find( entryCsn.getTimestamp(), packCsn( entryCsn ) );
+
+			if ( slot < 0 )
+			{
+				return null;
+			}
+
+			return new UUID( csns.getValue( slot, UUID_HIGH ), csns.getValue( slot, UUID_LOW ) ).toString();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @param csn the entryCSN of an entry
+	 * @return the normalized Dn of the entry, null if no entry has this CSN
+	 */
+	public String getDnByCsn( String csn )
+	{
+		Csn entryCsn = new Csn( csn );
+
+		lock.readLock().lock();
+
+		try
+		{
+			int csnSlot = csns.find( entryCsn.getTimestamp(), packCsn( entryCsn ) );
+
+			if ( csnSlot < 0 )
+			{
+				return null;
+			}
+
+			return resolve( csns.getValue( csnSlot, UUID_HIGH ), csns.getValue( csnSlot, UUID_LOW ) );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Removes all the entries
+	 */
+	public void clear()
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			uuids.clear();
+			csns.clear();
+			arena.clear();
+			garbage = 0;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return the number of indexed entries
+	 */
+	public int size()
+	{
+		lock.readLock().lock();
+
+		try
+		{
+			return uuids.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return the memory allocated outside of the heap by the index, in bytes
+	 */
+	public long getMemorySize()
+	{
+		lock.readLock().lock();
+
+		try
+		{
+			return uuids.getMemorySize() + csns.getMemorySize() + arena.capacity();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Starts recording the entries written to the index, so they can be carried
+	 * over to the rebuilt index by {@link #replaceWith(EntryIdIndex, boolean)}.
+	 */
+	public void startTracking()
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			touched = new HashSet<UUID>();
+			structureChanged = false;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Stops recording the written entries, when the rebuild is abandoned
+	 */
+	public void stopTracking()
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			touched = null;
+			structureChanged = false;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Replaces the content of this index with a rebuilt index, in a single step
+	 * for the lookups. The entries written since {@link #startTracking()} are
+	 * copied from this index over the rebuilt one first, as the rebuilt index may
+	 * have read them before they were written. The tracking is stopped.
+	 *
+	 * An entry moved during the rebuild may have left its descendants under their
+	 * former parent in the rebuilt index, the replacement is then refused unless
+	 * forced.
+	 *
+	 * @param rebuilt the index filled by a {@link Loader}, it must not be used afterwards
+	 * @param force whether to replace the content even if entries were moved
+	 * @return false if the content was not replaced because entries were moved
+	 */
+	public boolean replaceWith( EntryIdIndex rebuilt, boolean force )
+	{
+		lock.writeLock().lock();
+
+		try
+		{
+			if ( structureChanged && !force )
+			{
+				return false;
+			}
+
+			if ( touched != null )
+			{
+				for ( UUID id : touched )
+				{
+					long high = id.getMostSignificantBits();
+					long low = id.getLeastSignificantBits();
+					int slot = uuids.find( high, low );
+
+					if ( slot < 0 )
+					{
+						rebuilt.removeRecord( high, low );
+					}
+					else
+					{
+						rebuilt.putRecord( high, low, uuids.getValue( slot, CSN_HIGH ), uuids.getValue( slot, CSN_LOW ),
+								uuids.getValue( slot, PARENT_HIGH ), uuids.getValue( slot, PARENT_LOW ),
+								load( uuids.getValue( slot, NAME_REF ) ) );
+					}
+				}
+			}
+
+			uuids = rebuilt.uuids;
+			csns = rebuilt.csns;
+			arena = rebuilt.arena;
+			garbage = rebuilt.garbage;
+
+			return true;
+		}
+		finally
+		{
+			touched = null;
+			structureChanged = false;
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * @return a loader filling this index from a scan of the entries, before it is
+	 *         shared
+	 */
+	public Loader newLoader( int initialCapacity )
+	{
+		return new Loader( initialCapacity );
+	}
+
+
+	/**
+	 * Fills an index from the entries read in any order, by their normalized Dn.
+	 * The parents are linked by {@link #finish()}, once all the entries are read.
+	 * The Dn are kept as their MD5 digest in off-heap tables meanwhile.
+	 */
+	public final class Loader
+	{
+		/** The UUID of each entry, by digest of its Dn */
+		private final OffHeapLongHashTable dns;
+
+		/** The digest of the parent Dn of each entry, by UUID */
+		private final OffHeapLongHashTable parents;
+
+		private final MessageDigest digest;
+
+
+		private Loader( int initialCapacity )
+		{
+			dns = new OffHeapLongHashTable( 2, initialCapacity );
+			parents = new OffHeapLongHashTable( 2, initialCapacity );
+
+			try
+			{
+				digest = MessageDigest.getInstance( "MD5" );
+			}
+			catch ( NoSuchAlgorithmException e )
+			{
+				throw new IllegalStateException( e );
+			}
+		}
+
+
+		/**
+		 * Adds an entry
+		 *
+		 * @param uuid the entryUUID of the entry
+		 * @param csn the entryCSN of the entry, null if it has none
+		 * @param normDn the normalized Dn of the entry
+		 * @param parentNormDn the normalized Dn of the parent entry, null for a root entry
+		 * @param name the normalized Rdn of the entry
+		 */
+		public void add( String uuid, String csn, String normDn, String parentNormDn, String name )
+		{
+			UUID id = UUID.fromString( uuid );
+			Csn entryCsn = csn == null ? null : new Csn( csn );
+			long high = id.getMostSignificantBits();
+			long low = id.getLeastSignificantBits();
+
+			putRecord( high, low, entryCsn == null ? 0L : entryCsn.getTimestamp(),
+					entryCsn == null ? 0L : packCsn( entryCsn ), 0L, 0L, parentNormDn == null ? normDn : name );
+
+			long[] dnDigest = digest( normDn );
+			int slot = dns.insert( dnDigest[0], dnDigest[1] );
+			dns.setValue( slot, UUID_HIGH, high );
+			dns.setValue( slot, UUID_LOW, low );
+
+			if ( parentNormDn == null )
+			{
+				parents.remove( high, low );
+			}
+			else
+			{
+				long[] parentDigest = digest( parentNormDn );
+				slot = parents.insert( high, low );
+				parents.setValue( slot, 0, parentDigest[0] );
+				parents.setValue( slot, 1, parentDigest[1] );
+			}
+		}
+
+
+		/**
+		 * Links the entries to their parent, and drops the entries whose parent was
+		 * not read.
+		 *
+		 * @return the number of dropped entries
+		 */
+		public int finish()
+		{
+			int dropped = 0;
+
+			for ( int slot = parents.nextSlot( 0 ); slot >= 0; slot = parents.nextSlot( slot + 1 ) )
+			{
+				long high = parents.getKeyHigh( slot );
+				long low = parents.getKeyLow( slot );
+				int parentSlot = dns.find( parents.getValue( slot, 0 ), parents.getValue( slot, 1 ) );
+
+				if ( parentSlot < 0 )
+				{
+					removeRecord( high, low );
+					dropped++;
+				}
+				else
+				{
+					int entrySlot = uuids.find( high, low );
+					uuids.setValue( entrySlot, PARENT_HIGH, dns.getValue( parentSlot, UUID_HIGH ) );
+					uuids.setValue( entrySlot, PARENT_LOW, dns.getValue( parentSlot, UUID_LOW ) );
+				}
+			}
+
+			return dropped;
+		}
+
+
+		private long[] digest( String normDn )
+		{
+			ByteBuffer bytes = ByteBuffer.wrap( digest.digest( normDn.getBytes( UTF_8 ) ) );
+
+			return new long[] { bytes.getLong(), bytes.getLong() };
+		}
+	}
+
+
+	/**
+	 * Records a written entry while the index is rebuilt
+	 */
+	private void track( UUID id )
+	{
+		if ( touched != null )
+		{
+			touched.add( id );
+		}
+	}
+
+
+	private void putRecord( long high, long low, long csnHigh, long csnLow, long parentHigh, long parentLow,
+			String name )
+	{
+		// Stored first, the arena may be compacted
+		long nameRef = store( name );
+		int slot = uuids.find( high, low );
+
+		if ( slot >= 0 )
+		{
+			long oldNameRef = uuids.getValue( slot, NAME_REF );
+
+			if ( ( touched != null ) && !structureChanged
+					&& ( ( uuids.getValue( slot, PARENT_HIGH ) != parentHigh )
+							|| ( uuids.getValue( slot, PARENT_LOW ) != parentLow ) || !load( oldNameRef ).equals( name ) ) )
+			{
+				structureChanged = true;
+			}
+
+			csns.remove( uuids.getValue( slot, CSN_HIGH ), uuids.getValue( slot, CSN_LOW ) );
+			release( oldNameRef );
+		}
+
+		slot = uuids.insert( high, low );
+		uuids.setValue( slot, PARENT_HIGH, parentHigh );
+		uuids.setValue( slot, PARENT_LOW, parentLow );
+		uuids.setValue( slot, NAME_REF, nameRef );
+		setCsn( slot, high, low, csnHigh, csnLow );
+	}
+
+
+	private void setCsn( int slot, long high, long low, long csnHigh, long csnLow )
+	{
+		uuids.setValue( slot, CSN_HIGH, csnHigh );
+		uuids.setValue( slot, CSN_LOW, csnLow );
+
+		if ( csnHigh != 0L )
+		{
+			int csnSlot = csns.insert( csnHigh, csnLow );
+			csns.setValue( csnSlot, UUID_HIGH, high );
+			csns.setValue( csnSlot, UUID_LOW, low );
+		}
+	}
+
+
+	private void removeRecord( long high, long low )
+	{
+		int slot = uuids.find( high, low );
+
+		if ( slot >= 0 )
+		{
+			csns.remove( uuids.getValue( slot, CSN_HIGH ), uuids.getValue( slot, CSN_LOW ) );
+			release( uuids.getValue( slot, NAME_REF ) );
+			uuids.remove( high, low );
+		}
+	}
+
+
+	/**
+	 * Builds the Dn of an entry by walking up to its root entry
+	 *
+	 * @return the normalized Dn, null if the entry or one of its parents is not in the index
+	 */
+	private String resolve( long high, long low )
+	{
+		StringBuilder dn = new StringBuilder();
+
+		for ( int depth = 0; depth < MAX_DEPTH; depth++ )
+		{
+			int slot = uuids.find( high, low );
+
+			if ( slot < 0 )
+			{
+				return null;
+			}
+
+			if ( depth > 0 )
+			{
+				dn.append( ',' );
+			}
+
+			dn.append( load( uuids.getValue( slot, NAME_REF ) ) );
+			high = uuids.getValue( slot, PARENT_HIGH );
+			low = uuids.getValue( slot, PARENT_LOW );
+
+			if ( ( high == 0L ) && ( low == 0L ) )
+			{
+				return dn.toString();
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Appends a name to the arena
+	 *
+	 * @return the reference of the name, its position and its length
+	 */
+	private long store( String name )
+	{
+		byte[] bytes = name.getBytes( UTF_8 );
+
+		if ( arena.remaining() < bytes.length )
+		{
+			int used = arena.position() - garbage;
+
+			if ( ( garbage > MIN_COMPACTED_GARBAGE ) && ( garbage > used ) )
+			{
+				compact( Math.max( arena.capacity(), ( used + bytes.length ) * 2 ) );
+			}
+			else
+			{
+				compact( Math.max( arena.capacity() * 2, arena.position() + bytes.length ) );
+			}
+		}
+
+		int position = arena.position();
+		arena.put( bytes );
+
+		return ( ( long ) position << 32 ) | bytes.length;
+	}
+
+
+	private String load( long nameRef )
+	{
+		int position = ( int ) ( nameRef >>> 32 );
+		int length = ( int ) nameRef;
+		byte[] bytes = new byte[length];
+
+		ByteBuffer name = arena.duplicate();
+		name.position( position );
+		name.get( bytes );
+
+		return new String( bytes, UTF_8 );
+	}
+
+
+	private void release( long nameRef )
+	{
+		garbage += ( int ) nameRef;
+	}
+
+
+	/**
+	 * Copies the referenced names to a new arena, dropping the garbage
+	 */
+	private void compact( int newCapacity )
+	{
+		ByteBuffer oldArena = arena;
+		arena = ByteBuffer.allocateDirect( newCapacity );
+		garbage = 0;
+
+		for ( int slot = uuids.nextSlot( 0 ); slot >= 0; slot = uuids.nextSlot( slot + 1 ) )
+		{
+			long nameRef = uuids.getValue( slot, NAME_REF );
+			ByteBuffer name = oldArena.duplicate();
+			name.position( ( int ) ( nameRef >>> 32 ) );
+			name.limit( ( int ) ( nameRef >>> 32 ) + ( int ) nameRef );
+
+			int position = arena.position();
+			arena.put( name );
+			uuids.setValue( slot, NAME_REF, ( ( long ) position << 32 ) | ( int ) nameRef );
+		}
+	}
+}
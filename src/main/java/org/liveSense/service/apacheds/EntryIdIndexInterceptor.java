@@ -0,0 +1,241 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+
+
+/**
+ * An interceptor keeping the {@link EntryIdIndex} up to date with the successful
+ * writes. It has to be placed after the normalization, so the indexed Dn are
+ * normalized. The entryUUID and entryCSN are read once the operation is done, as
+ * they are set further down the chain. An entry is indexed under the entryUUID
+ * of its parent, so a move or a rename only updates the moved entry.
+ */
+public class EntryIdIndexInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "entryIdIndexInterceptor";
+
+	/** The maintained index */
+	private final EntryIdIndex index;
+
+	/** The nexus, reading the entries whose CSN is not in the operation context */
+	private PartitionNexus nexus;
+
+
+	public EntryIdIndexInterceptor( EntryIdIndex index )
+	{
+		super( NAME );
+		this.index = index;
+	}
+
+
+	@Override
+	public void init( DirectoryService directoryService ) throws LdapException
+	{
+		super.init( directoryService );
+		nexus = directoryService.getPartitionNexus();
+	}
+
+
+	private static String getString( Entry entry, String attributeType )
+	{
+		Attribute attribute = entry.get( attributeType );
+
+		return attribute == null ? null : attribute.getString();
+	}
+
+
+	/**
+	 * Adds or updates an entry, under its parent or as a root entry if it is the
+	 * suffix of a partition or its parent can not be read
+	 */
+	private void index( OperationContext context, Entry entry, Dn dn )
+	{
+		String uuid = getString( entry, SchemaConstants.ENTRY_UUID_AT );
+
+		if ( uuid == null )
+		{
+			return;
+		}
+
+		String csn = getString( entry, SchemaConstants.ENTRY_CSN_AT );
+		String parentUuid = getParentUuid( context, dn );
+
+		if ( parentUuid == null )
+		{
+			index.put( uuid, csn, null, dn.getNormName() );
+		}
+		else
+		{
+			index.put( uuid, csn, parentUuid, dn.getRdn().getNormName() );
+		}
+	}
+
+
+	/**
+	 * @return the entryUUID of the parent entry, null if the entry is the suffix of
+	 *         a partition or its parent has no entryUUID
+	 */
+	private String getParentUuid( OperationContext context, Dn dn )
+	{
+		if ( dn.size() <= 1 )
+		{
+			return null;
+		}
+
+		try
+		{
+			Entry parent = nexus.lookup( new LookupOperationContext( context.getSession(), dn.getParent(),
+					SchemaConstants.ENTRY_UUID_AT ) );
+
+			return parent == null ? null : getString( parent, SchemaConstants.ENTRY_UUID_AT );
+		}
+		catch ( LdapException e )
+		{
+			// The parent is above the suffix of the partition
+			return null;
+		}
+	}
+
+
+	/**
+	 * Reads the entryUUID and entryCSN of an entry
+	 *
+	 * @return the entry, null if it does not exist
+	 */
+	private Entry fetch( OperationContext context, Dn dn ) throws LdapException
+	{
+		return nexus.lookup( new LookupOperationContext( context.getSession(), dn, SchemaConstants.ENTRY_UUID_AT,
+				SchemaConstants.ENTRY_CSN_AT ) );
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		next( addContext );
+		index( addContext, addContext.getEntry(), addContext.getDn() );
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		Entry entry = deleteContext.getEntry();
+
+		if ( entry == null )
+		{
+			entry = fetch( deleteContext, deleteContext.getDn() );
+		}
+
+		next( deleteContext );
+
+		String uuid = entry == null ? null : getString( entry, SchemaConstants.ENTRY_UUID_AT );
+
+		if ( uuid != null )
+		{
+			index.remove( uuid );
+		}
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		next( modifyContext );
+
+		Entry entry = modifyContext.getAlteredEntry();
+
+		if ( ( entry == null ) || !entry.containsAttribute( SchemaConstants.ENTRY_UUID_AT ) )
+		{
+			entry = fetch( modifyContext, modifyContext.getDn() );
+		}
+
+		if ( entry == null )
+		{
+			return;
+		}
+
+		String uuid = getString( entry, SchemaConstants.ENTRY_UUID_AT );
+
+		// A modification does not change the place of the entry, only its CSN
+		if ( ( uuid != null ) && !index.setCsn( uuid, getString( entry, SchemaConstants.ENTRY_CSN_AT ) ) )
+		{
+			index( modifyContext, entry, modifyContext.getDn() );
+		}
+	}
+
+
+	/**
+	 * Gives the renamed entry its new parent, name and CSN. Its descendants follow
+	 * it, as they only reference their parent.
+	 */
+	private void moved( OperationContext context, Dn newDn ) throws LdapException
+	{
+		Entry entry = fetch( context, newDn );
+
+		if ( entry != null )
+		{
+			index( context, entry, newDn );
+		}
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		next( moveContext );
+		moved( moveContext, moveContext.getNewDn() );
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		next( moveAndRenameContext );
+		moved( moveAndRenameContext, moveAndRenameContext.getNewDn() );
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		next( renameContext );
+		moved( renameContext, renameContext.getNewDn() );
+	}
+}
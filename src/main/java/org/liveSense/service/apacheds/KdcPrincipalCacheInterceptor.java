@@ -0,0 +1,523 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.AttributeTypeOptions;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.filtering.BaseEntryFilteringCursor;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+
+
+/**
+ * An interceptor caching the principal entries read by the Kerberos server. The
+ * KDC looks up the client and the server principals of every AS and TGS request
+ * with a subtree search on <code>krb5PrincipalName</code> : those searches are
+ * answered from a bounded cache of the principal entries, keys included, shared
+ * by all the request threads. The least recently used principals are evicted.
+ *
+ * The cache is kept in sync with the directory through the interceptor chain : a
+ * principal is dropped as soon as its entry is written, moved or deleted, and
+ * read again by the next request. As the access controls, the group memberships
+ * and the schema can change how any principal is read, a write to a subentry, a
+ * group, an ACI attribute or to the schema clears the whole cache. Every write
+ * also increments a generation, so a principal read while a write happened is not
+ * cached. Only the searches matching
+ * exactly one entry, without request controls, are cached, and the key holds the
+ * identity of the session, so an entry filtered by the access controls is only
+ * served to the same user.
+ */
+public class KdcPrincipalCacheInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "kdcPrincipalCacheInterceptor";
+
+	/** The attribute the KDC looks the principals up with */
+	private static final String KRB5_PRINCIPAL_NAME_AT = "krb5PrincipalName";
+
+	/** The normalized Dn of the schema partition */
+	private static final String SCHEMA_DN = SchemaConstants.OU_AT_OID + "=schema";
+
+	/**
+	 * A cached principal
+	 */
+	private static class CachedPrincipal
+	{
+		/** The principal entry, as returned by the search */
+		private final Entry entry;
+
+		/** The normalized Dn of the entry */
+		private final String normDn;
+
+
+		private CachedPrincipal( Entry entry )
+		{
+			this.entry = entry;
+			this.normDn = entry.getDn().getNormName();
+		}
+	}
+
+	/** The principals, in access order, keyed by search */
+	private final LinkedHashMap<String, CachedPrincipal> principals = new LinkedHashMap<String, CachedPrincipal>( 64,
+			0.75f, true );
+
+	/** The maximum number of cached principals, 0 to disable the cache */
+	private volatile int maxPrincipals;
+
+	/** Incremented on every write */
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+
+	public KdcPrincipalCacheInterceptor()
+	{
+		super( NAME );
+	}
+
+
+	/**
+	 * Sets the size of the cache, evicting the least recently used principals
+	 *
+	 * @param maxPrincipals the maximum number of cached principals, 0 to disable the cache
+	 */
+	public synchronized void configure( int maxPrincipals )
+	{
+		this.maxPrincipals = Math.max( maxPrincipals, 0 );
+		evict();
+	}
+
+
+	/**
+	 * Removes all the cached principals, after the partitions were written without
+	 * going through the interceptors.
+	 */
+	public synchronized void clear()
+	{
+		principals.clear();
+		generation++;
+	}
+
+
+	/**
+	 * @return the statistics of the cache
+	 */
+	public synchronized CacheStatistics getStatistics()
+	{
+		return new CacheStatistics( "kdcPrincipal", hits.get(), misses.get(), principals.size() );
+	}
+
+
+	private void evict()
+	{
+		for ( Iterator<CachedPrincipal> iterator = principals.values().iterator(); ( principals.size() > maxPrincipals )
+				&& iterator.hasNext(); )
+		{
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+
+	private synchronized Entry get( String key )
+	{
+		CachedPrincipal principal = principals.get( key );
+
+		return principal == null ? null : principal.entry;
+	}
+
+
+	private synchronized void put( String key, Entry entry, long readGeneration )
+	{
+		if ( ( readGeneration == generation ) && ( maxPrincipals > 0 ) )
+		{
+			principals.put( key, new CachedPrincipal( entry ) );
+			evict();
+		}
+	}
+
+
+	private synchronized long getGeneration()
+	{
+		return generation;
+	}
+
+
+	/**
+	 * @return the key of a principal search, null if the search is not a principal lookup
+	 */
+	private String createKey( SearchOperationContext searchContext )
+	{
+		ExprNode filter = searchContext.getFilter();
+
+		if ( ( maxPrincipals == 0 ) || !( filter instanceof EqualityNode<?> )
+				|| ( searchContext.getScope() != SearchScope.SUBTREE ) || searchContext.hasRequestControls() )
+		{
+			return null;
+		}
+
+		// Null as long as the krb5kdc schema is not enabled
+		AttributeType principalName = schemaManager.getAttributeType( KRB5_PRINCIPAL_NAME_AT );
+		EqualityNode<?> equality = ( EqualityNode<?> ) filter;
+
+		if ( ( principalName == null ) || !principalName.equals( equality.getAttributeType() ) )
+		{
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder( equality.getValue().getNormValue().toString() );
+		key.append( '\u0000' ).append( searchContext.getDn().getNormName() );
+
+		if ( searchContext.getReturningAttributes() != null )
+		{
+			for ( AttributeTypeOptions attribute : searchContext.getReturningAttributes() )
+			{
+				key.append( '\u0000' ).append( attribute );
+			}
+		}
+
+		LdapPrincipal principal = searchContext.getSession().getEffectivePrincipal();
+		key.append( '\u0000' ).append( ( principal == null ) || ( principal.getDn() == null ) ? "" : principal.getDn()
+				.getNormName() );
+		key.append( '\u0000' ).append( searchContext.isAllUserAttributes() )
+				.append( searchContext.isAllOperationalAttributes() ).append( searchContext.isNoAttributes() )
+				.append( searchContext.isTypesOnly() ).append( searchContext.getAliasDerefMode() );
+
+		return key.toString();
+	}
+
+
+	@Override
+	public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+	{
+		String key = createKey( searchContext );
+
+		if ( key == null )
+		{
+			return next( searchContext );
+		}
+
+		Entry entry = get( key );
+
+		if ( entry != null )
+		{
+			hits.incrementAndGet();
+
+			return toCursor( entry, searchContext );
+		}
+
+		misses.incrementAndGet();
+
+		long readGeneration = getGeneration();
+		EntryFilteringCursor cursor = next( searchContext );
+		List<Entry> entries = new ArrayList<Entry>( 1 );
+
+		try
+		{
+			while ( cursor.next() )
+			{
+				if ( !entries.isEmpty() )
+				{
+					// Not a single principal, the search is handed over from its first entry
+					cursor.beforeFirst();
+
+					return cursor;
+				}
+
+				entries.add( cursor.get().clone() );
+			}
+
+			cursor.close();
+		}
+		catch ( LdapException e )
+		{
+			closeQuietly( cursor );
+			throw e;
+		}
+		catch ( Exception e )
+		{
+			closeQuietly( cursor );
+			throw new LdapOtherException( e.getMessage(), e );
+		}
+
+		if ( entries.isEmpty() )
+		{
+			return new BaseEntryFilteringCursor( new ListCursor<Entry>( entries ), searchContext, schemaManager );
+		}
+
+		put( key, entries.get( 0 ), readGeneration );
+
+		return toCursor( entries.get( 0 ), searchContext );
+	}
+
+
+	/**
+	 * @return a cursor on a copy of the cached entry, so the caller can modify it
+	 */
+	private EntryFilteringCursor toCursor( Entry entry, SearchOperationContext searchContext )
+	{
+		List<Entry> copies = new ArrayList<Entry>( 1 );
+		copies.add( entry.clone() );
+
+		return new BaseEntryFilteringCursor( new ListCursor<Entry>( copies ), searchContext, schemaManager );
+	}
+
+
+	private static void closeQuietly( EntryFilteringCursor cursor )
+	{
+		try
+		{
+			cursor.close();
+		}
+		catch ( Exception e )
+		{
+			// Already failing
+		}
+	}
+
+
+	/**
+	 * @return true if a write to the entry may change how the principals of other
+	 * entries are read
+	 */
+	static boolean isGlobal( Dn dn, Entry entry )
+	{
+		return isSchema( dn ) || SearchResultCacheInterceptor.isGlobal( entry );
+	}
+
+
+	/**
+	 * @return true if the modifications of the entry may change how the principals
+	 * of other entries are read
+	 */
+	static boolean isGlobal( Dn dn, List<Modification> modifications )
+	{
+		return isSchema( dn ) || SearchResultCacheInterceptor.isGlobal( modifications );
+	}
+
+
+	private static boolean isSchema( Dn dn )
+	{
+		if ( dn == null )
+		{
+			return false;
+		}
+
+		String normDn = dn.getNormName();
+
+		return normDn.equals( SCHEMA_DN ) || normDn.endsWith( "," + SCHEMA_DN );
+	}
+
+
+	/**
+	 * Drops the principals held by an entry, or by the entries below it, or all the
+	 * principals if the write is global
+	 */
+	private synchronized void invalidate( Dn dn, boolean subtree, boolean global )
+	{
+		if ( global )
+		{
+			clear();
+
+			return;
+		}
+
+		generation++;
+
+		if ( principals.isEmpty() || ( dn == null ) )
+		{
+			return;
+		}
+
+		String normDn = dn.getNormName();
+		String suffix = "," + normDn;
+
+		for ( Iterator<CachedPrincipal> iterator = principals.values().iterator(); iterator.hasNext(); )
+		{
+			String cachedDn = iterator.next().normDn;
+
+			if ( cachedDn.equals( normDn ) || ( subtree && cachedDn.endsWith( suffix ) ) )
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Drops the principals whose name is held by an added entry, as their lookup
+	 * does not match a single entry anymore
+	 */
+	private synchronized void invalidateNames( Entry entry )
+	{
+		generation++;
+
+		Attribute names = entry == null ? null : entry.get( KRB5_PRINCIPAL_NAME_AT );
+
+		if ( principals.isEmpty() || ( names == null ) )
+		{
+			return;
+		}
+
+		for ( Value<?> name : names )
+		{
+			String prefix = name.getNormValue().toString() + '\u0000';
+
+			for ( Iterator<Map.Entry<String, CachedPrincipal>> iterator = principals.entrySet().iterator(); iterator
+					.hasNext(); )
+			{
+				if ( iterator.next().getKey().startsWith( prefix ) )
+				{
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		try
+		{
+			next( addContext );
+		}
+		finally
+		{
+			if ( isGlobal( addContext.getDn(), addContext.getEntry() ) )
+			{
+				clear();
+			}
+			else
+			{
+				invalidateNames( addContext.getEntry() );
+			}
+		}
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		try
+		{
+			next( deleteContext );
+		}
+		finally
+		{
+			invalidate( deleteContext.getDn(), false, isGlobal( deleteContext.getDn(), deleteContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		try
+		{
+			next( modifyContext );
+		}
+		finally
+		{
+			if ( isGlobal( modifyContext.getDn(), modifyContext.getModItems() ) )
+			{
+				clear();
+			}
+			else
+			{
+				invalidate( modifyContext.getDn(), false, false );
+				invalidateNames( modifyContext.getAlteredEntry() );
+			}
+		}
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		try
+		{
+			next( moveContext );
+		}
+		finally
+		{
+			invalidate( moveContext.getDn(), true, isGlobal( moveContext.getDn(), moveContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		try
+		{
+			next( moveAndRenameContext );
+		}
+		finally
+		{
+			invalidate( moveAndRenameContext.getDn(), true,
+					isGlobal( moveAndRenameContext.getDn(), moveAndRenameContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		try
+		{
+			next( renameContext );
+		}
+		finally
+		{
+			invalidate( renameContext.getDn(), true, isGlobal( renameContext.getDn(), renameContext.getEntry() ) );
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A concurrent, fixed size latency histogram. The values are counted in
+ * logarithmic buckets split into 16 linear sub-buckets, which keeps the error
+ * under 6.25% for any value. Recording a value does not allocate anything.
+ */
+public class LatencyHistogram
+{
+	/** The number of bits of the sub-bucket index */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** The number of linear sub-buckets in each logarithmic bucket */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The number of counters needed to cover all the positive long values */
+	private static final int NB_COUNTERS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+	/** The count of each bucket */
+	private final AtomicLongArray counters = new AtomicLongArray( NB_COUNTERS );
+
+	/** The total number of recorded values */
+	private final AtomicLong count = new AtomicLong();
+
+	/** The sum of the recorded values */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** The highest recorded value */
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Records a value
+	 *
+	 * @param value the value, negative values are recorded as 0
+	 */
+	public void record( long value )
+	{
+		if ( value < 0 )
+		{
+			value = 0;
+		}
+
+		counters.incrementAndGet( indexOf( value ) );
+		count.incrementAndGet();
+		sum.addAndGet( value );
+
+		long currentMax = max.get();
+
+		while ( ( value > currentMax ) && !max.compareAndSet( currentMax, value ) )
+		{
+			currentMax = max.get();
+		}
+	}
+
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+
+	/**
+	 * @return the highest recorded value
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+
+	/**
+	 * @return the mean of the recorded values, 0 if nothing was recorded
+	 */
+	public double getMean()
+	{
+		long total = count.get();
+
+		return total == 0 ? 0 : ( double ) sum.get() / total;
+	}
+
+
+	/**
+	 * Computes a percentile of the recorded values
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the highest value of the bucket holding the percentile, 0 if nothing was recorded
+	 */
+	public long getPercentile( double percentile )
+	{
+		long total = count.get();
+
+		if ( total == 0 )
+		{
+			return 0;
+		}
+
+		long rank = ( long ) Math.ceil( total * Math.min( percentile, 100d ) / 100d );
+		long seen = 0;
+
+		for ( int i = 0; i < NB_COUNTERS; i++ )
+		{
+			seen += counters.get( i );
+
+			if ( seen >= Math.max( rank, 1 ) )
+			{
+				return Math.min( highestValueOf( i ), max.get() );
+			}
+		}
+
+		return max.get();
+	}
+
+
+	/**
+	 * Clears all the recorded values
+	 */
+	public void reset()
+	{
+		for ( int i = 0; i < NB_COUNTERS; i++ )
+		{
+			counters.set( i, 0 );
+		}
+
+		count.set( 0 );
+		sum.set( 0 );
+		max.set( 0 );
+	}
+
+
+	private static int indexOf( long value )
+	{
+		if ( value < SUB_BUCKETS )
+		{
+			return ( int ) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+		int subBucket = ( int ) ( value >>> shift ) & ( SUB_BUCKETS - 1 );
+
+		return ( shift + 1 ) * SUB_BUCKETS + subBucket;
+	}
+
+
+	private static long highestValueOf( int index )
+	{
+		int shift = index / SUB_BUCKETS - 1;
+
+		if ( shift < 0 )
+		{
+			return index;
+		}
+
+		long subBucket = index % SUB_BUCKETS;
+
+		return ( ( SUB_BUCKETS + subBucket + 1 ) << shift ) - 1;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.server.config.beans.TcpTransportBean;
+import org.apache.directory.server.config.beans.TransportBean;
+import org.apache.directory.server.config.beans.UdpTransportBean;
+import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioDatagramAcceptor;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Holds the ports of a protocol server until it is needed. The ports are bound
+ * with a handler doing nothing but noticing the first request : the ports are
+ * then released and the real server is started on them, on its own thread.
+ *
+ * The request which triggered the start is dropped, the Kerberos and NTP clients
+ * send it again after their timeout.
+ */
+public class LazyProtocolServer
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( LazyProtocolServer.class );
+
+	/** The name of the server, for the logs and the thread */
+	private final String name;
+
+	/** The transports of the server */
+	private final TransportBean[] transports;
+
+	/** Starts the real server */
+	private Callable<?> starter;
+
+	/** The acceptors holding the ports */
+	private final List<IoAcceptor> acceptors = new ArrayList<IoAcceptor>();
+
+	/** Set once the ports are released */
+	private final AtomicBoolean released = new AtomicBoolean();
+
+
+	/**
+	 * @param name the name of the server
+	 * @param transports the transports of the server
+	 */
+	public LazyProtocolServer( String name, TransportBean[] transports )
+	{
+		this.name = name;
+		this.transports = transports;
+	}
+
+
+	/**
+	 * Binds the ports of the server
+	 *
+	 * @param starter starts the server, called at most once
+	 * @throws IOException if a port cannot be bound
+	 */
+	public synchronized void bind( Callable<?> starter ) throws IOException
+	{
+		this.starter = starter;
+
+		IoHandlerAdapter handler = new IoHandlerAdapter()
+		{
+			@Override
+			public void messageReceived( IoSession session, Object message )
+			{
+				session.close( true );
+				trigger();
+			}
+		};
+
+		try
+		{
+			for ( TransportBean transport : transports )
+			{
+				if ( transport.isDisabled() )
+				{
+					continue;
+				}
+
+				IoAcceptor acceptor;
+
+				if ( transport instanceof UdpTransportBean )
+				{
+					NioDatagramAcceptor datagramAcceptor = new NioDatagramAcceptor();
+					datagramAcceptor.getSessionConfig().setReuseAddress( true );
+					acceptor = datagramAcceptor;
+				}
+				else if ( transport instanceof TcpTransportBean )
+				{
+					NioSocketAcceptor socketAcceptor = new NioSocketAcceptor( 1 );
+					socketAcceptor.setReuseAddress( true );
+					acceptor = socketAcceptor;
+				}
+				else
+				{
+					continue;
+				}
+
+				acceptors.add( acceptor );
+				acceptor.setHandler( handler );
+
+				if ( transport.getTransportAddress() == null )
+				{
+					acceptor.bind( new InetSocketAddress( transport.getSystemPort() ) );
+				}
+				else
+				{
+					acceptor.bind( new InetSocketAddress( transport.getTransportAddress(), transport.getSystemPort() ) );
+				}
+			}
+		}
+		catch ( IOException e )
+		{
+			release();
+			throw e;
+		}
+
+		LOG.info( "{} server: waiting for the first request on {} port(s)", name, acceptors.size() );
+	}
+
+
+	/**
+	 * Releases the ports and starts the real server, once
+	 */
+	private void trigger()
+	{
+		if ( released.get() )
+		{
+			return;
+		}
+
+		// The acceptors cannot be disposed from one of their own threads
+		new NamedThreadFactory( "apacheds-lazy-" + name.toLowerCase( Locale.ENGLISH ) ).newThread( new Runnable()
+		{
+			public void run()
+			{
+				if ( !release() )
+				{
+					return;
+				}
+
+				LOG.info( "{} server: first request received, starting the server", name );
+
+				try
+				{
+					starter.call();
+				}
+				catch ( Exception e )
+				{
+					LOG.error( "Cannot start the " + name + " server", e );
+				}
+			}
+		} ).start();
+	}
+
+
+	/**
+	 * Releases the ports without starting the server
+	 *
+	 * @return false if the ports were already released
+	 */
+	public synchronized boolean release()
+	{
+		if ( !released.compareAndSet( false, true ) )
+		{
+			return false;
+		}
+
+		for ( IoAcceptor acceptor : acceptors )
+		{
+			acceptor.unbind();
+			acceptor.dispose( true );
+		}
+
+		acceptors.clear();
+
+		return true;
+	}
+}
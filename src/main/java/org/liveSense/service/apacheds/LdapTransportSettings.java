@@ -0,0 +1,187 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * The network settings of one of the LDAP server transports, LDAP or LDAPS. A
+ * value of 0 keeps the setting of the directory configuration, or disables the
+ * limit for the connection and request limits.
+ */
+public class LdapTransportSettings
+{
+	/** The TCP port */
+	private int port;
+
+	/** The number of MINA I/O processors */
+	private int ioThreads;
+
+	/** The size of the accept backlog */
+	private int backlog;
+
+	/** The number of threads handling the decoded requests */
+	private int workers;
+
+	/** Tells if each request is handled by a new virtual thread */
+	private boolean virtualThreads;
+
+	/** The maximum number of open connections */
+	private int maxConnections;
+
+	/** The maximum number of requests of a connection waiting for their response */
+	private int maxPendingRequests;
+
+
+	public int getPort()
+	{
+		return port;
+	}
+
+
+	public void setPort( int port )
+	{
+		this.port = port;
+	}
+
+
+	public int getIoThreads()
+	{
+		return ioThreads;
+	}
+
+
+	public void setIoThreads( int ioThreads )
+	{
+		this.ioThreads = ioThreads;
+	}
+
+
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+
+	public void setBacklog( int backlog )
+	{
+		this.backlog = backlog;
+	}
+
+
+	public int getWorkers()
+	{
+		return workers;
+	}
+
+
+	public void setWorkers( int workers )
+	{
+		this.workers = workers;
+	}
+
+
+	public boolean isVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+
+	public void setVirtualThreads( boolean virtualThreads )
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+
+	public void setMaxConnections( int maxConnections )
+	{
+		this.maxConnections = maxConnections;
+	}
+
+
+	public int getMaxPendingRequests()
+	{
+		return maxPendingRequests;
+	}
+
+
+	public void setMaxPendingRequests( int maxPendingRequests )
+	{
+		this.maxPendingRequests = maxPendingRequests;
+	}
+
+
+	/**
+	 * @return true if a connection or request limit is set
+	 */
+	public boolean hasLimits()
+	{
+		return ( maxConnections > 0 ) || ( maxPendingRequests > 0 );
+	}
+
+
+	@Override
+	public int hashCode()
+	{
+		int hash = port;
+		hash = hash * 31 + ioThreads;
+		hash = hash * 31 + backlog;
+		hash = hash * 31 + workers;
+		hash = hash * 31 + ( virtualThreads ? 1 : 0 );
+		hash = hash * 31 + maxConnections;
+
+		return hash * 31 + maxPendingRequests;
+	}
+
+
+	@Override
+	public boolean equals( Object obj )
+	{
+		if ( this == obj )
+		{
+			return true;
+		}
+
+		if ( !( obj instanceof LdapTransportSettings ) )
+		{
+			return false;
+		}
+
+		LdapTransportSettings other = ( LdapTransportSettings ) obj;
+
+		return ( port == other.port ) && ( ioThreads == other.ioThreads ) && ( backlog == other.backlog )
+				&& ( workers == other.workers ) && ( virtualThreads == other.virtualThreads )
+				&& ( maxConnections == other.maxConnections ) && ( maxPendingRequests == other.maxPendingRequests );
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "port=" + port + ", ioThreads=" + ioThreads + ", backlog=" + backlog + ", workers=" + workers
+				+ ", virtualThreads=" + virtualThreads + ", maxConnections=" + maxConnections
+				+ ", maxPendingRequests=" + maxPendingRequests;
+	}
+}
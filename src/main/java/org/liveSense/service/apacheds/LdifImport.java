@@ -0,0 +1,476 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
+import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.ObjectClass;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.syntaxCheckers.CsnSyntaxChecker;
+import org.apache.directory.api.ldap.model.schema.syntaxCheckers.GeneralizedTimeSyntaxChecker;
+import org.apache.directory.api.ldap.model.schema.syntaxCheckers.UuidSyntaxChecker;
+import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Imports an LDIF stream, or the entries of a binary export, straight into the
+ * partitions, bypassing the interceptor chain :
+ * <ul>
+ * <li>the LDIF is read one entry at a time, so the memory used does not depend on its size</li>
+ * <li>the entries are normalized and checked against the schema by a pool of workers</li>
+ * <li>the missing or invalid mandatory operational attributes are generated, as
+ * {@link ApacheDsService#updateMandatoryOpAttributes(Partition, DirectoryService)} does</li>
+ * <li>the entries are added in the LDIF order by a single writer, and the partitions
+ * are synced once per batch instead of once per entry</li>
+ * </ul>
+ *
+ * As the interceptors are bypassed, the access controls, the change log, the event
+ * listeners and the structural rules of the schema interceptor do not apply : the
+ * object classes, their mandatory attributes and the attribute syntaxes are
+ * checked. The parents have to come before their children in the LDIF. An entry
+ * which cannot be imported is counted as rejected and the import goes on.
+ *
+ * The counters can be read from another thread while the import runs.
+ */
+public class LdifImport
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( LdifImport.class );
+
+	/** The default number of entries written between two syncs of the partitions */
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+
+	/** The DirectoryService the entries are imported in */
+	private final DirectoryService directoryService;
+
+	/** The shared SchemaManager */
+	private final SchemaManager schemaManager;
+
+	/** The number of threads normalizing the entries */
+	private final int nbThreads;
+
+	/** The number of entries written between two syncs */
+	private final int batchSize;
+
+	private final UuidSyntaxChecker uuidChecker = new UuidSyntaxChecker();
+
+	private final CsnSyntaxChecker csnChecker = new CsnSyntaxChecker();
+
+	private final GeneralizedTimeSyntaxChecker timeChecker = new GeneralizedTimeSyntaxChecker();
+
+	/** The number of entries read from the LDIF */
+	private final AtomicLong readCount = new AtomicLong();
+
+	/** The number of entries added to a partition */
+	private final AtomicLong importedCount = new AtomicLong();
+
+	/** The number of entries which could not be imported */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/** When the import started and ended, in milliseconds */
+	private volatile long startTime;
+	private volatile long endTime;
+
+
+	/**
+	 * @param directoryService the started DirectoryService
+	 * @param nbThreads the number of threads normalizing the entries
+	 * @param batchSize the number of entries written between two syncs of the partitions
+	 */
+	public LdifImport( DirectoryService directoryService, int nbThreads, int batchSize )
+	{
+		this.directoryService = directoryService;
+		this.schemaManager = directoryService.getSchemaManager();
+		this.nbThreads = Math.max( 1, nbThreads );
+		this.batchSize = Math.max( 1, batchSize );
+	}
+
+
+	/**
+	 * Imports all the entries of the given LDIF stream. The stream is not closed.
+	 *
+	 * @param in the LDIF stream
+	 * @throws Exception if the LDIF cannot be read or a partition cannot be written
+	 */
+	public void run( InputStream in ) throws Exception
+	{
+		LdifReader reader = new LdifReader( in );
+
+		try
+		{
+			run( new LdifEntryIterator( reader.iterator() ) );
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Imports the given entries, such as the ones of a binary
+	 * {@link PartitionExport}.
+	 *
+	 * @param entries the entries, parents first
+	 * @throws Exception if the entries cannot be read or a partition cannot be written
+	 */
+	public void run( Iterator<Entry> entries ) throws Exception
+	{
+		startTime = System.currentTimeMillis();
+		endTime = 0;
+
+		CoreSession session = directoryService.getAdminSession();
+		PartitionNexus nexus = directoryService.getPartitionNexus();
+		final String creator = session.getEffectivePrincipal().getName();
+
+		ExecutorService executor = Executors.newFixedThreadPool( nbThreads, new NamedThreadFactory( "apacheds-import" ) );
+
+		// The entries being normalized, in the LDIF order. The queue is bounded so
+		// the reader does not run ahead of the writer
+		Queue<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+		Set<Partition> written = new LinkedHashSet<Partition>();
+
+		try
+		{
+			while ( entries.hasNext() )
+			{
+				if ( Thread.currentThread().isInterrupted() )
+				{
+					throw new InterruptedException( "LDIF import interrupted" );
+				}
+
+				final Entry entry = entries.next();
+				readCount.incrementAndGet();
+
+				pending.add( executor.submit( new Callable<Entry>()
+				{
+					public Entry call() throws Exception
+					{
+						return normalize( entry, creator );
+					}
+				} ) );
+
+				if ( pending.size() >= batchSize )
+				{
+					write( pending.poll(), session, nexus, written );
+				}
+			}
+
+			while ( !pending.isEmpty() )
+			{
+				write( pending.poll(), session, nexus, written );
+			}
+
+			sync( written );
+		}
+		finally
+		{
+			executor.shutdownNow();
+			endTime = System.currentTimeMillis();
+		}
+
+		LOG.info( "LDIF import done : {} entries imported, {} rejected in {} ms ({} entries/s)", new Object[]
+			{ importedCount.get(), rejectedCount.get(), getElapsedTime(), ( long ) getThroughput() } );
+	}
+
+
+	/**
+	 * Iterates over the entries of an LDIF, skipping the change records other than adds
+	 */
+	private class LdifEntryIterator implements Iterator<Entry>
+	{
+		private final Iterator<LdifEntry> ldifEntries;
+
+		private Entry next;
+
+
+		private LdifEntryIterator( Iterator<LdifEntry> ldifEntries )
+		{
+			this.ldifEntries = ldifEntries;
+		}
+
+
+		public boolean hasNext()
+		{
+			while ( ( next == null ) && ldifEntries.hasNext() )
+			{
+				LdifEntry ldifEntry = ldifEntries.next();
+
+				if ( ldifEntry.isEntry() || ldifEntry.isChangeAdd() )
+				{
+					next = ldifEntry.getEntry();
+				}
+				else
+				{
+					LOG.warn( "Skipping the {} change record of {}, only entries can be imported",
+							ldifEntry.getChangeType(), ldifEntry.getDn() );
+					readCount.incrementAndGet();
+					rejectedCount.incrementAndGet();
+				}
+			}
+
+			return next != null;
+		}
+
+
+		public Entry next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+
+			Entry entry = next;
+			next = null;
+
+			return entry;
+		}
+
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+
+	/**
+	 * Makes the entry schema aware, checks it and adds the missing mandatory
+	 * operational attributes.
+	 */
+	private Entry normalize( Entry ldifEntry, String creator ) throws LdapException
+	{
+		Entry entry = new DefaultEntry( schemaManager, ldifEntry );
+		entry.setDn( new Dn( schemaManager, ldifEntry.getDn().getName() ) );
+
+		Attribute objectClasses = entry.get( SchemaConstants.OBJECT_CLASS_AT );
+
+		if ( objectClasses == null )
+		{
+			throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, "No objectClass in "
+					+ entry.getDn() );
+		}
+
+		for ( Value<?> value : objectClasses )
+		{
+			ObjectClass objectClass = schemaManager.lookupObjectClassRegistry( value.getString() );
+
+			for ( AttributeType mustAttributeType : objectClass.getMustAttributeTypes() )
+			{
+				if ( !entry.containsAttribute( mustAttributeType ) )
+				{
+					throw new LdapSchemaViolationException( ResultCodeEnum.OBJECT_CLASS_VIOLATION, "The attribute "
+							+ mustAttributeType.getName() + " required by " + objectClass.getName()
+							+ " is missing in " + entry.getDn() );
+				}
+			}
+		}
+
+		for ( Attribute attribute : entry )
+		{
+			if ( !attribute.isValid( attribute.getAttributeType() ) )
+			{
+				throw new LdapInvalidAttributeValueException( ResultCodeEnum.INVALID_ATTRIBUTE_SYNTAX, "Invalid value of "
+						+ attribute.getUpId() + " in " + entry.getDn() );
+			}
+		}
+
+		if ( !uuidChecker.isValidSyntax( getString( entry, SchemaConstants.ENTRY_UUID_AT ) ) )
+		{
+			entry.put( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+		}
+
+		if ( !csnChecker.isValidSyntax( getString( entry, SchemaConstants.ENTRY_CSN_AT ) ) )
+		{
+			entry.put( SchemaConstants.ENTRY_CSN_AT, directoryService.getCSN().toString() );
+		}
+
+		String creatorsName = getString( entry, SchemaConstants.CREATORS_NAME_AT );
+
+		if ( ( creatorsName == null ) || ( creatorsName.trim().length() == 0 ) || !Dn.isValid( creatorsName ) )
+		{
+			entry.put( SchemaConstants.CREATORS_NAME_AT, creator );
+		}
+
+		if ( !timeChecker.isValidSyntax( getString( entry, SchemaConstants.CREATE_TIMESTAMP_AT ) ) )
+		{
+			entry.put( SchemaConstants.CREATE_TIMESTAMP_AT, DateUtils.getGeneralizedTime() );
+		}
+
+		return entry;
+	}
+
+
+	private static String getString( Entry entry, String attributeType ) throws LdapException
+	{
+		Attribute attribute = entry.get( attributeType );
+
+		return ( attribute == null ) ? null : attribute.getString();
+	}
+
+
+	/**
+	 * Waits for an entry to be normalized and adds it to its partition
+	 */
+	private void write( Future<Entry> future, CoreSession session, PartitionNexus nexus, Set<Partition> written )
+		throws Exception
+	{
+		Entry entry;
+
+		try
+		{
+			entry = future.get();
+		}
+		catch ( ExecutionException e )
+		{
+			if ( e.getCause() instanceof LdapException )
+			{
+				reject( e.getCause() );
+				return;
+			}
+
+			throw e;
+		}
+
+		try
+		{
+			Partition partition = nexus.getPartition( entry.getDn() );
+			partition.add( new AddOperationContext( session, entry ) );
+			written.add( partition );
+		}
+		catch ( LdapException e )
+		{
+			reject( e );
+			return;
+		}
+
+		if ( importedCount.incrementAndGet() % batchSize == 0 )
+		{
+			sync( written );
+
+			LOG.info( "LDIF import : {} entries imported, {} rejected, {} entries/s", new Object[]
+				{ importedCount.get(), rejectedCount.get(), ( long ) getThroughput() } );
+		}
+	}
+
+
+	private void reject( Throwable cause )
+	{
+		rejectedCount.incrementAndGet();
+		LOG.warn( "Entry rejected : {}", cause.getMessage() );
+		LOG.debug( "Entry rejected", cause );
+	}
+
+
+	private void sync( Set<Partition> partitions ) throws Exception
+	{
+		for ( Partition partition : partitions )
+		{
+			partition.sync();
+		}
+	}
+
+
+	/**
+	 * @return the number of entries read from the LDIF
+	 */
+	public long getReadCount()
+	{
+		return readCount.get();
+	}
+
+
+	/**
+	 * @return the number of entries added to a partition
+	 */
+	public long getImportedCount()
+	{
+		return importedCount.get();
+	}
+
+
+	/**
+	 * @return the number of entries which could not be imported
+	 */
+	public long getRejectedCount()
+	{
+		return rejectedCount.get();
+	}
+
+
+	/**
+	 * @return the time spent importing, in milliseconds
+	 */
+	public long getElapsedTime()
+	{
+		if ( startTime == 0 )
+		{
+			return 0;
+		}
+
+		return ( endTime == 0 ? System.currentTimeMillis() : endTime ) - startTime;
+	}
+
+
+	/**
+	 * @return the number of entries imported per second
+	 */
+	public double getThroughput()
+	{
+		long elapsed = getElapsedTime();
+
+		return elapsed == 0 ? 0 : importedCount.get() * TimeUnit.SECONDS.toMillis( 1 ) / ( double ) elapsed;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A {@link ThreadFactory} creating daemon threads with a recognizable name, so
+ * the worker threads of the embedded directory service can be told apart in a
+ * thread dump.
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+	/** The prefix of every thread name */
+	private final String prefix;
+
+	/** The sequence number of the next thread */
+	private final AtomicInteger counter = new AtomicInteger( 1 );
+
+
+	/**
+	 * @param prefix the prefix of the created thread names
+	 */
+	public NamedThreadFactory( String prefix )
+	{
+		this.prefix = prefix;
+	}
+
+
+	public Thread newThread( Runnable runnable )
+	{
+		Thread thread = new Thread( runnable, prefix + "-" + counter.getAndIncrement() );
+		thread.setDaemon( true );
+
+		return thread;
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * An open addressing hash table stored outside of the heap, whose keys are pairs
+ * of longs and whose values are a fixed number of longs. Nothing is allocated on
+ * the heap per entry, and reading an entry does not allocate anything.
+ *
+ * The entries are accessed through their slot : {@link #find(long, long)} and
+ * {@link #insert(long, long)} return the slot of a key, whose values are then
+ * read and written with {@link #getValue(int, int)} and {@link #setValue(int, int, long)}.
+ * A slot is only valid until the next insertion.
+ *
+ * This class is not thread safe, the readers have to be guarded against the writers.
+ */
+public class OffHeapLongHashTable
+{
+	/** The states of a slot */
+	private static final byte EMPTY = 0;
+	private static final byte USED = 1;
+	private static final byte DELETED = 2;
+
+	/** The highest ratio of used and deleted slots before the table is resized */
+	private static final double MAX_LOAD = 0.6d;
+
+	/** The number of values of an entry */
+	private final int nbValues;
+
+	/** The size of a slot, in bytes : the two keys and the values */
+	private final int slotSize;
+
+	/** The slots */
+	private ByteBuffer slots;
+
+	/** The state of each slot */
+	private ByteBuffer states;
+
+	/** The number of slots, a power of 2 */
+	private int capacity;
+
+	/** The number of used slots */
+	private int size;
+
+	/** The number of deleted slots */
+	private int deleted;
+
+
+	/**
+	 * @param nbValues the number of values of an entry
+	 * @param initialCapacity the number of entries the table is sized for
+	 */
+	public OffHeapLongHashTable( int nbValues, int initialCapacity )
+	{
+		this.nbValues = nbValues;
+		this.slotSize = ( 2 + nbValues ) * 8;
+		allocate( Math.max( 16, Integer.highestOneBit( ( int ) ( initialCapacity / MAX_LOAD ) ) << 1 ) );
+	}
+
+
+	private void allocate( int newCapacity )
+	{
+		capacity = newCapacity;
+		slots = ByteBuffer.allocateDirect( capacity * slotSize ).order( ByteOrder.nativeOrder() );
+		states = ByteBuffer.allocateDirect( capacity );
+		size = 0;
+		deleted = 0;
+	}
+
+
+	private static int hash( long high, long low )
+	{
+		long h = high * 0x9E3779B97F4A7C15L ^ low;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+
+		return ( int ) h;
+	}
+
+
+	/**
+	 * @return the slot of the key, -1 if the key is not in the table
+	 */
+	public int find( long high, long low )
+	{
+		int mask = capacity - 1;
+
+		for ( int slot = hash( high, low ) & mask;; slot = ( slot + 1 ) & mask )
+		{
+			byte state = states.get( slot );
+
+			if ( state == EMPTY )
+			{
+				return -1;
+			}
+
+			if ( ( state == USED ) && ( slots.getLong( slot * slotSize ) == high )
+					&& ( slots.getLong( slot * slotSize + 8 ) == low ) )
+			{
+				return slot;
+			}
+		}
+	}
+
+
+	/**
+	 * Adds a key to the table if it is not there yet. The values of a new key are 0.
+	 *
+	 * @return the slot of the key
+	 */
+	public int insert( long high, long low )
+	{
+		int slot = find( high, low );
+
+		if ( slot >= 0 )
+		{
+			return slot;
+		}
+
+		if ( size + deleted + 1 > capacity * MAX_LOAD )
+		{
+			// Only grow if the table is full of live entries, not of deleted ones
+			resize( size + 1 > capacity * MAX_LOAD / 2 ? capacity << 1 : capacity );
+		}
+
+		int mask = capacity - 1;
+		slot = hash( high, low ) & mask;
+
+		while ( states.get( slot ) == USED )
+		{
+			slot = ( slot + 1 ) & mask;
+		}
+
+		if ( states.get( slot ) == DELETED )
+		{
+			deleted--;
+		}
+
+		states.put( slot, USED );
+		slots.putLong( slot * slotSize, high );
+		slots.putLong( slot * slotSize + 8, low );
+
+		for ( int i = 0; i < nbValues; i++ )
+		{
+			setValue( slot, i, 0L );
+		}
+
+		size++;
+
+		return slot;
+	}
+
+
+	/**
+	 * Removes a key from the table
+	 *
+	 * @return true if the key was in the table
+	 */
+	public boolean remove( long high, long low )
+	{
+		int slot = find( high, low );
+
+		if ( slot < 0 )
+		{
+			return false;
+		}
+
+		states.put( slot, DELETED );
+		size--;
+		deleted++;
+
+		return true;
+	}
+
+
+	private void resize( int newCapacity )
+	{
+		ByteBuffer oldSlots = slots;
+		ByteBuffer oldStates = states;
+		int oldCapacity = capacity;
+
+		allocate( newCapacity );
+
+		for ( int oldSlot = 0; oldSlot < oldCapacity; oldSlot++ )
+		{
+			if ( oldStates.get( oldSlot ) != USED )
+			{
+				continue;
+			}
+
+			int slot = insert( oldSlots.getLong( oldSlot * slotSize ), oldSlots.getLong( oldSlot * slotSize + 8 ) );
+
+			for ( int i = 0; i < nbValues; i++ )
+			{
+				setValue( slot, i, oldSlots.getLong( oldSlot * slotSize + ( 2 + i ) * 8 ) );
+			}
+		}
+	}
+
+
+	/**
+	 * @return the given value of the entry in the slot
+	 */
+	public long getValue( int slot, int index )
+	{
+		return slots.getLong( slot * slotSize + ( 2 + index ) * 8 );
+	}
+
+
+	/**
+	 * Sets a value of the entry in the slot
+	 */
+	public void setValue( int slot, int index, long value )
+	{
+		slots.putLong( slot * slotSize + ( 2 + index ) * 8, value );
+	}
+
+
+	/**
+	 * @return the first key of the entry in the slot
+	 */
+	public long getKeyHigh( int slot )
+	{
+		return slots.getLong( slot * slotSize );
+	}
+
+
+	/**
+	 * @return the second key of the entry in the slot
+	 */
+	public long getKeyLow( int slot )
+	{
+		return slots.getLong( slot * slotSize + 8 );
+	}
+
+
+	/**
+	 * Iterates the used slots
+	 *
+	 * @param from the first slot to check
+	 * @return the first used slot from the given one, -1 if there is none
+	 */
+	public int nextSlot( int from )
+	{
+		for ( int slot = from; slot < capacity; slot++ )
+		{
+			if ( states.get( slot ) == USED )
+			{
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Removes all the entries, keeping the allocated memory
+	 */
+	public void clear()
+	{
+		for ( int slot = 0; slot < capacity; slot++ )
+		{
+			states.put( slot, EMPTY );
+		}
+
+		size = 0;
+		deleted = 0;
+	}
+
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+
+	/**
+	 * @return the memory allocated outside of the heap, in bytes
+	 */
+	public long getMemorySize()
+	{
+		return ( long ) capacity * ( slotSize + 1 );
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * Reads an operation log written by an {@link OperationRecorder}. A record cut by
+ * the end of the log, as left by a crash, ends the log.
+ */
+public class OperationLogReader implements Closeable
+{
+	private final DataInputStream in;
+
+	/** When the recording started, in milliseconds */
+	private final long startTime;
+
+
+	public OperationLogReader( File file ) throws IOException
+	{
+		in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 64 * 1024 ) );
+
+		try
+		{
+			byte[] magic = new byte[OperationRecorder.MAGIC.length()];
+			in.readFully( magic );
+
+			if ( !OperationRecorder.MAGIC.equals( Strings.utf8ToString( magic ) ) )
+			{
+				throw new IOException( file + " is not an operation log" );
+			}
+
+			startTime = in.readLong();
+		}
+		catch ( IOException e )
+		{
+			in.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * @return when the recording started, in milliseconds
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+
+	/**
+	 * @return the next record, null at the end of the log
+	 */
+	public OperationRecord next() throws IOException
+	{
+		try
+		{
+			byte[] record = new byte[in.readInt()];
+			in.readFully( record );
+
+			return OperationRecord.read( new DataInputStream( new ByteArrayInputStream( record ) ) );
+		}
+		catch ( EOFException e )
+		{
+			return null;
+		}
+	}
+
+
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+
+
+/**
+ * Collects the count, the latency and the result codes of the operations handled
+ * by the DirectoryService, per partition. Once the counters of a partition exist,
+ * recording an operation does not allocate anything.
+ */
+public class OperationMetrics implements OperationMetricsMXBean
+{
+	/** The operations being measured */
+	public enum Operation
+	{
+		ADD, BIND, COMPARE, DELETE, HAS_ENTRY, LOOKUP, MODIFY, MOVE, MOVE_AND_RENAME, RENAME, SEARCH, UNBIND;
+
+		/** The name used in the metric keys */
+		private final String key = name().toLowerCase( Locale.ENGLISH );
+	}
+
+	/** The partition name used for the operations on the rootDSE */
+	public static final String ROOT_DSE = "rootDSE";
+
+	/** All the result codes, indexed by ordinal */
+	private static final ResultCodeEnum[] RESULT_CODES = ResultCodeEnum.values();
+
+	/** The counters of each operation, by partition */
+	private final ConcurrentMap<String, OperationStats[]> partitionStats = new ConcurrentHashMap<String, OperationStats[]>();
+
+
+	/**
+	 * The counters of one operation on one partition
+	 */
+	private static class OperationStats
+	{
+		private final LatencyHistogram latencies = new LatencyHistogram();
+
+		private final AtomicLongArray resultCodes = new AtomicLongArray( RESULT_CODES.length );
+	}
+
+
+	/**
+	 * Records an operation
+	 *
+	 * @param operation the operation
+	 * @param partition the id of the partition the operation applied to
+	 * @param resultCode the result of the operation
+	 * @param duration the duration of the operation, in nanoseconds
+	 */
+	public void record( Operation operation, String partition, ResultCodeEnum resultCode, long duration )
+	{
+		OperationStats stats = getStats( partition )[operation.ordinal()];
+
+		stats.latencies.record( duration );
+		stats.resultCodes.incrementAndGet( resultCode.ordinal() );
+	}
+
+
+	private OperationStats[] getStats( String partition )
+	{
+		OperationStats[] stats = partitionStats.get( partition );
+
+		if ( stats == null )
+		{
+			stats = new OperationStats[Operation.values().length];
+
+			for ( int i = 0; i < stats.length; i++ )
+			{
+				stats[i] = new OperationStats();
+			}
+
+			OperationStats[] existing = partitionStats.putIfAbsent( partition, stats );
+
+			if ( existing != null )
+			{
+				stats = existing;
+			}
+		}
+
+		return stats;
+	}
+
+
+	public Map<String, Long> getOperationCounts()
+	{
+		Map<String, Long> counts = new TreeMap<String, Long>();
+
+		for ( Map.Entry<String, OperationStats[]> partition : partitionStats.entrySet() )
+		{
+			for ( Operation operation : Operation.values() )
+			{
+				long count = partition.getValue()[operation.ordinal()].latencies.getCount();
+
+				if ( count > 0 )
+				{
+					counts.put( operation.key + "/" + partition.getKey(), count );
+				}
+			}
+		}
+
+		return counts;
+	}
+
+
+	public Map<String, Long> getResultCodeCounts()
+	{
+		Map<String, Long> counts = new TreeMap<String, Long>();
+
+		for ( Map.Entry<String, OperationStats[]> partition : partitionStats.entrySet() )
+		{
+			for ( Operation operation : Operation.values() )
+			{
+				AtomicLongArray resultCodes = partition.getValue()[operation.ordinal()].resultCodes;
+
+				for ( int i = 0; i < RESULT_CODES.length; i++ )
+				{
+					long count = resultCodes.get( i );
+
+					if ( count > 0 )
+					{
+						counts.put( operation.key + "/" + partition.getKey() + "/" + RESULT_CODES[i].getMessage(), count );
+					}
+				}
+			}
+		}
+
+		return counts;
+	}
+
+
+	public Map<String, Double> getMeanLatencies()
+	{
+		Map<String, Double> latencies = new TreeMap<String, Double>();
+
+		for ( Map.Entry<String, OperationStats[]> partition : partitionStats.entrySet() )
+		{
+			for ( Operation operation : Operation.values() )
+			{
+				LatencyHistogram histogram = partition.getValue()[operation.ordinal()].latencies;
+
+				if ( histogram.getCount() > 0 )
+				{
+					latencies.put( operation.key + "/" + partition.getKey(), histogram.getMean() / 1000d );
+				}
+			}
+		}
+
+		return latencies;
+	}
+
+
+	public Map<String, Long> getMaxLatencies()
+	{
+		Map<String, Long> latencies = new TreeMap<String, Long>();
+
+		for ( Map.Entry<String, OperationStats[]> partition : partitionStats.entrySet() )
+		{
+			for ( Operation operation : Operation.values() )
+			{
+				LatencyHistogram histogram = partition.getValue()[operation.ordinal()].latencies;
+
+				if ( histogram.getCount() > 0 )
+				{
+					latencies.put( operation.key + "/" + partition.getKey(),
+							TimeUnit.NANOSECONDS.toMicros( histogram.getMax() ) );
+				}
+			}
+		}
+
+		return latencies;
+	}
+
+
+	public Map<String, Long> getLatencyPercentiles( double percentile )
+	{
+		Map<String, Long> latencies = new TreeMap<String, Long>();
+
+		for ( Map.Entry<String, OperationStats[]> partition : partitionStats.entrySet() )
+		{
+			for ( Operation operation : Operation.values() )
+			{
+				LatencyHistogram histogram = partition.getValue()[operation.ordinal()].latencies;
+
+				if ( histogram.getCount() > 0 )
+				{
+					latencies.put( operation.key + "/" + partition.getKey(),
+							TimeUnit.NANOSECONDS.toMicros( histogram.getPercentile( percentile ) ) );
+				}
+			}
+		}
+
+		return latencies;
+	}
+
+
+	public void reset()
+	{
+		for ( OperationStats[] stats : partitionStats.values() )
+		{
+			for ( OperationStats operationStats : stats )
+			{
+				operationStats.latencies.reset();
+
+				for ( int i = 0; i < RESULT_CODES.length; i++ )
+				{
+					operationStats.resultCodes.set( i, 0 );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.CompareOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.HasEntryOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.liveSense.service.apacheds.OperationMetrics.Operation;
+
+
+/**
+ * An interceptor measuring every operation going through the DirectoryService. It
+ * is meant to be the first interceptor of the chain, so the measured latency is
+ * the one of the whole chain. The latency of a search is the time needed to
+ * evaluate it and to return the cursor, reading the entries is not included.
+ */
+public class OperationMetricsInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "operationMetricsInterceptor";
+
+	/** Where the measures are stored */
+	private final OperationMetrics metrics;
+
+	/** The nexus, used to find the partition of an operation */
+	private PartitionNexus nexus;
+
+
+	/**
+	 * @param metrics where the measures are stored
+	 */
+	public OperationMetricsInterceptor( OperationMetrics metrics )
+	{
+		super( NAME );
+		this.metrics = metrics;
+	}
+
+
+	@Override
+	public void init( DirectoryService directoryService ) throws LdapException
+	{
+		super.init( directoryService );
+		nexus = directoryService.getPartitionNexus();
+	}
+
+
+	/**
+	 * @return the id of the partition holding the given Dn
+	 */
+	private String getPartition( Dn dn )
+	{
+		if ( ( dn == null ) || dn.isEmpty() )
+		{
+			return OperationMetrics.ROOT_DSE;
+		}
+
+		try
+		{
+			return nexus.getPartition( dn ).getId();
+		}
+		catch ( LdapException e )
+		{
+			return OperationMetrics.ROOT_DSE;
+		}
+	}
+
+
+	private void record( Operation operation, Dn dn, ResultCodeEnum resultCode, long start )
+	{
+		metrics.record( operation, getPartition( dn ), resultCode, System.nanoTime() - start );
+	}
+
+
+	/**
+	 * Records an operation failed with an LdapException. An operation failed with an
+	 * unexpected RuntimeException is recorded with the OTHER result code.
+	 */
+	private void recordFailure( Operation operation, Dn dn, LdapException e, long start )
+	{
+		record( operation, dn, ResultCodeEnum.getResultCode( e ), start );
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( addContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.ADD, addContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.ADD, addContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.ADD, addContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public void bind( BindOperationContext bindContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( bindContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.BIND, bindContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.BIND, bindContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.BIND, bindContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public boolean compare( CompareOperationContext compareContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+		boolean result;
+
+		try
+		{
+			result = next( compareContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.COMPARE, compareContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.COMPARE, compareContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.COMPARE, compareContext.getDn(), result ? ResultCodeEnum.COMPARE_TRUE
+				: ResultCodeEnum.COMPARE_FALSE, start );
+
+		return result;
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( deleteContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.DELETE, deleteContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.DELETE, deleteContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.DELETE, deleteContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public boolean hasEntry( HasEntryOperationContext hasEntryContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+		boolean result;
+
+		try
+		{
+			result = next( hasEntryContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.HAS_ENTRY, hasEntryContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.HAS_ENTRY, hasEntryContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.HAS_ENTRY, hasEntryContext.getDn(), ResultCodeEnum.SUCCESS, start );
+
+		return result;
+	}
+
+
+	@Override
+	public Entry lookup( LookupOperationContext lookupContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+		Entry entry;
+
+		try
+		{
+			entry = next( lookupContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.LOOKUP, lookupContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.LOOKUP, lookupContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.LOOKUP, lookupContext.getDn(), ResultCodeEnum.SUCCESS, start );
+
+		return entry;
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( modifyContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.MODIFY, modifyContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.MODIFY, modifyContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.MODIFY, modifyContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( moveContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.MOVE, moveContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.MOVE, moveContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.MOVE, moveContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( moveAndRenameContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.MOVE_AND_RENAME, moveAndRenameContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.MOVE_AND_RENAME, moveAndRenameContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.MOVE_AND_RENAME, moveAndRenameContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( renameContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.RENAME, renameContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.RENAME, renameContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.RENAME, renameContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+
+
+	@Override
+	public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+		EntryFilteringCursor cursor;
+
+		try
+		{
+			cursor = next( searchContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.SEARCH, searchContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.SEARCH, searchContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.SEARCH, searchContext.getDn(), ResultCodeEnum.SUCCESS, start );
+
+		return cursor;
+	}
+
+
+	@Override
+	public void unbind( UnbindOperationContext unbindContext ) throws LdapException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			next( unbindContext );
+		}
+		catch ( LdapException e )
+		{
+			recordFailure( Operation.UNBIND, unbindContext.getDn(), e, start );
+			throw e;
+		}
+		catch ( RuntimeException e )
+		{
+			record( Operation.UNBIND, unbindContext.getDn(), ResultCodeEnum.OTHER, start );
+			throw e;
+		}
+
+		record( Operation.UNBIND, unbindContext.getDn(), ResultCodeEnum.SUCCESS, start );
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.Map;
+
+
+/**
+ * The counters and latencies of the operations handled by the DirectoryService,
+ * published through JMX and as an OSGi service.
+ *
+ * The keys of the returned maps are <code>operation/partition</code>, the
+ * partition being its id, or <code>rootDSE</code> for the operations on the
+ * empty Dn. The result code counts are keyed by
+ * <code>operation/partition/resultCode</code>.
+ */
+public interface OperationMetricsMXBean
+{
+	/** The JMX name the metrics are registered under */
+	String OBJECT_NAME = "org.liveSense.service.apacheds:type=OperationMetrics";
+
+
+	/**
+	 * @return the number of operations
+	 */
+	Map<String, Long> getOperationCounts();
+
+
+	/**
+	 * @return the number of operations per result code
+	 */
+	Map<String, Long> getResultCodeCounts();
+
+
+	/**
+	 * @return the mean latency of the operations, in microseconds
+	 */
+	Map<String, Double> getMeanLatencies();
+
+
+	/**
+	 * @return the highest latency of the operations, in microseconds
+	 */
+	Map<String, Long> getMaxLatencies();
+
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency percentile of the operations, in microseconds
+	 */
+	Map<String, Long> getLatencyPercentiles( double percentile );
+
+
+	/**
+	 * Clears all the counters
+	 */
+	void reset();
+}
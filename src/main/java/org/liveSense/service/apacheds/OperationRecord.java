@@ -0,0 +1,288 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * An LDAP operation recorded by the {@link OperationRecorderFilter}, as written in
+ * the operation log. The credentials of the binds and the values of the password
+ * attributes are never recorded.
+ *
+ * The meaning of the fields depends on the type of the operation :
+ * <ul>
+ * <li>dn : the target of the operation, the base of a search, the name of a bind</li>
+ * <li>argument : the filter of a search, the new Rdn of a modify Dn, the SASL
+ * mechanism of a bind, the OID of an extended operation</li>
+ * <li>option : the scope of a search, 1 if a modify Dn deletes the old Rdn</li>
+ * <li>attributes : the requested attributes of a search, the attributes of an add,
+ * the modifications of a modify, the assertion of a compare, the new superior of a
+ * modify Dn</li>
+ * </ul>
+ */
+public class OperationRecord
+{
+	/** The recorded operations */
+	public enum Type
+	{
+		BIND, UNBIND, SEARCH, ADD, MODIFY, DELETE, MODIFY_DN, COMPARE, ABANDON, EXTENDED
+	}
+
+	/** The operation of an attribute, the one of a modification or ADD for the other operations */
+	public static final byte ADD_VALUES = 0;
+	public static final byte REMOVE_VALUES = 1;
+	public static final byte REPLACE_VALUES = 2;
+
+	/** The name of the attribute holding the new superior of a modify Dn */
+	public static final String NEW_SUPERIOR = "newSuperior";
+
+	/**
+	 * An attribute of a recorded operation
+	 */
+	public static class RecordedAttribute
+	{
+		private final byte operation;
+
+		private final String id;
+
+		private final List<byte[]> values;
+
+
+		public RecordedAttribute( byte operation, String id, List<byte[]> values )
+		{
+			this.operation = operation;
+			this.id = id;
+			this.values = values;
+		}
+
+
+		/**
+		 * @return the operation of a modification, {@link OperationRecord#ADD_VALUES} otherwise
+		 */
+		public byte getOperation()
+		{
+			return operation;
+		}
+
+
+		public String getId()
+		{
+			return id;
+		}
+
+
+		public List<byte[]> getValues()
+		{
+			return values;
+		}
+	}
+
+	private final Type type;
+
+	/** The id of the connection the operation was sent on */
+	private final long connectionId;
+
+	/** When the operation was received, in nanoseconds since the start of the recording */
+	private final long offset;
+
+	/** The time needed to send the response, in nanoseconds */
+	private final long duration;
+
+	/** The result code of the response, 0 for the operations without response */
+	private final int resultCode;
+
+	private final String dn;
+
+	private final String argument;
+
+	private final int option;
+
+	private final List<RecordedAttribute> attributes;
+
+
+	public OperationRecord( Type type, long connectionId, long offset, long duration, int resultCode, String dn,
+			String argument, int option, List<RecordedAttribute> attributes )
+	{
+		this.type = type;
+		this.connectionId = connectionId;
+		this.offset = offset;
+		this.duration = duration;
+		this.resultCode = resultCode;
+		this.dn = dn == null ? "" : dn;
+		this.argument = argument == null ? "" : argument;
+		this.option = option;
+		this.attributes = attributes == null ? Collections.<RecordedAttribute> emptyList() : attributes;
+	}
+
+
+	public Type getType()
+	{
+		return type;
+	}
+
+
+	public long getConnectionId()
+	{
+		return connectionId;
+	}
+
+
+	public long getOffset()
+	{
+		return offset;
+	}
+
+
+	public long getDuration()
+	{
+		return duration;
+	}
+
+
+	public int getResultCode()
+	{
+		return resultCode;
+	}
+
+
+	public String getDn()
+	{
+		return dn;
+	}
+
+
+	public String getArgument()
+	{
+		return argument;
+	}
+
+
+	public int getOption()
+	{
+		return option;
+	}
+
+
+	public List<RecordedAttribute> getAttributes()
+	{
+		return attributes;
+	}
+
+
+	/**
+	 * Writes this record, without its length
+	 */
+	public void write( DataOutput out ) throws IOException
+	{
+		out.writeByte( type.ordinal() );
+		out.writeLong( connectionId );
+		out.writeLong( offset );
+		out.writeLong( duration );
+		out.writeInt( resultCode );
+		writeString( out, dn );
+		writeString( out, argument );
+		out.writeInt( option );
+		out.writeShort( attributes.size() );
+
+		for ( RecordedAttribute attribute : attributes )
+		{
+			out.writeByte( attribute.operation );
+			writeString( out, attribute.id );
+			out.writeShort( attribute.values.size() );
+
+			for ( byte[] value : attribute.values )
+			{
+				out.writeInt( value.length );
+				out.write( value );
+			}
+		}
+	}
+
+
+	/**
+	 * Reads a record written by {@link #write(DataOutput)}
+	 */
+	public static OperationRecord read( DataInput in ) throws IOException
+	{
+		Type type = Type.values()[in.readUnsignedByte()];
+		long connectionId = in.readLong();
+		long offset = in.readLong();
+		long duration = in.readLong();
+		int resultCode = in.readInt();
+		String dn = readString( in );
+		String argument = readString( in );
+		int option = in.readInt();
+		int nbAttributes = in.readUnsignedShort();
+		List<RecordedAttribute> attributes = new ArrayList<RecordedAttribute>( nbAttributes );
+
+		for ( int i = 0; i < nbAttributes; i++ )
+		{
+			byte operation = in.readByte();
+			String id = readString( in );
+			int nbValues = in.readUnsignedShort();
+			List<byte[]> values = new ArrayList<byte[]>( nbValues );
+
+			for ( int j = 0; j < nbValues; j++ )
+			{
+				byte[] value = new byte[in.readInt()];
+				in.readFully( value );
+				values.add( value );
+			}
+
+			attributes.add( new RecordedAttribute( operation, id, values ) );
+		}
+
+		return new OperationRecord( type, connectionId, offset, duration, resultCode, dn, argument, option,
+				attributes );
+	}
+
+
+	private static void writeString( DataOutput out, String value ) throws IOException
+	{
+		byte[] bytes = Strings.getBytesUtf8( value );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+
+	private static String readString( DataInput in ) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully( bytes );
+
+		return Strings.utf8ToString( bytes );
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return type + " " + dn + " " + argument + " " + resultCode + " in " + duration + "ns";
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Writes the {@link OperationRecord}s to an operation log. The threads recording
+ * the operations only encode them and copy them into a ring buffer, a background
+ * thread writes the buffer to the file. A record which does not fit in the buffer,
+ * or which would make the file exceed its maximum size, is dropped and counted :
+ * the recording never slows the LDAP server down.
+ *
+ * The log starts with {@link #MAGIC} and the time the recording started, in
+ * milliseconds. Each record follows, prefixed by its length.
+ */
+public class OperationRecorder implements Closeable
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( OperationRecorder.class );
+
+	/** The first bytes of an operation log */
+	public static final String MAGIC = "LDAPOPS1";
+
+	/** The default size of the ring buffer, in bytes */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/** The default maximum size of a log, in bytes */
+	public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024 * 1024;
+
+	/** The size of the chunks copied from the ring buffer to the file */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	/** The buffers the records are encoded in, reused by each thread */
+	private static final ThreadLocal<ByteArrayOutputStream> ENCODING_BUFFERS = new ThreadLocal<ByteArrayOutputStream>()
+	{
+		@Override
+		protected ByteArrayOutputStream initialValue()
+		{
+			return new ByteArrayOutputStream( 512 );
+		}
+	};
+
+	/** The log */
+	private final File file;
+
+	private final OutputStream out;
+
+	/** The ring buffer, guarded by this */
+	private final byte[] ring;
+
+	/** The position of the next byte to put in the ring buffer, guarded by this */
+	private long head;
+
+	/** The position of the next byte to write to the file, guarded by this */
+	private long tail;
+
+	/** The number of bytes accepted in the log, guarded by this */
+	private long accepted;
+
+	/** The maximum size of the log */
+	private final long maxFileSize;
+
+	/** Tells if the recorder is closed, guarded by this */
+	private boolean closed;
+
+	/** When the recording started, the record offsets are relative to it */
+	private final long startNanos = System.nanoTime();
+
+	/** Writes the ring buffer to the file */
+	private final Thread writer;
+
+	private final AtomicLong recorded = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+
+	/**
+	 * Creates a new log and starts writing it
+	 *
+	 * @param file the log, replaced if it exists
+	 * @param bufferSize the size of the ring buffer, in bytes
+	 * @param maxFileSize the maximum size of the log, in bytes
+	 */
+	public OperationRecorder( File file, int bufferSize, long maxFileSize ) throws IOException
+	{
+		this.file = file;
+		this.ring = new byte[bufferSize];
+		this.maxFileSize = maxFileSize;
+
+		if ( !file.getParentFile().isDirectory() && !file.getParentFile().mkdirs() )
+		{
+			throw new IOException( "Cannot create the directory of " + file );
+		}
+
+		out = new BufferedOutputStream( new FileOutputStream( file ), CHUNK_SIZE );
+
+		DataOutputStream header = new DataOutputStream( out );
+		header.write( Strings.getBytesUtf8( MAGIC ) );
+		header.writeLong( System.currentTimeMillis() );
+		accepted = MAGIC.length() + 8;
+
+		writer = new NamedThreadFactory( "apacheds-recorder" ).newThread( new Runnable()
+		{
+			public void run()
+			{
+				drain();
+			}
+		} );
+		writer.start();
+	}
+
+
+	/**
+	 * @return the offset of a time given by {@link System#nanoTime()} in this recording
+	 */
+	public long getOffset( long nanoTime )
+	{
+		return nanoTime - startNanos;
+	}
+
+
+	/**
+	 * Records an operation, or drops it if the buffer is full
+	 */
+	public void record( OperationRecord record )
+	{
+		ByteArrayOutputStream buffer = ENCODING_BUFFERS.get();
+		buffer.reset();
+
+		try
+		{
+			DataOutputStream data = new DataOutputStream( buffer );
+			data.writeInt( 0 );
+			record.write( data );
+		}
+		catch ( IOException e )
+		{
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException( e );
+		}
+
+		byte[] bytes = buffer.toByteArray();
+		int length = bytes.length - 4;
+		bytes[0] = ( byte ) ( length >>> 24 );
+		bytes[1] = ( byte ) ( length >>> 16 );
+		bytes[2] = ( byte ) ( length >>> 8 );
+		bytes[3] = ( byte ) length;
+
+		if ( put( bytes ) )
+		{
+			recorded.incrementAndGet();
+		}
+		else
+		{
+			dropped.incrementAndGet();
+		}
+	}
+
+
+	private synchronized boolean put( byte[] bytes )
+	{
+		if ( closed || ( bytes.length > ring.length - ( head - tail ) ) || ( accepted + bytes.length > maxFileSize ) )
+		{
+			return false;
+		}
+
+		int start = ( int ) ( head % ring.length );
+		int first = Math.min( bytes.length, ring.length - start );
+		System.arraycopy( bytes, 0, ring, start, first );
+		System.arraycopy( bytes, first, ring, 0, bytes.length - first );
+
+		if ( head == tail )
+		{
+			notifyAll();
+		}
+
+		head += bytes.length;
+		accepted += bytes.length;
+
+		return true;
+	}
+
+
+	/**
+	 * Copies the next chunk of the ring buffer, waiting for it
+	 *
+	 * @return the size of the chunk, -1 once the recorder is closed and the buffer written
+	 */
+	private synchronized int take( byte[] chunk ) throws InterruptedException
+	{
+		while ( ( head == tail ) && !closed )
+		{
+			wait();
+		}
+
+		if ( head == tail )
+		{
+			return -1;
+		}
+
+		int length = ( int ) Math.min( head - tail, chunk.length );
+		int start = ( int ) ( tail % ring.length );
+		int first = Math.min( length, ring.length - start );
+		System.arraycopy( ring, start, chunk, 0, first );
+		System.arraycopy( ring, 0, chunk, first, length - first );
+		tail += length;
+
+		return length;
+	}
+
+
+	private synchronized boolean isEmpty()
+	{
+		return head == tail;
+	}
+
+
+	private void drain()
+	{
+		byte[] chunk = new byte[CHUNK_SIZE];
+
+		try
+		{
+			for ( int length = take( chunk ); length != -1; length = take( chunk ) )
+			{
+				out.write( chunk, 0, length );
+
+				// The log can be read while the recording goes on
+				if ( isEmpty() )
+				{
+					out.flush();
+				}
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			LOG.warn( "The recording to {} was interrupted", file );
+		}
+		catch ( IOException e )
+		{
+			LOG.error( "Cannot write the operation log " + file + ", the recording is stopped", e );
+
+			synchronized ( this )
+			{
+				closed = true;
+			}
+		}
+	}
+
+
+	/**
+	 * @return the log
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+
+	/**
+	 * @return the number of recorded operations
+	 */
+	public long getRecordedCount()
+	{
+		return recorded.get();
+	}
+
+
+	/**
+	 * @return the number of operations dropped because the buffer was full or the log too large
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+
+	/**
+	 * Stops the recording, once the buffered records are written
+	 */
+	public void close() throws IOException
+	{
+		synchronized ( this )
+		{
+			closed = true;
+			notifyAll();
+		}
+
+		try
+		{
+			writer.join();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		out.close();
+		LOG.info( "{} operations recorded to {}, {} dropped", new Object[]
+			{ recorded.get(), file, dropped.get() } );
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ApproximateNode;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.ExtensibleNode;
+import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.LessEqNode;
+import org.apache.directory.api.ldap.model.filter.NotNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AbandonRequest;
+import org.apache.directory.api.ldap.model.message.AddRequest;
+import org.apache.directory.api.ldap.model.message.BindRequest;
+import org.apache.directory.api.ldap.model.message.CompareRequest;
+import org.apache.directory.api.ldap.model.message.DeleteRequest;
+import org.apache.directory.api.ldap.model.message.ExtendedRequest;
+import org.apache.directory.api.ldap.model.message.ModifyDnRequest;
+import org.apache.directory.api.ldap.model.message.ModifyRequest;
+import org.apache.directory.api.ldap.model.message.Request;
+import org.apache.directory.api.ldap.model.message.ResultResponse;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.UnbindRequest;
+import org.apache.directory.api.util.Strings;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.liveSense.service.apacheds.OperationRecord.RecordedAttribute;
+
+
+/**
+ * A MINA filter recording the LDAP operations to an {@link OperationRecorder}. An
+ * operation is recorded once its response is sent, with the time elapsed since its
+ * request was received. The abandon and unbind requests, which have no response,
+ * are recorded when they are received.
+ *
+ * The filter has to be put after the LDAP codec, as it reads decoded requests and
+ * responses.
+ */
+public class OperationRecorderFilter extends IoFilterAdapter
+{
+	/** The name of this filter in the chain */
+	public static final String NAME = "operationRecorder";
+
+	/** The operations of a session waiting for their response, by message id */
+	private static final AttributeKey PENDING_OPERATIONS = new AttributeKey( OperationRecorderFilter.class,
+			"pendingOperations" );
+
+	/** Recorded in place of the asserted values of the password attributes in the search filters */
+	static final String REDACTED_VALUE = "redacted";
+
+	/** Where the operations are recorded */
+	private final OperationRecorder recorder;
+
+
+	/**
+	 * An operation waiting for its response
+	 */
+	private static class PendingOperation
+	{
+		private final OperationRecord.Type type;
+
+		private final long start;
+
+		private final String dn;
+
+		private final String argument;
+
+		private final int option;
+
+		private final List<RecordedAttribute> attributes;
+
+
+		private PendingOperation( OperationRecord.Type type, long start, String dn, String argument, int option,
+				List<RecordedAttribute> attributes )
+		{
+			this.type = type;
+			this.start = start;
+			this.dn = dn;
+			this.argument = argument;
+			this.option = option;
+			this.attributes = attributes;
+		}
+	}
+
+
+	/**
+	 * @param recorder where the operations are recorded
+	 */
+	public OperationRecorderFilter( OperationRecorder recorder )
+	{
+		this.recorder = recorder;
+	}
+
+
+	/**
+	 * @return the recorder of this filter
+	 */
+	public OperationRecorder getRecorder()
+	{
+		return recorder;
+	}
+
+
+	@Override
+	public void sessionCreated( NextFilter nextFilter, IoSession session ) throws Exception
+	{
+		session.setAttribute( PENDING_OPERATIONS, new ConcurrentHashMap<Integer, PendingOperation>() );
+		nextFilter.sessionCreated( session );
+	}
+
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void messageReceived( NextFilter nextFilter, IoSession session, Object message ) throws Exception
+	{
+		Map<Integer, PendingOperation> pending = ( Map<Integer, PendingOperation> ) session
+				.getAttribute( PENDING_OPERATIONS );
+
+		if ( ( pending != null ) && ( message instanceof Request ) )
+		{
+			long start = System.nanoTime();
+			Request request = ( Request ) message;
+
+			if ( request instanceof AbandonRequest )
+			{
+				record( session, new PendingOperation( OperationRecord.Type.ABANDON, start, "", null,
+						( ( AbandonRequest ) request ).getAbandoned(), null ), 0, start );
+			}
+			else if ( request instanceof UnbindRequest )
+			{
+				record( session, new PendingOperation( OperationRecord.Type.UNBIND, start, "", null, 0, null ), 0,
+						start );
+			}
+			else
+			{
+				PendingOperation operation = toPendingOperation( request, start );
+
+				if ( operation != null )
+				{
+					pending.put( request.getMessageId(), operation );
+				}
+			}
+		}
+
+		nextFilter.messageReceived( session, message );
+	}
+
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void messageSent( NextFilter nextFilter, IoSession session, WriteRequest writeRequest ) throws Exception
+	{
+		Object message = writeRequest.getMessage();
+
+		if ( message instanceof ResultResponse )
+		{
+			Map<Integer, PendingOperation> pending = ( Map<Integer, PendingOperation> ) session
+					.getAttribute( PENDING_OPERATIONS );
+			ResultResponse response = ( ResultResponse ) message;
+			PendingOperation operation = pending == null ? null : pending.remove( response.getMessageId() );
+
+			if ( operation != null )
+			{
+				record( session, operation, response.getLdapResult().getResultCode().getResultCode(),
+						System.nanoTime() );
+			}
+		}
+
+		nextFilter.messageSent( session, writeRequest );
+	}
+
+
+	private void record( IoSession session, PendingOperation operation, int resultCode, long end )
+	{
+		recorder.record( new OperationRecord( operation.type, session.getId(), recorder.getOffset( operation.start ),
+				end - operation.start, resultCode, operation.dn, operation.argument, operation.option,
+				operation.attributes ) );
+	}
+
+
+	/**
+	 * @return the operation of a request waiting for its response, null if it is not recorded
+	 */
+	private static PendingOperation toPendingOperation( Request request, long start )
+	{
+		if ( request instanceof SearchRequest )
+		{
+			SearchRequest search = ( SearchRequest ) request;
+			List<RecordedAttribute> attributes = new ArrayList<RecordedAttribute>();
+
+			for ( String attribute : search.getAttributes() )
+			{
+				attributes.add( new RecordedAttribute( OperationRecord.ADD_VALUES, attribute, new ArrayList<byte[]>() ) );
+			}
+
+			return new PendingOperation( OperationRecord.Type.SEARCH, start, search.getBase().getName(),
+					toRecordedFilter( search.getFilter() ), search.getScope().getScope(), attributes );
+		}
+
+		if ( request instanceof BindRequest )
+		{
+			BindRequest bind = ( BindRequest ) request;
+
+			// The credentials are never recorded
+			return new PendingOperation( OperationRecord.Type.BIND, start, bind.getName(), bind.isSimple() ? null
+					: bind.getSaslMechanism(), 0, null );
+		}
+
+		if ( request instanceof AddRequest )
+		{
+			AddRequest add = ( AddRequest ) request;
+			List<RecordedAttribute> attributes = new ArrayList<RecordedAttribute>();
+
+			for ( Attribute attribute : add.getEntry() )
+			{
+				attributes.add( toRecordedAttribute( OperationRecord.ADD_VALUES, attribute ) );
+			}
+
+			return new PendingOperation( OperationRecord.Type.ADD, start, add.getEntryDn().getName(), null, 0,
+					attributes );
+		}
+
+		if ( request instanceof ModifyRequest )
+		{
+			ModifyRequest modify = ( ModifyRequest ) request;
+			List<RecordedAttribute> attributes = new ArrayList<RecordedAttribute>();
+
+			for ( Modification modification : modify.getModifications() )
+			{
+				attributes.add( toRecordedAttribute( ( byte ) modification.getOperation().getValue(),
+						modification.getAttribute() ) );
+			}
+
+			return new PendingOperation( OperationRecord.Type.MODIFY, start, modify.getName().getName(), null, 0,
+					attributes );
+		}
+
+		if ( request instanceof DeleteRequest )
+		{
+			return new PendingOperation( OperationRecord.Type.DELETE, start, ( ( DeleteRequest ) request ).getName()
+					.getName(), null, 0, null );
+		}
+
+		if ( request instanceof ModifyDnRequest )
+		{
+			ModifyDnRequest modifyDn = ( ModifyDnRequest ) request;
+			List<RecordedAttribute> attributes = new ArrayList<RecordedAttribute>();
+
+			if ( modifyDn.getNewSuperior() != null )
+			{
+				List<byte[]> values = new ArrayList<byte[]>();
+				values.add( Strings.getBytesUtf8( modifyDn.getNewSuperior().getName() ) );
+				attributes.add( new RecordedAttribute( OperationRecord.ADD_VALUES, OperationRecord.NEW_SUPERIOR, values ) );
+			}
+
+			return new PendingOperation( OperationRecord.Type.MODIFY_DN, start, modifyDn.getName().getName(),
+					modifyDn.getNewRdn() == null ? null : modifyDn.getNewRdn().getName(),
+					modifyDn.getDeleteOldRdn() ? 1 : 0, attributes );
+		}
+
+		if ( request instanceof CompareRequest )
+		{
+			CompareRequest compare = ( CompareRequest ) request;
+			List<byte[]> values = new ArrayList<byte[]>();
+
+			if ( !isPassword( compare.getAttributeId() ) )
+			{
+				values.add( compare.getAssertionValue().getBytes() );
+			}
+
+			List<RecordedAttribute> attributes = new ArrayList<RecordedAttribute>();
+			attributes.add( new RecordedAttribute( OperationRecord.ADD_VALUES, compare.getAttributeId(), values ) );
+
+			return new PendingOperation( OperationRecord.Type.COMPARE, start, compare.getName().getName(), null, 0,
+					attributes );
+		}
+
+		if ( request instanceof ExtendedRequest )
+		{
+			return new PendingOperation( OperationRecord.Type.EXTENDED, start, "",
+					( ( ExtendedRequest<?> ) request ).getRequestName(), 0, null );
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * @return the attribute with its values, but for the password attributes
+	 */
+	private static RecordedAttribute toRecordedAttribute( byte operation, Attribute attribute )
+	{
+		List<byte[]> values = new ArrayList<byte[]>();
+
+		if ( !isPassword( attribute.getUpId() ) )
+		{
+			for ( Value<?> value : attribute )
+			{
+				values.add( value.getBytes() );
+			}
+		}
+
+		return new RecordedAttribute( operation, attribute.getUpId(), values );
+	}
+
+
+	/**
+	 * @return the filter, with the values asserted on the password attributes
+	 *         replaced by {@link #REDACTED_VALUE}
+	 */
+	static String toRecordedFilter( ExprNode filter )
+	{
+		StringBuilder recorded = new StringBuilder();
+		appendRecordedFilter( recorded, filter );
+
+		return recorded.toString();
+	}
+
+
+	private static void appendRecordedFilter( StringBuilder recorded, ExprNode node )
+	{
+		if ( node instanceof BranchNode )
+		{
+			recorded.append( '(' );
+
+			if ( node instanceof AndNode )
+			{
+				recorded.append( '&' );
+			}
+			else if ( node instanceof OrNode )
+			{
+				recorded.append( '|' );
+			}
+			else if ( node instanceof NotNode )
+			{
+				recorded.append( '!' );
+			}
+
+			for ( ExprNode child : ( ( BranchNode ) node ).getChildren() )
+			{
+				appendRecordedFilter( recorded, child );
+			}
+
+			recorded.append( ')' );
+		}
+		else if ( ( node instanceof LeafNode ) && !( node instanceof PresenceNode )
+				&& isPassword( ( ( LeafNode ) node ).getAttribute() ) )
+		{
+			String attribute = ( ( LeafNode ) node ).getAttribute();
+
+			if ( node instanceof GreaterEqNode )
+			{
+				recorded.append( '(' ).append( attribute ).append( ">=" );
+			}
+			else if ( node instanceof LessEqNode )
+			{
+				recorded.append( '(' ).append( attribute ).append( "<=" );
+			}
+			else if ( node instanceof ApproximateNode )
+			{
+				recorded.append( '(' ).append( attribute ).append( "~=" );
+			}
+			else if ( node instanceof ExtensibleNode )
+			{
+				ExtensibleNode extensible = ( ExtensibleNode ) node;
+				recorded.append( '(' ).append( attribute );
+
+				if ( extensible.hasDnAttributes() )
+				{
+					recorded.append( ":dn" );
+				}
+
+				if ( extensible.getMatchingRuleId() != null )
+				{
+					recorded.append( ':' ).append( extensible.getMatchingRuleId() );
+				}
+
+				recorded.append( ":=" );
+			}
+			else
+			{
+				// The equality and the substring assertions
+				recorded.append( '(' ).append( attribute ).append( '=' );
+			}
+
+			recorded.append( REDACTED_VALUE ).append( ')' );
+		}
+		else
+		{
+			recorded.append( node );
+		}
+	}
+
+
+	/**
+	 * @return true if the values of the attribute are secrets, whatever the options
+	 *         of the attribute description
+	 */
+	static boolean isPassword( String attributeId )
+	{
+		if ( attributeId == null )
+		{
+			return false;
+		}
+
+		String id = Strings.toLowerCase( attributeId );
+		int options = id.indexOf( ';' );
+
+		if ( options >= 0 )
+		{
+			id = id.substring( 0, options );
+		}
+
+		if ( id.startsWith( "oid." ) )
+		{
+			id = id.substring( 4 );
+		}
+
+		return id.contains( "password" ) || id.equals( "2.5.4.35" ) || id.equals( "krb5key" );
+	}
+}
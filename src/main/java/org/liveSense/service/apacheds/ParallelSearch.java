@@ -0,0 +1,435 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Runs the large subtree searches on a pool of workers. The subtree is split by
+ * the children of the search base : each worker searches the subtrees of a range
+ * of children, evaluating the filter on its own, and the results are returned
+ * range after range, so the order of the entries does not depend on the workers.
+ *
+ * The searches of a subtree holding less entries than the cutoff, or whose size
+ * cannot be estimated, are run as a single search in the calling thread. The
+ * aliases are dereferenced in each child subtree. The size and time limits are
+ * applied to the whole search by the {@link SearchResult}.
+ *
+ * Only a few ranges per worker are searched ahead of the one being read, and a
+ * worker waits at most {@link #PUT_TIMEOUT} milliseconds for the result to be
+ * read : a result which is neither read nor closed ends with a failure once its
+ * buffered entries are read, instead of holding the workers.
+ */
+public class ParallelSearch
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( ParallelSearch.class );
+
+	/** The default number of entries of the subtree below which the search is not split */
+	public static final int DEFAULT_CUTOFF = 10000;
+
+	/** The number of entries buffered for each range of children */
+	private static final int BUFFER_SIZE = 512;
+
+	/** The number of ranges of children for each worker, so a slow range does not hold the others */
+	private static final int RANGES_PER_WORKER = 4;
+
+	/** How long a worker waits for room in the buffer of its range, in milliseconds */
+	static final long PUT_TIMEOUT = 60000;
+
+	/** Ends the entries of a range */
+	private static final Object END = new Object();
+
+	/** The DirectoryService, whose partitions estimate the subtree sizes */
+	private final DirectoryService directoryService;
+
+	/** The workers */
+	private final ExecutorService workers;
+
+	/** The number of workers */
+	private final int parallelism;
+
+	/** The number of entries of the subtree below which the search is not split */
+	private final int cutoff;
+
+
+	/**
+	 * @param directoryService the searched DirectoryService
+	 * @param workers the workers running the searches
+	 * @param parallelism the number of workers
+	 * @param cutoff the number of entries of the subtree below which the search is not split
+	 */
+	public ParallelSearch( DirectoryService directoryService, ExecutorService workers, int parallelism, int cutoff )
+	{
+		this.directoryService = directoryService;
+		this.workers = workers;
+		this.parallelism = parallelism;
+		this.cutoff = cutoff;
+	}
+
+
+	/**
+	 * Searches a subtree
+	 *
+	 * @param session the session the searches are run with
+	 * @param base the search base
+	 * @param filter the filter
+	 * @param derefMode how the aliases are dereferenced
+	 * @param sizeLimit the maximum number of entries returned, 0 for no limit
+	 * @param timeLimit the maximum duration of the search in seconds, 0 for no limit
+	 * @param attributes the attributes to return
+	 * @return the found entries
+	 */
+	public SearchResult search( CoreSession session, Dn base, ExprNode filter, AliasDerefMode derefMode,
+			long sizeLimit, int timeLimit, String... attributes ) throws LdapException
+	{
+		long size = estimateSize( base );
+
+		if ( size < cutoff )
+		{
+			return new SearchResult( session.search( base, SearchScope.SUBTREE, filter, derefMode, attributes ),
+					sizeLimit, timeLimit );
+		}
+
+		List<Dn> children = getChildren( session, base );
+
+		if ( children.size() < 2 )
+		{
+			return new SearchResult( session.search( base, SearchScope.SUBTREE, filter, derefMode, attributes ),
+					sizeLimit, timeLimit );
+		}
+
+		LOG.debug( "Searching the {} entries below {} in {} child subtrees", new Object[]
+			{ size, base, children.size() } );
+
+		return new SearchResult( new ParallelSource( session, base, filter, derefMode, attributes, children ),
+				sizeLimit, timeLimit );
+	}
+
+
+	/**
+	 * @return the number of entries of the subtree, 0 if it cannot be estimated
+	 */
+	private long estimateSize( Dn base )
+	{
+		try
+		{
+			Partition partition = directoryService.getPartitionNexus().getPartition( base );
+
+			if ( !( partition instanceof AbstractBTreePartition ) )
+			{
+				return 0;
+			}
+
+			AbstractBTreePartition btreePartition = ( AbstractBTreePartition ) partition;
+			String id = btreePartition.getEntryId( base );
+
+			return id == null ? 0 : btreePartition.getSubLevelIndex().count( id );
+		}
+		catch ( Exception e )
+		{
+			LOG.debug( "Cannot estimate the size of the subtree " + base, e );
+
+			return 0;
+		}
+	}
+
+
+	private List<Dn> getChildren( CoreSession session, Dn base ) throws LdapException
+	{
+		List<Dn> children = new ArrayList<Dn>();
+		EntryFilteringCursor cursor = session.search( base, SearchScope.ONELEVEL, new PresenceNode(
+				SchemaConstants.OBJECT_CLASS_AT ), AliasDerefMode.NEVER_DEREF_ALIASES, SchemaConstants.NO_ATTRIBUTE );
+
+		try
+		{
+			while ( cursor.next() )
+			{
+				children.add( cursor.get().getDn() );
+			}
+		}
+		catch ( LdapException e )
+		{
+			throw e;
+		}
+		catch ( Exception e )
+		{
+			throw new LdapException( e.getMessage(), e );
+		}
+		finally
+		{
+			try
+			{
+				cursor.close();
+			}
+			catch ( Exception e )
+			{
+				// The cursor is released anyway
+			}
+		}
+
+		return children;
+	}
+
+
+	/**
+	 * The entries found by the workers : the base entry, then the entries of each
+	 * range of children, in order
+	 */
+	private class ParallelSource implements SearchResult.EntrySource
+	{
+		private final CoreSession session;
+
+		private final Dn base;
+
+		private final ExprNode filter;
+
+		private final AliasDerefMode derefMode;
+
+		private final String[] attributes;
+
+		/** The children of each range */
+		private final List<List<Dn>> rangeChildren = new ArrayList<List<Dn>>();
+
+		/** The entries of each range, ended by END or by the failure of the range */
+		private final List<BlockingQueue<Object>> ranges = new ArrayList<BlockingQueue<Object>>();
+
+		/** The number of ranges submitted to the workers */
+		private int submitted;
+
+		/** The range being read, -1 while the base entry is not read */
+		private int current = -1;
+
+		private volatile boolean closed;
+
+		/** Set when the result was not read in time, the workers are then stopped */
+		private volatile LdapException abandoned;
+
+
+		private ParallelSource( CoreSession session, Dn base, ExprNode filter, AliasDerefMode derefMode,
+				String[] attributes, List<Dn> children )
+		{
+			this.session = session;
+			this.base = base;
+			this.filter = filter;
+			this.derefMode = derefMode;
+			this.attributes = attributes;
+
+			int nbRanges = Math.min( children.size(), parallelism * RANGES_PER_WORKER );
+
+			for ( int i = 0; i < nbRanges; i++ )
+			{
+				rangeChildren.add( children.subList( i * children.size() / nbRanges, ( i + 1 ) * children.size()
+						/ nbRanges ) );
+				ranges.add( new ArrayBlockingQueue<Object>( BUFFER_SIZE ) );
+			}
+
+			// The ranges are submitted in order, so the range being read is always running or done
+			while ( submitted < Math.min( nbRanges, parallelism + 1 ) )
+			{
+				submitNextRange();
+			}
+		}
+
+
+		/**
+		 * Hands the next range to the workers, once the one being read is far enough
+		 */
+		private void submitNextRange()
+		{
+			if ( submitted >= ranges.size() )
+			{
+				return;
+			}
+
+			final List<Dn> range = rangeChildren.get( submitted );
+			final BlockingQueue<Object> queue = ranges.get( submitted );
+			submitted++;
+
+			workers.execute( new Runnable()
+			{
+				public void run()
+				{
+					searchRange( range, queue );
+				}
+			} );
+		}
+
+
+		private void searchRange( List<Dn> range, BlockingQueue<Object> queue )
+		{
+			Object end = END;
+
+			try
+			{
+				for ( Dn child : range )
+				{
+					EntryFilteringCursor cursor = session.search( child, SearchScope.SUBTREE, filter, derefMode,
+							attributes );
+
+					try
+					{
+						while ( !closed && cursor.next() )
+						{
+							if ( !put( queue, cursor.get() ) )
+							{
+								return;
+							}
+						}
+					}
+					finally
+					{
+						cursor.close();
+					}
+				}
+			}
+			catch ( Exception e )
+			{
+				end = e;
+			}
+
+			try
+			{
+				put( queue, end );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+
+		/**
+		 * Waits for room in the queue, unless the result is closed. Stops all the
+		 * ranges of the search when the result is not read in time.
+		 *
+		 * @return false if the element was not queued
+		 */
+		private boolean put( BlockingQueue<Object> queue, Object element ) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + PUT_TIMEOUT;
+
+			while ( !closed )
+			{
+				if ( queue.offer( element, 100, TimeUnit.MILLISECONDS ) )
+				{
+					return true;
+				}
+
+				// The reader is behind
+				if ( System.currentTimeMillis() > deadline )
+				{
+					abandoned = new LdapException( "The search result of " + base + " was not read for " + PUT_TIMEOUT
+							+ " ms, the search is abandoned" );
+					closed = true;
+					LOG.warn( abandoned.getMessage() );
+				}
+			}
+
+			return false;
+		}
+
+
+		public Entry next() throws Exception
+		{
+			if ( current < 0 )
+			{
+				current = 0;
+				EntryFilteringCursor cursor = session.search( base, SearchScope.OBJECT, filter, derefMode, attributes );
+
+				try
+				{
+					if ( cursor.next() )
+					{
+						return cursor.get();
+					}
+				}
+				finally
+				{
+					cursor.close();
+				}
+			}
+
+			while ( current < ranges.size() )
+			{
+				Object element = ranges.get( current ).poll( 100, TimeUnit.MILLISECONDS );
+
+				if ( element == null )
+				{
+					// The workers were stopped, the range will not be ended
+					if ( abandoned != null )
+					{
+						throw abandoned;
+					}
+				}
+				else if ( element == END )
+				{
+					current++;
+					submitNextRange();
+				}
+				else if ( element instanceof Exception )
+				{
+					throw ( Exception ) element;
+				}
+				else
+				{
+					return ( Entry ) element;
+				}
+			}
+
+			return null;
+		}
+
+
+		public void close()
+		{
+			closed = true;
+
+			// Releases the workers waiting for room
+			for ( BlockingQueue<Object> queue : ranges )
+			{
+				queue.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * The tuning of one of the JDBM data partitions declared in the directory
+ * configuration, given as
+ * <code>partitionId:cache=10000,syncOnWrite=false,optimizer=true</code> : the
+ * entry cache size, sync on write and optimizer settings of the partition. Any
+ * value left out keeps the one of the directory configuration.
+ */
+public class PartitionBackendSettings
+{
+	/** The partition id */
+	private final String partitionId;
+
+	/** The number of entries cached by a JDBM partition, -1 if not set */
+	private int cacheSize = -1;
+
+	/** Tells if a JDBM partition is synced after every write, null if not set */
+	private Boolean syncOnWrite;
+
+	/** Tells if the JDBM optimizer is enabled, null if not set */
+	private Boolean optimizer;
+
+
+	public PartitionBackendSettings( String partitionId )
+	{
+		this.partitionId = partitionId;
+	}
+
+
+	/**
+	 * Parses the settings of a partition.
+	 *
+	 * @param settings the settings, as <code>partitionId:cache=10000,syncOnWrite=false,optimizer=true</code>
+	 * @return the parsed settings
+	 * @throws IllegalArgumentException if the settings cannot be parsed
+	 */
+	public static PartitionBackendSettings parse( String settings )
+	{
+		int pos = settings.indexOf( ':' );
+
+		if ( pos <= 0 )
+		{
+			throw new IllegalArgumentException( "Missing partition id in the partition settings '" + settings + "'" );
+		}
+
+		PartitionBackendSettings backendSettings = new PartitionBackendSettings( settings.substring( 0, pos ).trim() );
+
+		for ( String setting : settings.substring( pos + 1 ).split( "," ) )
+		{
+			String[] keyValue = setting.split( "=" );
+
+			if ( keyValue.length != 2 )
+			{
+				throw new IllegalArgumentException( "Invalid partition setting '" + setting + "' for the partition "
+						+ backendSettings.partitionId );
+			}
+
+			String key = keyValue[0].trim();
+			String value = keyValue[1].trim();
+
+			if ( "cache".equals( key ) )
+			{
+				backendSettings.cacheSize = Integer.parseInt( value );
+			}
+			else if ( "syncOnWrite".equals( key ) )
+			{
+				backendSettings.syncOnWrite = Boolean.valueOf( value );
+			}
+			else if ( "optimizer".equals( key ) )
+			{
+				backendSettings.optimizer = Boolean.valueOf( value );
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Unknown partition setting '" + key + "' for the partition "
+						+ backendSettings.partitionId );
+			}
+		}
+
+		return backendSettings;
+	}
+
+
+	public String getPartitionId()
+	{
+		return partitionId;
+	}
+
+
+	public int getCacheSize()
+	{
+		return cacheSize;
+	}
+
+
+	public Boolean getSyncOnWrite()
+	{
+		return syncOnWrite;
+	}
+
+
+	public Boolean getOptimizer()
+	{
+		return optimizer;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return partitionId + ":cache=" + cacheSize + ",syncOnWrite=" + syncOnWrite + ",optimizer=" + optimizer;
+	}
+}
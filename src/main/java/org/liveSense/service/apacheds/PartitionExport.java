@@ -0,0 +1,480 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.ldif.LdifUtils;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Streams all the entries of a partition, with their operational attributes, to
+ * LDIF or to a compact binary format, while the server keeps serving requests.
+ * The entries are read through a search cursor, so the memory used does not
+ * depend on the size of the partition, and the export can be throttled so it
+ * does not starve the LDAP requests.
+ *
+ * The partitions do not keep the former versions of the entries, so the export
+ * cannot be a true point-in-time view. Instead, the CSN of the DirectoryService
+ * is taken when the export starts and written in the header : the entries whose
+ * entryCSN is older are exported as they were at that time, the ones changed
+ * during the export are exported in their latest state and counted. Replaying the
+ * changes made since the snapshot CSN on top of the export gives a consistent
+ * state.
+ */
+public class PartitionExport
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( PartitionExport.class );
+
+	/** The export formats */
+	public enum Format
+	{
+		/** LDIF, readable by {@link LdifImport} */
+		LDIF( ".ldif" ),
+
+		/** The serialized entries, faster to write and to read back */
+		BINARY( ".entries" );
+
+		private final String extension;
+
+
+		private Format( String extension )
+		{
+			this.extension = extension;
+		}
+
+
+		/**
+		 * @return the file name extension of this format
+		 */
+		public String getExtension()
+		{
+			return extension;
+		}
+	}
+
+	/** The version of the binary format */
+	public static final int FORMAT_VERSION = 1;
+
+	/** The DirectoryService the partition belongs to */
+	private final DirectoryService directoryService;
+
+	/** The exported partition */
+	private final Partition partition;
+
+	/** The maximum number of entries exported per second, 0 for no limit */
+	private final int maxEntriesPerSecond;
+
+	/** The CSN the export started at */
+	private volatile Csn snapshotCsn;
+
+	/** The number of exported entries */
+	private volatile long exportedCount;
+
+	/** The number of entries changed after the snapshot CSN */
+	private volatile long changedCount;
+
+
+	/**
+	 * @param directoryService the started DirectoryService
+	 * @param partition the partition to export
+	 * @param maxEntriesPerSecond the maximum number of entries exported per second, 0 for no limit
+	 */
+	public PartitionExport( DirectoryService directoryService, Partition partition, int maxEntriesPerSecond )
+	{
+		this.directoryService = directoryService;
+		this.partition = partition;
+		this.maxEntriesPerSecond = maxEntriesPerSecond;
+	}
+
+
+	/**
+	 * Exports the partition. The stream is flushed but not closed.
+	 *
+	 * @param out the stream the entries are written to
+	 * @param format the format of the export
+	 * @throws Exception if the partition cannot be read or the stream written
+	 */
+	public void run( OutputStream out, Format format ) throws Exception
+	{
+		snapshotCsn = directoryService.getCSN();
+		exportedCount = 0;
+		changedCount = 0;
+
+		long start = System.nanoTime();
+		CoreSession session = directoryService.getAdminSession();
+		EntryFilteringCursor cursor = session.search( partition.getSuffixDn(), SearchScope.SUBTREE,
+				new PresenceNode( SchemaConstants.OBJECT_CLASS_AT ), AliasDerefMode.NEVER_DEREF_ALIASES,
+				SchemaConstants.ALL_USER_ATTRIBUTES, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES );
+
+		EntryWriter writer = ( format == Format.BINARY ) ? new BinaryEntryWriter( out ) : new LdifEntryWriter( out );
+
+		try
+		{
+			writer.writeHeader();
+			cursor.beforeFirst();
+
+			while ( cursor.next() )
+			{
+				Entry entry = cursor.get();
+
+				if ( isChangedAfterSnapshot( entry ) )
+				{
+					changedCount++;
+				}
+
+				writer.write( entry );
+				exportedCount++;
+
+				throttle( start );
+			}
+
+			writer.writeTrailer();
+			writer.flush();
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		LOG.info( "Partition {} exported : {} entries, {} changed after the snapshot CSN {}", new Object[]
+			{ partition.getId(), exportedCount, changedCount, snapshotCsn } );
+	}
+
+
+	private boolean isChangedAfterSnapshot( Entry entry ) throws Exception
+	{
+		Attribute entryCsn = entry.get( SchemaConstants.ENTRY_CSN_AT );
+
+		if ( entryCsn == null )
+		{
+			return false;
+		}
+
+		try
+		{
+			return new Csn( entryCsn.getString() ).compareTo( snapshotCsn ) > 0;
+		}
+		catch ( Exception e )
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * Sleeps until the exported entries are back under the rate limit
+	 */
+	private void throttle( long start ) throws InterruptedException
+	{
+		if ( maxEntriesPerSecond <= 0 )
+		{
+			return;
+		}
+
+		long expected = TimeUnit.SECONDS.toNanos( exportedCount ) / maxEntriesPerSecond;
+		long ahead = expected - ( System.nanoTime() - start );
+
+		if ( ahead > 0 )
+		{
+			TimeUnit.NANOSECONDS.sleep( ahead );
+		}
+	}
+
+
+	/**
+	 * @return the CSN the export started at, null before the export is run
+	 */
+	public Csn getSnapshotCsn()
+	{
+		return snapshotCsn;
+	}
+
+
+	/**
+	 * @return the number of exported entries
+	 */
+	public long getExportedCount()
+	{
+		return exportedCount;
+	}
+
+
+	/**
+	 * @return the number of exported entries which were changed after the snapshot CSN
+	 */
+	public long getChangedCount()
+	{
+		return changedCount;
+	}
+
+
+	/**
+	 * Writes the entries in one format
+	 */
+	private interface EntryWriter
+	{
+		void writeHeader() throws IOException;
+
+
+		void write( Entry entry ) throws Exception;
+
+
+		void writeTrailer() throws IOException;
+
+
+		void flush() throws IOException;
+	}
+
+
+	private class LdifEntryWriter implements EntryWriter
+	{
+		private final Writer writer;
+
+
+		private LdifEntryWriter( OutputStream out ) throws IOException
+		{
+			writer = new BufferedWriter( new OutputStreamWriter( out, "UTF-8" ), 64 * 1024 );
+		}
+
+
+		public void writeHeader() throws IOException
+		{
+			writer.write( "# Export of the partition " + partition.getId() + " (" + partition.getSuffixDn() + ")\n" );
+			writer.write( "# snapshotCSN: " + snapshotCsn + "\n" );
+			writer.write( "version: 1\n\n" );
+		}
+
+
+		public void write( Entry entry ) throws Exception
+		{
+			writer.write( LdifUtils.convertToLdif( entry ) );
+			writer.write( '\n' );
+		}
+
+
+		public void writeTrailer() throws IOException
+		{
+			writer.write( "# " + exportedCount + " entries, " + changedCount + " changed after the snapshot CSN\n" );
+		}
+
+
+		public void flush() throws IOException
+		{
+			writer.flush();
+		}
+	}
+
+
+	private class BinaryEntryWriter implements EntryWriter
+	{
+		private final ObjectOutputStream out;
+
+
+		private BinaryEntryWriter( OutputStream out ) throws IOException
+		{
+			this.out = new ObjectOutputStream( out );
+		}
+
+
+		public void writeHeader() throws IOException
+		{
+			out.writeInt( FORMAT_VERSION );
+			out.writeUTF( partition.getId() );
+			out.writeUTF( partition.getSuffixDn().getName() );
+			out.writeUTF( snapshotCsn.toString() );
+		}
+
+
+		public void write( Entry entry ) throws Exception
+		{
+			out.writeBoolean( true );
+			entry.writeExternal( out );
+
+			// The stream would otherwise keep a reference on every written object
+			if ( exportedCount % 1000 == 0 )
+			{
+				out.reset();
+			}
+		}
+
+
+		public void writeTrailer() throws IOException
+		{
+			out.writeBoolean( false );
+		}
+
+
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+	}
+
+
+	/**
+	 * Reads back the entries of a binary export, one at a time.
+	 */
+	public static class BinaryReader implements Iterator<Entry>, Closeable
+	{
+		private final ObjectInputStream in;
+
+		private final SchemaManager schemaManager;
+
+		private final String partitionId;
+
+		private final String snapshotCsn;
+
+		/** The next entry, null once all the entries are read */
+		private Entry next;
+
+
+		/**
+		 * @param in the binary export
+		 * @param schemaManager the SchemaManager the read entries are made schema aware with
+		 */
+		public BinaryReader( InputStream in, SchemaManager schemaManager ) throws IOException
+		{
+			this.in = new ObjectInputStream( in );
+			this.schemaManager = schemaManager;
+
+			if ( this.in.readInt() != FORMAT_VERSION )
+			{
+				throw new IOException( "Unknown export format" );
+			}
+
+			partitionId = this.in.readUTF();
+			this.in.readUTF();
+			snapshotCsn = this.in.readUTF();
+			next = readEntry();
+		}
+
+
+		private Entry readEntry() throws IOException
+		{
+			if ( !in.readBoolean() )
+			{
+				return null;
+			}
+
+			try
+			{
+				Entry entry = new DefaultEntry();
+				entry.readExternal( in );
+
+				return new DefaultEntry( schemaManager, entry );
+			}
+			catch ( IOException e )
+			{
+				throw e;
+			}
+			catch ( Exception e )
+			{
+				throw new IOException( "Cannot read an exported entry", e );
+			}
+		}
+
+
+		/**
+		 * @return the id of the exported partition
+		 */
+		public String getPartitionId()
+		{
+			return partitionId;
+		}
+
+
+		/**
+		 * @return the CSN the export started at
+		 */
+		public String getSnapshotCsn()
+		{
+			return snapshotCsn;
+		}
+
+
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+
+
+		public Entry next()
+		{
+			if ( next == null )
+			{
+				throw new NoSuchElementException();
+			}
+
+			Entry entry = next;
+
+			try
+			{
+				next = readEntry();
+			}
+			catch ( IOException e )
+			{
+				throw new IllegalStateException( "Cannot read the export", e );
+			}
+
+			return entry;
+		}
+
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
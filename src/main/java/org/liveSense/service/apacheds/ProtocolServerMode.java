@@ -0,0 +1,55 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.Locale;
+
+
+/**
+ * How a protocol server of the directory is run
+ */
+public enum ProtocolServerMode
+{
+	/** The server is not started */
+	DISABLED,
+
+	/** The server is started with the directory service */
+	EAGER,
+
+	/**
+	 * Only the ports of the server are bound with the directory service. The server
+	 * itself is created and started when the first request comes in
+	 */
+	LAZY;
+
+
+	/**
+	 * Parses a mode, ignoring the case
+	 *
+	 * @param mode the name of the mode
+	 * @return the mode
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	public static ProtocolServerMode parse( String mode )
+	{
+		return valueOf( mode.trim().toUpperCase( Locale.ENGLISH ) );
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.registries.Schema;
+import org.apache.directory.api.ldap.schemaloader.LdifSchemaLoader;
+
+
+/**
+ * A {@link LdifSchemaLoader} keeping the schema objects it reads, so they can be
+ * written into a {@link SchemaSnapshot} once the schema is loaded.
+ */
+public class RecordingLdifSchemaLoader extends LdifSchemaLoader
+{
+	/** The schema objects read so far, by schema and by category */
+	private final Map<String, Map<String, List<Entry>>> recordedEntries = new LinkedHashMap<String, Map<String, List<Entry>>>();
+
+
+	/**
+	 * @param baseDirectory the schema partition directory
+	 */
+	public RecordingLdifSchemaLoader( File baseDirectory ) throws Exception
+	{
+		super( baseDirectory );
+	}
+
+
+	private synchronized void record( String category, Schema schema, List<Entry> entries )
+	{
+		Map<String, List<Entry>> categories = recordedEntries.get( schema.getSchemaName() );
+
+		if ( categories == null )
+		{
+			categories = new LinkedHashMap<String, List<Entry>>();
+			recordedEntries.put( schema.getSchemaName(), categories );
+		}
+
+		categories.put( category, entries );
+	}
+
+
+	/**
+	 * Returns all the schema objects, reading the ones of the schemas which have not
+	 * been loaded (the disabled ones) so that enabling them later works the same
+	 * with a snapshot.
+	 *
+	 * @return the schema objects of every schema, by category
+	 */
+	public synchronized Map<String, Map<String, List<Entry>>> getRecordedEntries() throws LdapException, IOException
+	{
+		for ( Schema schema : getAllSchemas() )
+		{
+			Map<String, List<Entry>> categories = recordedEntries.get( schema.getSchemaName() );
+
+			if ( ( categories == null ) || ( categories.size() != SchemaSnapshot.CATEGORIES.length ) )
+			{
+				loadComparators( schema );
+				loadSyntaxCheckers( schema );
+				loadNormalizers( schema );
+				loadSyntaxes( schema );
+				loadMatchingRules( schema );
+				loadAttributeTypes( schema );
+				loadMatchingRuleUses( schema );
+				loadNameForms( schema );
+				loadDitContentRules( schema );
+				loadDitStructureRules( schema );
+				loadObjectClasses( schema );
+			}
+		}
+
+		return recordedEntries;
+	}
+
+
+	public List<Entry> loadComparators( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadComparators( schema );
+			record( SchemaSnapshot.COMPARATORS, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadSyntaxCheckers( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadSyntaxCheckers( schema );
+			record( SchemaSnapshot.SYNTAX_CHECKERS, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadNormalizers( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadNormalizers( schema );
+			record( SchemaSnapshot.NORMALIZERS, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadSyntaxes( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadSyntaxes( schema );
+			record( SchemaSnapshot.SYNTAXES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadMatchingRules( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadMatchingRules( schema );
+			record( SchemaSnapshot.MATCHING_RULES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadAttributeTypes( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadAttributeTypes( schema );
+			record( SchemaSnapshot.ATTRIBUTE_TYPES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadMatchingRuleUses( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadMatchingRuleUses( schema );
+			record( SchemaSnapshot.MATCHING_RULE_USES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadNameForms( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadNameForms( schema );
+			record( SchemaSnapshot.NAME_FORMS, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadDitContentRules( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadDitContentRules( schema );
+			record( SchemaSnapshot.DIT_CONTENT_RULES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadDitStructureRules( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadDitStructureRules( schema );
+			record( SchemaSnapshot.DIT_STRUCTURE_RULES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+
+
+	public List<Entry> loadObjectClasses( Schema... schemas ) throws LdapException, IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for ( Schema schema : schemas )
+		{
+			List<Entry> loaded = super.loadObjectClasses( schema );
+			record( SchemaSnapshot.OBJECT_CLASSES, schema, loaded );
+			entries.addAll( loaded );
+		}
+
+		return entries;
+	}
+}
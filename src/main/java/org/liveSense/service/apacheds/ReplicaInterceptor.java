@@ -0,0 +1,169 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.OperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+
+
+/**
+ * The interceptor of a replication consumer. The writes are refused, unless they
+ * come from the administrator, whose session the replication consumer and the
+ * service maintenance use : the replica is only written by its provider. The lag
+ * of the entries received from the provider is recorded, from the entryCSN they
+ * carry.
+ */
+public class ReplicaInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "replicaInterceptor";
+
+	/** Where the lag is recorded */
+	private final ReplicationMetrics metrics;
+
+
+	/**
+	 * @param metrics where the lag is recorded
+	 */
+	public ReplicaInterceptor( ReplicationMetrics metrics )
+	{
+		super( NAME );
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Refuses a write which does not come from the administrator
+	 */
+	private void checkWritable( OperationContext context ) throws LdapException
+	{
+		LdapPrincipal principal = context.getSession().getEffectivePrincipal();
+
+		if ( ( principal == null ) || ( principal.getDn() == null )
+				|| !PartitionNexus.ADMIN_UID.equals( principal.getDn().getNormName() ) )
+		{
+			throw new LdapUnwillingToPerformException( ResultCodeEnum.UNWILLING_TO_PERFORM,
+					"This server is a read-only replica, the writes go to its provider" );
+		}
+	}
+
+
+	/**
+	 * Records the lag of a change received from the provider. The changes made by
+	 * this server carry its own replica id and are not recorded.
+	 */
+	private void recordLag( Attribute entryCsn )
+	{
+		if ( entryCsn == null )
+		{
+			return;
+		}
+
+		try
+		{
+			Csn csn = new Csn( entryCsn.getString() );
+
+			if ( csn.getReplicaId() != directoryService.getReplicaId() )
+			{
+				metrics.record( csn );
+			}
+		}
+		catch ( Exception e )
+		{
+			// Not a valid CSN, nothing to measure
+		}
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		checkWritable( addContext );
+		next( addContext );
+		recordLag( addContext.getEntry().get( SchemaConstants.ENTRY_CSN_AT ) );
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		checkWritable( deleteContext );
+		next( deleteContext );
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		checkWritable( modifyContext );
+		next( modifyContext );
+
+		for ( Modification modification : modifyContext.getModItems() )
+		{
+			AttributeType attributeType = modification.getAttribute().getAttributeType();
+
+			if ( ( attributeType != null ) && SchemaConstants.ENTRY_CSN_AT_OID.equals( attributeType.getOid() ) )
+			{
+				recordLag( modification.getAttribute() );
+			}
+		}
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		checkWritable( moveContext );
+		next( moveContext );
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		checkWritable( moveAndRenameContext );
+		next( moveAndRenameContext );
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		checkWritable( renameContext );
+		next( renameContext );
+	}
+}
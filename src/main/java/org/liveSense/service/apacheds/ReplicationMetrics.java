@@ -0,0 +1,126 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+
+
+/**
+ * Measures the lag of the changes a consumer receives from its provider
+ */
+public class ReplicationMetrics implements ReplicationMetricsMXBean
+{
+	/** The role of the node */
+	private final ReplicationSettings.Role role;
+
+	/** The lags of the received changes, in nanoseconds */
+	private final LatencyHistogram lags = new LatencyHistogram();
+
+	/** The last received change */
+	private volatile Csn lastCsn;
+
+	/** When the last change was received, in milliseconds */
+	private volatile long lastChangeTime = -1;
+
+	/** The lag of the last received change, in milliseconds */
+	private volatile long lastLag;
+
+
+	/**
+	 * @param role the role of the node
+	 */
+	public ReplicationMetrics( ReplicationSettings.Role role )
+	{
+		this.role = role;
+	}
+
+
+	/**
+	 * Records a change received from the provider
+	 *
+	 * @param csn the CSN the provider gave to the change
+	 */
+	public void record( Csn csn )
+	{
+		long now = System.currentTimeMillis();
+		long lag = Math.max( now - csn.getTimestamp(), 0 );
+
+		lags.record( TimeUnit.MILLISECONDS.toNanos( lag ) );
+		lastLag = lag;
+		lastCsn = csn;
+		lastChangeTime = now;
+	}
+
+
+	public String getRole()
+	{
+		return role.name();
+	}
+
+
+	public long getAppliedChanges()
+	{
+		return lags.getCount();
+	}
+
+
+	public String getLastAppliedCsn()
+	{
+		Csn csn = lastCsn;
+
+		return csn == null ? null : csn.toString();
+	}
+
+
+	public long getLastLag()
+	{
+		return lastLag;
+	}
+
+
+	public long getMaxLag()
+	{
+		return TimeUnit.NANOSECONDS.toMillis( lags.getMax() );
+	}
+
+
+	public long getLagPercentile( double percentile )
+	{
+		return TimeUnit.NANOSECONDS.toMillis( lags.getPercentile( percentile ) );
+	}
+
+
+	public long getTimeSinceLastChange()
+	{
+		long time = lastChangeTime;
+
+		return time == -1 ? -1 : System.currentTimeMillis() - time;
+	}
+
+
+	public void reset()
+	{
+		lags.reset();
+		lastLag = 0;
+	}
+}
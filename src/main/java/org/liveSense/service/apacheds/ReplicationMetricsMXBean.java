@@ -0,0 +1,82 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * The replication state of a node, published through JMX. The lag of a change is
+ * the time between its CSN, given by the provider when it was written, and its
+ * application on this replica. The nodes sharing a machine or synchronizing their
+ * clocks get an accurate lag.
+ */
+public interface ReplicationMetricsMXBean
+{
+	/** The JMX name the metrics are registered under */
+	String OBJECT_NAME = "org.liveSense.service.apacheds:type=Replication";
+
+
+	/**
+	 * @return the replication role of this node
+	 */
+	String getRole();
+
+
+	/**
+	 * @return the number of changes received from the provider
+	 */
+	long getAppliedChanges();
+
+
+	/**
+	 * @return the CSN of the last change received from the provider, null if none was
+	 */
+	String getLastAppliedCsn();
+
+
+	/**
+	 * @return the lag of the last change received from the provider, in milliseconds
+	 */
+	long getLastLag();
+
+
+	/**
+	 * @return the highest lag of the changes received from the provider, in milliseconds
+	 */
+	long getMaxLag();
+
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the lag percentile of the changes received from the provider, in milliseconds
+	 */
+	long getLagPercentile( double percentile );
+
+
+	/**
+	 * @return the time elapsed since the last change was received, in milliseconds, -1 if none was
+	 */
+	long getTimeSinceLastChange();
+
+
+	/**
+	 * Clears the lag counters
+	 */
+	void reset();
+}
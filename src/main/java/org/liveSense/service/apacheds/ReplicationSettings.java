@@ -0,0 +1,209 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * The replication role of a node and, for a consumer, how it reaches its
+ * provider. The provider is the only node accepting writes, the consumers keep a
+ * replica of its data partitions through the syncrepl protocol and serve the reads
+ * locally. A consumer stores the cookie of its last received change, so it
+ * catches up from there after a restart instead of reloading the whole data.
+ */
+public class ReplicationSettings
+{
+	/** The replication role of a node */
+	public enum Role
+	{
+		/** The node is not replicated */
+		STANDALONE,
+
+		/** The node accepts the writes and sends them to its consumers */
+		PROVIDER,
+
+		/** The node replicates a provider, only the replication writes to it */
+		CONSUMER;
+
+
+		/**
+		 * Parses a role, ignoring the case
+		 *
+		 * @param role the name of the role
+		 * @return the role
+		 * @throws IllegalArgumentException if the role is unknown
+		 */
+		public static Role parse( String role )
+		{
+			return valueOf( role.trim().toUpperCase( Locale.ENGLISH ) );
+		}
+	}
+
+	/** The default interval between two attempts to reach the provider, in milliseconds */
+	public static final long DEFAULT_REFRESH_INTERVAL = 60000;
+
+	/** The role of the node */
+	private Role role = Role.STANDALONE;
+
+	/** The id of the node, unique among the replicated nodes, between 1 and 999 */
+	private int replicaId = 1;
+
+	/** The LDAP URL of the provider */
+	private String providerUrl;
+
+	/** The Dn the consumer binds to the provider with */
+	private String bindDn;
+
+	/** The password the consumer binds to the provider with */
+	private String bindPassword;
+
+	/** The replicated bases, all the data partitions if empty */
+	private List<String> bases = Collections.emptyList();
+
+	/** The interval between two attempts to reach the provider, in milliseconds */
+	private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+
+	public Role getRole()
+	{
+		return role;
+	}
+
+
+	public void setRole( Role role )
+	{
+		this.role = role;
+	}
+
+
+	public int getReplicaId()
+	{
+		return replicaId;
+	}
+
+
+	public void setReplicaId( int replicaId )
+	{
+		if ( ( replicaId < 1 ) || ( replicaId > 999 ) )
+		{
+			throw new IllegalArgumentException( "The replica id must be between 1 and 999 : " + replicaId );
+		}
+
+		this.replicaId = replicaId;
+	}
+
+
+	public String getProviderUrl()
+	{
+		return providerUrl;
+	}
+
+
+	public void setProviderUrl( String providerUrl )
+	{
+		this.providerUrl = providerUrl;
+	}
+
+
+	/**
+	 * @return the host of the provider
+	 */
+	public String getProviderHost()
+	{
+		return URI.create( providerUrl ).getHost();
+	}
+
+
+	/**
+	 * @return the port of the provider, 389 if the URL has none
+	 */
+	public int getProviderPort()
+	{
+		int port = URI.create( providerUrl ).getPort();
+
+		return port == -1 ? 389 : port;
+	}
+
+
+	public String getBindDn()
+	{
+		return bindDn;
+	}
+
+
+	public void setBindDn( String bindDn )
+	{
+		this.bindDn = bindDn;
+	}
+
+
+	public String getBindPassword()
+	{
+		return bindPassword;
+	}
+
+
+	public void setBindPassword( String bindPassword )
+	{
+		this.bindPassword = bindPassword;
+	}
+
+
+	public List<String> getBases()
+	{
+		return bases;
+	}
+
+
+	public void setBases( List<String> bases )
+	{
+		this.bases = new ArrayList<String>( bases );
+	}
+
+
+	public long getRefreshInterval()
+	{
+		return refreshInterval;
+	}
+
+
+	public void setRefreshInterval( long refreshInterval )
+	{
+		this.refreshInterval = refreshInterval;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		if ( role == Role.CONSUMER )
+		{
+			return role + " " + replicaId + " of " + providerUrl + " " + bases;
+		}
+
+		return role + " " + replicaId;
+	}
+}
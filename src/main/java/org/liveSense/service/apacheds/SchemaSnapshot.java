@@ -0,0 +1,344 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.schema.registries.DefaultSchema;
+import org.apache.directory.api.ldap.model.schema.registries.Schema;
+import org.apache.directory.api.util.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A binary snapshot of the schema LDIF partition, used to load the
+ * {@link org.apache.directory.api.ldap.model.schema.SchemaManager} in one
+ * sequential read instead of parsing every schema LDIF file on each boot.
+ *
+ * The snapshot stores a manifest of the schema directory (the path, size and
+ * modification time of every file). It is ignored as soon as the manifest does
+ * not match the directory anymore, and rebuilt from the LDIF files.
+ */
+public class SchemaSnapshot
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( SchemaSnapshot.class );
+
+	/** The version of the snapshot format, to be bumped on every incompatible change */
+	public static final int FORMAT_VERSION = 1;
+
+	/** The name of the snapshot file in the instance directory */
+	public static final String SNAPSHOT_FILE = "schema.snapshot";
+
+	public static final String COMPARATORS = "comparators";
+	public static final String SYNTAX_CHECKERS = "syntaxCheckers";
+	public static final String NORMALIZERS = "normalizers";
+	public static final String SYNTAXES = "syntaxes";
+	public static final String MATCHING_RULES = "matchingRules";
+	public static final String ATTRIBUTE_TYPES = "attributeTypes";
+	public static final String MATCHING_RULE_USES = "matchingRuleUses";
+	public static final String NAME_FORMS = "nameForms";
+	public static final String DIT_CONTENT_RULES = "ditContentRules";
+	public static final String DIT_STRUCTURE_RULES = "ditStructureRules";
+	public static final String OBJECT_CLASSES = "objectClasses";
+
+	/** All the schema object categories stored in a snapshot */
+	public static final String[] CATEGORIES = new String[]
+		{ COMPARATORS, SYNTAX_CHECKERS, NORMALIZERS, SYNTAXES, MATCHING_RULES, ATTRIBUTE_TYPES,
+			MATCHING_RULE_USES, NAME_FORMS, DIT_CONTENT_RULES, DIT_STRUCTURE_RULES, OBJECT_CLASSES };
+
+	/** The snapshot file */
+	private final File snapshotFile;
+
+	/** The schema partition directory the snapshot is built from */
+	private final File schemaDirectory;
+
+
+	/**
+	 * @param snapshotFile the snapshot file
+	 * @param schemaDirectory the schema partition directory
+	 */
+	public SchemaSnapshot( File snapshotFile, File schemaDirectory )
+	{
+		this.snapshotFile = snapshotFile;
+		this.schemaDirectory = schemaDirectory;
+	}
+
+
+	/**
+	 * Reads the snapshot.
+	 *
+	 * @return a loader serving the schema objects of the snapshot, or null if there
+	 * is no snapshot or if it does not match the schema directory anymore
+	 */
+	public SnapshotSchemaLoader load()
+	{
+		if ( !snapshotFile.isFile() )
+		{
+			LOG.info( "no schema snapshot found, the schema will be loaded from the LDIF files" );
+			return null;
+		}
+
+		ObjectInputStream in = null;
+
+		try
+		{
+			in = new ObjectInputStream( new BufferedInputStream( new FileInputStream( snapshotFile ), 64 * 1024 ) );
+
+			if ( in.readInt() != FORMAT_VERSION )
+			{
+				LOG.info( "schema snapshot {} has an unknown format, ignoring it", snapshotFile );
+				return null;
+			}
+
+			String manifest = in.readUTF();
+
+			if ( !manifest.equals( computeManifest() ) )
+			{
+				LOG.info( "schema snapshot {} is stale, ignoring it", snapshotFile );
+				return null;
+			}
+
+			Map<String, Schema> schemas = new LinkedHashMap<String, Schema>();
+			Map<String, Map<String, List<Entry>>> entries = new LinkedHashMap<String, Map<String, List<Entry>>>();
+
+			int nbSchemas = in.readInt();
+
+			for ( int i = 0; i < nbSchemas; i++ )
+			{
+				String name = in.readUTF();
+				String owner = in.readUTF();
+				boolean disabled = in.readBoolean();
+				String[] dependencies = new String[in.readInt()];
+
+				for ( int j = 0; j < dependencies.length; j++ )
+				{
+					dependencies[j] = in.readUTF();
+				}
+
+				schemas.put( name, new DefaultSchema( name, owner, dependencies, disabled ) );
+
+				Map<String, List<Entry>> categories = new LinkedHashMap<String, List<Entry>>();
+
+				for ( String category : CATEGORIES )
+				{
+					int nbEntries = in.readInt();
+					List<Entry> categoryEntries = new ArrayList<Entry>( nbEntries );
+
+					for ( int j = 0; j < nbEntries; j++ )
+					{
+						Entry entry = new DefaultEntry();
+						entry.readExternal( in );
+						categoryEntries.add( entry );
+					}
+
+					categories.put( category, categoryEntries );
+				}
+
+				entries.put( name, categories );
+			}
+
+			LOG.info( "schema loaded from the snapshot {}", snapshotFile );
+
+			return new SnapshotSchemaLoader( schemas, entries );
+		}
+		catch ( Exception e )
+		{
+			LOG.warn( "Cannot read the schema snapshot " + snapshotFile + ", ignoring it", e );
+			return null;
+		}
+		finally
+		{
+			close( in );
+		}
+	}
+
+
+	/**
+	 * Writes a new snapshot from the schema objects read by the given loader. The
+	 * file is written next to the current one and renamed, so a crash never leaves
+	 * a truncated snapshot.
+	 *
+	 * The manifest has to be computed before the loader reads the LDIF files : the
+	 * files may be modified afterwards (the first startup fixes some of them up), and
+	 * the snapshot must describe the files its entries were read from. A snapshot of
+	 * files modified since is then simply rebuilt on the next startup.
+	 *
+	 * @param loader the loader the schema was loaded with
+	 * @param manifest the manifest of the schema directory when the loader read it
+	 * @throws Exception if the snapshot cannot be written
+	 */
+	public void write( RecordingLdifSchemaLoader loader, String manifest ) throws Exception
+	{
+		Map<String, Map<String, List<Entry>>> entries = loader.getRecordedEntries();
+		File tmpFile = new File( snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp" );
+		ObjectOutputStream out = null;
+
+		try
+		{
+			out = new ObjectOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 64 * 1024 ) );
+
+			out.writeInt( FORMAT_VERSION );
+			out.writeUTF( manifest );
+			out.writeInt( entries.size() );
+
+			for ( Map.Entry<String, Map<String, List<Entry>>> schemaEntries : entries.entrySet() )
+			{
+				Schema schema = loader.getSchema( schemaEntries.getKey() );
+
+				out.writeUTF( schema.getSchemaName() );
+				out.writeUTF( schema.getOwner() == null ? "" : schema.getOwner() );
+				out.writeBoolean( schema.isDisabled() );
+
+				String[] dependencies = schema.getDependencies();
+
+				if ( dependencies == null )
+				{
+					dependencies = new String[0];
+				}
+
+				out.writeInt( dependencies.length );
+
+				for ( String dependency : dependencies )
+				{
+					out.writeUTF( dependency );
+				}
+
+				for ( String category : CATEGORIES )
+				{
+					List<Entry> categoryEntries = schemaEntries.getValue().get( category );
+
+					if ( categoryEntries == null )
+					{
+						out.writeInt( 0 );
+						continue;
+					}
+
+					out.writeInt( categoryEntries.size() );
+
+					for ( Entry entry : categoryEntries )
+					{
+						entry.writeExternal( out );
+					}
+				}
+			}
+
+			out.flush();
+		}
+		finally
+		{
+			close( out );
+		}
+
+		if ( snapshotFile.exists() && !snapshotFile.delete() )
+		{
+			throw new IOException( "Cannot replace the schema snapshot " + snapshotFile );
+		}
+
+		if ( !tmpFile.renameTo( snapshotFile ) )
+		{
+			throw new IOException( "Cannot rename " + tmpFile + " to " + snapshotFile );
+		}
+
+		LOG.info( "schema snapshot written to {}", snapshotFile );
+	}
+
+
+	/**
+	 * Computes the manifest of the schema directory : a digest of the relative path,
+	 * the size and the modification time of each file.
+	 */
+	public String computeManifest() throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			addToManifest( digest, schemaDirectory, "" );
+
+			return Strings.dumpBytes( digest.digest() );
+		}
+		catch ( NoSuchAlgorithmException e )
+		{
+			throw new IOException( e.getMessage() );
+		}
+	}
+
+
+	private void addToManifest( MessageDigest digest, File directory, String path ) throws IOException
+	{
+		File[] files = directory.listFiles();
+
+		if ( files == null )
+		{
+			throw new IOException( "Cannot list the schema directory " + directory );
+		}
+
+		Arrays.sort( files );
+
+		for ( File file : files )
+		{
+			String filePath = path + "/" + file.getName();
+
+			if ( file.isDirectory() )
+			{
+				addToManifest( digest, file, filePath );
+			}
+			else
+			{
+				digest.update( Strings.getBytesUtf8( filePath + ":" + file.length() + ":" + file.lastModified() + "\n" ) );
+			}
+		}
+	}
+
+
+	private static void close( Closeable closeable )
+	{
+		if ( closeable != null )
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch ( IOException e )
+			{
+				LOG.debug( "Cannot close the schema snapshot", e );
+			}
+		}
+	}
+}
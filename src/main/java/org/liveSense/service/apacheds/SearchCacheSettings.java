@@ -0,0 +1,160 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * The sizing of the search result cache of one partition, given as
+ * <code>partitionId:memory=16m,results=100</code>. The memory is the estimated
+ * size of the cached entries, in bytes or with a k, m or g suffix, and results is
+ * the maximum number of entries of a cached search result : larger results are
+ * never cached.
+ */
+public class SearchCacheSettings
+{
+	/** The default memory bound of a partition cache */
+	public static final long DEFAULT_MAX_MEMORY = 16L * 1024 * 1024;
+
+	/** The default maximum number of entries of a cached result */
+	public static final int DEFAULT_MAX_RESULT_SIZE = 100;
+
+	/** The partition id */
+	private final String partitionId;
+
+	/** The estimated size of the cached entries, in bytes */
+	private long maxMemory = DEFAULT_MAX_MEMORY;
+
+	/** The maximum number of entries of a cached result */
+	private int maxResultSize = DEFAULT_MAX_RESULT_SIZE;
+
+
+	public SearchCacheSettings( String partitionId )
+	{
+		this.partitionId = partitionId;
+	}
+
+
+	/**
+	 * Parses the settings of a partition search cache.
+	 *
+	 * @param settings the settings, as <code>partitionId:memory=16m,results=100</code>
+	 * @return the parsed settings
+	 * @throws IllegalArgumentException if the settings cannot be parsed
+	 */
+	public static SearchCacheSettings parse( String settings )
+	{
+		int pos = settings.indexOf( ':' );
+		String partitionId = ( pos < 0 ? settings : settings.substring( 0, pos ) ).trim();
+
+		if ( partitionId.length() == 0 )
+		{
+			throw new IllegalArgumentException( "Missing partition id in the search cache settings '" + settings + "'" );
+		}
+
+		SearchCacheSettings cacheSettings = new SearchCacheSettings( partitionId );
+
+		if ( pos < 0 )
+		{
+			return cacheSettings;
+		}
+
+		for ( String setting : settings.substring( pos + 1 ).split( "," ) )
+		{
+			String[] keyValue = setting.split( "=" );
+
+			if ( keyValue.length != 2 )
+			{
+				throw new IllegalArgumentException( "Invalid search cache setting '" + setting + "' for the partition "
+						+ partitionId );
+			}
+
+			String key = keyValue[0].trim();
+			String value = keyValue[1].trim();
+
+			if ( "memory".equals( key ) )
+			{
+				cacheSettings.maxMemory = parseSize( value );
+			}
+			else if ( "results".equals( key ) )
+			{
+				cacheSettings.maxResultSize = Integer.parseInt( value );
+			}
+			else
+			{
+				throw new IllegalArgumentException( "Unknown search cache setting '" + key + "' for the partition "
+						+ partitionId );
+			}
+		}
+
+		return cacheSettings;
+	}
+
+
+	private static long parseSize( String value )
+	{
+		char unit = Character.toLowerCase( value.charAt( value.length() - 1 ) );
+		long multiplier = 1;
+
+		switch ( unit )
+		{
+			case 'k':
+				multiplier = 1024L;
+				break;
+
+			case 'm':
+				multiplier = 1024L * 1024;
+				break;
+
+			case 'g':
+				multiplier = 1024L * 1024 * 1024;
+				break;
+
+			default:
+				return Long.parseLong( value );
+		}
+
+		return Long.parseLong( value.substring( 0, value.length() - 1 ).trim() ) * multiplier;
+	}
+
+
+	public String getPartitionId()
+	{
+		return partitionId;
+	}
+
+
+	public long getMaxMemory()
+	{
+		return maxMemory;
+	}
+
+
+	public int getMaxResultSize()
+	{
+		return maxResultSize;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return partitionId + ":memory=" + maxMemory + ",results=" + maxResultSize;
+	}
+}
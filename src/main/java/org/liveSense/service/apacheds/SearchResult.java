@@ -0,0 +1,241 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+
+
+/**
+ * The entries found by a {@link DirectorySession#search(String,
+ * org.apache.directory.api.ldap.model.message.SearchScope, String, String...)}.
+ * Each entry is only read from the partition when the iteration reaches it, and
+ * the underlying cursor is closed once the last entry is read. The result can be
+ * iterated once.
+ *
+ * When a size or a time limit is exceeded, the entries found until then are
+ * returned, then the iteration fails, as an LDAP search returns its entries
+ * before its result code.
+ */
+public class SearchResult implements Iterable<Entry>, Closeable
+{
+	/**
+	 * Reads the found entries one at a time
+	 */
+	interface EntrySource
+	{
+		/**
+		 * @return the next entry, null once all the entries have been read
+		 */
+		Entry next() throws Exception;
+
+
+		/**
+		 * Releases the source, the entries which were not read are discarded
+		 */
+		void close() throws Exception;
+	}
+
+	/** The found entries */
+	private final EntrySource source;
+
+	/** Tells if the iterator has already been handed out */
+	private boolean iterated;
+
+	/** Tells if the source is closed */
+	private boolean closed;
+
+	/** The maximum number of entries returned, 0 for no limit */
+	private final long sizeLimit;
+
+	/** The time after which the search fails, 0 for no limit */
+	private final long deadline;
+
+	/** The number of entries returned */
+	private long returned;
+
+
+	SearchResult( EntryFilteringCursor cursor )
+	{
+		this( cursor, 0, 0 );
+	}
+
+
+	/**
+	 * @param cursor the found entries
+	 * @param sizeLimit the maximum number of entries returned, 0 for no limit
+	 * @param timeLimit the maximum duration of the search in seconds, 0 for no limit
+	 */
+	SearchResult( final EntryFilteringCursor cursor, long sizeLimit, int timeLimit )
+	{
+		this( new EntrySource()
+		{
+			public Entry next() throws Exception
+			{
+				return cursor.next() ? cursor.get() : null;
+			}
+
+
+			public void close() throws Exception
+			{
+				cursor.close();
+			}
+		}, sizeLimit, timeLimit );
+	}
+
+
+	SearchResult( EntrySource source )
+	{
+		this( source, 0, 0 );
+	}
+
+
+	/**
+	 * @param source the found entries
+	 * @param sizeLimit the maximum number of entries returned, 0 for no limit
+	 * @param timeLimit the maximum duration of the search in seconds, 0 for no limit
+	 */
+	SearchResult( EntrySource source, long sizeLimit, int timeLimit )
+	{
+		this.source = source;
+		this.sizeLimit = sizeLimit;
+		this.deadline = timeLimit > 0 ? System.currentTimeMillis() + timeLimit * 1000L : 0;
+	}
+
+
+	/**
+	 * @return the next entry of the source, null once all the entries have been read
+	 */
+	private Entry read() throws Exception
+	{
+		if ( ( deadline > 0 ) && ( System.currentTimeMillis() > deadline ) )
+		{
+			throw new LdapException( "Time limit exceeded" );
+		}
+
+		Entry entry = source.next();
+
+		if ( ( entry != null ) && ( sizeLimit > 0 ) && ( ++returned > sizeLimit ) )
+		{
+			throw new LdapException( "Size limit of " + sizeLimit + " entries exceeded" );
+		}
+
+		return entry;
+	}
+
+
+	public Iterator<Entry> iterator()
+	{
+		if ( iterated )
+		{
+			throw new IllegalStateException( "The search result can only be iterated once" );
+		}
+
+		iterated = true;
+
+		return new Iterator<Entry>()
+		{
+			/** The next entry, null if not read yet */
+			private Entry next;
+
+
+			public boolean hasNext()
+			{
+				if ( next != null )
+				{
+					return true;
+				}
+
+				if ( closed )
+				{
+					return false;
+				}
+
+				try
+				{
+					next = read();
+
+					if ( next != null )
+					{
+						return true;
+					}
+				}
+				catch ( Exception e )
+				{
+					close();
+					throw new IllegalStateException( "Cannot read the search result", e );
+				}
+
+				close();
+
+				return false;
+			}
+
+
+			public Entry next()
+			{
+				if ( !hasNext() )
+				{
+					throw new NoSuchElementException();
+				}
+
+				Entry entry = next;
+				next = null;
+
+				return entry;
+			}
+
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+
+	/**
+	 * Releases the source, the entries which were not read are discarded
+	 */
+	public void close()
+	{
+		if ( closed )
+		{
+			return;
+		}
+
+		closed = true;
+
+		try
+		{
+			source.close();
+		}
+		catch ( Exception e )
+		{
+			// The source is released anyway
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * The cached search results of one partition. The least recently used results
+ * are evicted once the estimated size of the cached entries exceeds the memory
+ * bound. A write removes the results whose scope holds the written entry.
+ *
+ * Every write also increments a generation : a result computed while a write
+ * happened is not stored, so a search racing with a write never caches the
+ * former state of an entry.
+ */
+public class SearchResultCache
+{
+	/** The estimated overhead of an entry, an attribute and a value, in bytes */
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final int ATTRIBUTE_OVERHEAD = 64;
+	private static final int VALUE_OVERHEAD = 32;
+
+	/** The partition id */
+	private final String partitionId;
+
+	/** The results, in access order */
+	private final LinkedHashMap<Key, CachedResult> results = new LinkedHashMap<Key, CachedResult>( 64, 0.75f, true );
+
+	/** The settings of this cache */
+	private volatile SearchCacheSettings settings;
+
+	/** The estimated size of the cached entries */
+	private long memory;
+
+	/** Incremented on every write to the partition */
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+
+	/**
+	 * The parameters of a search which the result depends on
+	 */
+	public static final class Key
+	{
+		private final Dn base;
+
+		private final SearchScope scope;
+
+		private final String filter;
+
+		private final String attributes;
+
+		private final String identity;
+
+		private final long sizeLimit;
+
+		private final boolean typesOnly;
+
+		private final AliasDerefMode aliasDerefMode;
+
+		private final int hashCode;
+
+
+		public Key( Dn base, SearchScope scope, String filter, String attributes, String identity, long sizeLimit,
+			boolean typesOnly, AliasDerefMode aliasDerefMode )
+		{
+			this.base = base;
+			this.scope = scope;
+			this.filter = filter;
+			this.attributes = attributes;
+			this.identity = identity;
+			this.sizeLimit = sizeLimit;
+			this.typesOnly = typesOnly;
+			this.aliasDerefMode = aliasDerefMode;
+
+			int hash = base.getNormName().hashCode();
+			hash = hash * 31 + scope.hashCode();
+			hash = hash * 31 + filter.hashCode();
+			hash = hash * 31 + attributes.hashCode();
+			hash = hash * 31 + identity.hashCode();
+			hash = hash * 31 + ( int ) sizeLimit;
+			hash = hash * 31 + ( typesOnly ? 1 : 0 );
+			this.hashCode = hash * 31 + aliasDerefMode.hashCode();
+		}
+
+
+		/**
+		 * Tells if the given entry is in the scope of this search
+		 */
+		public boolean covers( Dn dn )
+		{
+			switch ( scope )
+			{
+				case OBJECT:
+					return base.equals( dn );
+
+				case ONELEVEL:
+					return !dn.isEmpty() && base.equals( dn.getParent() );
+
+				default:
+					return base.equals( dn ) || dn.isDescendantOf( base );
+			}
+		}
+
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( this == obj )
+			{
+				return true;
+			}
+
+			if ( !( obj instanceof Key ) )
+			{
+				return false;
+			}
+
+			Key other = ( Key ) obj;
+
+			return ( hashCode == other.hashCode ) && ( scope == other.scope ) && ( sizeLimit == other.sizeLimit )
+					&& ( typesOnly == other.typesOnly ) && ( aliasDerefMode == other.aliasDerefMode )
+					&& base.getNormName().equals( other.base.getNormName() ) && filter.equals( other.filter )
+					&& attributes.equals( other.attributes ) && identity.equals( other.identity );
+		}
+	}
+
+
+	private static final class CachedResult
+	{
+		private final List<Entry> entries;
+
+		private final long size;
+
+
+		private CachedResult( List<Entry> entries, long size )
+		{
+			this.entries = entries;
+			this.size = size;
+		}
+	}
+
+
+	public SearchResultCache( SearchCacheSettings settings )
+	{
+		this.partitionId = settings.getPartitionId();
+		this.settings = settings;
+	}
+
+
+	public String getPartitionId()
+	{
+		return partitionId;
+	}
+
+
+	public SearchCacheSettings getSettings()
+	{
+		return settings;
+	}
+
+
+	/**
+	 * Changes the bounds of the cache, evicting the results above the new memory bound
+	 */
+	public synchronized void setSettings( SearchCacheSettings settings )
+	{
+		this.settings = settings;
+		evict();
+	}
+
+
+	/**
+	 * @return the cached entries of a search, null if the result is not cached
+	 */
+	public synchronized List<Entry> get( Key key )
+	{
+		CachedResult result = results.get( key );
+
+		if ( result == null )
+		{
+			misses.incrementAndGet();
+
+			return null;
+		}
+
+		hits.incrementAndGet();
+
+		return result.entries;
+	}
+
+
+	/**
+	 * @return the current generation, to be given back when the result is stored
+	 */
+	public synchronized long getGeneration()
+	{
+		return generation;
+	}
+
+
+	/**
+	 * Stores a search result, unless a write happened since the given generation.
+	 */
+	public synchronized void put( Key key, List<Entry> entries, long generation )
+	{
+		if ( generation != this.generation )
+		{
+			return;
+		}
+
+		long size = 0;
+
+		for ( Entry entry : entries )
+		{
+			size += sizeOf( entry );
+		}
+
+		if ( size > settings.getMaxMemory() )
+		{
+			return;
+		}
+
+		CachedResult previous = results.put( key, new CachedResult( entries, size ) );
+
+		if ( previous != null )
+		{
+			memory -= previous.size;
+		}
+
+		memory += size;
+		evict();
+	}
+
+
+	private void evict()
+	{
+		Iterator<CachedResult> iterator = results.values().iterator();
+
+		while ( ( memory > settings.getMaxMemory() ) && iterator.hasNext() )
+		{
+			memory -= iterator.next().size;
+			iterator.remove();
+		}
+	}
+
+
+	/**
+	 * Removes the results whose scope holds the given entry
+	 */
+	public synchronized void invalidate( Dn dn )
+	{
+		generation++;
+
+		for ( Iterator<Map.Entry<Key, CachedResult>> iterator = results.entrySet().iterator(); iterator.hasNext(); )
+		{
+			Map.Entry<Key, CachedResult> result = iterator.next();
+
+			if ( result.getKey().covers( dn ) )
+			{
+				memory -= result.getValue().size;
+				iterator.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Removes the results whose scope holds the given entry, or whose base is below
+	 * it. Used when an entry is moved or renamed along with its subtree.
+	 */
+	public synchronized void invalidateSubtree( Dn dn )
+	{
+		generation++;
+
+		for ( Iterator<Map.Entry<Key, CachedResult>> iterator = results.entrySet().iterator(); iterator.hasNext(); )
+		{
+			Map.Entry<Key, CachedResult> result = iterator.next();
+			Key key = result.getKey();
+
+			if ( key.covers( dn ) || key.base.isDescendantOf( dn ) )
+			{
+				memory -= result.getValue().size;
+				iterator.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Removes all the results
+	 */
+	public synchronized void clear()
+	{
+		generation++;
+		results.clear();
+		memory = 0;
+	}
+
+
+	/**
+	 * @return the usage of this cache
+	 */
+	public synchronized CacheStatistics getStatistics( String name )
+	{
+		return new CacheStatistics( name, hits.get(), misses.get(), results.size() );
+	}
+
+
+	/**
+	 * @return the estimated size of the cached entries, in bytes
+	 */
+	public synchronized long getMemory()
+	{
+		return memory;
+	}
+
+
+	private static long sizeOf( Entry entry )
+	{
+		long size = ENTRY_OVERHEAD + entry.getDn().getName().length() * 2;
+
+		for ( Attribute attribute : entry )
+		{
+			size += ATTRIBUTE_OVERHEAD;
+
+			for ( Value<?> value : attribute )
+			{
+				if ( value.isHumanReadable() )
+				{
+					size += VALUE_OVERHEAD + value.getString().length() * 2;
+				}
+				else
+				{
+					size += VALUE_OVERHEAD + value.getBytes().length;
+				}
+			}
+		}
+
+		return size;
+	}
+}
@@ -0,0 +1,480 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeTypeOptions;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.apache.directory.server.core.api.filtering.BaseEntryFilteringCursor;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+
+
+/**
+ * An interceptor caching the results of the searches on the configured
+ * partitions. It is put right after the authorization interceptors, so the cache
+ * keys are built from the normalized base and filter, and a hit skips the search
+ * path below them only. The authentication and the access controls are still
+ * checked on every search, and the entries of a cached result are filtered by the
+ * access controls as the ones read from the partition. Put before them, a hit
+ * would bypass the authentication of the request.
+ *
+ * The key holds the identity of the session, so a result depending on the user
+ * is only served to the same user. The results are computed with the settings of
+ * the DirectoryService, they must be cleared when these settings are changed.
+ *
+ * The results are removed when an entry in their scope is written. As the access
+ * controls, the group memberships and the aliases can make a result depend on
+ * entries outside its scope, a write to a subentry, a group, an alias or to an ACI
+ * attribute clears all the caches, and a result holding an entry outside its scope
+ * is not cached. The searches with request controls (paged results, persistent
+ * search, replication) are never cached.
+ */
+public class SearchResultCacheInterceptor extends BaseInterceptor
+{
+	/** The name of this interceptor */
+	public static final String NAME = "searchResultCacheInterceptor";
+
+	/** The object classes whose entries may change the results of other entries */
+	private static final Set<String> GLOBAL_OBJECT_CLASSES = new HashSet<String>();
+
+	/** The attributes whose changes may change the results of other entries */
+	private static final Set<String> GLOBAL_ATTRIBUTES = new HashSet<String>();
+
+	static
+	{
+		GLOBAL_OBJECT_CLASSES.add( SchemaConstants.SUBENTRY_OC );
+		GLOBAL_OBJECT_CLASSES.add( SchemaConstants.GROUP_OF_NAMES_OC );
+		GLOBAL_OBJECT_CLASSES.add( SchemaConstants.GROUP_OF_UNIQUE_NAMES_OC );
+		GLOBAL_OBJECT_CLASSES.add( SchemaConstants.ALIAS_OC );
+
+		GLOBAL_ATTRIBUTES.add( SchemaConstants.ENTRY_ACI_AT_OID );
+		GLOBAL_ATTRIBUTES.add( SchemaConstants.PRESCRIPTIVE_ACI_AT_OID );
+		GLOBAL_ATTRIBUTES.add( SchemaConstants.SUBENTRY_ACI_AT_OID );
+		GLOBAL_ATTRIBUTES.add( SchemaConstants.MEMBER_AT_OID );
+		GLOBAL_ATTRIBUTES.add( SchemaConstants.UNIQUE_MEMBER_AT_OID );
+		GLOBAL_ATTRIBUTES.add( SchemaConstants.ALIASED_OBJECT_NAME_AT_OID );
+	}
+
+	/** The caches, by partition id */
+	private final ConcurrentMap<String, SearchResultCache> caches = new ConcurrentHashMap<String, SearchResultCache>();
+
+	/** The nexus, used to find the partition of an operation */
+	private PartitionNexus nexus;
+
+
+	public SearchResultCacheInterceptor()
+	{
+		super( NAME );
+	}
+
+
+	@Override
+	public void init( DirectoryService directoryService ) throws LdapException
+	{
+		super.init( directoryService );
+		nexus = directoryService.getPartitionNexus();
+	}
+
+
+	/**
+	 * Sets the partitions whose results are cached. The caches of the partitions
+	 * which are not listed anymore are dropped, the others are resized.
+	 */
+	public void configure( List<SearchCacheSettings> settings )
+	{
+		Set<String> partitionIds = new HashSet<String>();
+
+		for ( SearchCacheSettings partitionSettings : settings )
+		{
+			partitionIds.add( partitionSettings.getPartitionId() );
+			SearchResultCache cache = caches.get( partitionSettings.getPartitionId() );
+
+			if ( cache == null )
+			{
+				caches.put( partitionSettings.getPartitionId(), new SearchResultCache( partitionSettings ) );
+			}
+			else
+			{
+				cache.setSettings( partitionSettings );
+			}
+		}
+
+		caches.keySet().retainAll( partitionIds );
+	}
+
+
+	/**
+	 * Removes all the cached results, after the partitions were written without
+	 * going through the interceptors.
+	 */
+	public void clear()
+	{
+		for ( SearchResultCache cache : caches.values() )
+		{
+			cache.clear();
+		}
+	}
+
+
+	/**
+	 * @return the usage of the cache of each partition, keyed <code>search/partitionId</code>
+	 */
+	public Map<String, CacheStatistics> getStatistics()
+	{
+		Map<String, CacheStatistics> statistics = new TreeMap<String, CacheStatistics>();
+
+		for ( SearchResultCache cache : caches.values() )
+		{
+			String name = "search/" + cache.getPartitionId();
+			statistics.put( name, cache.getStatistics( name ) );
+		}
+
+		return statistics;
+	}
+
+
+	/**
+	 * @return the cache of the partition holding the given Dn, null if it is not cached
+	 */
+	private SearchResultCache getCache( Dn dn )
+	{
+		if ( caches.isEmpty() || ( dn == null ) || dn.isEmpty() )
+		{
+			return null;
+		}
+
+		try
+		{
+			return caches.get( nexus.getPartition( dn ).getId() );
+		}
+		catch ( LdapException e )
+		{
+			return null;
+		}
+	}
+
+
+	private SearchResultCache.Key createKey( SearchOperationContext searchContext )
+	{
+		Set<String> attributes = new TreeSet<String>();
+
+		if ( searchContext.getReturningAttributes() != null )
+		{
+			for ( AttributeTypeOptions attribute : searchContext.getReturningAttributes() )
+			{
+				attributes.add( attribute.toString() );
+			}
+		}
+
+		String attributeKey = attributes.toString() + searchContext.isAllUserAttributes()
+				+ searchContext.isAllOperationalAttributes() + searchContext.isNoAttributes();
+
+		LdapPrincipal principal = searchContext.getSession().getEffectivePrincipal();
+		String identity = ( principal == null ) || ( principal.getDn() == null ) ? "" : principal.getDn()
+				.getNormName();
+
+		return new SearchResultCache.Key( searchContext.getDn(), searchContext.getScope(), searchContext.getFilter()
+				.toString(), attributeKey, identity, searchContext.getSizeLimit(), searchContext.isTypesOnly(),
+				searchContext.getAliasDerefMode() );
+	}
+
+
+	@Override
+	public EntryFilteringCursor search( SearchOperationContext searchContext ) throws LdapException
+	{
+		SearchResultCache cache = getCache( searchContext.getDn() );
+
+		if ( ( cache == null ) || searchContext.hasRequestControls() )
+		{
+			return next( searchContext );
+		}
+
+		SearchResultCache.Key key = createKey( searchContext );
+		List<Entry> entries = cache.get( key );
+
+		if ( entries != null )
+		{
+			return toCursor( entries, searchContext );
+		}
+
+		long generation = cache.getGeneration();
+		int maxResultSize = cache.getSettings().getMaxResultSize();
+		EntryFilteringCursor cursor = next( searchContext );
+		entries = new ArrayList<Entry>();
+
+		try
+		{
+			while ( cursor.next() )
+			{
+				Entry entry = cursor.get();
+
+				if ( ( entries.size() >= maxResultSize ) || !key.covers( entry.getDn() ) )
+				{
+					// Not cacheable, the search is handed over from its first entry
+					cursor.beforeFirst();
+
+					return cursor;
+				}
+
+				entries.add( entry.clone() );
+			}
+
+			cursor.close();
+		}
+		catch ( LdapException e )
+		{
+			closeQuietly( cursor );
+			throw e;
+		}
+		catch ( Exception e )
+		{
+			closeQuietly( cursor );
+			throw new LdapOtherException( e.getMessage(), e );
+		}
+
+		cache.put( key, entries, generation );
+
+		return toCursor( entries, searchContext );
+	}
+
+
+	/**
+	 * @return a cursor on copies of the cached entries, so the caller can modify them
+	 */
+	private EntryFilteringCursor toCursor( List<Entry> entries, SearchOperationContext searchContext )
+	{
+		List<Entry> copies = new ArrayList<Entry>( entries.size() );
+
+		for ( Entry entry : entries )
+		{
+			copies.add( entry.clone() );
+		}
+
+		return new BaseEntryFilteringCursor( new ListCursor<Entry>( copies ), searchContext, schemaManager );
+	}
+
+
+	private static void closeQuietly( EntryFilteringCursor cursor )
+	{
+		try
+		{
+			cursor.close();
+		}
+		catch ( Exception e )
+		{
+			// Already failing
+		}
+	}
+
+
+	/**
+	 * @return true if the entry may change the results of entries outside of its scope
+	 */
+	static boolean isGlobal( Entry entry )
+	{
+		if ( entry == null )
+		{
+			return false;
+		}
+
+		for ( String objectClass : GLOBAL_OBJECT_CLASSES )
+		{
+			if ( entry.hasObjectClass( objectClass ) )
+			{
+				return true;
+			}
+		}
+
+		for ( String attribute : GLOBAL_ATTRIBUTES )
+		{
+			if ( entry.containsAttribute( attribute ) )
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+	static boolean isGlobal( List<Modification> modifications )
+	{
+		for ( Modification modification : modifications )
+		{
+			if ( ( modification.getAttribute().getAttributeType() != null )
+					&& GLOBAL_ATTRIBUTES.contains( modification.getAttribute().getAttributeType().getOid() ) )
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+	private void invalidate( Dn dn, boolean global )
+	{
+		if ( global )
+		{
+			clear();
+
+			return;
+		}
+
+		SearchResultCache cache = getCache( dn );
+
+		if ( cache != null )
+		{
+			cache.invalidate( dn );
+		}
+	}
+
+
+	private void invalidateSubtree( Dn dn, Dn newDn, boolean global )
+	{
+		if ( global )
+		{
+			clear();
+
+			return;
+		}
+
+		SearchResultCache cache = getCache( dn );
+
+		if ( cache != null )
+		{
+			cache.invalidateSubtree( dn );
+			cache.invalidate( newDn );
+		}
+	}
+
+
+	@Override
+	public void add( AddOperationContext addContext ) throws LdapException
+	{
+		try
+		{
+			next( addContext );
+		}
+		finally
+		{
+			invalidate( addContext.getDn(), isGlobal( addContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void delete( DeleteOperationContext deleteContext ) throws LdapException
+	{
+		try
+		{
+			next( deleteContext );
+		}
+		finally
+		{
+			invalidate( deleteContext.getDn(), isGlobal( deleteContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void modify( ModifyOperationContext modifyContext ) throws LdapException
+	{
+		try
+		{
+			next( modifyContext );
+		}
+		finally
+		{
+			invalidate( modifyContext.getDn(), isGlobal( modifyContext.getModItems() )
+					|| isGlobal( modifyContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void move( MoveOperationContext moveContext ) throws LdapException
+	{
+		try
+		{
+			next( moveContext );
+		}
+		finally
+		{
+			invalidateSubtree( moveContext.getDn(), moveContext.getNewDn(), isGlobal( moveContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+	{
+		try
+		{
+			next( moveAndRenameContext );
+		}
+		finally
+		{
+			invalidateSubtree( moveAndRenameContext.getDn(), moveAndRenameContext.getNewDn(),
+					isGlobal( moveAndRenameContext.getEntry() ) );
+		}
+	}
+
+
+	@Override
+	public void rename( RenameOperationContext renameContext ) throws LdapException
+	{
+		try
+		{
+			next( renameContext );
+		}
+		finally
+		{
+			invalidateSubtree( renameContext.getDn(), renameContext.getNewDn(), isGlobal( renameContext.getEntry() ) );
+		}
+	}
+}
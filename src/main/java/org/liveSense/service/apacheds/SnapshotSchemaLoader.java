@@ -0,0 +1,148 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.schema.registries.AbstractSchemaLoader;
+import org.apache.directory.api.ldap.model.schema.registries.Schema;
+
+
+/**
+ * A schema loader serving the schema objects read from a {@link SchemaSnapshot}.
+ */
+public class SnapshotSchemaLoader extends AbstractSchemaLoader
+{
+	/** The schema objects of each schema, by category */
+	private final Map<String, Map<String, List<Entry>>> entries;
+
+
+	/**
+	 * @param schemas the schemas of the snapshot
+	 * @param entries the schema objects of each schema, by category
+	 */
+	public SnapshotSchemaLoader( Map<String, Schema> schemas, Map<String, Map<String, List<Entry>>> entries )
+	{
+		this.entries = entries;
+
+		for ( Schema schema : schemas.values() )
+		{
+			schemaMap.put( schema.getSchemaName(), schema );
+		}
+	}
+
+
+	private List<Entry> getEntries( String category, Schema... schemas )
+	{
+		List<Entry> result = new ArrayList<Entry>();
+
+		if ( schemas == null )
+		{
+			return result;
+		}
+
+		for ( Schema schema : schemas )
+		{
+			Map<String, List<Entry>> categories = entries.get( schema.getSchemaName() );
+
+			if ( categories != null )
+			{
+				List<Entry> categoryEntries = categories.get( category );
+				result.addAll( categoryEntries == null ? Collections.<Entry> emptyList() : categoryEntries );
+			}
+		}
+
+		return result;
+	}
+
+
+	public List<Entry> loadComparators( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.COMPARATORS, schemas );
+	}
+
+
+	public List<Entry> loadSyntaxCheckers( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.SYNTAX_CHECKERS, schemas );
+	}
+
+
+	public List<Entry> loadNormalizers( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.NORMALIZERS, schemas );
+	}
+
+
+	public List<Entry> loadSyntaxes( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.SYNTAXES, schemas );
+	}
+
+
+	public List<Entry> loadMatchingRules( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.MATCHING_RULES, schemas );
+	}
+
+
+	public List<Entry> loadAttributeTypes( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.ATTRIBUTE_TYPES, schemas );
+	}
+
+
+	public List<Entry> loadMatchingRuleUses( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.MATCHING_RULE_USES, schemas );
+	}
+
+
+	public List<Entry> loadNameForms( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.NAME_FORMS, schemas );
+	}
+
+
+	public List<Entry> loadDitContentRules( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.DIT_CONTENT_RULES, schemas );
+	}
+
+
+	public List<Entry> loadDitStructureRules( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.DIT_STRUCTURE_RULES, schemas );
+	}
+
+
+	public List<Entry> loadObjectClasses( Schema... schemas ) throws LdapException, IOException
+	{
+		return getEntries( SchemaSnapshot.OBJECT_CLASSES, schemas );
+	}
+}
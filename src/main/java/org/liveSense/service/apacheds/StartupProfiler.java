@@ -0,0 +1,140 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+
+/**
+ * Records the duration of the individual steps of the directory service startup.
+ * Steps may be timed from several threads at once, the summary compares the
+ * wall-clock time of the whole startup with the sum of the step durations, which
+ * is what a strictly sequential startup would have cost.
+ */
+public class StartupProfiler
+{
+	/** The duration of each finished step, in the order they finished */
+	private final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+
+	/** The time the profiler was created */
+	private final long startTime = System.currentTimeMillis();
+
+	/** The total wall-clock time, set by {@link #finish()} */
+	private volatile long wallClockTime = -1;
+
+
+	/**
+	 * Marks the beginning of a step.
+	 *
+	 * @return the start time to hand over to {@link #end(String, long)}
+	 */
+	public long begin()
+	{
+		return System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Records the end of a step started with {@link #begin()}
+	 *
+	 * @param step the name of the step
+	 * @param begin the value returned by {@link #begin()}
+	 */
+	public void end( String step, long begin )
+	{
+		long duration = System.currentTimeMillis() - begin;
+
+		synchronized ( durations )
+		{
+			durations.put( step, duration );
+		}
+	}
+
+
+	/**
+	 * Marks the end of the whole startup.
+	 */
+	public void finish()
+	{
+		wallClockTime = System.currentTimeMillis() - startTime;
+	}
+
+
+	/**
+	 * @return the duration in milliseconds of each finished step
+	 */
+	public Map<String, Long> getDurations()
+	{
+		synchronized ( durations )
+		{
+			return Collections.unmodifiableMap( new LinkedHashMap<String, Long>( durations ) );
+		}
+	}
+
+
+	/**
+	 * @return the wall-clock duration of the startup in milliseconds, -1 if not finished yet
+	 */
+	public long getWallClockTime()
+	{
+		return wallClockTime;
+	}
+
+
+	/**
+	 * @return the sum of all the step durations, i.e. the cost of a sequential startup
+	 */
+	public long getSequentialTime()
+	{
+		long total = 0;
+
+		for ( Long duration : getDurations().values() )
+		{
+			total += duration;
+		}
+
+		return total;
+	}
+
+
+	/**
+	 * Logs the duration of every step and the overall gain of the parallel startup
+	 */
+	public void logSummary( Logger log )
+	{
+		if ( !log.isInfoEnabled() )
+		{
+			return;
+		}
+
+		for ( Map.Entry<String, Long> step : getDurations().entrySet() )
+		{
+			log.info( "startup step {}: {} milliseconds", step.getKey(), step.getValue() );
+		}
+
+		log.info( "DirectoryService startup finished in {} milliseconds (sum of the steps: {} milliseconds)",
+				wallClockTime, getSequentialTime() );
+	}
+}
@@ -0,0 +1,474 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.server.core.api.DirectoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Makes the writes to the DirectoryService durable in groups : a single thread
+ * syncs the partitions when one of the policies asks for it,
+ * <ul>
+ * <li>every given number of milliseconds, if something was written</li>
+ * <li>every given number of writes</li>
+ * <li>when a caller waits for its writes to be durable</li>
+ * </ul>
+ * All the callers waiting when a sync starts are released by this single sync,
+ * and the callers arriving during a sync are grouped for the next one.
+ *
+ * The writes are counted by the {@link DurabilityInterceptor}. A write is durable
+ * once a sync started after it completed is over.
+ */
+public class SyncScheduler implements SyncSchedulerMXBean
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( SyncScheduler.class );
+
+	/** The default maximum delay before a write is synced, in milliseconds */
+	public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+	/** By default, the number of writes does not trigger a sync */
+	public static final int DEFAULT_SYNC_WRITES = 0;
+
+	/** The delay before a failed sync is retried, in milliseconds */
+	private static final long FAILURE_BACKOFF = 1000;
+
+	/** The synced DirectoryService */
+	private final DirectoryService directoryService;
+
+	/** The maximum delay before a write is synced, 0 to disable */
+	private volatile long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+	/** The number of writes triggering a sync, 0 to disable */
+	private volatile int syncWrites = DEFAULT_SYNC_WRITES;
+
+	/** Flushed after each sync, with the partitions */
+	private final List<Flushable> flushables = new CopyOnWriteArrayList<Flushable>();
+
+	/** The sequence number of the last completed write */
+	private final AtomicLong writeSequence = new AtomicLong();
+
+	/** The sequence number of the last write made durable */
+	private volatile long durableSequence;
+
+	/** The callers waiting for a sync, guarded by this */
+	private List<SyncFuture> waiters = new ArrayList<SyncFuture>();
+
+	/** The thread running the syncs */
+	private Thread flusher;
+
+	/** Tells if the scheduler is stopping, guarded by this */
+	private boolean stopping;
+
+	private final LatencyHistogram flushLatencies = new LatencyHistogram();
+
+	private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+	private final LatencyHistogram waiterCounts = new LatencyHistogram();
+
+
+	/**
+	 * The future of a caller waiting for its writes to be durable
+	 */
+	private static class SyncFuture extends FutureTask<Void>
+	{
+		/** The sequence number of the last write to make durable */
+		private final long sequence;
+
+		private static final Callable<Void> NOTHING = new Callable<Void>()
+		{
+			public Void call()
+			{
+				return null;
+			}
+		};
+
+
+		private SyncFuture( long sequence )
+		{
+			super( NOTHING );
+			this.sequence = sequence;
+		}
+
+
+		private void complete()
+		{
+			set( null );
+		}
+
+
+		private void fail( Throwable cause )
+		{
+			setException( cause );
+		}
+	}
+
+
+	public SyncScheduler( DirectoryService directoryService )
+	{
+		this.directoryService = directoryService;
+	}
+
+
+	/**
+	 * Sets the policies. A policy set to 0 is disabled.
+	 *
+	 * @param syncInterval the maximum delay before a write is synced, in milliseconds
+	 * @param syncWrites the number of writes triggering a sync
+	 */
+	public synchronized void setPolicy( long syncInterval, int syncWrites )
+	{
+		this.syncInterval = syncInterval;
+		this.syncWrites = syncWrites;
+		notifyAll();
+	}
+
+
+	/**
+	 * Adds a store to flush with the partitions, so it is as durable as the writes
+	 */
+	public void addFlushable( Flushable flushable )
+	{
+		flushables.add( flushable );
+	}
+
+
+	/**
+	 * Starts the thread running the syncs
+	 */
+	public synchronized void start()
+	{
+		stopping = false;
+		flusher = new NamedThreadFactory( "apacheds-sync" ).newThread( new Runnable()
+		{
+			public void run()
+			{
+				runFlusher();
+			}
+		} );
+		flusher.start();
+	}
+
+
+	/**
+	 * Syncs the pending writes one last time and stops the thread running the syncs
+	 */
+	public void stop() throws InterruptedException
+	{
+		Thread thread;
+
+		synchronized ( this )
+		{
+			stopping = true;
+			notifyAll();
+			thread = flusher;
+			flusher = null;
+		}
+
+		if ( thread != null )
+		{
+			thread.join();
+		}
+	}
+
+
+	/**
+	 * Records a completed write
+	 */
+	public void writeCompleted()
+	{
+		long pending = writeSequence.incrementAndGet() - durableSequence;
+		int writes = syncWrites;
+
+		// The first pending write starts the interval, and the flusher is woken up
+		// once enough writes are pending
+		if ( ( pending == 1 ) || ( ( writes > 0 ) && ( pending >= writes ) ) )
+		{
+			synchronized ( this )
+			{
+				notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * @return the sequence number of the last completed write
+	 */
+	public long getWriteSequence()
+	{
+		return writeSequence.get();
+	}
+
+
+	/**
+	 * Waits for all the writes completed so far to be durable. The caller is
+	 * grouped with the other callers waiting, and no sync is done if the writes are
+	 * already durable.
+	 *
+	 * @return a future done once the writes are durable
+	 */
+	public Future<Void> awaitDurable()
+	{
+		return awaitDurable( writeSequence.get() );
+	}
+
+
+	/**
+	 * Waits for the writes up to the given sequence number to be durable.
+	 *
+	 * @param sequence a value of {@link #getWriteSequence()} read after the writes
+	 * @return a future done once the writes are durable
+	 */
+	public synchronized Future<Void> awaitDurable( long sequence )
+	{
+		// Nobody can wait for writes which are not done yet
+		SyncFuture future = new SyncFuture( Math.min( sequence, writeSequence.get() ) );
+
+		if ( future.sequence <= durableSequence )
+		{
+			future.complete();
+		}
+		else if ( flusher == null )
+		{
+			future.fail( new IllegalStateException( "The sync scheduler is stopped" ) );
+		}
+		else
+		{
+			waiters.add( future );
+			notifyAll();
+		}
+
+		return future;
+	}
+
+
+	private void runFlusher()
+	{
+		long lastFlush = System.currentTimeMillis();
+
+		while ( true )
+		{
+			List<SyncFuture> batch;
+			boolean stop;
+
+			synchronized ( this )
+			{
+				try
+				{
+					while ( !stopping && !isFlushNeeded( lastFlush ) )
+					{
+						long interval = syncInterval;
+
+						if ( ( interval > 0 ) && ( writeSequence.get() > durableSequence ) )
+						{
+							wait( Math.max( 1, lastFlush + interval - System.currentTimeMillis() ) );
+						}
+						else
+						{
+							wait();
+						}
+					}
+				}
+				catch ( InterruptedException e )
+				{
+					stopping = true;
+				}
+
+				stop = stopping;
+				batch = waiters;
+				waiters = new ArrayList<SyncFuture>();
+			}
+
+			boolean flushed = flush( batch );
+			lastFlush = System.currentTimeMillis();
+
+			if ( stop )
+			{
+				failWaiters();
+
+				return;
+			}
+
+			if ( !flushed )
+			{
+				try
+				{
+					// Do not retry a failing sync in a loop
+					Thread.sleep( FAILURE_BACKOFF );
+				}
+				catch ( InterruptedException e )
+				{
+					synchronized ( this )
+					{
+						stopping = true;
+					}
+				}
+			}
+		}
+	}
+
+
+	private boolean isFlushNeeded( long lastFlush )
+	{
+		long pending = writeSequence.get() - durableSequence;
+
+		if ( !waiters.isEmpty() )
+		{
+			return true;
+		}
+
+		if ( pending == 0 )
+		{
+			return false;
+		}
+
+		int writes = syncWrites;
+		long interval = syncInterval;
+
+		return ( ( writes > 0 ) && ( pending >= writes ) )
+				|| ( ( interval > 0 ) && ( System.currentTimeMillis() - lastFlush >= interval ) );
+	}
+
+
+	/**
+	 * Syncs the DirectoryService and releases the waiting callers
+	 *
+	 * @return false if the sync failed
+	 */
+	private boolean flush( List<SyncFuture> batch )
+	{
+		long sequence = writeSequence.get();
+		long previous = durableSequence;
+
+		if ( ( sequence == previous ) && batch.isEmpty() )
+		{
+			return true;
+		}
+
+		long start = System.nanoTime();
+
+		try
+		{
+			if ( sequence > previous )
+			{
+				directoryService.sync();
+
+				for ( Flushable flushable : flushables )
+				{
+					flushable.flush();
+				}
+			}
+		}
+		catch ( Exception e )
+		{
+			LOG.error( "Cannot sync the DirectoryService", e );
+
+			for ( SyncFuture future : batch )
+			{
+				future.fail( e );
+			}
+
+			return false;
+		}
+
+		if ( sequence > previous )
+		{
+			flushLatencies.record( System.nanoTime() - start );
+			batchSizes.record( sequence - previous );
+			waiterCounts.record( batch.size() );
+			durableSequence = sequence;
+		}
+
+		// Every caller of the batch waited for writes completed before the sync started
+		for ( SyncFuture future : batch )
+		{
+			future.complete();
+		}
+
+		return true;
+	}
+
+
+	private synchronized void failWaiters()
+	{
+		for ( SyncFuture future : waiters )
+		{
+			future.fail( new IllegalStateException( "The sync scheduler is stopped" ) );
+		}
+
+		waiters.clear();
+	}
+
+
+	public long getFlushCount()
+	{
+		return flushLatencies.getCount();
+	}
+
+
+	public long getPendingWrites()
+	{
+		return writeSequence.get() - durableSequence;
+	}
+
+
+	public double getMeanFlushLatency()
+	{
+		return flushLatencies.getMean() / 1000d;
+	}
+
+
+	public long getFlushLatencyPercentile( double percentile )
+	{
+		return TimeUnit.NANOSECONDS.toMicros( flushLatencies.getPercentile( percentile ) );
+	}
+
+
+	public double getMeanBatchSize()
+	{
+		return batchSizes.getMean();
+	}
+
+
+	public long getMaxBatchSize()
+	{
+		return batchSizes.getMax();
+	}
+
+
+	public double getMeanWaiters()
+	{
+		return waiterCounts.getMean();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+/**
+ * The activity of the {@link SyncScheduler}, published through JMX.
+ */
+public interface SyncSchedulerMXBean
+{
+	/** The JMX name the scheduler is registered under */
+	String OBJECT_NAME = "org.liveSense.service.apacheds:type=SyncScheduler";
+
+
+	/**
+	 * @return the number of syncs of the DirectoryService
+	 */
+	long getFlushCount();
+
+
+	/**
+	 * @return the number of writes not synced yet
+	 */
+	long getPendingWrites();
+
+
+	/**
+	 * @return the mean duration of a sync, in microseconds
+	 */
+	double getMeanFlushLatency();
+
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the duration percentile of the syncs, in microseconds
+	 */
+	long getFlushLatencyPercentile( double percentile );
+
+
+	/**
+	 * @return the mean number of writes made durable by a sync
+	 */
+	double getMeanBatchSize();
+
+
+	/**
+	 * @return the highest number of writes made durable by a sync
+	 */
+	long getMaxBatchSize();
+
+
+	/**
+	 * @return the mean number of callers waiting for a sync
+	 */
+	double getMeanWaiters();
+}
@@ -0,0 +1,100 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Creates executors running each task on a new virtual thread, when the JVM
+ * supports them (Java 21 and later). The bundle is built for older JVMs, so the
+ * virtual thread API is only reached through reflection.
+ *
+ * Note that a virtual thread blocked inside a synchronized block, as it happens
+ * in the JDBM partitions, keeps its carrier thread busy on the JVMs before Java
+ * 24 : the number of concurrent partition reads is then still bounded by the
+ * number of carrier threads.
+ */
+public final class VirtualThreads
+{
+	/** A logger for this class */
+	private static final Logger LOG = LoggerFactory.getLogger( VirtualThreads.class );
+
+
+	private VirtualThreads()
+	{
+	}
+
+
+	/**
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean isAvailable()
+	{
+		try
+		{
+			Thread.class.getMethod( "ofVirtual" );
+
+			return true;
+		}
+		catch ( NoSuchMethodException e )
+		{
+			return false;
+		}
+	}
+
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 *
+	 * @param prefix the prefix of the virtual thread names
+	 * @return the executor, null if the JVM does not support virtual threads
+	 */
+	public static ExecutorService newExecutor( String prefix )
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+			Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+			builder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, prefix + "-", 1L );
+			ThreadFactory factory = ( ThreadFactory ) builderClass.getMethod( "factory" ).invoke( builder );
+			Method newExecutor = Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class );
+
+			return ( ExecutorService ) newExecutor.invoke( null, factory );
+		}
+		catch ( NoSuchMethodException e )
+		{
+			return null;
+		}
+		catch ( Exception e )
+		{
+			LOG.warn( "Cannot create a virtual thread executor", e );
+
+			return null;
+		}
+	}
+}
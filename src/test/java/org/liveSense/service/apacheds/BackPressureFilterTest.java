@@ -0,0 +1,162 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequestImpl;
+import org.apache.directory.api.ldap.model.message.DeleteRequest;
+import org.apache.directory.api.ldap.model.message.DeleteRequestImpl;
+import org.apache.directory.api.ldap.model.message.DeleteResponseImpl;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the suspension and the resumption of the reads by the {@link BackPressureFilter}.
+ */
+public class BackPressureFilterTest
+{
+	/** The number of pending requests suspending the reads */
+	private static final int MAX_PENDING_REQUESTS = 2;
+
+	private BackPressureFilter filter;
+	private DummySession session;
+	private NextFilter nextFilter;
+
+
+	@Before
+	public void init() throws Exception
+	{
+		filter = new BackPressureFilter( 0, MAX_PENDING_REQUESTS );
+		session = new DummySession();
+
+		// The messages are not handled further, the filter is tested alone
+		nextFilter = ( NextFilter ) Proxy.newProxyInstance( NextFilter.class.getClassLoader(),
+				new Class<?>[] { NextFilter.class }, new InvocationHandler()
+				{
+					public Object invoke( Object proxy, Method method, Object[] args )
+					{
+						return null;
+					}
+				} );
+
+		filter.sessionCreated( nextFilter, session );
+	}
+
+
+	private void receive( int messageId ) throws Exception
+	{
+		DeleteRequest request = new DeleteRequestImpl();
+		request.setMessageId( messageId );
+
+		filter.messageReceived( nextFilter, session, request );
+	}
+
+
+	private void respond( int messageId ) throws Exception
+	{
+		filter.messageSent( nextFilter, session, new DefaultWriteRequest( new DeleteResponseImpl( messageId ) ) );
+	}
+
+
+	@Test
+	public void testReadsSuspendedAtTheLimit() throws Exception
+	{
+		receive( 1 );
+
+		assertFalse( session.isReadSuspended() );
+
+		receive( 2 );
+
+		assertTrue( session.isReadSuspended() );
+		assertEquals( 1, filter.getSuspensions() );
+	}
+
+
+	@Test
+	public void testReadsResumedUnderTheLimit() throws Exception
+	{
+		receive( 1 );
+		receive( 2 );
+		respond( 1 );
+
+		assertFalse( session.isReadSuspended() );
+
+		receive( 3 );
+
+		assertTrue( session.isReadSuspended() );
+		assertEquals( 2, filter.getSuspensions() );
+	}
+
+
+	@Test
+	public void testUnknownResponseDoesNotResumeTheReads() throws Exception
+	{
+		receive( 1 );
+		receive( 2 );
+		respond( 3 );
+
+		assertTrue( session.isReadSuspended() );
+	}
+
+
+	@Test
+	public void testAbandonedRequestIsNotCounted() throws Exception
+	{
+		receive( 1 );
+		receive( 2 );
+		filter.messageReceived( nextFilter, session, new AbandonRequestImpl( 2 ) );
+
+		assertFalse( session.isReadSuspended() );
+
+		// The late response of the abandoned request does not release another one
+		respond( 2 );
+		receive( 3 );
+
+		assertTrue( session.isReadSuspended() );
+	}
+
+
+	@Test
+	public void testNoLimit() throws Exception
+	{
+		filter = new BackPressureFilter( 0, 0 );
+		filter.sessionCreated( nextFilter, session );
+
+		for ( int i = 1; i <= 100; i++ )
+		{
+			receive( i );
+		}
+
+		assertFalse( session.isReadSuspended() );
+		assertEquals( 0, filter.getSuspensions() );
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.LdapPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the expiry and the invalidation of the {@link BindCache}.
+ */
+public class BindCacheTest
+{
+	private static final String PEOPLE = "ou=people,dc=example,dc=com";
+	private static final String JOHN = "uid=john," + PEOPLE;
+	private static final String JANE = "uid=jane," + PEOPLE;
+	private static final String OTHER = "uid=john,ou=other,dc=example,dc=com";
+
+	private BindCache cache;
+
+	private LdapPrincipal principal;
+
+
+	private byte[] digest( String normDn, String password ) throws Exception
+	{
+		return cache.digest( normDn, Strings.getBytesUtf8( password ) );
+	}
+
+
+	private void put( String normDn, String password ) throws Exception
+	{
+		cache.put( normDn, digest( normDn, password ), principal, cache.getGeneration() );
+	}
+
+
+	@Before
+	public void init()
+	{
+		cache = new BindCache();
+		cache.setTtl( 60000 );
+		principal = new LdapPrincipal();
+	}
+
+
+	@Test
+	public void testHit() throws Exception
+	{
+		put( JOHN, "secret" );
+
+		assertSame( principal, cache.get( JOHN, digest( JOHN, "secret" ) ) );
+		assertNull( cache.get( JOHN, digest( JOHN, "wrong" ) ) );
+		assertNull( cache.get( JANE, digest( JANE, "secret" ) ) );
+
+		assertEquals( 1, cache.getStatistics().getHits() );
+		assertEquals( 2, cache.getStatistics().getMisses() );
+	}
+
+
+	@Test
+	public void testDigestDependsOnDn() throws Exception
+	{
+		assertFalse( Arrays.equals( digest( JOHN, "secret" ), digest( JANE, "secret" ) ) );
+	}
+
+
+	@Test
+	public void testExpiry() throws Exception
+	{
+		cache.setTtl( 1 );
+		put( JOHN, "secret" );
+
+		Thread.sleep( 20 );
+
+		assertNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+	}
+
+
+	@Test
+	public void testSetTtlClears() throws Exception
+	{
+		put( JOHN, "secret" );
+
+		cache.setTtl( 60000 );
+
+		assertNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+	}
+
+
+	@Test
+	public void testDisabled() throws Exception
+	{
+		cache.setTtl( 0 );
+		assertFalse( cache.isEnabled() );
+
+		put( JOHN, "secret" );
+
+		assertNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+		assertEquals( 0, cache.getStatistics().getSize() );
+	}
+
+
+	@Test
+	public void testInvalidate() throws Exception
+	{
+		put( JOHN, "secret" );
+		put( JANE, "secret" );
+
+		cache.invalidate( JOHN );
+
+		assertNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+		assertNotNull( cache.get( JANE, digest( JANE, "secret" ) ) );
+	}
+
+
+	@Test
+	public void testInvalidateSubtree() throws Exception
+	{
+		put( JOHN, "secret" );
+		put( JANE, "secret" );
+		put( OTHER, "secret" );
+		put( PEOPLE, "secret" );
+
+		cache.invalidateSubtree( PEOPLE );
+
+		assertNull( cache.get( PEOPLE, digest( PEOPLE, "secret" ) ) );
+		assertNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+		assertNull( cache.get( JANE, digest( JANE, "secret" ) ) );
+		assertNotNull( cache.get( OTHER, digest( OTHER, "secret" ) ) );
+	}
+
+
+	@Test
+	public void testPutAfterInvalidation() throws Exception
+	{
+		// A bind verified while its entry was modified is not stored
+		long startGeneration = cache.getGeneration();
+		cache.invalidate( JOHN );
+		cache.put( JOHN, digest( JOHN, "secret" ), principal, startGeneration );
+
+		assertNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+		assertTrue( cache.getGeneration() > startGeneration );
+
+		put( JOHN, "secret" );
+
+		assertNotNull( cache.get( JOHN, digest( JOHN, "secret" ) ) );
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the parsing of the {@link CacheSettings}.
+ */
+public class CacheSettingsTest
+{
+	@Test
+	public void testParseAllSettings()
+	{
+		CacheSettings settings = CacheSettings.parse( "entryCache:heap=10000,disk=200000,ttl=600,tti=60" );
+
+		assertEquals( "entryCache", settings.getName() );
+		assertEquals( 10000, settings.getMaxEntriesOnHeap() );
+		assertEquals( 200000, settings.getMaxEntriesOnDisk() );
+		assertEquals( 600, settings.getTimeToLive() );
+		assertEquals( 60, settings.getTimeToIdle() );
+	}
+
+
+	@Test
+	public void testParseSomeSettings()
+	{
+		CacheSettings settings = CacheSettings.parse( " dnCache : heap = 5000 , ttl = 0 " );
+
+		assertEquals( "dnCache", settings.getName() );
+		assertEquals( 5000, settings.getMaxEntriesOnHeap() );
+		assertEquals( -1, settings.getMaxEntriesOnDisk() );
+		assertEquals( 0, settings.getTimeToLive() );
+		assertEquals( -1, settings.getTimeToIdle() );
+	}
+
+
+	@Test
+	public void testToStringIsParsed()
+	{
+		CacheSettings settings = CacheSettings.parse( "aliasCache:disk=0,tti=30" );
+		CacheSettings parsed = CacheSettings.parse( settings.toString() );
+
+		assertEquals( settings.getName(), parsed.getName() );
+		assertEquals( settings.getMaxEntriesOnHeap(), parsed.getMaxEntriesOnHeap() );
+		assertEquals( settings.getMaxEntriesOnDisk(), parsed.getMaxEntriesOnDisk() );
+		assertEquals( settings.getTimeToLive(), parsed.getTimeToLive() );
+		assertEquals( settings.getTimeToIdle(), parsed.getTimeToIdle() );
+	}
+
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testMissingName()
+	{
+		CacheSettings.parse( ":heap=100" );
+	}
+
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testMissingSettings()
+	{
+		CacheSettings.parse( "entryCache" );
+	}
+
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testUnknownSetting()
+	{
+		CacheSettings.parse( "entryCache:heap=100,size=200" );
+	}
+
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidSetting()
+	{
+		CacheSettings.parse( "entryCache:heap" );
+	}
+
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testInvalidNumber()
+	{
+		CacheSettings.parse( "entryCache:heap=many" );
+	}
+
+
+	@Test
+	public void testApplyOnlyTheGivenSettings()
+	{
+		CacheConfiguration configuration = new CacheConfiguration( "entryCache", 100 );
+		configuration.setTimeToIdleSeconds( 30 );
+		Cache cache = new Cache( configuration );
+
+		CacheSettings.parse( "entryCache:heap=5000,ttl=600" ).applyTo( cache );
+
+		assertEquals( 5000, configuration.getMaxEntriesLocalHeap() );
+		assertEquals( 600, configuration.getTimeToLiveSeconds() );
+		assertEquals( 30, configuration.getTimeToIdleSeconds() );
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the appends, the rotation of the segments and the resumption of the
+ * {@link ChangeFeed}.
+ */
+public class ChangeFeedTest
+{
+	/** The timestamp of the first test CSN */
+	private static final long BASE_TIMESTAMP = 1388534400000L;
+
+	/** The smallest size of a segment */
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+
+	/** Enough changes for more than three segments, a change takes less than 60 bytes */
+	private static final int ROTATED_CHANGES = 3 * SEGMENT_SIZE / 50;
+
+	private File directory;
+
+	private ChangeFeed feed;
+
+
+	@Before
+	public void init() throws Exception
+	{
+		directory = File.createTempFile( "changefeed", "" );
+		assertTrue( directory.delete() );
+
+		feed = new ChangeFeed( directory, SEGMENT_SIZE, 2 );
+		feed.open();
+	}
+
+
+	@After
+	public void destroy()
+	{
+		feed.close();
+
+		for ( File file : directory.listFiles() )
+		{
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+
+	private static Csn csn( int change )
+	{
+		return new Csn( BASE_TIMESTAMP + change, 0, 1, 0 );
+	}
+
+
+	private void append( int change ) throws IOException
+	{
+		feed.append( ChangeRecord.Type.MODIFY, csn( change ), UUID.randomUUID().toString(), "cn=entry" + change, null );
+	}
+
+
+	/**
+	 * Checks the cursor reads the given changes, then nothing
+	 */
+	private static void assertChanges( ChangeFeedCursor cursor, int... changes )
+	{
+		for ( int change : changes )
+		{
+			ChangeRecord record = cursor.next();
+
+			assertEquals( csn( change ).toString(), record.getCsn() );
+			assertEquals( "cn=entry" + change, record.getDn() );
+		}
+
+		assertNull( cursor.next() );
+	}
+
+
+	@Test
+	public void testAppend() throws Exception
+	{
+		String uuid = UUID.randomUUID().toString();
+		feed.append( ChangeRecord.Type.ADD, csn( 1 ), uuid, "cn=entry1", null );
+		feed.append( ChangeRecord.Type.MOVE, csn( 2 ), uuid, "cn=entry1", "cn=entry2" );
+		feed.append( ChangeRecord.Type.DELETE, csn( 3 ), null, "cn=entry2", null );
+
+		ChangeFeedCursor cursor = feed.openCursor();
+
+		ChangeRecord add = cursor.next();
+		assertEquals( ChangeRecord.Type.ADD, add.getType() );
+		assertEquals( uuid, add.getEntryUuid() );
+		assertNull( add.getNewDn() );
+
+		ChangeRecord move = cursor.next();
+		assertEquals( ChangeRecord.Type.MOVE, move.getType() );
+		assertEquals( "cn=entry1", move.getDn() );
+		assertEquals( "cn=entry2", move.getNewDn() );
+
+		ChangeRecord delete = cursor.next();
+		assertEquals( ChangeRecord.Type.DELETE, delete.getType() );
+		assertNull( delete.getEntryUuid() );
+
+		assertNull( cursor.next() );
+		assertEquals( csn( 3 ).toString(), cursor.getLastCsn() );
+	}
+
+
+	@Test
+	public void testResumeFromACsn() throws Exception
+	{
+		for ( int change = 1; change <= 5; change++ )
+		{
+			append( change * 2 );
+		}
+
+		assertChanges( feed.openCursor( csn( 4 ).toString() ), 6, 8, 10 );
+
+		// A CSN the feed does not hold resumes at the first greater one
+		assertChanges( feed.openCursor( csn( 5 ).toString() ), 6, 8, 10 );
+		assertChanges( feed.openCursor( csn( 0 ).toString() ), 2, 4, 6, 8, 10 );
+
+		ChangeFeedCursor cursor = feed.openCursor( csn( 10 ).toString() );
+		assertNull( cursor.next() );
+
+		append( 12 );
+		assertChanges( cursor, 12 );
+	}
+
+
+	@Test
+	public void testOverlappingWritesAreAppendedInCsnOrder() throws Exception
+	{
+		ChangeFeedCursor cursor = feed.openCursor();
+
+		long first = feed.begin();
+		long second = feed.begin();
+
+		// The second write completes first, with a greater CSN
+		append( 2 );
+		feed.end( second );
+
+		assertNull( cursor.next() );
+
+		append( 1 );
+		feed.end( first );
+
+		assertChanges( cursor, 1, 2 );
+		assertChanges( feed.openCursor( csn( 1 ).toString() ), 2 );
+	}
+
+
+	@Test
+	public void testFailedWriteReleasesTheChanges() throws Exception
+	{
+		ChangeFeedCursor cursor = feed.openCursor();
+
+		long failed = feed.begin();
+		long write = feed.begin();
+		append( 2 );
+		feed.end( write );
+
+		assertNull( cursor.next() );
+
+		feed.end( failed );
+
+		assertChanges( cursor, 2 );
+	}
+
+
+	@Test
+	public void testWriteBegunAfterAChangeDoesNotHoldIt() throws Exception
+	{
+		ChangeFeedCursor cursor = feed.openCursor();
+
+		long write = feed.begin();
+		append( 1 );
+		feed.end( write );
+
+		// Its CSN is generated once it is begun, it cannot precede the appended change
+		long later = feed.begin();
+
+		assertChanges( cursor, 1 );
+
+		feed.end( later );
+	}
+
+
+	@Test
+	public void testRotation() throws Exception
+	{
+		// The first segments are deleted
+		int changes = ROTATED_CHANGES;
+
+		for ( int change = 1; change <= changes; change++ )
+		{
+			append( change );
+		}
+
+		String firstCsn = feed.getFirstCsn();
+		assertTrue( !csn( 1 ).toString().equals( firstCsn ) );
+
+		ChangeFeedCursor cursor = feed.openCursor();
+		int read = 0;
+		String lastCsn = null;
+
+		for ( ChangeRecord record = cursor.next(); record != null; record = cursor.next() )
+		{
+			assertTrue( ( lastCsn == null ) || ( new Csn( lastCsn ).compareTo( new Csn( record.getCsn() ) ) < 0 ) );
+			lastCsn = record.getCsn();
+			read++;
+		}
+
+		assertEquals( csn( changes ).toString(), lastCsn );
+		assertEquals( firstCsn, feed.openCursor().next().getCsn() );
+
+		// The reads resume across the segments
+		assertChanges( feed.openCursor( csn( changes - 2 ).toString() ), changes - 1, changes );
+		assertEquals( read - 1, count( feed.openCursor( firstCsn ) ) );
+	}
+
+
+	@Test(expected = ChangeFeedTruncatedException.class)
+	public void testResumeFromADeletedChange() throws Exception
+	{
+		for ( int change = 1; change <= ROTATED_CHANGES; change++ )
+		{
+			append( change );
+		}
+
+		feed.openCursor( csn( 1 ).toString() );
+	}
+
+
+	@Test
+	public void testReopen() throws Exception
+	{
+		append( 1 );
+		append( 2 );
+		feed.close();
+
+		feed = new ChangeFeed( directory, SEGMENT_SIZE, 2 );
+		feed.open();
+		append( 3 );
+
+		assertChanges( feed.openCursor( csn( 1 ).toString() ), 2, 3 );
+	}
+
+
+	private static int count( ChangeFeedCursor cursor )
+	{
+		int count = 0;
+
+		while ( cursor.next() != null )
+		{
+			count++;
+		}
+
+		return count;
+	}
+}
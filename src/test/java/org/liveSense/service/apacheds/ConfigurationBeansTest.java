@@ -0,0 +1,262 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.config.beans.InterceptorBean;
+import org.apache.directory.server.config.beans.JdbmIndexBean;
+import org.apache.directory.server.config.beans.JdbmPartitionBean;
+import org.apache.directory.server.config.beans.KdcServerBean;
+import org.apache.directory.server.config.beans.LdapServerBean;
+import org.apache.directory.server.config.beans.NtpServerBean;
+import org.apache.directory.server.config.beans.TcpTransportBean;
+import org.apache.directory.server.config.beans.TransportBean;
+import org.junit.Test;
+
+
+/**
+ * Tests the comparisons deciding what is applied when the configuration is reloaded.
+ */
+public class ConfigurationBeansTest
+{
+	private static JdbmIndexBean index( String attributeId )
+	{
+		JdbmIndexBean index = new JdbmIndexBean();
+		index.setIndexAttributeId( attributeId );
+		index.setIndexCacheSize( 100 );
+
+		return index;
+	}
+
+
+	private static JdbmPartitionBean partition( JdbmIndexBean... indexes ) throws Exception
+	{
+		JdbmPartitionBean partition = new JdbmPartitionBean();
+		partition.setPartitionId( "example" );
+		partition.setPartitionSuffix( new Dn( "dc=example,dc=com" ) );
+		partition.setPartitionCacheSize( 10000 );
+		partition.addIndexes( indexes );
+
+		return partition;
+	}
+
+
+	private static JdbmPartitionBean partition() throws Exception
+	{
+		return partition( index( "objectClass" ), index( "uid" ) );
+	}
+
+
+	private static InterceptorBean interceptor( String id, int order )
+	{
+		InterceptorBean interceptor = new InterceptorBean();
+		interceptor.setInterceptorId( id );
+		interceptor.setInterceptorOrder( order );
+		interceptor.setInterceptorClassName( "org.example." + id );
+
+		return interceptor;
+	}
+
+
+	private static List<InterceptorBean> interceptors()
+	{
+		List<InterceptorBean> interceptors = new ArrayList<InterceptorBean>();
+		interceptors.add( interceptor( "normalization", 1 ) );
+		interceptors.add( interceptor( "authentication", 2 ) );
+
+		return interceptors;
+	}
+
+
+	private static TransportBean transport( int port )
+	{
+		TcpTransportBean transport = new TcpTransportBean();
+		transport.setTransportId( "ldap" );
+		transport.setSystemPort( port );
+		transport.setTransportNbThreads( 8 );
+
+		return transport;
+	}
+
+
+	private static LdapServerBean ldapServer()
+	{
+		LdapServerBean server = new LdapServerBean();
+		server.setServerId( "ldapServer" );
+		server.setTransports( transport( 10389 ) );
+		server.setLdapServerMaxSizeLimit( 1000 );
+		server.setLdapServerSaslHost( "ldap.example.com" );
+
+		return server;
+	}
+
+
+	private static KdcServerBean kdcServer()
+	{
+		KdcServerBean server = new KdcServerBean();
+		server.setServerId( "kerberosServer" );
+		server.setTransports( transport( 60088 ) );
+		server.setKrbPrimaryRealm( "EXAMPLE.COM" );
+		server.setKrbMaximumTicketLifetime( 86400000L );
+
+		return server;
+	}
+
+
+	@Test
+	public void testEqual()
+	{
+		assertTrue( ConfigurationBeans.equal( null, null ) );
+		assertTrue( ConfigurationBeans.equal( "a", "a" ) );
+		assertFalse( ConfigurationBeans.equal( "a", null ) );
+		assertFalse( ConfigurationBeans.equal( null, "a" ) );
+		assertFalse( ConfigurationBeans.equal( "a", "b" ) );
+	}
+
+
+	@Test
+	public void testSamePartition() throws Exception
+	{
+		assertTrue( ConfigurationBeans.samePartition( null, null ) );
+		assertFalse( ConfigurationBeans.samePartition( null, partition() ) );
+		assertTrue( ConfigurationBeans.samePartition( partition(), partition() ) );
+
+		JdbmPartitionBean changed = partition();
+		changed.setPartitionSuffix( new Dn( "dc=example,dc=org" ) );
+		assertFalse( ConfigurationBeans.samePartition( partition(), changed ) );
+
+		changed = partition();
+		changed.setPartitionCacheSize( 20000 );
+		assertFalse( ConfigurationBeans.samePartition( partition(), changed ) );
+
+		changed = partition();
+		changed.setPartitionSyncOnWrite( !changed.isPartitionSyncOnWrite() );
+		assertFalse( ConfigurationBeans.samePartition( partition(), changed ) );
+	}
+
+
+	@Test
+	public void testSameIndexes() throws Exception
+	{
+		JdbmPartitionBean reordered = partition( index( "uid" ), index( "objectClass" ) );
+		assertTrue( ConfigurationBeans.samePartition( partition(), reordered ) );
+
+		JdbmPartitionBean added = partition( index( "objectClass" ), index( "uid" ), index( "cn" ) );
+		assertFalse( ConfigurationBeans.samePartition( partition(), added ) );
+
+		JdbmIndexBean resizedIndex = index( "uid" );
+		resizedIndex.setIndexCacheSize( 200 );
+		assertFalse( ConfigurationBeans.samePartition( partition(), partition( index( "objectClass" ), resizedIndex ) ) );
+
+		JdbmIndexBean disabledIndex = index( "objectClass" );
+		disabledIndex.setEnabled( false );
+		assertFalse( ConfigurationBeans.samePartition( partition(), partition( disabledIndex, index( "uid" ) ) ) );
+	}
+
+
+	@Test
+	public void testSameInterceptors()
+	{
+		assertTrue( ConfigurationBeans.sameInterceptors( interceptors(), interceptors() ) );
+
+		List<InterceptorBean> reordered = interceptors();
+		reordered.get( 0 ).setInterceptorOrder( 3 );
+		assertFalse( ConfigurationBeans.sameInterceptors( interceptors(), reordered ) );
+
+		List<InterceptorBean> replaced = interceptors();
+		replaced.get( 1 ).setInterceptorClassName( "org.example.other" );
+		assertFalse( ConfigurationBeans.sameInterceptors( interceptors(), replaced ) );
+
+		List<InterceptorBean> disabled = interceptors();
+		disabled.get( 1 ).setEnabled( false );
+		assertFalse( ConfigurationBeans.sameInterceptors( interceptors(), disabled ) );
+
+		List<InterceptorBean> added = interceptors();
+		added.add( interceptor( "schema", 3 ) );
+		assertFalse( ConfigurationBeans.sameInterceptors( interceptors(), added ) );
+	}
+
+
+	@Test
+	public void testSameLdapServer()
+	{
+		assertTrue( ConfigurationBeans.sameLdapServer( null, null ) );
+		assertFalse( ConfigurationBeans.sameLdapServer( ldapServer(), null ) );
+		assertTrue( ConfigurationBeans.sameLdapServer( ldapServer(), ldapServer() ) );
+
+		// Changed on the running server
+		LdapServerBean limited = ldapServer();
+		limited.setLdapServerMaxSizeLimit( 500 );
+		assertTrue( ConfigurationBeans.sameLdapServer( ldapServer(), limited ) );
+
+		LdapServerBean moved = ldapServer();
+		moved.setTransports( transport( 11389 ) );
+		assertFalse( ConfigurationBeans.sameLdapServer( ldapServer(), moved ) );
+
+		LdapServerBean renamed = ldapServer();
+		renamed.setLdapServerSaslHost( "directory.example.com" );
+		assertFalse( ConfigurationBeans.sameLdapServer( ldapServer(), renamed ) );
+
+		LdapServerBean disabled = ldapServer();
+		disabled.setEnabled( false );
+		assertFalse( ConfigurationBeans.sameLdapServer( ldapServer(), disabled ) );
+	}
+
+
+	@Test
+	public void testSameKdcServer()
+	{
+		assertTrue( ConfigurationBeans.sameKdcServer( null, null ) );
+		assertFalse( ConfigurationBeans.sameKdcServer( null, kdcServer() ) );
+		assertTrue( ConfigurationBeans.sameKdcServer( kdcServer(), kdcServer() ) );
+
+		KdcServerBean realm = kdcServer();
+		realm.setKrbPrimaryRealm( "EXAMPLE.ORG" );
+		assertFalse( ConfigurationBeans.sameKdcServer( kdcServer(), realm ) );
+
+		KdcServerBean lifetime = kdcServer();
+		lifetime.setKrbMaximumTicketLifetime( 3600000L );
+		assertFalse( ConfigurationBeans.sameKdcServer( kdcServer(), lifetime ) );
+	}
+
+
+	@Test
+	public void testSameNtpServer()
+	{
+		NtpServerBean server = new NtpServerBean();
+		server.setServerId( "ntpServer" );
+		server.setTransports( transport( 60123 ) );
+
+		NtpServerBean moved = new NtpServerBean();
+		moved.setServerId( "ntpServer" );
+		moved.setTransports( transport( 60124 ) );
+
+		assertTrue( ConfigurationBeans.sameNtpServer( null, null ) );
+		assertTrue( ConfigurationBeans.sameNtpServer( server, server ) );
+		assertFalse( ConfigurationBeans.sameNtpServer( server, moved ) );
+	}
+}
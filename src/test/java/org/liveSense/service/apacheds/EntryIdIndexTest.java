@@ -0,0 +1,260 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link EntryIdIndex} : the packing of the CSNs, the tree of the
+ * entries and its rebuild.
+ */
+public class EntryIdIndexTest
+{
+	private static final String ROOT = "00000000-0000-0000-0000-000000000001";
+	private static final String PEOPLE = "00000000-0000-0000-0000-000000000002";
+	private static final String GROUPS = "00000000-0000-0000-0000-000000000003";
+	private static final String JOHN = "00000000-0000-0000-0000-000000000004";
+	private static final String UNKNOWN = "00000000-0000-0000-0000-0000000000ff";
+
+	private static final String ROOT_DN = "dc=example,dc=com";
+	private static final String PEOPLE_DN = "ou=people," + ROOT_DN;
+	private static final String GROUPS_DN = "ou=groups," + ROOT_DN;
+	private static final String JOHN_DN = "uid=john," + PEOPLE_DN;
+
+	private EntryIdIndex index;
+
+
+	private static String csn( int changeCount )
+	{
+		return new Csn( 1357002000000L, changeCount, 1, 0 ).toString();
+	}
+
+
+	@Before
+	public void init()
+	{
+		index = new EntryIdIndex( 16 );
+		index.put( ROOT, csn( 1 ), null, ROOT_DN );
+		index.put( PEOPLE, csn( 2 ), ROOT, "ou=people" );
+		index.put( GROUPS, csn( 3 ), ROOT, "ou=groups" );
+		index.put( JOHN, csn( 4 ), PEOPLE, "uid=john" );
+	}
+
+
+	@Test
+	public void testPackCsn()
+	{
+		Csn csn = new Csn( 1357002000123L, 0xFFFFFF, 0xFFF, 0xFFFFFF );
+		Csn unpacked = EntryIdIndex.unpackCsn( csn.getTimestamp(), EntryIdIndex.packCsn( csn ) );
+
+		assertEquals( csn.getTimestamp(), unpacked.getTimestamp() );
+		assertEquals( csn.getChangeCount(), unpacked.getChangeCount() );
+		assertEquals( csn.getReplicaId(), unpacked.getReplicaId() );
+		assertEquals( csn.getOperationNumber(), unpacked.getOperationNumber() );
+
+		unpacked = EntryIdIndex.unpackCsn( 1L, EntryIdIndex.packCsn( new Csn( 1L, 0, 0, 0 ) ) );
+
+		assertEquals( 0, unpacked.getChangeCount() );
+		assertEquals( 0, unpacked.getReplicaId() );
+		assertEquals( 0, unpacked.getOperationNumber() );
+	}
+
+
+	@Test
+	public void testPackCsnKeepsTheOrder()
+	{
+		long changeCount = EntryIdIndex.packCsn( new Csn( 1L, 2, 0, 0 ) );
+		long replicaId = EntryIdIndex.packCsn( new Csn( 1L, 1, 0xFFF, 0 ) );
+		long operationNumber = EntryIdIndex.packCsn( new Csn( 1L, 1, 1, 0xFFFFFF ) );
+		long lowest = EntryIdIndex.packCsn( new Csn( 1L, 1, 1, 0 ) );
+
+		assertTrue( changeCount > replicaId );
+		assertTrue( replicaId > operationNumber );
+		assertTrue( operationNumber > lowest );
+	}
+
+
+	@Test
+	public void testLookups()
+	{
+		assertEquals( 4, index.size() );
+		assertEquals( ROOT_DN, index.getDn( ROOT ) );
+		assertEquals( PEOPLE_DN, index.getDn( PEOPLE ) );
+		assertEquals( JOHN_DN, index.getDn( JOHN ) );
+		assertEquals( csn( 4 ), index.getCsn( JOHN ) );
+		assertEquals( JOHN, index.getUuid( csn( 4 ) ) );
+		assertEquals( JOHN_DN, index.getDnByCsn( csn( 4 ) ) );
+		assertNull( index.getDn( UNKNOWN ) );
+		assertNull( index.getCsn( UNKNOWN ) );
+		assertNull( index.getUuid( csn( 5 ) ) );
+	}
+
+
+	@Test
+	public void testSetCsn()
+	{
+		assertTrue( index.setCsn( JOHN, csn( 5 ) ) );
+
+		assertEquals( csn( 5 ), index.getCsn( JOHN ) );
+		assertEquals( JOHN, index.getUuid( csn( 5 ) ) );
+		assertNull( index.getUuid( csn( 4 ) ) );
+		assertEquals( JOHN_DN, index.getDnByCsn( csn( 5 ) ) );
+
+		assertFalse( index.setCsn( UNKNOWN, csn( 6 ) ) );
+		assertNull( index.getUuid( csn( 6 ) ) );
+	}
+
+
+	@Test
+	public void testMoveOnlyUpdatesTheMovedEntry()
+	{
+		index.put( PEOPLE, csn( 5 ), GROUPS, "ou=staff" );
+
+		assertEquals( "ou=staff," + GROUPS_DN, index.getDn( PEOPLE ) );
+		assertEquals( "uid=john,ou=staff," + GROUPS_DN, index.getDn( JOHN ) );
+		assertEquals( PEOPLE, index.getUuid( csn( 5 ) ) );
+		assertNull( index.getUuid( csn( 2 ) ) );
+		assertEquals( 4, index.size() );
+	}
+
+
+	@Test
+	public void testRemove()
+	{
+		index.remove( PEOPLE );
+
+		assertNull( index.getDn( PEOPLE ) );
+		assertNull( index.getUuid( csn( 2 ) ) );
+
+		// The descendants of a removed entry can not be resolved anymore
+		assertNull( index.getDn( JOHN ) );
+		assertEquals( GROUPS_DN, index.getDn( GROUPS ) );
+
+		index.clear();
+
+		assertEquals( 0, index.size() );
+		assertNull( index.getDn( ROOT ) );
+	}
+
+
+	@Test
+	public void testLoader()
+	{
+		EntryIdIndex loaded = new EntryIdIndex( 16 );
+		EntryIdIndex.Loader loader = loaded.newLoader( 16 );
+
+		// The entries are read in any order
+		loader.add( JOHN, csn( 4 ), JOHN_DN, PEOPLE_DN, "uid=john" );
+		loader.add( PEOPLE, csn( 2 ), PEOPLE_DN, ROOT_DN, "ou=people" );
+		loader.add( UNKNOWN, csn( 9 ), "cn=orphan,ou=missing," + ROOT_DN, "ou=missing," + ROOT_DN, "cn=orphan" );
+		loader.add( ROOT, csn( 1 ), ROOT_DN, null, "dc=example" );
+
+		assertEquals( 1, loader.finish() );
+		assertEquals( 3, loaded.size() );
+		assertEquals( ROOT_DN, loaded.getDn( ROOT ) );
+		assertEquals( JOHN_DN, loaded.getDn( JOHN ) );
+		assertEquals( JOHN_DN, loaded.getDnByCsn( csn( 4 ) ) );
+		assertNull( loaded.getDn( UNKNOWN ) );
+		assertNull( loaded.getUuid( csn( 9 ) ) );
+	}
+
+
+	/**
+	 * @return an index loaded with the entries of the tree built by {@link #init()}
+	 */
+	private static EntryIdIndex rebuild()
+	{
+		EntryIdIndex rebuilt = new EntryIdIndex( 16 );
+		EntryIdIndex.Loader loader = rebuilt.newLoader( 16 );
+		loader.add( ROOT, csn( 1 ), ROOT_DN, null, "dc=example" );
+		loader.add( PEOPLE, csn( 2 ), PEOPLE_DN, ROOT_DN, "ou=people" );
+		loader.add( GROUPS, csn( 3 ), GROUPS_DN, ROOT_DN, "ou=groups" );
+		loader.add( JOHN, csn( 4 ), JOHN_DN, PEOPLE_DN, "uid=john" );
+		loader.finish();
+
+		return rebuilt;
+	}
+
+
+	@Test
+	public void testReplaceKeepsTheWritesDoneDuringTheRebuild()
+	{
+		index.startTracking();
+		EntryIdIndex rebuilt = rebuild();
+
+		index.setCsn( JOHN, csn( 5 ) );
+		index.remove( GROUPS );
+
+		assertTrue( index.replaceWith( rebuilt, false ) );
+		assertEquals( csn( 5 ), index.getCsn( JOHN ) );
+		assertNull( index.getUuid( csn( 4 ) ) );
+		assertNull( index.getDn( GROUPS ) );
+		assertEquals( JOHN_DN, index.getDn( JOHN ) );
+		assertEquals( 3, index.size() );
+	}
+
+
+	@Test
+	public void testReplaceIsRefusedWhenAnEntryMoved()
+	{
+		index.startTracking();
+		EntryIdIndex rebuilt = rebuild();
+
+		index.put( PEOPLE, csn( 5 ), GROUPS, "ou=people" );
+
+		assertFalse( index.replaceWith( rebuilt, false ) );
+		assertEquals( "uid=john,ou=people," + GROUPS_DN, index.getDn( JOHN ) );
+	}
+
+
+	@Test
+	public void testForcedReplaceCopiesTheMovedEntry()
+	{
+		index.startTracking();
+		EntryIdIndex rebuilt = rebuild();
+
+		index.put( PEOPLE, csn( 5 ), GROUPS, "ou=people" );
+
+		assertTrue( index.replaceWith( rebuilt, true ) );
+		assertEquals( "uid=john,ou=people," + GROUPS_DN, index.getDn( JOHN ) );
+		assertEquals( PEOPLE, index.getUuid( csn( 5 ) ) );
+	}
+
+
+	@Test
+	public void testStopTracking()
+	{
+		index.startTracking();
+		index.put( PEOPLE, csn( 5 ), GROUPS, "ou=people" );
+		index.stopTracking();
+
+		assertTrue( index.replaceWith( rebuild(), false ) );
+		assertEquals( JOHN_DN, index.getDn( JOHN ) );
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the placement of the {@link KdcPrincipalCacheInterceptor} and the writes
+ * clearing the whole cache.
+ */
+public class KdcPrincipalCacheInterceptorTest
+{
+	private static final String JOHN = "uid=john,ou=people,dc=example,dc=com";
+
+	private static SchemaManager schemaManager;
+
+
+	@BeforeClass
+	public static void loadSchema() throws Exception
+	{
+		schemaManager = new DefaultSchemaManager();
+	}
+
+
+	/**
+	 * @return a DirectoryService holding the given interceptors only
+	 */
+	private static DirectoryService directoryService( final String... names )
+	{
+		InvocationHandler handler = new InvocationHandler()
+		{
+			public Object invoke( Object proxy, Method method, Object[] args )
+			{
+				if ( "getInterceptor".equals( method.getName() ) && Arrays.asList( names ).contains( args[0] ) )
+				{
+					return new BaseInterceptor( ( String ) args[0] )
+					{
+					};
+				}
+
+				return null;
+			}
+		};
+
+		return ( DirectoryService ) Proxy.newProxyInstance( DirectoryService.class.getClassLoader(),
+				new Class<?>[] { DirectoryService.class }, handler );
+	}
+
+
+	private static List<Modification> modifications( String attribute )
+	{
+		List<Modification> modifications = new ArrayList<Modification>();
+		modifications.add( new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, new DefaultAttribute(
+				schemaManager.getAttributeType( attribute ) ) ) );
+
+		return modifications;
+	}
+
+
+	@Test
+	public void testPlacedAfterAuthorization()
+	{
+		String normalization = InterceptorEnum.NORMALIZATION_INTERCEPTOR.getName();
+		String authentication = InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName();
+		String aciAuthorization = InterceptorEnum.ACI_AUTHORIZATION_INTERCEPTOR.getName();
+		String defaultAuthorization = InterceptorEnum.DEFAULT_AUTHORIZATION_INTERCEPTOR.getName();
+
+		assertEquals( defaultAuthorization, ApacheDsService.getLastAuthorizationInterceptor( directoryService(
+				normalization, authentication, aciAuthorization, defaultAuthorization ) ) );
+		assertEquals( aciAuthorization, ApacheDsService.getLastAuthorizationInterceptor( directoryService(
+				normalization, authentication, aciAuthorization ) ) );
+		assertEquals( authentication, ApacheDsService.getLastAuthorizationInterceptor( directoryService(
+				normalization, authentication ) ) );
+		assertEquals( normalization, ApacheDsService.getLastAuthorizationInterceptor( directoryService(
+				normalization ) ) );
+	}
+
+
+	@Test
+	public void testPrincipalWriteIsLocal() throws Exception
+	{
+		Dn dn = new Dn( schemaManager, JOHN );
+		Entry entry = new DefaultEntry( schemaManager, JOHN, "objectClass: person", "cn: John", "sn: Doe" );
+
+		assertFalse( KdcPrincipalCacheInterceptor.isGlobal( dn, entry ) );
+		assertFalse( KdcPrincipalCacheInterceptor.isGlobal( dn, modifications( "description" ) ) );
+	}
+
+
+	@Test
+	public void testAciWriteIsGlobal() throws Exception
+	{
+		Dn dn = new Dn( schemaManager, JOHN );
+
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( dn, modifications( "entryACI" ) ) );
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( dn, modifications( "prescriptiveACI" ) ) );
+	}
+
+
+	@Test
+	public void testGroupWriteIsGlobal() throws Exception
+	{
+		String admins = "cn=admins,ou=groups,dc=example,dc=com";
+		Entry entry = new DefaultEntry( schemaManager, admins, "objectClass: groupOfNames", "cn: admins", "member: "
+				+ JOHN );
+
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( new Dn( schemaManager, admins ), entry ) );
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( new Dn( schemaManager, admins ), modifications( "member" ) ) );
+	}
+
+
+	@Test
+	public void testSubentryWriteIsGlobal() throws Exception
+	{
+		String subentry = "cn=kdcAccess,dc=example,dc=com";
+		Entry entry = new DefaultEntry( schemaManager, subentry, "objectClass: subentry", "cn: kdcAccess",
+				"subtreeSpecification: {}" );
+
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( new Dn( schemaManager, subentry ), entry ) );
+	}
+
+
+	@Test
+	public void testSchemaWriteIsGlobal() throws Exception
+	{
+		Dn schema = new Dn( schemaManager, "cn=krb5kdc,ou=schema" );
+
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( schema, modifications( "description" ) ) );
+		assertTrue( KdcPrincipalCacheInterceptor.isGlobal( new Dn( schemaManager, "ou=schema" ),
+				modifications( "description" ) ) );
+		assertFalse( KdcPrincipalCacheInterceptor.isGlobal( new Dn( schemaManager, "ou=schema,dc=example,dc=com" ),
+				modifications( "description" ) ) );
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the bucket math of the {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest
+{
+	@Test
+	public void testEmpty()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals( 0, histogram.getCount() );
+		assertEquals( 0, histogram.getMax() );
+		assertEquals( 0d, histogram.getMean(), 0d );
+		assertEquals( 0, histogram.getPercentile( 50 ) );
+	}
+
+
+	@Test
+	public void testSmallValuesAreExact()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for ( long value = 0; value < 16; value++ )
+		{
+			histogram.record( value );
+		}
+
+		assertEquals( 16, histogram.getCount() );
+		assertEquals( 0, histogram.getPercentile( 0 ) );
+		assertEquals( 7, histogram.getPercentile( 50 ) );
+		assertEquals( 14, histogram.getPercentile( 90 ) );
+		assertEquals( 15, histogram.getPercentile( 100 ) );
+	}
+
+
+	@Test
+	public void testPercentileIsTheHighestValueOfTheBucket()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( 32 );
+		histogram.record( 1000 );
+
+		// 32 and 33 share a bucket, 1000 is in the bucket [992, 1023]
+		assertEquals( 33, histogram.getPercentile( 50 ) );
+		assertEquals( 1000, histogram.getPercentile( 100 ) );
+
+		histogram.record( 2000 );
+
+		assertEquals( 1023, histogram.getPercentile( 60 ) );
+	}
+
+
+	@Test
+	public void testRelativeError()
+	{
+		for ( long value = 16; value < ( 1L << 40 ); value = value * 3 / 2 + 1 )
+		{
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record( value );
+			histogram.record( Long.MAX_VALUE );
+
+			long percentile = histogram.getPercentile( 50 );
+
+			assertTrue( "value " + value + " reported as " + percentile, percentile >= value );
+			assertTrue( "value " + value + " reported as " + percentile, percentile - value < value / 16 + 1 );
+		}
+	}
+
+
+	@Test
+	public void testBucketBoundaries()
+	{
+		for ( int bit = 4; bit < 62; bit++ )
+		{
+			long lowest = 1L << bit;
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record( lowest - 1 );
+			histogram.record( lowest );
+			histogram.record( Long.MAX_VALUE );
+
+			// A power of 2 starts a new bucket
+			assertEquals( lowest - 1, histogram.getPercentile( 33 ) );
+			assertEquals( lowest + ( 1L << ( bit - 4 ) ) - 1, histogram.getPercentile( 66 ) );
+		}
+	}
+
+
+	@Test
+	public void testHighestValue()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( Long.MAX_VALUE );
+
+		assertEquals( Long.MAX_VALUE, histogram.getMax() );
+		assertEquals( Long.MAX_VALUE, histogram.getPercentile( 100 ) );
+	}
+
+
+	@Test
+	public void testNegativeValuesAreRecordedAsZero()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( -5 );
+
+		assertEquals( 1, histogram.getCount() );
+		assertEquals( 0, histogram.getMax() );
+		assertEquals( 0, histogram.getPercentile( 100 ) );
+	}
+
+
+	@Test
+	public void testMeanAndReset()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record( 10 );
+		histogram.record( 20 );
+
+		assertEquals( 15d, histogram.getMean(), 0d );
+		assertEquals( 20, histogram.getMax() );
+
+		histogram.reset();
+
+		assertEquals( 0, histogram.getCount() );
+		assertEquals( 0, histogram.getMax() );
+		assertEquals( 0, histogram.getPercentile( 100 ) );
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the open addressing and the reuse of the deleted slots of the
+ * {@link OffHeapLongHashTable}.
+ */
+public class OffHeapLongHashTableTest
+{
+	@Test
+	public void testInsertAndFind()
+	{
+		OffHeapLongHashTable table = new OffHeapLongHashTable( 2, 16 );
+
+		assertEquals( -1, table.find( 1L, 2L ) );
+
+		int slot = table.insert( 1L, 2L );
+
+		assertEquals( 0L, table.getValue( slot, 0 ) );
+		assertEquals( 0L, table.getValue( slot, 1 ) );
+
+		table.setValue( slot, 0, 10L );
+		table.setValue( slot, 1, 20L );
+
+		assertEquals( slot, table.find( 1L, 2L ) );
+		assertEquals( slot, table.insert( 1L, 2L ) );
+		assertEquals( 1L, table.getKeyHigh( slot ) );
+		assertEquals( 2L, table.getKeyLow( slot ) );
+		assertEquals( 10L, table.getValue( slot, 0 ) );
+		assertEquals( 20L, table.getValue( slot, 1 ) );
+		assertEquals( -1, table.find( 2L, 1L ) );
+		assertEquals( 1, table.size() );
+	}
+
+
+	@Test
+	public void testGrow()
+	{
+		OffHeapLongHashTable table = new OffHeapLongHashTable( 1, 16 );
+		long initialMemory = table.getMemorySize();
+
+		for ( long i = 0; i < 10000; i++ )
+		{
+			table.setValue( table.insert( i, i * 7 ), 0, i * 3 );
+		}
+
+		assertEquals( 10000, table.size() );
+		assertTrue( table.getMemorySize() > initialMemory );
+
+		for ( long i = 0; i < 10000; i++ )
+		{
+			int slot = table.find( i, i * 7 );
+
+			assertTrue( slot >= 0 );
+			assertEquals( i * 3, table.getValue( slot, 0 ) );
+		}
+	}
+
+
+	@Test
+	public void testRemoveKeepsTheProbeSequences()
+	{
+		OffHeapLongHashTable table = new OffHeapLongHashTable( 1, 1000 );
+
+		for ( long i = 0; i < 1000; i++ )
+		{
+			table.setValue( table.insert( i, -i ), 0, i );
+		}
+
+		for ( long i = 0; i < 1000; i += 2 )
+		{
+			assertTrue( table.remove( i, -i ) );
+		}
+
+		assertFalse( table.remove( 0L, 0L ) );
+		assertEquals( 500, table.size() );
+
+		for ( long i = 0; i < 1000; i++ )
+		{
+			int slot = table.find( i, -i );
+
+			if ( i % 2 == 0 )
+			{
+				assertEquals( -1, slot );
+			}
+			else
+			{
+				assertEquals( i, table.getValue( slot, 0 ) );
+			}
+		}
+	}
+
+
+	@Test
+	public void testDeletedSlotsAreCompacted()
+	{
+		OffHeapLongHashTable table = new OffHeapLongHashTable( 1, 100 );
+
+		for ( long i = 0; i < 10; i++ )
+		{
+			table.setValue( table.insert( -1L, i ), 0, i );
+		}
+
+		long memory = table.getMemorySize();
+
+		// Only the deleted slots fill the table, it is rehashed without growing
+		for ( long i = 0; i < 100000; i++ )
+		{
+			table.insert( i, i );
+			table.remove( i, i );
+		}
+
+		assertEquals( memory, table.getMemorySize() );
+		assertEquals( 10, table.size() );
+
+		for ( long i = 0; i < 10; i++ )
+		{
+			assertEquals( i, table.getValue( table.find( -1L, i ), 0 ) );
+		}
+	}
+
+
+	@Test
+	public void testIterateAndClear()
+	{
+		OffHeapLongHashTable table = new OffHeapLongHashTable( 1, 16 );
+
+		for ( long i = 1; i <= 100; i++ )
+		{
+			table.insert( i, 0L );
+		}
+
+		long sum = 0;
+		int count = 0;
+
+		for ( int slot = table.nextSlot( 0 ); slot >= 0; slot = table.nextSlot( slot + 1 ) )
+		{
+			sum += table.getKeyHigh( slot );
+			count++;
+		}
+
+		assertEquals( 100, count );
+		assertEquals( 5050, sum );
+
+		table.clear();
+
+		assertEquals( 0, table.size() );
+		assertEquals( -1, table.nextSlot( 0 ) );
+		assertEquals( -1, table.find( 1L, 0L ) );
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the invalidation rules of the {@link SearchResultCache}.
+ */
+public class SearchResultCacheTest
+{
+	private static final String ROOT = "dc=example,dc=com";
+	private static final String PEOPLE = "ou=people," + ROOT;
+	private static final String GROUPS = "ou=groups," + ROOT;
+	private static final String JOHN = "uid=john," + PEOPLE;
+
+	private SearchResultCache cache;
+
+
+	private static SearchResultCache.Key key( String base, SearchScope scope ) throws Exception
+	{
+		return new SearchResultCache.Key( new Dn( base ), scope, "(objectClass=*)", "*", "uid=admin,ou=system", 0,
+				false, AliasDerefMode.NEVER_DEREF_ALIASES );
+	}
+
+
+	private void put( SearchResultCache.Key key )
+	{
+		cache.put( key, new ArrayList<Entry>(), cache.getGeneration() );
+	}
+
+
+	@Before
+	public void init()
+	{
+		cache = new SearchResultCache( new SearchCacheSettings( "example" ) );
+	}
+
+
+	@Test
+	public void testCovers() throws Exception
+	{
+		assertTrue( key( PEOPLE, SearchScope.OBJECT ).covers( new Dn( PEOPLE ) ) );
+		assertFalse( key( PEOPLE, SearchScope.OBJECT ).covers( new Dn( JOHN ) ) );
+
+		assertTrue( key( PEOPLE, SearchScope.ONELEVEL ).covers( new Dn( JOHN ) ) );
+		assertFalse( key( PEOPLE, SearchScope.ONELEVEL ).covers( new Dn( PEOPLE ) ) );
+		assertFalse( key( ROOT, SearchScope.ONELEVEL ).covers( new Dn( JOHN ) ) );
+
+		assertTrue( key( ROOT, SearchScope.SUBTREE ).covers( new Dn( ROOT ) ) );
+		assertTrue( key( ROOT, SearchScope.SUBTREE ).covers( new Dn( JOHN ) ) );
+		assertFalse( key( PEOPLE, SearchScope.SUBTREE ).covers( new Dn( GROUPS ) ) );
+		assertFalse( key( PEOPLE, SearchScope.SUBTREE ).covers( new Dn( ROOT ) ) );
+	}
+
+
+	@Test
+	public void testInvalidateRemovesTheResultsHoldingTheEntry() throws Exception
+	{
+		put( key( ROOT, SearchScope.SUBTREE ) );
+		put( key( PEOPLE, SearchScope.ONELEVEL ) );
+		put( key( PEOPLE, SearchScope.OBJECT ) );
+		put( key( GROUPS, SearchScope.ONELEVEL ) );
+		put( key( JOHN, SearchScope.OBJECT ) );
+
+		cache.invalidate( new Dn( JOHN ) );
+
+		assertNull( cache.get( key( ROOT, SearchScope.SUBTREE ) ) );
+		assertNull( cache.get( key( PEOPLE, SearchScope.ONELEVEL ) ) );
+		assertNull( cache.get( key( JOHN, SearchScope.OBJECT ) ) );
+		assertNotNull( cache.get( key( PEOPLE, SearchScope.OBJECT ) ) );
+		assertNotNull( cache.get( key( GROUPS, SearchScope.ONELEVEL ) ) );
+	}
+
+
+	@Test
+	public void testInvalidateSubtreeRemovesTheResultsBelowTheEntry() throws Exception
+	{
+		put( key( ROOT, SearchScope.ONELEVEL ) );
+		put( key( PEOPLE, SearchScope.ONELEVEL ) );
+		put( key( JOHN, SearchScope.OBJECT ) );
+		put( key( GROUPS, SearchScope.SUBTREE ) );
+		put( key( ROOT, SearchScope.OBJECT ) );
+
+		cache.invalidateSubtree( new Dn( PEOPLE ) );
+
+		assertNull( cache.get( key( ROOT, SearchScope.ONELEVEL ) ) );
+		assertNull( cache.get( key( PEOPLE, SearchScope.ONELEVEL ) ) );
+		assertNull( cache.get( key( JOHN, SearchScope.OBJECT ) ) );
+		assertNotNull( cache.get( key( GROUPS, SearchScope.SUBTREE ) ) );
+		assertNotNull( cache.get( key( ROOT, SearchScope.OBJECT ) ) );
+	}
+
+
+	@Test
+	public void testResultComputedDuringAWriteIsNotStored() throws Exception
+	{
+		long generation = cache.getGeneration();
+
+		cache.invalidate( new Dn( GROUPS ) );
+		cache.put( key( PEOPLE, SearchScope.ONELEVEL ), new ArrayList<Entry>(), generation );
+
+		assertNull( cache.get( key( PEOPLE, SearchScope.ONELEVEL ) ) );
+
+		generation = cache.getGeneration();
+		cache.clear();
+		cache.put( key( PEOPLE, SearchScope.ONELEVEL ), new ArrayList<Entry>(), generation );
+
+		assertNull( cache.get( key( PEOPLE, SearchScope.ONELEVEL ) ) );
+	}
+
+
+	@Test
+	public void testKeys() throws Exception
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		cache.put( key( PEOPLE, SearchScope.ONELEVEL ), entries, cache.getGeneration() );
+
+		assertTrue( entries == cache.get( key( PEOPLE, SearchScope.ONELEVEL ) ) );
+		assertNull( cache.get( key( PEOPLE, SearchScope.SUBTREE ) ) );
+		assertNull( cache.get( new SearchResultCache.Key( new Dn( PEOPLE ), SearchScope.ONELEVEL, "(objectClass=*)",
+				"*", "uid=john,ou=people,dc=example,dc=com", 0, false, AliasDerefMode.NEVER_DEREF_ALIASES ) ) );
+
+		cache.clear();
+
+		assertNull( cache.get( key( PEOPLE, SearchScope.ONELEVEL ) ) );
+		assertEquals( 0, cache.getMemory() );
+	}
+}
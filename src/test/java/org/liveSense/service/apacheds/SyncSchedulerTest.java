@@ -0,0 +1,227 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.liveSense.service.apacheds;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.server.core.api.DirectoryService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the scheduling of the syncs by the {@link SyncScheduler}, and the grouping
+ * of the callers waiting for them.
+ */
+public class SyncSchedulerTest
+{
+	/** The longest time a test waits for the flusher, in milliseconds */
+	private static final long TIMEOUT = 5000;
+
+	private SyncScheduler scheduler;
+
+	/** The number of syncs of the DirectoryService */
+	private final AtomicInteger syncs = new AtomicInteger();
+
+	/** When set, the syncs wait for it to be counted down */
+	private volatile CountDownLatch syncReleased;
+
+	/** Counted down when a sync starts */
+	private final CountDownLatch syncStarted = new CountDownLatch( 1 );
+
+	/** When set, the syncs fail with it */
+	private volatile Exception syncFailure;
+
+
+	@Before
+	public void init()
+	{
+		// Only the sync of the DirectoryService is called by the scheduler
+		DirectoryService directoryService = ( DirectoryService ) Proxy.newProxyInstance(
+				DirectoryService.class.getClassLoader(), new Class<?>[] { DirectoryService.class },
+				new InvocationHandler()
+				{
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Exception
+					{
+						if ( "sync".equals( method.getName() ) )
+						{
+							syncs.incrementAndGet();
+							syncStarted.countDown();
+
+							if ( syncReleased != null )
+							{
+								syncReleased.await();
+							}
+
+							if ( syncFailure != null )
+							{
+								throw syncFailure;
+							}
+						}
+
+						return null;
+					}
+				} );
+
+		scheduler = new SyncScheduler( directoryService );
+		scheduler.setPolicy( 0, 0 );
+		scheduler.start();
+	}
+
+
+	@After
+	public void stop() throws Exception
+	{
+		scheduler.stop();
+	}
+
+
+	private void write( int count )
+	{
+		for ( int i = 0; i < count; i++ )
+		{
+			scheduler.writeCompleted();
+		}
+	}
+
+
+	private void awaitFlushes( long count ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+
+		while ( scheduler.getFlushCount() < count )
+		{
+			assertTrue( "No sync after " + TIMEOUT + " ms", System.currentTimeMillis() < deadline );
+			Thread.sleep( 10 );
+		}
+	}
+
+
+	@Test
+	public void testNoSyncWithoutWrites() throws Exception
+	{
+		assertTrue( scheduler.awaitDurable().isDone() );
+		assertEquals( 0, syncs.get() );
+	}
+
+
+	@Test
+	public void testAwaitDurableSyncsTheWrites() throws Exception
+	{
+		write( 3 );
+
+		scheduler.awaitDurable().get( TIMEOUT, TimeUnit.MILLISECONDS );
+
+		assertEquals( 1, syncs.get() );
+		assertEquals( 0, scheduler.getPendingWrites() );
+		assertEquals( 3, scheduler.getMaxBatchSize() );
+
+		// The writes are already durable
+		assertTrue( scheduler.awaitDurable().isDone() );
+		assertEquals( 1, syncs.get() );
+	}
+
+
+	@Test
+	public void testWriteCountTriggersASync() throws Exception
+	{
+		scheduler.setPolicy( 0, 3 );
+		write( 2 );
+		Thread.sleep( 100 );
+
+		assertEquals( 0, syncs.get() );
+
+		write( 1 );
+		awaitFlushes( 1 );
+
+		assertEquals( 1, syncs.get() );
+		assertEquals( 0, scheduler.getPendingWrites() );
+	}
+
+
+	@Test
+	public void testIntervalTriggersASync() throws Exception
+	{
+		scheduler.setPolicy( 50, 0 );
+		write( 1 );
+		awaitFlushes( 1 );
+
+		assertEquals( 0, scheduler.getPendingWrites() );
+	}
+
+
+	@Test
+	public void testWaitersArrivingDuringASyncAreGrouped() throws Exception
+	{
+		syncReleased = new CountDownLatch( 1 );
+		write( 1 );
+		Future<Void> first = scheduler.awaitDurable();
+
+		assertTrue( syncStarted.await( TIMEOUT, TimeUnit.MILLISECONDS ) );
+
+		write( 2 );
+		Future<Void> second = scheduler.awaitDurable();
+		Future<Void> third = scheduler.awaitDurable();
+
+		assertFalse( first.isDone() );
+
+		syncReleased.countDown();
+		first.get( TIMEOUT, TimeUnit.MILLISECONDS );
+		second.get( TIMEOUT, TimeUnit.MILLISECONDS );
+		third.get( TIMEOUT, TimeUnit.MILLISECONDS );
+
+		// One sync for the first caller, one for both callers arrived during it
+		assertEquals( 2, syncs.get() );
+		assertEquals( 2, scheduler.getMaxBatchSize() );
+	}
+
+
+	@Test(expected = ExecutionException.class)
+	public void testFailedSyncFailsTheWaiters() throws Exception
+	{
+		syncFailure = new Exception( "sync failure" );
+		write( 1 );
+
+		scheduler.awaitDurable().get( TIMEOUT, TimeUnit.MILLISECONDS );
+	}
+
+
+	@Test(expected = ExecutionException.class)
+	public void testStoppedSchedulerFailsTheWaiters() throws Exception
+	{
+		scheduler.stop();
+		write( 1 );
+
+		scheduler.awaitDurable().get( TIMEOUT, TimeUnit.MILLISECONDS );
+	}
+}